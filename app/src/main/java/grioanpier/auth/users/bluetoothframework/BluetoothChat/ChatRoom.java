@@ -44,6 +44,7 @@ import grioanpier.auth.users.bluetoothframework.R.layout;
 import grioanpier.auth.users.bluetoothframework.R.string;
 import grioanpier.auth.users.bluetoothframework.SocketManagerService;
 import grioanpier.auth.users.bluetoothframework.SocketManagerService.SocketManagerServiceBinder;
+import grioanpier.auth.users.bluetoothframework.session.PeerTable;
 
 public class ChatRoom extends Activity {
 
@@ -162,6 +163,7 @@ public class ChatRoom extends Activity {
         if (mBound) {
             mBound = false;
             mService.removeHandler(mHandler);
+            mService.setPeersListener(null);
             unbindService(mConnection);
         }
     }
@@ -179,6 +181,12 @@ public class ChatRoom extends Activity {
             mService = binder.getService();
             mBound = true;
             mService.addHandler(mHandler);
+            mService.setPeersListener(new SocketManagerService.PeersListener() {
+                @Override
+                public void onPeersChanged(PeerTable.Changes changes) {
+                    waitingScreenFragment.setPlayersJoined(changes.peers.size());
+                }
+            });
         }
 
         @Override
@@ -191,10 +199,8 @@ public class ChatRoom extends Activity {
         btManager.setServerListenForConnectionsListener(new ServerListenForConnectionsListener() {
             @Override
             public void onConnectionEstablished(boolean established, String name) {
-                if (established) {
+                if (established)
                     Toast.makeText(getApplicationContext(), "Connected with " + name, Toast.LENGTH_SHORT).show();
-                    waitingScreenFragment.playersJoinedIncrement();
-                }
             }
         });
         btManager.serverListenForConnections(true);
@@ -214,7 +220,6 @@ public class ChatRoom extends Activity {
             switch (msg.what) {
                 case SocketManagerService.THREAD_DISCONNECTED:
                     Toast.makeText(contextWeakReference.get(), msg.obj + " disconnected", Toast.LENGTH_SHORT).show();
-                    waitingScreenFragment.get().playersJoinedDecrement();
                     break;
                 default:
                     break;
@@ -270,13 +275,11 @@ public class ChatRoom extends Activity {
             outState.putInt(PLAYERS_IN_ROOM, mPlayersJoined);
         }
 
-        public void playersJoinedIncrement() {
-            mPlayersJoined++;
-            mPlayersJoinedTextView.setText(getResources().getString(string.playersJoined, mPlayersJoined));
-        }
-
-        public void playersJoinedDecrement() {
-            mPlayersJoined--;
+        /**
+         * @param players every device in the room, the host included. The roster is empty until the first player joins.
+         */
+        public void setPlayersJoined(int players) {
+            mPlayersJoined = Math.max(1, players);
             mPlayersJoinedTextView.setText(getResources().getString(string.playersJoined, mPlayersJoined));
         }
 
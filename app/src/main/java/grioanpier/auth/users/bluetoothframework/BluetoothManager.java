@@ -16,11 +16,9 @@ Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
 */
 import android.app.Activity;
 import android.app.Fragment;
-import android.app.LoaderManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -32,21 +30,25 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.widget.Toast;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Set;
 import java.util.UUID;
 
 import grioanpier.auth.users.bluetoothframework.SocketManagerService.SocketManagerServiceBinder;
-import grioanpier.auth.users.bluetoothframework.loaders.AcceptTaskLoader;
 import grioanpier.auth.users.bluetoothframework.loaders.ConnectTaskLoader;
+import grioanpier.auth.users.bluetoothframework.rfcomm.RfcommTransport;
+import grioanpier.auth.users.bluetoothframework.session.SocketManager;
+import grioanpier.auth.users.bluetoothframework.transport.RecordingTransport;
+import grioanpier.auth.users.bluetoothframework.transport.SlotProber;
+import grioanpier.auth.users.bluetoothframework.transport.Transport;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
 
 /**
  * A {@link Fragment} that contains various useful methods regarding the Bluetooth.
  */
 public class BluetoothManager extends Fragment {
 
-    private static final int ACCEPT_LOADER = 0;
     private static final int CONNECT_LOADER = 1;
 
     //UUID was acquired from UUID.randomUUID() once and is now hardcoded
@@ -64,16 +66,55 @@ public class BluetoothManager extends Fragment {
             UUID.fromString("037c8466-b294-489c-b410-00f5a8c123c9")
     };
 
+    //Where players wait for one of the sUUIDs to be freed, when all of them are taken.
+    private static final UUID sLobbyUUID = UUID.fromString("4c0b3d5e-7a61-4f2c-9e8d-5b1a06c3f2d7");
+    //What the players try, the lobby last.
+    private static final UUID[] sJoinUUIDs = join(sUUIDs, sLobbyUUID);
+
+    private static UUID[] join(UUID[] uuids, UUID last) {
+        UUID[] joined = Arrays.copyOf(uuids, uuids.length + 1);
+        joined[uuids.length] = last;
+        return joined;
+    }
+
     //The device that we want to connect to. Shouldn't be used anywhere else except for the ConnectLoader
     private BluetoothDevice connectedDevice = null;
 
 
-    private static final ArrayList<UUID> sAvailableUUIDs = new ArrayList<>(Arrays.asList(sUUIDs));
     private static final BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    //How the devices reach each other. Only the RFCOMM one is available on the phones.
+    private final Transport mTransport = new RfcommTransport(mBluetoothAdapter);
+    //Remembers the UUID every host was last joined on, for as long as the app runs.
+    private static final SlotProber sSlotProber = new SlotProber();
 
     private SocketManagerService mService;
     private boolean mBound = false;
 
+    /**
+     * @return the transport to connect and listen with. Once the service is bound, every attempt and its result go
+     * to its flight recorder.
+     */
+    private Transport transport() {
+        return mBound ? new RecordingTransport(mTransport, mService.getFlightRecorder()) : mTransport;
+    }
+
+    /**
+     * Reconnects to the host through the UUID that worked last, then through the rest.
+     * Kept by the service after this fragment stops, so a drop during the game is resumed too.
+     */
+    private SocketManager.Reconnector reconnector() {
+        final Transport transport = transport();
+        return new SocketManager.Reconnector() {
+            @Override
+            public TransportSocket reconnect(String hostAddress) throws IOException {
+                TransportSocket socket = sSlotProber.connect(transport, hostAddress, sJoinUUIDs, null).getSocket();
+                if (socket == null)
+                    throw new IOException("Couldn't reach " + hostAddress);
+                return socket;
+            }
+        };
+    }
+
     private static final int UNDEFINED = -1;
     public static final int PLAYER = 0;
     public static final int HOST = 1;
@@ -245,72 +286,43 @@ public class BluetoothManager extends Fragment {
 
     private boolean serverListenForConnectionsConstant = false;
 
+    /**
+     * Accepts players on every free UUID at once. Every player is handed to the {@link SocketManagerService} as soon
+     * as it connects, and its UUID is listened on again once it leaves.
+     *
+     * @param constant if false, stops accepting after the first player
+     */
     public void serverListenForConnections(boolean constant) {
         serverListenForConnectionsConstant = constant;
-        UUID uuid = getNextUUID();
-        if (uuid != null) {
-            serverListenForConnections(uuid);
-        } else {
-            if (serverListenForConnectionsListener != null) {
-                serverListenForConnectionsListener.onConnectionEstablished(false, NO_AVAILABLE_UUID);
-            }
-        }
-
-    }
-
-    private void onConnectionEstablished(boolean established) {
-        if (established) {
-            removeNextUUID();
-            if (serverListenForConnectionsConstant) {
-                UUID uuid = getNextUUID();
-                if (uuid != null) {
-                    prepareServerListenForConnections();
-                    serverListenForConnections(uuid);
-                }
-            }
+        DEVICE_TYPE = HOST;
+        if (!mBound) {
+            if (serverListenForConnectionsListener != null)
+                serverListenForConnectionsListener.onConnectionEstablished(false, null);
+            return;
         }
+        mService.startAccepting(transport(), Arrays.asList(sUUIDs), sLobbyUUID);
+        if (mService.getFreeSlotCount() == 0 && serverListenForConnectionsListener != null)
+            serverListenForConnectionsListener.onConnectionEstablished(false, NO_AVAILABLE_UUID);
     }
 
     /**
-     * Creates an {@link AcceptTaskLoader} that listens for incoming connections for the provided {@link UUID}.
-     * The results are stored in the {@link SocketManagerService}.
-     *
-     * @param uuid The {@link UUID} that will be used to listen for incoming connections.
+     * Stops accepting players. The ones already connected stay.
      */
-    private void serverListenForConnections(final UUID uuid) {
-        DEVICE_TYPE = HOST;
-
-        LoaderManager loaderManager = getLoaderManager();
-        loaderManager.initLoader(ACCEPT_LOADER, null, new LoaderCallbacks<BluetoothSocket>() {
-            @Override
-            public Loader<BluetoothSocket> onCreateLoader(int id, Bundle args) {
-                return new AcceptTaskLoader(getActivity(), uuid);
-            }
-
-            @Override
-            public void onLoadFinished(Loader<BluetoothSocket> loader, BluetoothSocket bluetoothSocket) {
-                if (serverListenForConnectionsListener != null) {
-                    if (bluetoothSocket != null) {
-                        serverListenForConnectionsListener.onConnectionEstablished(true, bluetoothSocket.getRemoteDevice().getName());
-                        onConnectionEstablished(true);
-                        if (mBound) {
-                            mService.addPlayerSocket(bluetoothSocket);
-
-                        }
-                    } else {
-                        serverListenForConnectionsListener.onConnectionEstablished(false, null);
-                        onConnectionEstablished(false);
-                    }
-                }
-            }
-
-            @Override
-            public void onLoaderReset(Loader<BluetoothSocket> loader) {
-            }
-        });
-
+    public void stopListeningForConnections() {
+        if (mBound)
+            mService.stopAccepting();
     }
 
+    private final SocketManagerService.PlayerListener mPlayerListener = new SocketManagerService.PlayerListener() {
+        @Override
+        public void onPlayerConnected(String name) {
+            if (serverListenForConnectionsListener != null)
+                serverListenForConnectionsListener.onConnectionEstablished(true, name);
+            if (!serverListenForConnectionsConstant && mBound)
+                mService.stopAccepting();
+        }
+    };
+
     /**
      * Creates a {@link ConnectTaskLoader} to try and connect to the specified device.
      * If a connection is established, it calls the respective method for the supplied {source}
@@ -339,8 +351,6 @@ public class BluetoothManager extends Fragment {
             mService.clear();
         }
 
-        refreshUUIDs();
-
         //If we were already trying to connect to a device, destroy the loader and start again.
         BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(MAC_address);
         if (    connectedDevice != null) {
@@ -353,18 +363,21 @@ public class BluetoothManager extends Fragment {
 
     }
 
-    private final LoaderCallbacks<BluetoothSocket> connectLoader = new LoaderCallbacks<BluetoothSocket>() {
+    private final LoaderCallbacks<TransportSocket> connectLoader = new LoaderCallbacks<TransportSocket>() {
         @Override
-        public Loader<BluetoothSocket> onCreateLoader(int id, Bundle args) {
-            return new ConnectTaskLoader(getActivity(), connectedDevice, sUUIDs);
+        public Loader<TransportSocket> onCreateLoader(int id, Bundle args) {
+            return new ConnectTaskLoader(getActivity(), transport(), sSlotProber, connectedDevice.getAddress(), sJoinUUIDs);
         }
 
         @Override
         //Attempts to connect to the device.
-        public void onLoadFinished(Loader<BluetoothSocket> loader, BluetoothSocket btSocket) {
+        public void onLoadFinished(Loader<TransportSocket> loader, TransportSocket btSocket) {
             DEVICE_TYPE = PLAYER;
+            SlotProber.Result result = ((ConnectTaskLoader) loader).getResult();
+            if (joinListener != null && result != null)
+                joinListener.onJoinAttempted(connectedDevice.getAddress(), result);
             if (btSocket != null) {
-                String name = btSocket.getRemoteDevice().getName();
+                String name = btSocket.getRemoteName();
                 if (connectListener != null) {
                     connectListener.onConnected(true, name);
                 }
@@ -378,40 +391,21 @@ public class BluetoothManager extends Fragment {
             }
         }
         @Override
-        public void onLoaderReset(Loader<BluetoothSocket> loader) {
+        public void onLoaderReset(Loader<TransportSocket> loader) {
         }
     };
 
-    private UUID getNextUUID() {
-        if (sAvailableUUIDs.isEmpty())
-            return null;
-        else
-            return sAvailableUUIDs.get(0);
-    }
-
-    private void removeNextUUID() {
-        if (!sAvailableUUIDs.isEmpty()) {
-            sAvailableUUIDs.remove(0);
-        }
-    }
-
+    /**
+     * @deprecated The UUIDs are freed as soon as the players that took them leave, there's nothing to refresh.
+     */
+    @Deprecated
     public static void refreshUUIDs() {
-        sAvailableUUIDs.clear();
-        sAvailableUUIDs.ensureCapacity(10);
-        sAvailableUUIDs.addAll(Arrays.asList(sUUIDs));
     }
 
     public static boolean isHost() {
         return DEVICE_TYPE == HOST;
     }
 
-    /**
-     * Prepares the server to listen for incoming connections.
-     */
-    private void prepareServerListenForConnections() {
-        getLoaderManager().destroyLoader(ACCEPT_LOADER);
-    }
-
     @Override
     public void onStart() {
         super.onStart();
@@ -431,7 +425,10 @@ public class BluetoothManager extends Fragment {
             // We've bound to LocalService, cast the IBinder and get LocalService instance
             SocketManagerServiceBinder binder = (SocketManagerServiceBinder) service;
             mService = binder.getService();
+            //Bound first, so the transport the reconnector keeps goes to the flight recorder of the service.
             mBound = true;
+            mService.setPlayerListener(mPlayerListener);
+            mService.setReconnector(reconnector());
         }
 
         @Override
@@ -443,6 +440,7 @@ public class BluetoothManager extends Fragment {
     @Override
     public void onStop() {
         if (mBound) {
+            mService.setPlayerListener(null);
             getActivity().unbindService(mConnection);
             mBound = false;
         }
@@ -498,6 +496,13 @@ public class BluetoothManager extends Fragment {
         void onConnected(boolean connected, String deviceName);
     }
 
+    public interface JoinListener {
+        /**
+         * Invoked after every attempt to join a host, before the {@link ConnectListener}, with the time every UUID took.
+         */
+        void onJoinAttempted(String address, SlotProber.Result result);
+    }
+
     private BluetoothRequestEnableListener bluetoothRequestEnableListener;
 
     public void setBluetoothRequestEnableListener(BluetoothRequestEnableListener listener) {
@@ -531,6 +536,12 @@ public class BluetoothManager extends Fragment {
         connectListener = listener;
     }
 
+    private JoinListener joinListener;
+
+    public void setJoinListener(JoinListener listener) {
+        joinListener = listener;
+    }
+
     private final static String NO_AVAILABLE_UUID = "There are no more available UUIDs";
 
 }
@@ -15,32 +15,51 @@ Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
    limitations under the License.
 */
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 
-import java.io.IOException;
+import java.util.Set;
 import java.util.UUID;
 
+import grioanpier.auth.users.bluetoothframework.rfcomm.SdpQuery;
+import grioanpier.auth.users.bluetoothframework.transport.SlotProber;
+import grioanpier.auth.users.bluetoothframework.transport.Transport;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+
 /**
- * Listens for incoming connections on the provided UUIDs.
- * It listens for 1 UUID at every time and as soon as a connection is initialized, it moves to the next.
+ * Connects to a host on one of the provided UUIDs.
+ * The UUID that worked the last time is tried right away, while the host is asked which UUIDs it advertises.
+ * Then only the advertised ones are tried. See {@link SlotProber}.
  */
-public class ConnectTaskLoader extends AsyncTaskLoader<BluetoothSocket> {
+public class ConnectTaskLoader extends AsyncTaskLoader<TransportSocket> {
+
+    //How long to wait for the advertised UUIDs before trying every UUID instead.
+    private static final long SDP_TIMEOUT_MS = 3000;
 
-    private final BluetoothDevice mBtDevice;
+    private final Transport mTransport;
+    private final SlotProber mProber;
+    private final String mAddress;
     private final UUID[] mUUIDs;
-    private BluetoothSocket mBtSocket;
+    private TransportSocket mBtSocket;
+    private volatile SlotProber.Result mResult;
 
-    public ConnectTaskLoader(Context context, BluetoothDevice bluetoothDevice, UUID... uuids) {
+    public ConnectTaskLoader(Context context, Transport transport, SlotProber prober, String address, UUID... uuids) {
         super(context);
         mUUIDs=uuids;
-        mBtDevice=bluetoothDevice;
+        mTransport=transport;
+        mProber=prober;
+        mAddress=address;
+    }
+
+    /**
+     * @return how the last load went, attempt by attempt. Null until a load completes.
+     */
+    public SlotProber.Result getResult() {
+        return mResult;
     }
 
     @Override
-    public void deliverResult(BluetoothSocket socket) {
+    public void deliverResult(TransportSocket socket) {
         mBtSocket = socket;
         if (isStarted())
             super.deliverResult(socket);
@@ -60,30 +79,24 @@ public class ConnectTaskLoader extends AsyncTaskLoader<BluetoothSocket> {
 
 
     @Override
-    public BluetoothSocket loadInBackground() {
-        BluetoothSocket btSocket;
-        BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
-
-        //Cycles through the available UUIDs and tries to connect to the specified device
-        int index=0;
-        do{
-            try {
-                Thread.sleep(100);
-                btSocket = mBtDevice.createRfcommSocketToServiceRecord(mUUIDs[index]);
-                btSocket.connect();
-            } catch (IOException e) {
-                btSocket=null;
-                index++;
-            } catch (InterruptedException e) {
-                btSocket=null;
-                e.printStackTrace();
+    public TransportSocket loadInBackground() {
+        SdpQuery sdp = SdpQuery.start(getContext(), BluetoothAdapter.getDefaultAdapter().getRemoteDevice(mAddress));
+
+        SlotProber.Result result = null;
+        UUID last = mProber.getLastSlot(mAddress);
+        if (last != null) {
+            result = mProber.connect(mTransport, mAddress, new UUID[]{last}, null);
+            if (result.getSocket() != null) {
+                sdp.cancel();
+                mResult = result;
+                return result.getSocket();
             }
+        }
 
-        }while ((btSocket == null) && (index < mUUIDs.length));
-
-        return btSocket;
+        //If the host doesn't answer in time, every UUID is tried.
+        Set<UUID> advertised = sdp.await(SDP_TIMEOUT_MS);
+        result = mProber.connect(mTransport, mAddress, mUUIDs, advertised, result);
+        mResult = result;
+        return result.getSocket();
     }
 }
-
-
-
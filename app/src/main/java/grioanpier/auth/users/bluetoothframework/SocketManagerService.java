@@ -15,36 +15,91 @@ Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
    limitations under the License.
 */
 import android.app.Service;
-import android.bluetooth.*;
+import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
+import java.util.List;
 import java.util.TreeMap;
-
-import grioanpier.auth.users.bluetoothframework.loaders.ConnectedThread;
-
+import java.util.UUID;
+
+import grioanpier.auth.users.bluetoothframework.io.OverflowPolicy;
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+import grioanpier.auth.users.bluetoothframework.io.QueueOverflowException;
+import grioanpier.auth.users.bluetoothframework.metrics.TrafficMetrics;
+import grioanpier.auth.users.bluetoothframework.rfcomm.RfcommSocket;
+import grioanpier.auth.users.bluetoothframework.session.PeerTable;
+import grioanpier.auth.users.bluetoothframework.session.SocketManager;
+import grioanpier.auth.users.bluetoothframework.stream.VirtualStream;
+import grioanpier.auth.users.bluetoothframework.stream.VirtualStreams;
+import grioanpier.auth.users.bluetoothframework.trace.FlightRecorder;
+import grioanpier.auth.users.bluetoothframework.trace.MessageTracer;
+import grioanpier.auth.users.bluetoothframework.transfer.BlobTransfers;
+import grioanpier.auth.users.bluetoothframework.transport.Transport;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+import grioanpier.auth.users.bluetoothframework.wire.WireFormat;
+
+/**
+ * Android side of the {@link SocketManager}. It keeps the connections alive for as long as the app needs them and
+ * delivers what they receive to the registered {@link Handler}s, on the main thread.
+ */
 public class SocketManagerService extends Service {
 
     private final IBinder mBinder = new SocketManagerServiceBinder();
-    private BluetoothSocket hostSocket = null;
-    private final TreeMap<String, BluetoothSocket> playerSockets = new TreeMap<>();
-    private final TreeMap<String, ConnectedThread> connectedThreads = new TreeMap<>();
     private final SocketManagerServiceHandler socketManagerHandler = new SocketManagerServiceHandler(this);
+    //Only touched on the main thread.
+    private final TreeMap<Integer, Runnable> metricsSubscriptions = new TreeMap<>();
 
-    private final HashMap<String, String> connectedDevicesNames = new HashMap<>();
+    private final SocketManager socketManager = new SocketManager(new SocketManager.LocalDevice() {
+        @Override
+        public boolean isHost() {
+            return BluetoothManager.isHost();
+        }
 
+        @Override
+        public String getAddress() {
+            return BluetoothManager.getMACAddress();
+        }
+    }, new SocketManager.Listener() {
+        @Override
+        public void onMessage(BluetoothMessage message) {
+            socketManagerHandler.obtainMessage(THREAD_READ, message).sendToTarget();
+        }
 
-    /**
-     * Synchronization lock to be used by the write methods in order to avoid possible messages that are sent the same time
-     * and things mess up.
-     */
-    private final static Object Write_Lock = new Object();
+        @Override
+        public void onPlayerConnected(String address, String name) {
+            socketManagerHandler.obtainMessage(THREAD_CONNECTED, name).sendToTarget();
+        }
+
+        @Override
+        public void onDisconnected(String address, String name, boolean wasHost) {
+            String who = wasHost ? "The host" : name;
+            socketManagerHandler.obtainMessage(THREAD_DISCONNECTED, who).sendToTarget();
+        }
+    });
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        socketManager.setPeerListener(new PeerTable.Listener() {
+            @Override
+            public void onPeersChanged(PeerTable.Changes changes) {
+                socketManagerHandler.obtainMessage(PEERS_CHANGED, changes).sendToTarget();
+            }
+        });
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -84,66 +139,331 @@ public class SocketManagerService extends Service {
      */
     @Override
     public void onDestroy() {
+        for (Runnable task : metricsSubscriptions.values())
+            socketManagerHandler.removeCallbacks(task);
+        metricsSubscriptions.clear();
         clear();
     }
 
 
     public void addPlayerSocket(BluetoothSocket btSocket) {
-        ConnectedThread thread = new ConnectedThread(btSocket, socketManagerHandler);
-        thread.start();
-        connectedThreads.put(thread.ID, thread);
-        playerSockets.put(thread.ID, btSocket);
-        connectedDevicesNames.put(btSocket.getRemoteDevice().getName(), thread.ID);
+        addPlayerSocket(new RfcommSocket(btSocket));
+    }
 
+    public void addPlayerSocket(TransportSocket socket) {
+        socketManager.addPlayerSocket(socket);
     }
 
-    private boolean removePlayerSocket(String key) {
-        if (playerSockets.containsKey(key)) {
-            try {
-                playerSockets.remove(key).close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            return true;
-        } else
-            return false;
+    public interface PlayerListener {
+        /**
+         * Invoked on the main thread for every player accepted through {@link #startAccepting}.
+         *
+         * @param name the name of the player, null if it isn't known
+         */
+        void onPlayerConnected(String name);
+    }
+
+    //Only touched on the main thread.
+    private PlayerListener playerListener;
+
+    public void setPlayerListener(PlayerListener listener) {
+        playerListener = listener;
+    }
+
+    /**
+     * Invoked on the main thread once for every batch of changes to the roster of the session. Kept apart from the
+     * Handlers, whose messages are keyed by app code.
+     */
+    public interface PeersListener {
+        void onPeersChanged(PeerTable.Changes changes);
+    }
+
+    //Only touched on the main thread.
+    private PeersListener peersListener;
+
+    public void setPeersListener(PeersListener listener) {
+        peersListener = listener;
+    }
+
+    /**
+     * Accepts players on every free slot at once until {@link #stopAccepting()}. See {@link SocketManager#startAccepting}.
+     */
+    public void startAccepting(Transport transport, Collection<UUID> slots) {
+        socketManager.startAccepting(transport, slots);
+    }
+
+    /**
+     * Same, with a lobby where players wait for a slot when all of them are taken.
+     */
+    public void startAccepting(Transport transport, Collection<UUID> slots, UUID lobby) {
+        socketManager.startAccepting(transport, slots, lobby);
+    }
+
+    public void stopAccepting() {
+        socketManager.stopAccepting();
+    }
+
+    /**
+     * @return how many more players can be accepted
+     */
+    public int getFreeSlotCount() {
+        return socketManager.getFreeSlotCount();
+    }
+
+    /**
+     * @return how many players wait in the lobby for a slot
+     */
+    public int getAdmissionQueueLength() {
+        return socketManager.getAdmissionQueueLength();
     }
 
     void setHostSocket(BluetoothSocket btSocket) {
-        hostSocket = btSocket;
-        ConnectedThread thread = new ConnectedThread(btSocket, socketManagerHandler);
-        thread.start();
-        connectedThreads.put(thread.ID, thread);
-        connectedDevicesNames.put(btSocket.getRemoteDevice().getName(), thread.ID);
+        setHostSocket(new RfcommSocket(btSocket));
     }
 
-    private void removeHostSocket() {
-        if (hostSocket != null) {
-            try {
-                hostSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            hostSocket = null;
-        }
+    void setHostSocket(TransportSocket socket) {
+        socketManager.setHostSocket(socket);
     }
 
     public String getHostAddress() {
-        if (hostSocket == null)
-            return null;
-        else
-            return hostSocket.getRemoteDevice().getAddress();
+        return socketManager.getHostAddress();
     }
 
     public String getHostName() {
-        if (hostSocket == null)
-            return null;
-        else
-            return hostSocket.getRemoteDevice().getName();
+        return socketManager.getHostName();
+    }
+
+    /**
+     * Enables or disables the legacy compatibility mode. Only affects connections that are established afterwards.
+     * @param compatible true to start every new connection in {@link WireFormat#LEGACY_TEXT} until the other device
+     *                   proves it understands {@link WireFormat#BINARY}
+     */
+    public void setLegacyCompatible(boolean compatible) {
+        socketManager.setLegacyCompatible(compatible);
+    }
+
+    public boolean isLegacyCompatible() {
+        return socketManager.isLegacyCompatible();
+    }
+
+    /**
+     * Sets the capacity of the outbound queue of every connection that is established afterwards. It applies to each
+     * of its lanes, see {@link SocketManager#setOutboundQueueCapacity}.
+     * @param capacity how many frames may wait in each lane of the queue of a single device
+     */
+    public void setOutboundQueueCapacity(int capacity) {
+        socketManager.setOutboundQueueCapacity(capacity);
+    }
+
+    public int getOutboundQueueCapacity() {
+        return socketManager.getOutboundQueueCapacity();
+    }
+
+    /**
+     * Sets what happens to a message when the outbound queue of a device is full. Only affects connections that are established afterwards.
+     * With {@link OverflowPolicy#FAIL}, {@link #sendGlobalMessage} and {@link #sendPrivateMessage} throw a {@link QueueOverflowException}.
+     */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        socketManager.setOverflowPolicy(policy);
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return socketManager.getOverflowPolicy();
+    }
+
+    /**
+     * @param address the MAC address of a connected device
+     * @return the number of frames waiting to be written to the device, or -1 if it isn't connected
+     */
+    public int getOutboundQueueDepth(String address) {
+        return socketManager.getOutboundQueueDepth(address);
+    }
+
+    /**
+     * @return the number of frames waiting to be written, summed over every connected device
+     */
+    public int getOutboundQueueDepth() {
+        return socketManager.getOutboundQueueDepth();
+    }
+
+    /**
+     * @return how many read frames were served from the buffer pool
+     */
+    public long getReadBufferPoolHits() {
+        return socketManager.getReadBufferPoolHits();
+    }
+
+    /**
+     * @return how many read frames needed a new buffer, either because the pool was empty or the frame didn't fit in a pooled buffer
+     */
+    public long getReadBufferPoolMisses() {
+        return socketManager.getReadBufferPoolMisses();
+    }
+
+    /**
+     * @return the traffic of every device this device has been connected to, and the total
+     */
+    public TrafficMetrics.Snapshot getTrafficMetrics() {
+        return socketManager.getTrafficMetrics();
+    }
+
+    public interface TrafficMetricsListener {
+        /**
+         * Invoked on the main thread every period the listener subscribed with.
+         */
+        void onTrafficMetrics(TrafficMetrics.Snapshot snapshot);
+    }
+
+    /**
+     * Delivers a {@link TrafficMetrics.Snapshot} to the listener every period. Subscribing the same listener again
+     * changes its period. It doesn't go through the Handlers, whose messages are keyed by app code.
+     *
+     * @param periodMillis how often, in milliseconds
+     */
+    public void subscribeToTrafficMetrics(final TrafficMetricsListener listener, final long periodMillis) {
+        unsubscribeFromTrafficMetrics(listener);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                listener.onTrafficMetrics(socketManager.getTrafficMetrics());
+                socketManagerHandler.postDelayed(this, periodMillis);
+            }
+        };
+        metricsSubscriptions.put(listener.hashCode(), task);
+        socketManagerHandler.postDelayed(task, periodMillis);
+    }
+
+    public void unsubscribeFromTrafficMetrics(TrafficMetricsListener listener) {
+        Runnable task = metricsSubscriptions.remove(listener.hashCode());
+        if (task != null)
+            socketManagerHandler.removeCallbacks(task);
+    }
+
+    /**
+     * Turns tracing on or off. While on, every message this device sends carries a trace id and the time it was sent,
+     * and every traced message this device handles is recorded, up to the moment it's handed to the Handlers.
+     * Costs nothing while off.
+     */
+    public void setTracing(boolean tracing) {
+        socketManager.setTracing(tracing);
     }
 
-    private void removeThread(String key) {
-        connectedThreads.remove(key);
+    public boolean isTracing() {
+        return socketManager.isTracing();
+    }
+
+    /**
+     * @return the traces recorded on this device, one entry per line. See {@link MessageTracer#dump(Appendable)}.
+     */
+    public String dumpTraces() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            socketManager.getTracer().dump(builder);
+        } catch (IOException e) {
+            //A StringBuilder doesn't throw.
+        }
+        return builder.toString();
+    }
+
+    /**
+     * How often heartbeats are sent and how long a device may stay silent before its connection is dropped.
+     * The round trip times they measure are in the {@link #getTrafficMetrics() metrics}. See {@link SocketManager#setHeartbeat}.
+     *
+     * @param intervalMillis 0 to stop sending heartbeats
+     */
+    public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+        socketManager.setHeartbeat(intervalMillis, timeoutMillis);
+    }
+
+    public long getHeartbeatInterval() {
+        return socketManager.getHeartbeatInterval();
+    }
+
+    public long getHeartbeatTimeout() {
+        return socketManager.getHeartbeatTimeout();
+    }
+
+    /**
+     * How long a dropped connection is held for its session to be resumed before the disconnection reaches the
+     * Handlers. See {@link SocketManager#setResumeWindow}.
+     *
+     * @param millis 0 to deliver every disconnection right away
+     */
+    public void setResumeWindow(long millis) {
+        socketManager.setResumeWindow(millis);
+    }
+
+    public long getResumeWindow() {
+        return socketManager.getResumeWindow();
+    }
+
+    /**
+     * How many frames a device may write to this one ahead of what this one has handed on. See
+     * {@link SocketManager#setCreditWindow}.
+     *
+     * @param frames 0 for no limit
+     */
+    public void setCreditWindow(int frames) {
+        socketManager.setCreditWindow(frames);
+    }
+
+    public int getCreditWindow() {
+        return socketManager.getCreditWindow();
+    }
+
+    /**
+     * How this device connects to its host again after their connection drops.
+     */
+    public void setReconnector(SocketManager.Reconnector reconnector) {
+        socketManager.setReconnector(reconnector);
+    }
+
+    /**
+     * @return where the connection events are recorded. Always on.
+     */
+    public FlightRecorder getFlightRecorder() {
+        return socketManager.getFlightRecorder();
+    }
+
+    /**
+     * @return the recent connection events, one per line. See {@link FlightRecorder#dump(Appendable)}.
+     */
+    public String dumpFlightRecorder() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            socketManager.getFlightRecorder().dump(builder);
+        } catch (IOException e) {
+            //A StringBuilder doesn't throw.
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes the recent connection events to a file in binary, to be read back with {@link FlightRecorder#read}.
+     *
+     * @return false if the file couldn't be written
+     */
+    public boolean dumpFlightRecorder(File file) {
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            socketManager.getFlightRecorder().dump(out);
+            //Closing flushes what is buffered, so the file is only complete if it closes.
+            out.close();
+            out = null;
+            return true;
+        } catch (IOException e) {
+            //The caller is told by the return value.
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //Failed already.
+                }
+            }
+        }
     }
 
     //TODO The MAC is unavailable as of Android 6.
@@ -154,7 +474,14 @@ public class SocketManagerService extends Service {
      * @return the MAC address of the device
      */
     public String getMAC(String deviceName) {
-        return connectedDevicesNames.get(deviceName);
+        return socketManager.getMAC(deviceName);
+    }
+
+    /**
+     * @return every device of the session, on players too. See {@link SocketManager#getPeers}.
+     */
+    public List<PeerTable.Peer> getPeers() {
+        return socketManager.getPeers();
     }
 
     /**
@@ -164,7 +491,15 @@ public class SocketManagerService extends Service {
      * @param appCode the appCode of the content. It states what part of the app the content comes from. For example {BLUETOOTH_CHAT}.
      */
     public void sendGlobalMessage(String message, int appCode) {
-        sendMessage(message, "null", appCode, true);
+        socketManager.sendGlobalMessage(message, appCode);
+    }
+
+    /**
+     * Sends the content to every connected device (including to yours), in the lane of the given priority.
+     * For example {@link Priority#BULK} for a large transfer that shouldn't hold back the game.
+     */
+    public void sendGlobalMessage(String message, int appCode, Priority priority) {
+        socketManager.sendGlobalMessage(message, appCode, priority);
     }
 
     /**
@@ -176,45 +511,92 @@ public class SocketManagerService extends Service {
      * @param appCode the appCode of the content. It states what part of the app the content comes from. For example {BLUETOOTH_CHAT}.
      */
     public void sendPrivateMessage(String message, String target, int appCode) {
-        sendMessage(message, target, appCode, false);
+        socketManager.sendPrivateMessage(message, target, appCode);
     }
 
-    private synchronized void sendMessage(String message, String target, int appCode, boolean global) {
-        //Format the content.
-        StringBuilder builder = new StringBuilder();
+    /**
+     * Sends the content to a specific device, in the lane of the given priority.
+     */
+    public void sendPrivateMessage(String message, String target, int appCode, Priority priority) {
+        socketManager.sendPrivateMessage(message, target, appCode, priority);
+    }
 
-        //Pack everything in a BluetoothMessage
-        BluetoothMessage btMsg = new BluetoothMessage();
-        btMsg.isGlobal = global;
-        btMsg.targetMAC = target;
-        btMsg.sourceMAC = BluetoothManager.getMACAddress();
-        btMsg.content = message;
-        btMsg.appCode = appCode;
-        builder.append(btMsg.getMessage());
-
-        synchronized (Write_Lock) {
-            if (global) {
-                //Send the message. If the device isn't the host, then the content is sent to the host who relays it appropriately.
-                writeToAll(builder.toString());
-
-                if (BluetoothManager.isHost()) {
-                    //If the device is the host, also consume it
-                    byte[] buffer = builder.toString().getBytes();
-                    socketManagerHandler.obtainMessage(ConnectedThread.THREAD_READ, buffer.length, -1, buffer).sendToTarget();
-                }
-            } else {
-                if (BluetoothManager.isHost()) {
-                    writeTo(builder.toString(), target);
-                } else {
-                    //The message will be sent to the host who will forward it.
-                    writeToAll(builder.toString());
-                }
+    /**
+     * Sets the lane the messages with the app code go in. See {@link SocketManager#setPriority}.
+     */
+    public void setPriority(int appCode, Priority priority) {
+        socketManager.setPriority(appCode, priority);
+    }
 
-            }
+    /**
+     * Sets how long a message may get before it's written in fragments. See {@link SocketManager#setFragmentLength}.
+     */
+    public void setFragmentLength(int length) {
+        socketManager.setFragmentLength(length);
+    }
+
+    /**
+     * Turns compression of the messages sent to other devices on or off. See {@link SocketManager#setCompressionEnabled}.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        socketManager.setCompressionEnabled(enabled);
+    }
+
+    /**
+     * Sets how long a message must be to be compressed. See {@link SocketManager#setCompressionThreshold}.
+     */
+    public void setCompressionThreshold(int threshold) {
+        socketManager.setCompressionThreshold(threshold);
+    }
+
+    /**
+     * Sets the preset dictionary of an app code, which every device must be given. See {@link SocketManager#setDictionary}.
+     */
+    public void setDictionary(int appCode, byte[] dictionary) {
+        socketManager.setDictionary(appCode, dictionary);
+    }
 
+    /**
+     * Sends a file to a device, or to every device if the target is null, in the background. See {@link SocketManager#sendBlob}.
+     *
+     * @return the id of the transfer, which the {@link BlobTransfers.Listener} is told about
+     */
+    public long sendFile(File file, String target, int appCode) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            return socketManager.sendBlob(channel, file.getName(), target, appCode);
+        } catch (IOException | RuntimeException e) {
+            //The transfer only closes the channel once it has started.
+            try {
+                channel.close();
+            } catch (IOException closeFailure) {
+                //The first failure is the one to report.
+            }
+            throw e;
         }
     }
 
+    /**
+     * Sets who decides where the files other devices send go. Invoked on the threads of the connections, not on a Handler.
+     */
+    public void setBlobListener(BlobTransfers.Listener listener) {
+        socketManager.setBlobListener(listener);
+    }
+
+    /**
+     * Opens a stream to a directly connected device, without connecting again. See {@link SocketManager#openStream}.
+     */
+    public VirtualStream openStream(String target, String name, Priority priority) throws IOException {
+        return socketManager.openStream(target, name, priority);
+    }
+
+    /**
+     * Sets who gets the streams other devices open. Invoked on the threads of the connections, not on a Handler.
+     */
+    public void setStreamListener(VirtualStreams.Listener listener) {
+        socketManager.setStreamListener(listener);
+    }
+
 
     /**
      * Formats the content in the form of [{@param content.length}][{@param content}]. The length of the content should be less than 4 decimals (0-999)
@@ -245,54 +627,8 @@ public class SocketManagerService extends Service {
         return BluetoothMessage.deformat(message);
     }
 
-    private void writeToAll(String message) {
-        byte[] buffer = message.getBytes();
-        introduceDelay(250);
-        for (ConnectedThread thread : connectedThreads.values())
-            thread.write(buffer);
-    }
-
-    private void writeTo(String message, String key) {
-        introduceDelay(250);
-        ConnectedThread thread = connectedThreads.get(key);
-        if (thread != null) {
-            thread.write(message.getBytes());
-        }
-    }
-
-    //Don't want messages to be relayed too fast in succession because they get entangled.
-    private void introduceDelay(int ms) {
-        try {
-            Thread.sleep(ms);
-        } catch (InterruptedException e) {
-        }
-    }
-
-    private void closePlayerSockets() {
-        for (BluetoothSocket socket : playerSockets.values()) {
-            try {
-                if (socket != null)
-                    socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-        }
-        playerSockets.clear();
-
-    }
-
-    private void clearConnectedThreads() {
-        for (ConnectedThread thread : connectedThreads.values())
-            thread.cancel();
-        connectedThreads.clear();
-        connectedDevicesNames.clear();
-    }
-
     public void clear() {
-        removeHostSocket();
-        closePlayerSockets();
-        clearConnectedThreads();
+        socketManager.clear();
     }
 
     public class SocketManagerServiceBinder extends Binder {
@@ -310,7 +646,7 @@ public class SocketManagerService extends Service {
     }
 
     public static class SocketManagerServiceHandler extends Handler {
-        private final WeakReference<SocketManagerService> socketManagerService2WeakReference;
+        private final WeakReference<SocketManagerService> socketManagerServiceWeakReference;
         private final TreeMap<Integer, Handler> mHandlers;
 
         private <T extends Handler> void addHandler(T handler) {
@@ -323,74 +659,41 @@ public class SocketManagerService extends Service {
 
         SocketManagerServiceHandler(SocketManagerService socketManagerService) {
             mHandlers = new TreeMap<>();
-            socketManagerService2WeakReference = new WeakReference<>(socketManagerService);
+            socketManagerServiceWeakReference = new WeakReference<>(socketManagerService);
         }
 
         @Override
         public synchronized void handleMessage(Message msg) {
             switch (msg.what) {
-                case ConnectedThread.THREAD_READ:
-                    int numOfBytes = msg.arg1;
-                    String message = new String((byte[]) msg.obj, 0, numOfBytes);
-                    //message=[length][isGlobal][length][target MAC][length][source MAC][length][appCode][message content]
-                    BluetoothMessage btMsg = new BluetoothMessage(message);
-
-                    //Consuming the message
-                    if (!BluetoothManager.isHost() || (btMsg.isGlobal || btMsg.targetMAC.equals(BluetoothManager.getMACAddress()))) {
-                        //If the device isn't the host, then consume the message, global or private
-                        //Otherwise, the device is the host, so consume the message only if it's global or private but the target was the host.
-                        for (Handler handler : mHandlers.values())
-                            handler.obtainMessage(btMsg.appCode, btMsg.content).sendToTarget();
-                    }
-
-
-                    //Relaying the message. The message is relayed only from the host.
-                    if (BluetoothManager.isHost()) {
-                        if (btMsg.isGlobal && !btMsg.sourceMAC.equals(BluetoothManager.getMACAddress())) {
-                            //Relay the message to everyone if the message is global and wasn't sent from the same device.
-                            //The host sends the message to everyone before consuming it, so at this point it has already been relayed.
-                            socketManagerService2WeakReference.get().writeToAll(message);
-                        } else if (!btMsg.isGlobal && !btMsg.targetMAC.equals(BluetoothManager.getMACAddress())) {
-                            //If the device is the host and the message is private, forward appropriately. (unless the target was the host)
-                            //The source device doesn't get a copy of the message.
-
-                            //The device sends the name of the target instead of his MAC. The host retrieves it from the list of connected devices.
-                            String targetMac = socketManagerService2WeakReference.get().getMAC(btMsg.targetMAC);
-                            if (targetMac!=null){
-                                socketManagerService2WeakReference.get().writeTo(message, targetMac);
-                            }
-
-                        }
-                    }
-
-
+                case THREAD_READ:
+                    //The message has already been routed (and relayed if this device is the host) by the connection
+                    //that received it. Only the ones meant for this device reach this point.
+                    BluetoothMessage btMsg = (BluetoothMessage) msg.obj;
+                    SocketManagerService service = socketManagerServiceWeakReference.get();
+                    if (service != null)
+                        service.socketManager.getTracer().record(btMsg.traceId, btMsg.traceTime, MessageTracer.Stage.DISPATCH);
+                    for (Handler handler : mHandlers.values())
+                        handler.obtainMessage(btMsg.appCode, btMsg.content).sendToTarget();
                     break;
 
                 case THREAD_CONNECTED:
-
+                    SocketManagerService owner = socketManagerServiceWeakReference.get();
+                    if (owner != null && owner.playerListener != null)
+                        owner.playerListener.onPlayerConnected((String) msg.obj);
                     break;
 
-                case ConnectedThread.THREAD_DISCONNECTED:
-                    //TODO the msg.obj should be forwarded to all the handlers instead.
-                    //ConnectedThread calls ConnectedThread.cancel() internally which closes the streams and the socket.
-                    //Remove it from the list as well. The thread returns its ID and the name of the remote device in a String[] array.
-                    String ID = ((String[]) msg.obj)[0];
-                    String remoteDeviceName = ((String[]) msg.obj)[1];
-                    socketManagerService2WeakReference.get().removeThread(ID);
-                    socketManagerService2WeakReference.get().connectedDevicesNames.remove(remoteDeviceName);
-                    //Also remove the socket from our list.
-                    String who;
-                    if (socketManagerService2WeakReference.get().removePlayerSocket(ID)) {
-                        //The user who left was a player.
-                        who = remoteDeviceName;
-                    } else {
-                        socketManagerService2WeakReference.get().removeHostSocket();
-                        who = "The host";
-                    }
-
+                case THREAD_DISCONNECTED:
+                    //The connection has already been removed by the SocketManager. Tell the handlers who left.
                     for (Handler handler : mHandlers.values())
-                        handler.obtainMessage(ConnectedThread.THREAD_DISCONNECTED, who).sendToTarget();
+                        handler.obtainMessage(THREAD_DISCONNECTED, msg.obj).sendToTarget();
+
+                    break;
 
+                case PEERS_CHANGED:
+                    //A whole batch of devices that joined or left in one message, see PeerTable.Changes.
+                    SocketManagerService roster = socketManagerServiceWeakReference.get();
+                    if (roster != null && roster.peersListener != null)
+                        roster.peersListener.onPeersChanged((PeerTable.Changes) msg.obj);
                     break;
 
             }
@@ -399,10 +702,12 @@ public class SocketManagerService extends Service {
 
 
     //These are provided as int in the msg.what
-    public static final int THREAD_READ = ConnectedThread.THREAD_READ;//0
-    public static final int THREAD_DISCONNECTED = ConnectedThread.THREAD_DISCONNECTED;//1
-    public static final int THREAD_STREAM_ERROR = ConnectedThread.THREAD_STREAM_ERROR;//2
+    public static final int THREAD_READ = 0;
+    public static final int THREAD_DISCONNECTED = 1;
+    public static final int THREAD_STREAM_ERROR = 2;
     public static final int THREAD_CONNECTED = 3;
+    //Only used by the SocketManagerServiceHandler itself, the Handlers get app codes in the what.
+    private static final int PEERS_CHANGED = 5;
 
 
 }
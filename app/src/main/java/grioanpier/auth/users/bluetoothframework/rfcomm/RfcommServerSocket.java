@@ -0,0 +1,48 @@
+package grioanpier.auth.users.bluetoothframework.rfcomm;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+
+import grioanpier.auth.users.bluetoothframework.transport.TransportServerSocket;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+
+/**
+ * A {@link TransportServerSocket} backed by a {@link BluetoothServerSocket}.
+ */
+public class RfcommServerSocket implements TransportServerSocket {
+
+    private final BluetoothServerSocket mBtServerSocket;
+
+    public RfcommServerSocket(BluetoothServerSocket btServerSocket) {
+        mBtServerSocket = btServerSocket;
+    }
+
+    @Override
+    public TransportSocket accept() throws IOException {
+        BluetoothSocket btSocket = mBtServerSocket.accept();
+        if (btSocket == null)
+            throw new IOException("The server socket was closed");
+        return new RfcommSocket(btSocket);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBtServerSocket.close();
+    }
+}
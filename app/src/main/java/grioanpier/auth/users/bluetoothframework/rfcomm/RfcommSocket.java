@@ -0,0 +1,60 @@
+package grioanpier.auth.users.bluetoothframework.rfcomm;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+
+/**
+ * A {@link TransportSocket} backed by a connected {@link BluetoothSocket}.
+ */
+public class RfcommSocket implements TransportSocket {
+
+    private final BluetoothSocket mBtSocket;
+
+    public RfcommSocket(BluetoothSocket btSocket) {
+        mBtSocket = btSocket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mBtSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mBtSocket.getOutputStream();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mBtSocket.getRemoteDevice().getAddress();
+    }
+
+    @Override
+    public String getRemoteName() {
+        return mBtSocket.getRemoteDevice().getName();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBtSocket.close();
+    }
+}
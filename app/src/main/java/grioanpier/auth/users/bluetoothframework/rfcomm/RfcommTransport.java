@@ -0,0 +1,59 @@
+package grioanpier.auth.users.bluetoothframework.rfcomm;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import grioanpier.auth.users.bluetoothframework.transport.Transport;
+import grioanpier.auth.users.bluetoothframework.transport.TransportServerSocket;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+
+/**
+ * The {@link Transport} the framework uses on the phones: RFCOMM sockets, with the slots as service record UUIDs.
+ * Discovery is cancelled before connecting or listening, since it slows the connection down considerably.
+ */
+public class RfcommTransport implements Transport {
+
+    private final BluetoothAdapter mBluetoothAdapter;
+
+    public RfcommTransport(BluetoothAdapter bluetoothAdapter) {
+        mBluetoothAdapter = bluetoothAdapter;
+    }
+
+    @Override
+    public TransportSocket connect(String address, UUID slot) throws IOException {
+        mBluetoothAdapter.cancelDiscovery();
+        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        BluetoothSocket btSocket = device.createRfcommSocketToServiceRecord(slot);
+        btSocket.connect();
+        return new RfcommSocket(btSocket);
+    }
+
+    @Override
+    public TransportServerSocket listen(UUID slot) throws IOException {
+        BluetoothServerSocket btServerSocket = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(slot.toString(), slot);
+        if (btServerSocket == null)
+            throw new IOException("Couldn't listen on " + slot);
+        //Cancel the Bluetooth Discovery (if active) to consume less energy.
+        mBluetoothAdapter.cancelDiscovery();
+        return new RfcommServerSocket(btServerSocket);
+    }
+}
@@ -0,0 +1,115 @@
+package grioanpier.auth.users.bluetoothframework.rfcomm;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asks a device for the service records it advertises, which for a host are the slots it's listening on.
+ * The query runs in the background as soon as it's started and {@link #await(long)} collects the result.
+ */
+public class SdpQuery {
+
+    private final Context mContext;
+    private final String mAddress;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile Set<UUID> mUUIDs = null;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (device == null || !mAddress.equals(device.getAddress()))
+                return;
+            Parcelable[] uuids = intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
+            Set<UUID> result = new HashSet<>();
+            if (uuids != null) {
+                for (Parcelable uuid : uuids) {
+                    UUID value = ((ParcelUuid) uuid).getUuid();
+                    result.add(value);
+                    //Some Android versions report the UUIDs with their bytes reversed.
+                    result.add(reverse(value));
+                }
+            }
+            mUUIDs = result;
+            mDone.countDown();
+        }
+    };
+
+    private SdpQuery(Context context, String address) {
+        mContext = context.getApplicationContext();
+        mAddress = address;
+    }
+
+    /**
+     * Starts a fresh query. The cached records of the device aren't used, since a host stops advertising a slot
+     * as soon as someone connects to it.
+     */
+    public static SdpQuery start(Context context, BluetoothDevice device) {
+        SdpQuery query = new SdpQuery(context, device.getAddress());
+        query.mContext.registerReceiver(query.mReceiver, new IntentFilter(BluetoothDevice.ACTION_UUID));
+        if (!device.fetchUuidsWithSdp())
+            query.mDone.countDown();
+        return query;
+    }
+
+    /**
+     * Waits for the result and stops listening for it.
+     *
+     * @return the advertised UUIDs, null if they couldn't be retrieved in time
+     */
+    public Set<UUID> await(long timeoutMillis) {
+        try {
+            mDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cancel();
+        }
+        return mUUIDs;
+    }
+
+    public void cancel() {
+        try {
+            mContext.unregisterReceiver(mReceiver);
+        } catch (IllegalArgumentException e) {
+            //Already unregistered.
+        }
+    }
+
+    private static UUID reverse(UUID uuid) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        buffer.flip();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        long least = buffer.getLong();
+        long most = buffer.getLong();
+        return new UUID(most, least);
+    }
+}
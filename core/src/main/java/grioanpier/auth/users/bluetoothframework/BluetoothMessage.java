@@ -14,6 +14,12 @@ Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
    See the License for the specific language governing permissions and
    limitations under the License.
 */
+import java.nio.ByteBuffer;
+
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+import grioanpier.auth.users.bluetoothframework.wire.FrameCodec;
+import grioanpier.auth.users.bluetoothframework.wire.WireFormat;
+
 /**
  * A class that implements a message that it sends via bluetooth. Other than the actual content of the message, it includes
  * additional information regarding the source and target MAC, if it's global (intended for everyone) or private (intended for a single device)
@@ -27,8 +33,19 @@ public class BluetoothMessage {
     public String sourceMAC=null;
     public Integer appCode=null;
     public String content =null;
+    /**
+     * Set on the messages that are traced, 0 otherwise. Only the binary format carries them.
+     * See {@link grioanpier.auth.users.bluetoothframework.trace.MessageTracer}.
+     */
+    public long traceId=0;
+    public long traceTime=0;
+    /**
+     * The lane the message goes in on every connection it's written to. Only the binary format carries it, legacy
+     * devices read everything as {@link Priority#INTERACTIVE}.
+     */
+    public Priority priority=Priority.INTERACTIVE;
 
-    BluetoothMessage(){}
+    public BluetoothMessage(){}
 
     public BluetoothMessage(Boolean isGlobal, String targetMAC, String sourceMAC, Integer appCode, String content) {
         this.isGlobal = isGlobal;
@@ -97,14 +114,42 @@ public class BluetoothMessage {
      * @return a ready-to-send text-formatted message.
      */
     public String getMessage(){
-        //TODO String format(null) equals "0" ?
+        //A missing address is written as "null", which is also how the constructor reads it back.
         return format(isGlobal.toString()) +
-                format(targetMAC) +
-                format(sourceMAC) +
+                format(targetMAC == null ? "null" : targetMAC) +
+                format(sourceMAC == null ? "null" : sourceMAC) +
                 format(appCode.toString()) +
                 content;
     }
 
+    /**
+     * Encodes the message in the given {@link WireFormat}.
+     * @param format {@link WireFormat#BINARY} for a {@link FrameCodec} frame, {@link WireFormat#LEGACY_TEXT} for the
+     *               UTF-8 bytes of {@link #getMessage()}
+     * @return the bytes to write to the stream
+     */
+    public byte[] toBytes(WireFormat format) {
+        if (format == WireFormat.LEGACY_TEXT)
+            return getMessage().getBytes(FrameCodec.UTF8);
+        return FrameCodec.encode(this).array();
+    }
+
+    /**
+     * Decodes a frame in either {@link WireFormat}. The format is detected from the first byte.
+     * A legacy frame has no length of its own, so every remaining byte of the buffer is considered part of it.
+     * @param frame the frame, from its position up to its limit
+     * @return the decoded message
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static BluetoothMessage decode(ByteBuffer frame) {
+        if (WireFormat.of(frame.get(frame.position())) == WireFormat.BINARY)
+            return FrameCodec.decode(frame);
+
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return new BluetoothMessage(new String(bytes, FrameCodec.UTF8));
+    }
+
     /**
      * Formats the message in the form of [{@param message.length}][{@param message}]. The length of the message should be less than 4 decimals (0-999)
      * For example, "Hello World!" will be formatted to "012Hello World!", where 12 is the length of "Hello World!".
@@ -0,0 +1,96 @@
+package grioanpier.auth.users.bluetoothframework.io;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of equally sized byte arrays, shared by every connection for the frames they read.
+ * A buffer is taken with {@link #acquire(int)} and must be given back with {@link #release(byte[])} once nothing
+ * refers to it anymore; {@link SharedFrame} does that automatically when its last reference is released.
+ * <p/>
+ * Requests that are bigger than the buffer size, and requests made while the pool is empty, are served with a new
+ * array and counted as misses. The hit and miss counters help choose the buffer size and the capacity of the pool.
+ */
+public class BufferPool {
+
+    private final int mBufferSize;
+    private final ArrayBlockingQueue<byte[]> mFree;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param bufferSize the size of every pooled buffer
+     * @param capacity   the maximum number of idle buffers the pool keeps
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        mBufferSize = bufferSize;
+        mFree = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @param minSize the minimum size of the buffer
+     * @return a buffer of at least {@code minSize} bytes. Its contents are undefined.
+     */
+    public byte[] acquire(int minSize) {
+        if (minSize <= mBufferSize) {
+            byte[] buffer = mFree.poll();
+            if (buffer != null) {
+                mHits.incrementAndGet();
+                return buffer;
+            }
+            mMisses.incrementAndGet();
+            return new byte[mBufferSize];
+        }
+        //Too big for the pool. It will be left to the garbage collector once it's released.
+        mMisses.incrementAndGet();
+        return new byte[minSize];
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not use it afterwards.
+     * Buffers that weren't allocated by the pool, or that don't fit because the pool is full, are simply dropped.
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length == mBufferSize)
+            mFree.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return the number of idle buffers in the pool
+     */
+    public int available() {
+        return mFree.size();
+    }
+
+    /**
+     * @return how many times {@link #acquire(int)} was served from the pool
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return how many times {@link #acquire(int)} had to allocate a new array
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+}
@@ -0,0 +1,292 @@
+package grioanpier.auth.users.bluetoothframework.io;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue between the threads that produce outgoing frames and the single thread that writes them to a stream.
+ * Producers never wait for the stream; when the queue is full the {@link OverflowPolicy} decides what happens.
+ * <p/>
+ * Every {@link Priority} has a lane of its own, with its own capacity, so a lane that fills up doesn't take the room
+ * of the others. {@link #take()} serves {@link Priority#CONTROL} first and shares the rest by {@link Priority#weight}.
+ * Within a lane, elements keep their order.
+ *
+ * @param <E> the type of the queued elements
+ */
+public class OutboundQueue<E> {
+
+    public interface DropListener<E> {
+        /**
+         * Invoked for every element the queue discards because of {@link OverflowPolicy#DROP_NEWEST} or
+         * {@link OverflowPolicy#DROP_OLDEST}, on the thread that tried to enqueue.
+         */
+        void onDropped(E element);
+    }
+
+    public interface Filter<E> {
+        boolean accept(E element);
+    }
+
+    private static final Priority[] LANES = Priority.values();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final ArrayDeque<E>[] mLanes;
+    private final Condition[] mNotFull;
+    //What is left of the turns of every lane in the current round. See take().
+    private final int[] mTurns = new int[LANES.length];
+    private int mSize = 0;
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+    private final DropListener<E> mDropListener;
+
+    /**
+     * @param capacity     the maximum number of queued elements in every lane
+     * @param policy       what to do when a lane is full
+     * @param dropListener notified of discarded elements, may be null
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OutboundQueue(int capacity, OverflowPolicy policy, DropListener<E> dropListener) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity must be at least 1");
+        mCapacity = capacity;
+        mPolicy = policy;
+        mDropListener = dropListener;
+        mLanes = new ArrayDeque[LANES.length];
+        mNotFull = new Condition[LANES.length];
+        for (int i = 0; i < LANES.length; i++) {
+            mLanes[i] = new ArrayDeque<>();
+            mNotFull[i] = mLock.newCondition();
+        }
+    }
+
+    /**
+     * Adds an element at the tail of the {@link Priority#INTERACTIVE} lane. See {@link #offer(Object, Priority)}.
+     */
+    public boolean offer(E element) throws InterruptedException {
+        return offer(element, Priority.INTERACTIVE);
+    }
+
+    /**
+     * Adds an element at the tail of its lane, applying the {@link OverflowPolicy} if the lane is full.
+     *
+     * @return true if the element was queued, false if it was discarded
+     * @throws QueueOverflowException if the lane is full and the policy is {@link OverflowPolicy#FAIL}
+     * @throws InterruptedException   if the policy is {@link OverflowPolicy#BLOCK} and the caller is interrupted while waiting
+     */
+    public boolean offer(E element, Priority priority) throws InterruptedException {
+        ArrayDeque<E> lane = mLanes[priority.ordinal()];
+        E oldest = null;
+        mLock.lock();
+        try {
+            if (lane.size() >= mCapacity) {
+                switch (mPolicy) {
+                    case BLOCK:
+                        while (lane.size() >= mCapacity)
+                            mNotFull[priority.ordinal()].await();
+                        break;
+                    case DROP_OLDEST:
+                        oldest = lane.poll();
+                        mSize--;
+                        break;
+                    case FAIL:
+                        throw new QueueOverflowException("Outbound queue is full (" + mCapacity + " " + priority + " elements)");
+                    case DROP_NEWEST:
+                    default:
+                        oldest = element;
+                        break;
+                }
+            }
+            if (oldest != element)
+                enqueue(lane, element);
+        } finally {
+            mLock.unlock();
+        }
+        if (oldest != null)
+            dropped(oldest);
+        return oldest != element;
+    }
+
+    /**
+     * Adds an element at the tail of its lane if there is room, leaving the {@link OverflowPolicy} out of it.
+     *
+     * @return false if the lane is full
+     */
+    public boolean offerIfRoom(E element, Priority priority) {
+        ArrayDeque<E> lane = mLanes[priority.ordinal()];
+        mLock.lock();
+        try {
+            if (lane.size() >= mCapacity)
+                return false;
+            enqueue(lane, element);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void enqueue(ArrayDeque<E> lane, E element) {
+        lane.add(element);
+        mSize++;
+        mNotEmpty.signal();
+    }
+
+    private void dropped(E element) {
+        if (mDropListener != null)
+            mDropListener.onDropped(element);
+    }
+
+    /**
+     * Retrieves and removes the next element, waiting until one is available. {@link Priority#CONTROL} elements come
+     * first. The other lanes take turns: each busy lane gets as many elements in per round as its weight.
+     */
+    public E take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mSize == 0)
+                mNotEmpty.await();
+            while (true) {
+                for (int i = 0; i < LANES.length; i++) {
+                    if (mLanes[i].isEmpty())
+                        continue;
+                    if (LANES[i].weight == 0)
+                        return dequeue(i);
+                    if (mTurns[i] > 0) {
+                        mTurns[i]--;
+                        return dequeue(i);
+                    }
+                }
+                //Every busy lane used up its turns. Idle lanes don't save theirs up.
+                for (int i = 0; i < LANES.length; i++)
+                    mTurns[i] = LANES[i].weight;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of the highest lane above {@code priority} that isn't empty, without waiting.
+     *
+     * @return null if every lane above it is empty
+     */
+    public E pollAbove(Priority priority) {
+        mLock.lock();
+        try {
+            for (int i = 0; i < priority.ordinal(); i++)
+                if (!mLanes[i].isEmpty())
+                    return dequeue(i);
+            return null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private E dequeue(int lane) {
+        E element = mLanes[lane].poll();
+        mSize--;
+        mNotFull[lane].signal();
+        return element;
+    }
+
+    /**
+     * @return the number of queued elements, in every lane
+     */
+    public int size() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of elements queued in a lane
+     */
+    public int size(Priority priority) {
+        mLock.lock();
+        try {
+            return mLanes[priority.ordinal()].size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the capacity of every lane
+     */
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Removes the queued elements the filter accepts, leaving the rest in order. Costs a pass over the queue.
+     *
+     * @return the removed elements, lane by lane in queue order
+     */
+    public List<E> remove(Filter<E> filter) {
+        List<E> removed = new ArrayList<>();
+        mLock.lock();
+        try {
+            for (int i = 0; i < LANES.length; i++) {
+                for (Iterator<E> iterator = mLanes[i].iterator(); iterator.hasNext(); ) {
+                    E element = iterator.next();
+                    if (filter.accept(element)) {
+                        iterator.remove();
+                        removed.add(element);
+                    }
+                }
+                if (!removed.isEmpty())
+                    mNotFull[i].signalAll();
+            }
+            mSize -= removed.size();
+        } finally {
+            mLock.unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every queued element.
+     *
+     * @return the removed elements, lane by lane in queue order
+     */
+    public List<E> clear() {
+        mLock.lock();
+        try {
+            List<E> drained = new ArrayList<>(mSize);
+            for (int i = 0; i < LANES.length; i++) {
+                drained.addAll(mLanes[i]);
+                mLanes[i].clear();
+                mNotFull[i].signalAll();
+            }
+            mSize = 0;
+            return drained;
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
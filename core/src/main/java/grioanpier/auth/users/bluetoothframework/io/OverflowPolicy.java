@@ -0,0 +1,38 @@
+package grioanpier.auth.users.bluetoothframework.io;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+/**
+ * What an {@link OutboundQueue} does with a new element when it is already full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait until the writer makes room. The caller is blocked, so use it only where that is acceptable.
+     */
+    BLOCK,
+    /**
+     * Discard the new element and keep everything already queued.
+     */
+    DROP_NEWEST,
+    /**
+     * Discard the oldest queued element to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Refuse the new element by throwing a {@link QueueOverflowException}.
+     */
+    FAIL
+}
@@ -0,0 +1,46 @@
+package grioanpier.auth.users.bluetoothframework.io;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+/**
+ * The lane of an {@link OutboundQueue} a frame waits in. Every connection writes {@link #CONTROL} frames before anything
+ * else and shares the rest between {@link #INTERACTIVE} and {@link #BULK} by their weight, so a large transfer can't
+ * hold back the messages of a game. Large frames are written in fragments, and frames of a higher lane cut in between them.
+ */
+public enum Priority {
+    /**
+     * Written before anything else. Heartbeats and acknowledgements use it, and so should messages like disconnect notices.
+     */
+    CONTROL(0),
+    /**
+     * The default. Game inputs, chat and anything else someone is waiting for.
+     */
+    INTERACTIVE(4),
+    /**
+     * Large transfers that can wait. They get one frame in for every four {@link #INTERACTIVE} ones while both lanes are busy.
+     */
+    BULK(1);
+
+    /**
+     * How many frames the lane gets in per round while the lanes below it are busy too. 0 for a lane that is always
+     * served first.
+     */
+    public final int weight;
+
+    Priority(int weight) {
+        this.weight = weight;
+    }
+}
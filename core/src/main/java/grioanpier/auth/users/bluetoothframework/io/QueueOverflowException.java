@@ -0,0 +1,28 @@
+package grioanpier.auth.users.bluetoothframework.io;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+/**
+ * Thrown by an {@link OutboundQueue} that uses {@link OverflowPolicy#FAIL} when it is full.
+ */
+public class QueueOverflowException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    public QueueOverflowException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,134 @@
+package grioanpier.auth.users.bluetoothframework.io;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame that is shared, read-only, between several connections. A broadcast is serialized once into a
+ * {@link SharedFrame} and every connection it is queued to holds a reference to the same bytes.
+ * <p/>
+ * The frame starts with a single reference that belongs to whoever created it. Every additional holder calls
+ * {@link #retain()} before taking it and {@link #release()} once it is done with it. A frame that wraps a pooled
+ * buffer gives it back to its {@link BufferPool} when the last reference is released.
+ */
+public final class SharedFrame {
+
+    private final byte[] mBytes;
+    private final int mOffset;
+    private final int mLength;
+    private final AtomicInteger mReferences = new AtomicInteger(1);
+    private final BufferPool mPool;
+
+    private SharedFrame(byte[] bytes, int offset, int length, BufferPool pool) {
+        mBytes = bytes;
+        mOffset = offset;
+        mLength = length;
+        mPool = pool;
+    }
+
+    /**
+     * Wraps the bytes without copying them. The caller must not modify the array afterwards.
+     *
+     * @return a frame with a single reference
+     */
+    public static SharedFrame wrap(byte[] bytes) {
+        return new SharedFrame(bytes, 0, bytes.length, null);
+    }
+
+    /**
+     * Wraps part of an array without copying it. The caller must not modify that part of the array afterwards.
+     *
+     * @return a frame with a single reference
+     */
+    public static SharedFrame wrap(byte[] bytes, int offset, int length) {
+        return new SharedFrame(bytes, offset, length, null);
+    }
+
+    /**
+     * Wraps the first {@code length} bytes of a buffer that was acquired from {@code pool}.
+     * The buffer goes back to the pool when the last reference is released.
+     *
+     * @return a frame with a single reference
+     */
+    public static SharedFrame pooled(byte[] buffer, int length, BufferPool pool) {
+        return new SharedFrame(buffer, 0, length, pool);
+    }
+
+    /**
+     * Adds a reference.
+     *
+     * @return this frame, for chaining
+     * @throws IllegalStateException if the frame has already been fully released
+     */
+    public SharedFrame retain() {
+        int references;
+        do {
+            references = mReferences.get();
+            if (references <= 0)
+                throw new IllegalStateException("The frame has already been released");
+        } while (!mReferences.compareAndSet(references, references + 1));
+        return this;
+    }
+
+    /**
+     * Drops a reference.
+     *
+     * @return true if that was the last reference
+     */
+    public boolean release() {
+        int references = mReferences.decrementAndGet();
+        if (references < 0)
+            throw new IllegalStateException("The frame has been released more times than it was retained");
+        if (references == 0 && mPool != null)
+            mPool.release(mBytes);
+        return references == 0;
+    }
+
+    /**
+     * @return the current number of references
+     */
+    public int references() {
+        return mReferences.get();
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * @return the first byte of the frame, which tells its {@link grioanpier.auth.users.bluetoothframework.wire.WireFormat}
+     */
+    public byte firstByte() {
+        return mBytes[mOffset];
+    }
+
+    /**
+     * @return a read-only view of the frame, positioned at its start
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(mBytes, mOffset, mLength).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the whole frame to the stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(mBytes, mOffset, mLength);
+    }
+}
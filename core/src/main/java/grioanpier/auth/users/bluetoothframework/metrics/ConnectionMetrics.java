@@ -0,0 +1,415 @@
+package grioanpier.auth.users.bluetoothframework.metrics;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.concurrent.atomic.AtomicReference;
+
+import grioanpier.auth.users.bluetoothframework.io.OutboundQueue;
+import grioanpier.auth.users.bluetoothframework.wire.Compression;
+
+/**
+ * The traffic of the connection with a single device. It outlives the connection, so a device that reconnects keeps
+ * adding to the same metrics. Updates are lock-free and meant to be made from the reading and writing threads.
+ * <p/>
+ * It's also told how much compression saves on the connection, and what it costs.
+ */
+public class ConnectionMetrics implements Compression.Listener {
+
+    private final StripedCounter mFramesIn = new StripedCounter();
+    private final StripedCounter mBytesIn = new StripedCounter();
+    private final StripedCounter mFramesOut = new StripedCounter();
+    private final StripedCounter mBytesOut = new StripedCounter();
+    private final StripedCounter mRelayed = new StripedCounter();
+    private final StripedCounter mDecodeFailures = new StripedCounter();
+    private final StripedCounter mDropped = new StripedCounter();
+    private final StripedCounter mConnections = new StripedCounter();
+    private final StripedCounter mDeflatedBytes = new StripedCounter();
+    private final StripedCounter mDeflatedToBytes = new StripedCounter();
+    private final StripedCounter mDeflateNanos = new StripedCounter();
+    private final StripedCounter mInflatedBytes = new StripedCounter();
+    private final StripedCounter mInflatedToBytes = new StripedCounter();
+    private final StripedCounter mInflateNanos = new StripedCounter();
+    private final Histogram mReadSizes = new Histogram();
+    private final Histogram mWriteLatency = new Histogram();
+    private final Histogram mRtt = new Histogram();
+    //Smoothed the way TCP does (RFC 6298). Only written by the reading thread of the connection.
+    private volatile long mSmoothedRtt = 0;
+    private volatile long mRttVariance = 0;
+    private volatile boolean mSuspect = false;
+
+    //The queue of the current connection, null while disconnected.
+    private final AtomicReference<OutboundQueue<?>> mQueue = new AtomicReference<>();
+
+    /**
+     * A read returned some bytes.
+     */
+    public void onRead(int bytes) {
+        mBytesIn.add(bytes);
+        mReadSizes.record(bytes);
+    }
+
+    public void onFrameReceived() {
+        mFramesIn.increment();
+    }
+
+    /**
+     * @param nanos how long writing the frame to the stream took
+     */
+    public void onFrameWritten(int bytes, long nanos) {
+        mFramesOut.increment();
+        mBytesOut.add(bytes);
+        mWriteLatency.record(nanos);
+    }
+
+    /**
+     * A frame received from this device was relayed by the host.
+     *
+     * @param copies the number of devices it was relayed to
+     */
+    public void onRelayed(int copies) {
+        mRelayed.add(copies);
+    }
+
+    /**
+     * A frame, or the stream itself, couldn't be decoded.
+     */
+    public void onDecodeFailure() {
+        mDecodeFailures.increment();
+    }
+
+    /**
+     * A frame meant for this device was dropped or refused because its outbound queue was full.
+     */
+    public void onDropped() {
+        mDropped.increment();
+    }
+
+    @Override
+    public void onDeflated(int length, int compressedLength, long nanos) {
+        mDeflatedBytes.add(length);
+        mDeflatedToBytes.add(compressedLength);
+        mDeflateNanos.add(nanos);
+    }
+
+    @Override
+    public void onInflated(int compressedLength, int length, long nanos) {
+        mInflatedBytes.add(compressedLength);
+        mInflatedToBytes.add(length);
+        mInflateNanos.add(nanos);
+    }
+
+    /**
+     * A heartbeat was answered.
+     *
+     * @param nanos the round trip time
+     */
+    public void onRtt(long nanos) {
+        mRtt.record(nanos);
+        long smoothed = mSmoothedRtt;
+        if (smoothed == 0) {
+            mRttVariance = nanos / 2;
+            mSmoothedRtt = Math.max(1, nanos);
+        } else {
+            mRttVariance = (3 * mRttVariance + Math.abs(smoothed - nanos)) / 4;
+            mSmoothedRtt = Math.max(1, (7 * smoothed + nanos) / 8);
+        }
+    }
+
+    /**
+     * @return the smoothed round trip time in nanoseconds, 0 until a heartbeat is answered
+     */
+    public long getSmoothedRtt() {
+        return mSmoothedRtt;
+    }
+
+    public long getRttVariance() {
+        return mRttVariance;
+    }
+
+    /**
+     * @param suspect true if the device has been silent for longer than its heartbeats say it should
+     */
+    public void setSuspect(boolean suspect) {
+        mSuspect = suspect;
+    }
+
+    /**
+     * A connection with the device was established.
+     *
+     * @param queue its outbound queue, whose depth the snapshots report while it's connected
+     */
+    public void onConnected(OutboundQueue<?> queue) {
+        mConnections.increment();
+        mQueue.set(queue);
+    }
+
+    /**
+     * The connection that uses the queue was lost. Does nothing if the device has already reconnected.
+     */
+    public void onDisconnected(OutboundQueue<?> queue) {
+        if (mQueue.compareAndSet(queue, null))
+            mSuspect = false;
+    }
+
+    public Snapshot snapshot() {
+        OutboundQueue<?> queue = mQueue.get();
+        return new Snapshot(mFramesIn.sum(), mBytesIn.sum(), mFramesOut.sum(), mBytesOut.sum(), mRelayed.sum(),
+                mDecodeFailures.sum(), mDropped.sum(), Math.max(0, mConnections.sum() - 1),
+                queue == null ? 0 : queue.size(), queue != null ? 1 : 0,
+                mReadSizes.snapshot(), mWriteLatency.snapshot(),
+                mRtt.snapshot(), mSmoothedRtt, mRttVariance, queue != null && mSuspect ? 1 : 0,
+                mDeflatedBytes.sum(), mDeflatedToBytes.sum(), mDeflateNanos.sum(),
+                mInflatedBytes.sum(), mInflatedToBytes.sum(), mInflateNanos.sum());
+    }
+
+    /**
+     * The state of a {@link ConnectionMetrics} at some point, or the sum of several.
+     */
+    public static final class Snapshot {
+        private final long mFramesIn;
+        private final long mBytesIn;
+        private final long mFramesOut;
+        private final long mBytesOut;
+        private final long mRelayed;
+        private final long mDecodeFailures;
+        private final long mDropped;
+        private final long mReconnects;
+        private final int mQueueDepth;
+        private final int mConnected;
+        private final Histogram.Snapshot mReadSizes;
+        private final Histogram.Snapshot mWriteLatency;
+        private final Histogram.Snapshot mRtt;
+        private final long mSmoothedRtt;
+        private final long mRttVariance;
+        private final int mSuspect;
+        private final long mDeflatedBytes;
+        private final long mDeflatedToBytes;
+        private final long mDeflateNanos;
+        private final long mInflatedBytes;
+        private final long mInflatedToBytes;
+        private final long mInflateNanos;
+
+        Snapshot(long framesIn, long bytesIn, long framesOut, long bytesOut, long relayed, long decodeFailures,
+                 long dropped, long reconnects, int queueDepth, int connected,
+                 Histogram.Snapshot readSizes, Histogram.Snapshot writeLatency,
+                 Histogram.Snapshot rtt, long smoothedRtt, long rttVariance, int suspect,
+                 long deflatedBytes, long deflatedToBytes, long deflateNanos,
+                 long inflatedBytes, long inflatedToBytes, long inflateNanos) {
+            mFramesIn = framesIn;
+            mBytesIn = bytesIn;
+            mFramesOut = framesOut;
+            mBytesOut = bytesOut;
+            mRelayed = relayed;
+            mDecodeFailures = decodeFailures;
+            mDropped = dropped;
+            mReconnects = reconnects;
+            mQueueDepth = queueDepth;
+            mConnected = connected;
+            mReadSizes = readSizes;
+            mWriteLatency = writeLatency;
+            mRtt = rtt;
+            mSmoothedRtt = smoothedRtt;
+            mRttVariance = rttVariance;
+            mSuspect = suspect;
+            mDeflatedBytes = deflatedBytes;
+            mDeflatedToBytes = deflatedToBytes;
+            mDeflateNanos = deflateNanos;
+            mInflatedBytes = inflatedBytes;
+            mInflatedToBytes = inflatedToBytes;
+            mInflateNanos = inflateNanos;
+        }
+
+        static Snapshot empty() {
+            return new Snapshot(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, Histogram.Snapshot.empty(), Histogram.Snapshot.empty(),
+                    Histogram.Snapshot.empty(), 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+
+        Snapshot merge(Snapshot other) {
+            return new Snapshot(mFramesIn + other.mFramesIn, mBytesIn + other.mBytesIn,
+                    mFramesOut + other.mFramesOut, mBytesOut + other.mBytesOut, mRelayed + other.mRelayed,
+                    mDecodeFailures + other.mDecodeFailures, mDropped + other.mDropped,
+                    mReconnects + other.mReconnects, mQueueDepth + other.mQueueDepth, mConnected + other.mConnected,
+                    mReadSizes.merge(other.mReadSizes), mWriteLatency.merge(other.mWriteLatency),
+                    mRtt.merge(other.mRtt), Math.max(mSmoothedRtt, other.mSmoothedRtt),
+                    Math.max(mRttVariance, other.mRttVariance), mSuspect + other.mSuspect,
+                    mDeflatedBytes + other.mDeflatedBytes, mDeflatedToBytes + other.mDeflatedToBytes,
+                    mDeflateNanos + other.mDeflateNanos, mInflatedBytes + other.mInflatedBytes,
+                    mInflatedToBytes + other.mInflatedToBytes, mInflateNanos + other.mInflateNanos);
+        }
+
+        /**
+         * @return frames received, control frames included
+         */
+        public long getFramesIn() {
+            return mFramesIn;
+        }
+
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        /**
+         * @return frames written to the stream
+         */
+        public long getFramesOut() {
+            return mFramesOut;
+        }
+
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        /**
+         * @return copies of received frames the host relayed to other devices
+         */
+        public long getRelayed() {
+            return mRelayed;
+        }
+
+        public long getDecodeFailures() {
+            return mDecodeFailures;
+        }
+
+        /**
+         * @return frames lost to a full outbound queue
+         */
+        public long getDropped() {
+            return mDropped;
+        }
+
+        public long getReconnects() {
+            return mReconnects;
+        }
+
+        /**
+         * @return frames waiting to be written, 0 while disconnected
+         */
+        public int getQueueDepth() {
+            return mQueueDepth;
+        }
+
+        /**
+         * @return 1 if the device is connected, 0 if not. In a total, the number of connected devices.
+         */
+        public int getConnected() {
+            return mConnected;
+        }
+
+        /**
+         * @return bytes returned by every read of the stream
+         */
+        public Histogram.Snapshot getReadSizes() {
+            return mReadSizes;
+        }
+
+        /**
+         * @return nanoseconds every frame took to be written to the stream
+         */
+        public Histogram.Snapshot getWriteLatency() {
+            return mWriteLatency;
+        }
+
+        /**
+         * @return nanoseconds every answered heartbeat took to come back
+         */
+        public Histogram.Snapshot getRtt() {
+            return mRtt;
+        }
+
+        /**
+         * @return the smoothed round trip time in nanoseconds, 0 if no heartbeat has been answered.
+         * In a total, the highest of the devices.
+         */
+        public long getSmoothedRtt() {
+            return mSmoothedRtt;
+        }
+
+        /**
+         * @return how much the round trip time varies, in nanoseconds. In a total, the highest of the devices.
+         */
+        public long getRttVariance() {
+            return mRttVariance;
+        }
+
+        /**
+         * @return 1 if the device is connected but has been silent for longer than expected, 0 if not.
+         * In a total, the number of such devices.
+         */
+        public int getSuspect() {
+            return mSuspect;
+        }
+
+        /**
+         * @return payload bytes that went through the deflater before they were written
+         */
+        public long getDeflatedBytes() {
+            return mDeflatedBytes;
+        }
+
+        /**
+         * @return what the deflated payloads were written with: their compressed length, or their length if they didn't
+         * get any shorter
+         */
+        public long getDeflatedToBytes() {
+            return mDeflatedToBytes;
+        }
+
+        /**
+         * @return nanoseconds spent deflating
+         */
+        public long getDeflateNanos() {
+            return mDeflateNanos;
+        }
+
+        /**
+         * @return compressed payload bytes that were received and inflated
+         */
+        public long getInflatedBytes() {
+            return mInflatedBytes;
+        }
+
+        /**
+         * @return what the received compressed payloads inflated to
+         */
+        public long getInflatedToBytes() {
+            return mInflatedToBytes;
+        }
+
+        /**
+         * @return nanoseconds spent inflating
+         */
+        public long getInflateNanos() {
+            return mInflateNanos;
+        }
+
+        /**
+         * @return what the payloads that went through the deflater were written with, over their length.
+         * 1 if nothing did.
+         */
+        public double getCompressionRatio() {
+            return mDeflatedBytes == 0 ? 1 : (double) mDeflatedToBytes / mDeflatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "in=" + mFramesIn + "/" + mBytesIn + "B out=" + mFramesOut + "/" + mBytesOut + "B relayed=" + mRelayed
+                    + " decodeFailures=" + mDecodeFailures + " dropped=" + mDropped + " reconnects=" + mReconnects
+                    + " queue=" + mQueueDepth + " writeNanos[" + mWriteLatency + "] srtt=" + mSmoothedRtt
+                    + " rttvar=" + mRttVariance + (mSuspect > 0 ? " suspect=" + mSuspect : "")
+                    + (mDeflatedBytes > 0 ? " deflated=" + mDeflatedBytes + ">" + mDeflatedToBytes + "B/" + mDeflateNanos + "ns" : "")
+                    + (mInflatedBytes > 0 ? " inflated=" + mInflatedBytes + ">" + mInflatedToBytes + "B/" + mInflateNanos + "ns" : "");
+        }
+    }
+}
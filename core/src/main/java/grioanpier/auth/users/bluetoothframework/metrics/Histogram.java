@@ -0,0 +1,144 @@
+package grioanpier.auth.users.bluetoothframework.metrics;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values in power-of-two buckets: bucket 0 holds 0, bucket i holds the values from 2^(i-1) to 2^i - 1.
+ * Recording is a couple of atomic increments and never takes a lock, while the percentiles of a {@link Snapshot}
+ * are accurate to within a factor of two, which is plenty to tell a 2 ms write from a 200 ms one.
+ */
+public class Histogram {
+
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter mSum = new StripedCounter();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param value a non-negative value. Negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        mBuckets.getAndIncrement(bucket(value));
+        mSum.add(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            //Lost the race to a concurrent record, try again against the new maximum.
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = mBuckets.get(i);
+        return new Snapshot(counts, mSum.sum(), mMax.get());
+    }
+
+    static int bucket(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * @return the largest value a bucket holds
+     */
+    static long upperBound(int bucket) {
+        return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    /**
+     * The state of a {@link Histogram} at some point.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] counts, long sum, long max) {
+            mCounts = counts;
+            long count = 0;
+            for (long c : counts)
+                count += c;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the upper bound of the bucket the quantile falls in, never more than the maximum recorded
+         */
+        public long getPercentile(double quantile) {
+            if (mCount == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * mCount));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if (seen >= rank)
+                    return Math.min(upperBound(i), mMax);
+            }
+            return mMax;
+        }
+
+        /**
+         * @return how many values fell in each bucket
+         */
+        public long[] getCounts() {
+            return mCounts.clone();
+        }
+
+        /**
+         * @return a snapshot holding the values of both
+         */
+        public Snapshot merge(Snapshot other) {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] = mCounts[i] + other.mCounts[i];
+            return new Snapshot(counts, mSum + other.mSum, Math.max(mMax, other.mMax));
+        }
+
+        static Snapshot empty() {
+            return new Snapshot(new long[BUCKETS], 0, 0);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + " mean=" + (long) getMean() + " p50=" + getPercentile(0.5)
+                    + " p99=" + getPercentile(0.99) + " max=" + mMax;
+        }
+    }
+}
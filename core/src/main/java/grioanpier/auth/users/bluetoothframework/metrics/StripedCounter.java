@@ -0,0 +1,52 @@
+package grioanpier.auth.users.bluetoothframework.metrics;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that threads can update without contending on a single value. Every thread adds to one of a few cells,
+ * picked by its id and spread over separate cache lines, and reading the counter sums them. No locks are taken.
+ */
+public class StripedCounter {
+
+    private static final int STRIPES = 8;
+    //A cell every 8 longs, so two cells never share a 64 byte cache line.
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        mCells.getAndAdd(cell(), delta);
+    }
+
+    /**
+     * @return the current value. Not atomic with concurrent updates, which may or may not be included.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            sum += mCells.get(i * PADDING);
+        return sum;
+    }
+
+    private static int cell() {
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    }
+}
@@ -0,0 +1,108 @@
+package grioanpier.auth.users.bluetoothframework.metrics;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link ConnectionMetrics} of every device this device has been connected to, keyed by address.
+ */
+public class TrafficMetrics {
+
+    private final ConcurrentHashMap<String, ConnectionMetrics> mPeers = new ConcurrentHashMap<>();
+
+    /**
+     * @return the metrics of the device, created the first time it's asked for
+     */
+    public ConnectionMetrics forPeer(String address) {
+        ConnectionMetrics metrics = mPeers.get(address);
+        if (metrics == null) {
+            ConnectionMetrics created = new ConnectionMetrics();
+            metrics = mPeers.putIfAbsent(address, created);
+            if (metrics == null)
+                metrics = created;
+        }
+        return metrics;
+    }
+
+    /**
+     * Forgets every device.
+     */
+    public void clear() {
+        mPeers.clear();
+    }
+
+    public Snapshot snapshot() {
+        TreeMap<String, ConnectionMetrics.Snapshot> peers = new TreeMap<>();
+        ConnectionMetrics.Snapshot total = ConnectionMetrics.Snapshot.empty();
+        for (Map.Entry<String, ConnectionMetrics> entry : mPeers.entrySet()) {
+            ConnectionMetrics.Snapshot peer = entry.getValue().snapshot();
+            peers.put(entry.getKey(), peer);
+            total = total.merge(peer);
+        }
+        return new Snapshot(System.currentTimeMillis(), Collections.unmodifiableMap(peers), total);
+    }
+
+    /**
+     * The metrics of every device at some point, along with their sum.
+     */
+    public static final class Snapshot {
+        private final long mTime;
+        private final Map<String, ConnectionMetrics.Snapshot> mPeers;
+        private final ConnectionMetrics.Snapshot mTotal;
+
+        Snapshot(long time, Map<String, ConnectionMetrics.Snapshot> peers, ConnectionMetrics.Snapshot total) {
+            mTime = time;
+            mPeers = peers;
+            mTotal = total;
+        }
+
+        /**
+         * @return when the snapshot was taken, in {@link System#currentTimeMillis()} terms
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * @return the metrics of every device, keyed by address
+         */
+        public Map<String, ConnectionMetrics.Snapshot> getPeers() {
+            return mPeers;
+        }
+
+        /**
+         * @return the metrics of the device, or null if it never connected
+         */
+        public ConnectionMetrics.Snapshot getPeer(String address) {
+            return mPeers.get(address);
+        }
+
+        public ConnectionMetrics.Snapshot getTotal() {
+            return mTotal;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("total: ").append(mTotal);
+            for (Map.Entry<String, ConnectionMetrics.Snapshot> entry : mPeers.entrySet())
+                builder.append('\n').append(entry.getKey()).append(": ").append(entry.getValue());
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,603 @@
+package grioanpier.auth.users.bluetoothframework.routing;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.Map;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+import grioanpier.auth.users.bluetoothframework.io.QueueOverflowException;
+import grioanpier.auth.users.bluetoothframework.io.SharedFrame;
+import grioanpier.auth.users.bluetoothframework.trace.FlightRecorder;
+import grioanpier.auth.users.bluetoothframework.trace.MessageTracer;
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+import grioanpier.auth.users.bluetoothframework.wire.FragmentAssembler;
+import grioanpier.auth.users.bluetoothframework.wire.FrameCodec;
+import grioanpier.auth.users.bluetoothframework.wire.FrameHeader;
+import grioanpier.auth.users.bluetoothframework.wire.PeerIds;
+import grioanpier.auth.users.bluetoothframework.wire.WireFormat;
+
+/**
+ * Decides what happens to every frame: whether this device consumes it and, on the host, which connections it is
+ * relayed to. Binary frames are routed on their header alone; the bytes that were received are forwarded as they are
+ * and the content is only decoded when this device is one of its consumers.
+ * <p/>
+ * Routing runs on the reading thread of the connection the frame came from, so relayed traffic never goes
+ * through the main thread. The map of links must therefore be safe for concurrent use.
+ * <p/>
+ * Fragments are relayed as they come, only the devices that consume a fragmented message put it back together.
+ * <p/>
+ * Compressed frames are relayed compressed to the devices that read them, and only inflated for the rest. The same goes
+ * for frames that name devices by their {@link PeerIds id}.
+ */
+public class FrameRouter {
+
+    /**
+     * A connection to another device, as far as routing is concerned.
+     */
+    public interface Link {
+        /**
+         * @return the format frames must be written in for this device
+         */
+        WireFormat getWireFormat();
+
+        /**
+         * @return true if the device reads binary frames whose payload is compressed
+         */
+        boolean readsCompressed();
+
+        /**
+         * @return true if the device reads binary frames that name devices by their id
+         */
+        boolean readsPeerIds();
+
+        /**
+         * @return true if the device reads binary frames that carry a lane, a trace or a fragment, which the first
+         * version of the format didn't have
+         */
+        boolean readsLanes();
+
+        /**
+         * Queues a frame. Takes over one reference of the frame.
+         *
+         * @return true if the frame was queued, false if it was dropped
+         * @throws QueueOverflowException if the link refuses frames when it is full
+         */
+        boolean write(SharedFrame frame);
+    }
+
+    public interface Callback {
+        boolean isHost();
+
+        /**
+         * @return the address of this device, as written in the source and target of the frames it sends
+         */
+        String getLocalAddress();
+
+        /**
+         * Players don't know the addresses of each other, so their private messages may name the target instead.
+         *
+         * @param target the target of a private message
+         * @return the address of the connected device the target refers to, or null if there is none
+         */
+        String resolveAddress(String target);
+
+        /**
+         * Invoked for every message that is meant for this device, on the thread that routed it.
+         */
+        void onConsume(BluetoothMessage message);
+
+        /**
+         * Invoked for every frame of the framework that is meant for this device, on the thread that routed it. Those
+         * are the ones with a reserved app code that don't control a connection, see {@link ControlCodes}.
+         *
+         * @param header the header of the frame. It, and the payload it points to, are only valid during the call.
+         */
+        void onConsumeFrame(FrameHeader header);
+    }
+
+    private final Map<String, ? extends Link> mLinks;
+    private final Callback mCallback;
+    private final MessageTracer mTracer;
+    private final FlightRecorder mRecorder;
+    private final FragmentAssembler mAssembler = new FragmentAssembler();
+    private volatile PeerIds mPeers = null;
+
+    //UTF-8 bytes of the local address, cached so headers can be compared without decoding them.
+    private volatile String mLocalAddress;
+    private volatile byte[] mLocalAddressBytes;
+
+    /**
+     * @param links    the connected devices, keyed by address. Read on every routed frame.
+     * @param callback the device-specific part of the routing
+     */
+    public FrameRouter(Map<String, ? extends Link> links, Callback callback) {
+        this(links, callback, null);
+    }
+
+    /**
+     * @param tracer records when traced frames are received and relayed, may be null
+     */
+    public FrameRouter(Map<String, ? extends Link> links, Callback callback, MessageTracer tracer) {
+        this(links, callback, tracer, null);
+    }
+
+    /**
+     * @param recorder records the devices the host couldn't relay a frame to, may be null
+     */
+    public FrameRouter(Map<String, ? extends Link> links, Callback callback, MessageTracer tracer, FlightRecorder recorder) {
+        mLinks = links;
+        mCallback = callback;
+        mTracer = tracer;
+        mRecorder = recorder;
+    }
+
+    /**
+     * Names devices by their id in the frames this device sends, to the devices that read them.
+     *
+     * @param peers the ids, null to name devices by their address
+     */
+    public void setPeerIds(PeerIds peers) {
+        mPeers = peers;
+    }
+
+    /**
+     * Discards the messages a device left partly put back together, see {@link FragmentAssembler#discard}.
+     *
+     * @param source the address of the device that left, null for every device
+     */
+    public void discardFragments(String source) {
+        if (source == null)
+            mAssembler.clear();
+        else
+            mAssembler.discard(source);
+    }
+
+    /**
+     * Routes a frame received from a connected device.
+     *
+     * @param frame  the frame. The router takes over the caller's reference.
+     * @param header a header the router can parse into. Each reading thread should own one and reuse it.
+     * @return the number of devices the frame was relayed to
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public int route(SharedFrame frame, FrameHeader header) {
+        try {
+            if (WireFormat.of(frame.firstByte()) == WireFormat.BINARY) {
+                FrameCodec.readHeader(frame.buffer(), header);
+                return routeBinary(frame, header);
+            } else {
+                return routeLegacy(frame);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Routes a binary frame whose header the caller has already read, to spare reading it twice.
+     *
+     * @param frame  the frame. The router takes over the caller's reference.
+     * @param header the header of the frame, read with {@link FrameCodec#readHeader}. It may have been read from
+     *               another buffer holding the same bytes, which must stay untouched until this returns.
+     * @return the number of devices the frame was relayed to
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public int routeParsed(SharedFrame frame, FrameHeader header) {
+        try {
+            return routeBinary(frame, header);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private int routeBinary(SharedFrame frame, FrameHeader header) {
+        //Frames that control a connection stay on it.
+        if (ControlCodes.isLinkControl(header.getAppCode()))
+            return 0;
+        //The rest of the reserved app codes belong to the framework, not to the application.
+        if (ControlCodes.isReserved(header.getAppCode()))
+            return routeReserved(frame, header);
+        //Only traced frames have an id, so there is nothing to do here unless tracing is on somewhere.
+        //A fragmented message is only traced once it's all there.
+        long traceId = header.endsMessage() ? header.getTraceId() : 0;
+        if (traceId != 0 && mTracer != null)
+            mTracer.record(traceId, header.getTraceTime(), MessageTracer.Stage.RECEIVE);
+
+        byte[] local = localAddressBytes();
+        boolean global = Boolean.TRUE.equals(header.isGlobal());
+        boolean host = mCallback.isHost();
+        BluetoothMessage message = null;
+
+        //If the device isn't the host, then consume the message, global or private
+        //Otherwise, the device is the host, so consume the message only if it's global or private but the target was the host.
+        boolean consume = !host || global || header.targetEquals(local);
+        //Fragments can't be converted one by one. If a device can't take the first one as it is, everyone gets the whole
+        //message: a device that could by the next fragment, once its session was opened, would miss the first one.
+        boolean whole = host && header.isFragment()
+                && (header.getFragmentOffset() == 0 ? !allTakeAsIs(header, global) : mAssembler.isRelayedWhole(header));
+        if (consume || whole) {
+            message = header.isFragment() ? assemble(header, whole) : FrameCodec.decode(header);
+            if (message != null && consume)
+                mCallback.onConsume(message);
+        }
+
+        if (!host)
+            return 0;
+        if (whole) {
+            //It goes along with the last fragment, once it's put back together.
+            if (message == null)
+                return 0;
+            SharedFrame assembled = SharedFrame.wrap(message.toBytes(WireFormat.BINARY));
+            try {
+                FrameHeader assembledHeader = new FrameHeader();
+                FrameCodec.readHeader(assembled.buffer(), assembledHeader);
+                return relay(assembled, assembledHeader, message, global, local, traceId);
+            } finally {
+                assembled.release();
+            }
+        }
+        return relay(frame, header, message, global, local, traceId);
+    }
+
+    /**
+     * Relays a binary frame that was read from another device, as the host.
+     */
+    private int relay(SharedFrame frame, FrameHeader header, BluetoothMessage message, boolean global, byte[] local, long traceId) {
+        int relayed = 0;
+        try {
+            if (global && !header.sourceEquals(local)) {
+                //Relay the message to everyone, the sender included, if it wasn't sent from the same device.
+                relayed = forwardToAll(frame, WireFormat.BINARY, message, header, true);
+            } else if (!global && !header.targetEquals(local)) {
+                //A private message for another device. The source device doesn't get a copy of the message.
+                String target = header.getTarget();
+                relayed = forwardTo(frame, WireFormat.BINARY, message, header, target);
+            }
+        } catch (QueueOverflowException e) {
+            //A device that can't keep up loses the relayed message, the rest already got it. Its link recorded the overflow.
+        }
+        if (relayed > 0 && traceId != 0 && mTracer != null)
+            mTracer.record(traceId, header.getTraceTime(), MessageTracer.Stage.RELAY);
+        return relayed;
+    }
+
+    /**
+     * Routes a frame of the framework. It's relayed like a message, except that legacy devices can't read it and the
+     * device that sent it has no use for its own.
+     */
+    private int routeReserved(SharedFrame frame, FrameHeader header) {
+        byte[] local = localAddressBytes();
+        boolean global = Boolean.TRUE.equals(header.isGlobal());
+        boolean host = mCallback.isHost();
+        if (!host || global || header.targetEquals(local))
+            mCallback.onConsumeFrame(header);
+
+        if (!host || header.sourceEquals(local))
+            return 0;
+        try {
+            if (global)
+                return writeBinary(frame, header, null, header.getSource(), true);
+            else if (!header.targetEquals(local))
+                return writeBinary(frame, header, header.getTarget(), null, true);
+        } catch (QueueOverflowException e) {
+            //Its link recorded the overflow.
+        }
+        return 0;
+    }
+
+    private int routeLegacy(SharedFrame frame) {
+        //Legacy frames have no binary header to peek at, they need to be decoded entirely.
+        BluetoothMessage message = BluetoothMessage.decode(frame.buffer());
+        if (ControlCodes.isReserved(message.appCode))
+            return 0;
+
+        String local = mCallback.getLocalAddress();
+        boolean global = Boolean.TRUE.equals(message.isGlobal);
+        boolean host = mCallback.isHost();
+        boolean toLocal = message.targetMAC != null && message.targetMAC.equals(local);
+
+        if (!host || global || toLocal)
+            mCallback.onConsume(message);
+
+        if (!host)
+            return 0;
+        try {
+            if (global && (message.sourceMAC == null || !message.sourceMAC.equals(local))) {
+                return forwardToAll(frame, WireFormat.LEGACY_TEXT, message, null, true);
+            } else if (!global && !toLocal) {
+                return forwardTo(frame, WireFormat.LEGACY_TEXT, message, null, message.targetMAC);
+            }
+        } catch (QueueOverflowException e) {
+            //Its link recorded the overflow.
+        }
+        return 0;
+    }
+
+    /**
+     * Sends a message that originates from this device to every connected device.
+     * The message is serialized once per {@link WireFormat} in use and the same bytes are queued to every connection.
+     *
+     * @throws QueueOverflowException if a connection refused the frame. Every other connection still got it.
+     */
+    public void sendToAll(BluetoothMessage message) {
+        PeerIds peers = mPeers;
+        SharedFrame binary = SharedFrame.wrap(peers == null ? message.toBytes(WireFormat.BINARY) : FrameCodec.encode(message, peers).array());
+        FrameHeader header = null;
+        if (peers != null) {
+            //Tells the devices that don't read ids apart.
+            header = new FrameHeader();
+            FrameCodec.readHeader(binary.buffer(), header);
+        }
+        try {
+            forwardToAll(binary, WireFormat.BINARY, message, header, false);
+        } finally {
+            binary.release();
+        }
+    }
+
+    /**
+     * Sends a message that originates from this device to a single connected device.
+     *
+     * @param address the address of the device. Nothing is sent if it isn't connected.
+     * @throws QueueOverflowException if the connection refused the frame
+     */
+    public void sendTo(BluetoothMessage message, String address) {
+        Link link = address == null ? null : mLinks.get(address);
+        if (link == null)
+            return;
+        PeerIds peers = mPeers;
+        if (peers != null && link.getWireFormat() == WireFormat.BINARY && link.readsPeerIds())
+            link.write(SharedFrame.wrap(FrameCodec.encode(message, peers).array()));
+        else
+            link.write(SharedFrame.wrap(message.toBytes(link.getWireFormat())));
+    }
+
+    /**
+     * @param target the address or name of a device, null for every device
+     * @return the ids to name devices with in a frame for the target, null if a device it goes to doesn't read them
+     */
+    public PeerIds peerIdsFor(String target) {
+        PeerIds peers = mPeers;
+        if (peers == null)
+            return null;
+        if (target != null) {
+            String address = mCallback.resolveAddress(target);
+            Link link = address == null ? null : mLinks.get(address);
+            return link != null && link.readsPeerIds() ? peers : null;
+        }
+        for (Link link : mLinks.values())
+            if (link.getWireFormat() == WireFormat.BINARY && !link.readsPeerIds())
+                return null;
+        return peers;
+    }
+
+    /**
+     * Sends a binary frame that originates from this device as it is. Devices that only read
+     * {@link WireFormat#LEGACY_TEXT} don't get it.
+     *
+     * @param frame  the frame, still owned by the caller
+     * @param target the address or name of the device to send it to, null for every device
+     * @return the number of devices the frame was queued to
+     * @throws QueueOverflowException if a connection refused the frame. Every other connection still got it.
+     */
+    public int sendFrame(SharedFrame frame, String target) {
+        return writeBinary(frame, null, target, null, false);
+    }
+
+    /**
+     * Queues a binary frame to a device, or to every device but one, skipping the ones that can't read it as it is.
+     *
+     * @param header the header of the frame if it's relayed, null if it originates from this device
+     * @param target the address or name of the device, null for every device
+     * @param except the address of the device to skip, null for none
+     * @param relay  true if the frame was received from another device, so links that don't queue it are recorded
+     */
+    private int writeBinary(SharedFrame frame, FrameHeader header, String target, String except, boolean relay) {
+        if (target != null) {
+            String address = mCallback.resolveAddress(target);
+            Link link = address == null ? null : mLinks.get(address);
+            if (link != null && takesAsIs(link, WireFormat.BINARY, header) && link.write(frame.retain()))
+                return 1;
+            if (relay)
+                recordRelayFailure(address == null ? target : address);
+            return 0;
+        }
+        int queued = 0;
+        QueueOverflowException overflow = null;
+        for (Map.Entry<String, ? extends Link> entry : mLinks.entrySet()) {
+            Link link = entry.getValue();
+            if (entry.getKey().equals(except) || !takesAsIs(link, WireFormat.BINARY, header))
+                continue;
+            try {
+                if (link.write(frame.retain()))
+                    queued++;
+                else if (relay)
+                    recordRelayFailure(entry.getKey());
+            } catch (QueueOverflowException e) {
+                overflow = e;
+            }
+        }
+        if (overflow != null)
+            throw overflow;
+        return queued;
+    }
+
+    /**
+     * @return true if every device a relayed binary frame goes to can take it as it is
+     */
+    private boolean allTakeAsIs(FrameHeader header, boolean global) {
+        if (!global) {
+            String target = header.getTarget();
+            String address = target == null ? null : mCallback.resolveAddress(target);
+            Link link = address == null ? null : mLinks.get(address);
+            return link == null || takesAsIs(link, WireFormat.BINARY, header);
+        }
+        for (Link link : mLinks.values())
+            if (link.getWireFormat() == WireFormat.BINARY && !takesAsIs(link, WireFormat.BINARY, header))
+                return false;
+        return true;
+    }
+
+    /**
+     * Puts a fragmented message back together.
+     *
+     * @param relayWhole true if the host relays the message whole, see {@link FragmentAssembler#isRelayedWhole}
+     * @return the message once its last fragment is in, null until then or if a fragment was lost
+     */
+    private BluetoothMessage assemble(FrameHeader header, boolean relayWhole) {
+        try {
+            return mAssembler.add(header, relayWhole);
+        } catch (IllegalArgumentException e) {
+            if (mRecorder != null)
+                mRecorder.record(FlightRecorder.Event.FRAGMENT_LOST, header.getSource());
+            return null;
+        }
+    }
+
+    /**
+     * Queues a frame to every link. Links that can take the frame as it is get the very same bytes; the rest share a
+     * single re-encoded copy per format.
+     *
+     * @param frame   the frame, still owned by the caller
+     * @param format  the format the frame is in
+     * @param message the decoded frame if available, null otherwise
+     * @param header  the header of a binary frame that is relayed, null otherwise
+     * @param relay   true if the frame was received from another device, so links that don't queue it are recorded
+     * @return the number of links that queued the frame
+     */
+    private int forwardToAll(SharedFrame frame, WireFormat format, BluetoothMessage message, FrameHeader header, boolean relay) {
+        SharedFrame[] converted = null;
+        int queued = 0;
+        //A full queue must not keep the message from the rest of the devices, so the overflow is only reported at the end.
+        QueueOverflowException overflow = null;
+        try {
+            for (Map.Entry<String, ? extends Link> entry : mLinks.entrySet()) {
+                Link link = entry.getValue();
+                boolean written = false;
+                try {
+                    if (takesAsIs(link, format, header)) {
+                        written = link.write(frame.retain());
+                    } else if (convertible(header, message)) {
+                        int index = link.getWireFormat().ordinal();
+                        if (converted == null)
+                            converted = new SharedFrame[WireFormat.values().length];
+                        if (converted[index] == null) {
+                            if (message == null)
+                                message = decode(frame, header);
+                            converted[index] = SharedFrame.wrap(message.toBytes(link.getWireFormat()));
+                        }
+                        written = link.write(converted[index].retain());
+                    } else if (!header.endsMessage()) {
+                        //Gets the whole message along with the last fragment, if it was put back together here.
+                        continue;
+                    }
+                } catch (QueueOverflowException e) {
+                    overflow = e;
+                }
+                if (written)
+                    queued++;
+                else if (relay)
+                    recordRelayFailure(entry.getKey());
+            }
+        } finally {
+            if (converted != null)
+                for (SharedFrame copy : converted)
+                    if (copy != null)
+                        copy.release();
+        }
+        if (overflow != null)
+            throw overflow;
+        return queued;
+    }
+
+    /**
+     * Relays a private frame to its target. Failures to do so are recorded.
+     *
+     * @param target the target as written in the frame, an address or a name
+     * @return 1 if the link queued the frame, 0 otherwise
+     */
+    private int forwardTo(SharedFrame frame, WireFormat format, BluetoothMessage message, FrameHeader header, String target) {
+        String address = target == null ? null : mCallback.resolveAddress(target);
+        Link link = address == null ? null : mLinks.get(address);
+        if (link == null) {
+            //Nobody by that name. Probably a device that just left.
+            recordRelayFailure(target);
+            return 0;
+        }
+        boolean asIs = takesAsIs(link, format, header);
+        if (!asIs && !convertible(header, message) && !header.endsMessage())
+            //Gets the whole message along with the last fragment, if it was put back together here.
+            return 0;
+        boolean queued = false;
+        try {
+            if (asIs) {
+                queued = link.write(frame.retain());
+            } else if (convertible(header, message)) {
+                if (message == null)
+                    message = decode(frame, header);
+                queued = link.write(SharedFrame.wrap(message.toBytes(link.getWireFormat())));
+            }
+        } finally {
+            if (!queued)
+                recordRelayFailure(address);
+        }
+        return queued ? 1 : 0;
+    }
+
+    /**
+     * @return true if the link reads the frame as it is: it's in the format of the link, not compressed unless the link
+     * reads compressed frames, doesn't name devices by their id unless the link reads those and isn't a fragment unless
+     * the link reads lanes. Links that don't read lanes downgrade the rest of the frames themselves.
+     */
+    private static boolean takesAsIs(Link link, WireFormat format, FrameHeader header) {
+        return link.getWireFormat() == format && (header == null
+                || ((!header.isCompressed() || link.readsCompressed()) && (!header.usesPeerIds() || link.readsPeerIds())
+                && (!header.isFragment() || link.readsLanes())));
+    }
+
+    /**
+     * Decodes a frame that is relayed, with the header that was read from it if it's binary.
+     */
+    private static BluetoothMessage decode(SharedFrame frame, FrameHeader header) {
+        return header != null ? FrameCodec.decode(header) : BluetoothMessage.decode(frame.buffer());
+    }
+
+    /**
+     * Legacy devices can't put fragments back together, and the fragments of a compressed message can't be inflated one
+     * by one, so devices that can't take them as they are can only be given the whole message.
+     *
+     * @return false for a fragment of a message that wasn't put back together here
+     */
+    private static boolean convertible(FrameHeader header, BluetoothMessage message) {
+        return header == null || !header.isFragment() || (message != null && header.endsMessage());
+    }
+
+    private void recordRelayFailure(String peer) {
+        if (mRecorder != null)
+            mRecorder.record(FlightRecorder.Event.RELAY_FAILURE, peer);
+    }
+
+    private byte[] localAddressBytes() {
+        String local = mCallback.getLocalAddress();
+        if (local == null)
+            return null;
+        if (!local.equals(mLocalAddress)) {
+            //Only happens once in practice. The bytes are published before the address they belong to.
+            mLocalAddressBytes = local.getBytes(FrameCodec.UTF8);
+            mLocalAddress = local;
+        }
+        return mLocalAddressBytes;
+    }
+}
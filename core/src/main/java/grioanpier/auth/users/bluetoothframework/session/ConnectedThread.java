@@ -0,0 +1,926 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+import grioanpier.auth.users.bluetoothframework.io.BufferPool;
+import grioanpier.auth.users.bluetoothframework.io.OutboundQueue;
+import grioanpier.auth.users.bluetoothframework.io.OverflowPolicy;
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+import grioanpier.auth.users.bluetoothframework.io.QueueOverflowException;
+import grioanpier.auth.users.bluetoothframework.io.SharedFrame;
+import grioanpier.auth.users.bluetoothframework.metrics.ConnectionMetrics;
+import grioanpier.auth.users.bluetoothframework.routing.FrameRouter;
+import grioanpier.auth.users.bluetoothframework.trace.FlightRecorder;
+import grioanpier.auth.users.bluetoothframework.trace.MessageTracer;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+import grioanpier.auth.users.bluetoothframework.wire.Compression;
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+import grioanpier.auth.users.bluetoothframework.wire.FrameCodec;
+import grioanpier.auth.users.bluetoothframework.wire.FrameDecoder;
+import grioanpier.auth.users.bluetoothframework.wire.FrameHeader;
+import grioanpier.auth.users.bluetoothframework.wire.PayloadDeflater;
+import grioanpier.auth.users.bluetoothframework.wire.PayloadInflater;
+import grioanpier.auth.users.bluetoothframework.wire.PeerIds;
+import grioanpier.auth.users.bluetoothframework.wire.WireFormat;
+
+/**
+ * A {@link Thread} that keeps the connection with another device, over whatever
+ * {@link grioanpier.auth.users.bluetoothframework.transport.Transport} it was established with.
+ * It's also the point of communication. The thread itself reads from the connection, while everything written to it
+ * goes through a bounded {@link OutboundQueue} that is drained by a dedicated writer thread, so a slow device
+ * never blocks the callers of {@link #write(byte[])}.
+ * <p/>
+ * Frames wait in the lane of their {@link Priority}. Binary frames that are longer than the fragment length are written
+ * in fragments, and the frames of higher lanes are written in between, so a large message doesn't hold them back.
+ * <p/>
+ * Both devices say in the session handshake whether they read compressed frames and frames that name devices by their
+ * {@link PeerIds id}. If the other device reads compressed frames, the payloads of the messages written to it are
+ * compressed first, see {@link Compression}. They also say whether they read lanes, traces and fragments, which the
+ * first version of the binary format didn't have. Frames written to a device that doesn't, or that opened no session,
+ * are {@link FrameCodec#downgrade downgraded} and never fragmented.
+ */
+public class ConnectedThread extends Thread implements FrameDecoder.FrameListener, FrameRouter.Link {
+
+    private final TransportSocket mSocket;
+    private final InputStream mInStream;
+    private final OutputStream mOutStream;
+    private final Listener mListener;
+    private final FrameRouter mRouter;
+    private final BufferPool mBufferPool;
+    public final String ID;
+
+    public static final int MESSAGE_SIZE = 1024;
+    /**
+     * Legacy devices treat every read as exactly one message, so writes to them are spaced out to keep
+     * back-to-back messages from being merged in a single read.
+     */
+    private static final long LEGACY_WRITE_INTERVAL_MS = 250;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    /**
+     * Fragments fit in a single read, and in a pooled buffer on the other end.
+     */
+    public static final int DEFAULT_FRAGMENT_LENGTH = MESSAGE_SIZE;
+    //The payload of a fragment is never cut shorter than this, however long the header of the frame is.
+    private static final int MIN_FRAGMENT_PAYLOAD = 64;
+    //Room for the offset and the length a fragment carries, on top of the header of its frame.
+    private static final int FRAGMENT_FIELDS_LENGTH = 10;
+    //Control frames that didn't fit in the outbound queue.
+    private static final int CONTROL_QUEUE_CAPACITY = 16;
+
+    public interface Listener {
+        /**
+         * The connection was lost, either because the remote device left or because the stream failed, or because it
+         * went silent for longer than the heartbeat timeout. Invoked once, after which the connection is cancelled: on
+         * the reading thread in the first two cases, on the heartbeat thread in the last, while the reading thread may
+         * still be routing a frame it read.
+         */
+        void onDisconnected(ConnectedThread thread);
+
+        /**
+         * The streams of the socket couldn't be obtained. Invoked from the constructor; the thread won't read anything.
+         */
+        void onStreamError(ConnectedThread thread);
+    }
+
+    //How long retiring waits for the writer to hand over the frames it holds.
+    private static final long RETIRE_TIMEOUT_MS = 1000;
+    //How long leaving waits for the goodbye to be written.
+    private static final long LEAVE_TIMEOUT_MS = 200;
+
+    private volatile boolean isActive;
+
+    /**
+     * The format used for everything written to this connection. It starts as {@link WireFormat#LEGACY_TEXT} in
+     * compatibility mode and is upgraded to {@link WireFormat#BINARY} as soon as the remote device proves it can read it.
+     */
+    private volatile WireFormat mWireFormat;
+    //If set, the connection never leaves the format it started with.
+    private volatile boolean mPinned = false;
+    private volatile int mFragmentLength = DEFAULT_FRAGMENT_LENGTH;
+    private volatile MessageTracer mTracer = null;
+    private volatile FlightRecorder mRecorder = null;
+    private final FrameDecoder mDecoder = new FrameDecoder();
+    private final FrameHeader mHeader = new FrameHeader();
+    private long mLastLegacyWrite = 0;
+
+    //When something was last read from the stream, in System.nanoTime() terms.
+    private volatile long mLastHeard;
+    private boolean mSuspect = false;
+    //Set once the loss of the connection has been reported, so it's reported once.
+    private final AtomicBoolean mLost = new AtomicBoolean();
+
+    //Opens or resumes the session of the connection, see LinkSession.
+    private final SessionHandshake mHandshake = new SessionHandshake(this);
+    //Answers the control frames that are read.
+    private final LinkControl mLinkControl;
+    //Null if the connection doesn't compress, see setCompression.
+    private PayloadDeflater mDeflater = null;
+    private PayloadInflater mInflater = null;
+    //Set while the connection is lost but its session may be resumed. The writer keeps what is written meanwhile.
+    private volatile boolean mHeld = false;
+    private volatile boolean mKeepOnRetire = false;
+    private volatile SharedFrame mGoodbye = null;
+    private final CountDownLatch mGoodbyeWritten = new CountDownLatch(1);
+
+    private final OutboundQueue<SharedFrame> mOutbound;
+    /**
+     * Control frames never wait for room in the outbound queue: an acknowledgement that was dropped or blocked behind
+     * frames waiting for credit could leave both devices waiting for each other. The writer writes these first.
+     */
+    private final ArrayBlockingQueue<SharedFrame> mControl = new ArrayBlockingQueue<>(CONTROL_QUEUE_CAPACITY);
+    private final Writer mWriter;
+    private final ConnectionMetrics mMetrics;
+
+    public ConnectedThread(TransportSocket socket, Listener listener, FrameRouter router) {
+        this(socket, listener, router, WireFormat.BINARY, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DROP_NEWEST, new BufferPool(MESSAGE_SIZE, 8), new ConnectionMetrics());
+    }
+
+    /**
+     * @param listener      receives the connection events
+     * @param router        every frame that is read is handed to the router, on this thread
+     * @param wireFormat    the format to write in until the remote device proves it can read {@link WireFormat#BINARY}.
+     *                      If {@link WireFormat#LEGACY_TEXT}, a legacy hello is sent as soon as the thread starts.
+     * @param queueCapacity how many frames may wait to be written in each lane before the overflow policy kicks in
+     * @param policy        what {@link #write(byte[])} does when the queue is full
+     * @param bufferPool    where the buffers of the frames that are read come from. Can be shared between connections.
+     * @param metrics       where the traffic of the connection is counted
+     */
+    public ConnectedThread(TransportSocket socket, Listener listener, FrameRouter router, WireFormat wireFormat, int queueCapacity, OverflowPolicy policy, BufferPool bufferPool, ConnectionMetrics metrics) {
+        mSocket = socket;
+        mWireFormat = wireFormat;
+        mMetrics = metrics;
+        mLinkControl = new LinkControl(this, mHandshake, metrics);
+        mOutbound = new OutboundQueue<>(queueCapacity, policy, mReleaseDropped);
+        InputStream tempIn = null;
+        OutputStream tempOut = null;
+        mListener = listener;
+        mRouter = router;
+        mBufferPool = bufferPool;
+        ID = socket.getRemoteAddress();
+        mWriter = new Writer();
+        isActive = true;
+
+        try {
+            tempIn = socket.getInputStream();
+            tempOut = socket.getOutputStream();
+        } catch (IOException e) {
+            isActive = false;
+            mListener.onStreamError(this);
+        }
+
+        mInStream = tempIn;
+        mOutStream = tempOut;
+    }
+
+    /**
+     * @return false once the connection has been lost or cancelled
+     */
+    public boolean isConnected() {
+        return isActive;
+    }
+
+    /**
+     * @return the name of the remote device, null if it isn't known
+     */
+    public String getRemoteName() {
+        return mSocket.getRemoteName();
+    }
+
+    @Override
+    public WireFormat getWireFormat() {
+        return mWireFormat;
+    }
+
+    /**
+     * @return true if the other device said it reads compressed frames when the session was opened
+     */
+    @Override
+    public boolean readsCompressed() {
+        return mHandshake.peerReads(SessionHandshake.FEATURE_COMPRESSION);
+    }
+
+    /**
+     * @return true if the other device said it reads frames that name devices by their id when the session was opened
+     */
+    @Override
+    public boolean readsPeerIds() {
+        return mHandshake.peerReads(SessionHandshake.FEATURE_PEER_IDS);
+    }
+
+    /**
+     * @return true if the other device said it reads frames that carry a lane, a trace or a fragment when the session
+     * was opened. Without a session it's taken for a device of the first version of the format.
+     */
+    @Override
+    public boolean readsLanes() {
+        return mHandshake.peerReads(SessionHandshake.FEATURE_LANES);
+    }
+
+    /**
+     * @return the number of frames waiting to be written
+     */
+    public int getQueueDepth() {
+        return mOutbound.size();
+    }
+
+    public int getQueueCapacity() {
+        return mOutbound.capacity();
+    }
+
+    /**
+     * Records when traced frames are written. Must be called before the thread is started.
+     */
+    public void setTracer(MessageTracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * Records disconnections, write errors, overflows of the outbound queue and decode failures.
+     * Must be called before the thread is started.
+     */
+    public void setFlightRecorder(FlightRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    void record(FlightRecorder.Event event) {
+        FlightRecorder recorder = mRecorder;
+        if (recorder != null)
+            recorder.record(event, ID);
+    }
+
+    void record(FlightRecorder.Event event, long value) {
+        FlightRecorder recorder = mRecorder;
+        if (recorder != null)
+            recorder.record(event, ID, value);
+    }
+
+    /**
+     * Reads compressed frames, and compresses what is written if the other device reads them too. Only connections
+     * with a session negotiate it. Must be called before the thread is started.
+     *
+     * @param compression the settings, shared with the rest of the connections
+     */
+    void setCompression(Compression compression) {
+        mHandshake.offer(SessionHandshake.FEATURE_COMPRESSION);
+        mDeflater = new PayloadDeflater(compression, mMetrics);
+        mInflater = new PayloadInflater(compression, mMetrics);
+        mHeader.setInflater(mInflater);
+    }
+
+    /**
+     * Reads frames that name devices by their id. Only connections with a session negotiate it. Must be called before
+     * the thread is started.
+     *
+     * @param peers the ids of the session, shared with the rest of the connections
+     */
+    void setPeerTable(PeerTable peers) {
+        mHandshake.offer(SessionHandshake.FEATURE_PEER_IDS);
+        mLinkControl.setPeerTable(peers);
+        mHeader.setPeerIds(peers);
+    }
+
+    /**
+     * Follows the roster the other device writes. Only for the connection to the host, and must be called before the
+     * thread is started.
+     */
+    void followPeers() {
+        mLinkControl.followPeers();
+    }
+
+    /**
+     * Writes the player what changed in the roster since it was last written, see {@link LinkControl#syncPeers()}.
+     */
+    void syncPeers() {
+        mLinkControl.syncPeers();
+    }
+
+    /**
+     * Opens a session with the host, or resumes it if another connection used it before. Nothing else is written until
+     * the host answers. Must be called before the thread is started, on a {@link WireFormat#BINARY} connection.
+     */
+    void openSession(LinkSession session) {
+        mHandshake.open(session);
+    }
+
+    /**
+     * Waits for the player to open or resume a session before writing anything. Must be called before the thread is
+     * started, on a {@link WireFormat#BINARY} connection.
+     */
+    void acceptSession(SessionHandshake.Resolver resolver) {
+        mHandshake.accept(resolver);
+    }
+
+    /**
+     * @return the session of the connection, null if it has none (yet)
+     */
+    LinkSession getSession() {
+        return mHandshake.getSession();
+    }
+
+    /**
+     * Keeps what is written to the connection in its session from now on, so the connection that resumes it writes it.
+     * Called once the connection is lost, before it's cancelled.
+     */
+    void hold() {
+        mHeld = true;
+    }
+
+    /**
+     * Stops holding. Waits for the writer to finish.
+     *
+     * @param keep true if the session is resumed by another connection and should keep what was held,
+     *             false to let go of it along with the session
+     */
+    void retire(boolean keep) {
+        mKeepOnRetire = keep;
+        mHeld = false;
+        mWriter.interrupt();
+        try {
+            mWriter.join(RETIRE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //Whatever was written while the writer was finishing.
+        drain(keep);
+        LinkSession session = mHandshake.getSession();
+        if (!keep && session != null)
+            session.close();
+    }
+
+    /**
+     * Ends the session on purpose, so the other device doesn't hold it, and cancels the connection. What is still
+     * queued is dropped, like {@link #cancel()} does.
+     */
+    void leave() {
+        if (isActive && mHandshake.getSession() != null) {
+            drain(false);
+            BluetoothMessage message = new BluetoothMessage(false, ID, null, ControlCodes.BYE, "");
+            message.priority = Priority.CONTROL;
+            SharedFrame goodbye = SharedFrame.wrap(message.toBytes(WireFormat.BINARY));
+            mGoodbye = goodbye;
+            try {
+                if (write(goodbye))
+                    mGoodbyeWritten.await(LEAVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (QueueOverflowException e) {
+                //Then it's held on the other end until it expires.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        cancel();
+    }
+
+    /**
+     * Keeps the connection in the format it was created with: no hello is sent and none is answered, so a
+     * {@link WireFormat#LEGACY_TEXT} connection behaves exactly like the text-only framework did.
+     * Must be called before the thread is started.
+     */
+    public void pinWireFormat() {
+        mPinned = true;
+    }
+
+    /**
+     * Sets how long a binary frame may get before it's written in fragments. Must be called before the thread is started.
+     *
+     * @param length the longest frame, in bytes. 0 to write every frame whole.
+     */
+    public void setFragmentLength(int length) {
+        mFragmentLength = length;
+    }
+
+    public void run() {
+        byte[] buffer = new byte[MESSAGE_SIZE];
+        int numOfBytes;
+
+        if (!isActive)
+            return;
+        mMetrics.onConnected(mOutbound);
+        mLastHeard = System.nanoTime();
+        mWriter.start();
+
+        if (mWireFormat == WireFormat.LEGACY_TEXT && !mPinned)
+            write(hello(WireFormat.LEGACY_TEXT));
+
+        // Keep listening to the InputStream while connected
+        while (isActive) {
+            try {
+                numOfBytes = mInStream.read(buffer);
+                if (numOfBytes == -1)
+                    throw new IOException("End of stream");
+                mLastHeard = System.nanoTime();
+                mMetrics.onRead(numOfBytes);
+                mDecoder.decode(buffer, 0, numOfBytes, this);
+            } catch (IllegalArgumentException e) {
+                //The stream is corrupted. Drop whatever was buffered and try to pick up again with the next read.
+                mMetrics.onDecodeFailure();
+                record(FlightRecorder.Event.DECODE_FAILURE);
+                mDecoder.reset();
+            } catch (IOException e) {
+                lost(FlightRecorder.Event.DISCONNECTED);
+            } catch (Exception e) {
+                //Whatever broke while handling this read, the connection keeps being read.
+                record(FlightRecorder.Event.UNEXPECTED_EXCEPTION);
+            }
+        }
+        if (mInflater != null)
+            mInflater.end();
+    }
+
+    /**
+     * Invoked by the {@link FrameDecoder} for every complete frame. The frame is copied because the decoder reuses its
+     * buffers and a relayed frame may sit in other connections' queues for a while. The copy goes into a pooled
+     * buffer that returns to the pool once the frame has been routed and written everywhere it was relayed to.
+     */
+    @Override
+    public void onFrame(ByteBuffer frame) {
+        mMetrics.onFrameReceived();
+        if (negotiateWireFormat(frame))
+            return;
+        int length = frame.remaining();
+        LinkSession session = null;
+        try {
+            //Control frames are answered here, the rest are routed with the header already read.
+            boolean binary = WireFormat.of(frame.get(frame.position())) == WireFormat.BINARY;
+            if (binary) {
+                FrameCodec.readHeader(frame, mHeader);
+                if (ControlCodes.isLinkControl(mHeader.getAppCode())) {
+                    mLinkControl.onControl(mHeader, frame);
+                    return;
+                }
+                session = mHandshake.getSession();
+                if (session != null && !session.onReceived()) {
+                    record(FlightRecorder.Event.CREDIT_EXCEEDED);
+                    mLinkControl.acknowledge(session, false);
+                    return;
+                }
+            }
+            byte[] bytes = mBufferPool.acquire(length);
+            frame.get(bytes, 0, length);
+            SharedFrame copy = SharedFrame.pooled(bytes, length, mBufferPool);
+            int relayed = binary ? mRouter.routeParsed(copy, mHeader) : mRouter.route(copy, mHeader);
+            if (relayed > 0)
+                mMetrics.onRelayed(relayed);
+            //Credit is given once the frame has been handed on, so a relay that blocks holds back the sender too.
+            if (session != null)
+                mLinkControl.acknowledge(session, false);
+        } catch (IllegalArgumentException e) {
+            //A malformed frame. The framing itself is intact, so only this frame is lost.
+            mMetrics.onDecodeFailure();
+            record(FlightRecorder.Event.DECODE_FAILURE);
+        }
+    }
+
+    /**
+     * Sends a heartbeat and checks how long the remote device has been silent. Invoked every interval by the
+     * {@link HeartbeatMonitor}. Only binary connections take part, since legacy devices can't answer.
+     * <p/>
+     * A remote device that has answered heartbeats before is suspect once it's been silent for two intervals plus
+     * four deviations over its smoothed round trip time, and is considered lost after the timeout.
+     * What was read in the session since the last acknowledgement is acknowledged too.
+     *
+     * @param now      System.nanoTime()
+     * @param interval how often heartbeats are sent, in nanoseconds
+     * @param timeout  how long the remote device may stay silent, in nanoseconds
+     */
+    void heartbeat(long now, long interval, long timeout) {
+        if (!isActive || mWireFormat != WireFormat.BINARY)
+            return;
+        if (mLinkControl.answersHeartbeats()) {
+            long silent = now - mLastHeard;
+            if (silent > timeout) {
+                lost(FlightRecorder.Event.PEER_DEAD);
+                return;
+            }
+            boolean suspect = silent > 2 * interval + mMetrics.getSmoothedRtt() + 4 * mMetrics.getRttVariance();
+            if (suspect && !mSuspect)
+                record(FlightRecorder.Event.PEER_SUSPECT);
+            mSuspect = suspect;
+            mMetrics.setSuspect(suspect);
+        }
+        sendControl(ControlCodes.PING, Long.toString(now));
+        LinkSession session = mHandshake.getSession();
+        if (session != null)
+            mLinkControl.acknowledge(session, true);
+    }
+
+    /**
+     * Queues a control frame. It never blocks and never goes through the overflow policy: if there is no room anywhere
+     * it's lost, the next heartbeat or acknowledgement will do.
+     */
+    void sendControl(int code, String payload) {
+        sendControl(SharedFrame.wrap(new BluetoothMessage(false, ID, null, code, payload).toBytes(WireFormat.BINARY)));
+    }
+
+    boolean sendControl(SharedFrame frame) {
+        if (!isActive || (!mOutbound.offerIfRoom(frame, Priority.CONTROL) && !mControl.offer(frame))) {
+            frame.release();
+            return false;
+        }
+        //The writer may be waiting for credit, which may come from the other device only once it gets this.
+        LinkSession session = mHandshake.getSession();
+        if (session != null)
+            session.signal();
+        return true;
+    }
+
+    /**
+     * Reports the loss of the connection, once, and cancels it. Called by the reading thread and by the heartbeat
+     * thread, whichever finds it lost first.
+     */
+    private void lost(FlightRecorder.Event event) {
+        if (isActive && mLost.compareAndSet(false, true)) {
+            record(event);
+            mListener.onDisconnected(this);
+        }
+        cancel();
+    }
+
+    /**
+     * Upgrades the connection to {@link WireFormat#BINARY} once the remote device has shown it understands it:
+     * either it sent a binary frame or it sent a legacy hello, in which case it gets a binary hello back.
+     *
+     * @return true if the read was a legacy hello that has been consumed here
+     */
+    private boolean negotiateWireFormat(ByteBuffer frame) {
+        if (mPinned)
+            return false;
+        if (WireFormat.of(frame.get(frame.position())) == WireFormat.BINARY) {
+            mWireFormat = WireFormat.BINARY;
+            return false;
+        }
+        if (mWireFormat != WireFormat.LEGACY_TEXT)
+            return false;
+
+        BluetoothMessage message;
+        try {
+            message = BluetoothMessage.decode(frame.duplicate());
+        } catch (RuntimeException e) {
+            return false;
+        }
+        if (message.appCode == ControlCodes.HELLO) {
+            mWireFormat = WireFormat.BINARY;
+            write(hello(WireFormat.BINARY));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A private hello addressed to the remote device. Legacy devices parse it without trouble and, since it either
+     * targets them or a device they don't know, they never relay it.
+     */
+    private byte[] hello(WireFormat format) {
+        return new BluetoothMessage(false, ID, null, ControlCodes.HELLO, String.valueOf(FrameCodec.MAGIC & 0xFF)).toBytes(format);
+    }
+
+    private final OutboundQueue.DropListener<SharedFrame> mReleaseDropped = new OutboundQueue.DropListener<SharedFrame>() {
+        @Override
+        public void onDropped(SharedFrame frame) {
+            mMetrics.onDropped();
+            onOverflow();
+            frame.release();
+        }
+    };
+
+    private void onOverflow() {
+        record(FlightRecorder.Event.QUEUE_OVERFLOW, mOutbound.capacity());
+    }
+
+    /**
+     * Queues the buffer to be written to the connected OutStream by the writer thread.
+     * Returns immediately unless the queue is full and the policy is {@link OverflowPolicy#BLOCK}.
+     *
+     * @param buffer the buffer to write to the stream. It must not be modified afterwards.
+     * @return true if the buffer was queued, false if it was dropped
+     * @throws QueueOverflowException if the queue is full and the policy is {@link OverflowPolicy#FAIL}
+     */
+    public boolean write(byte[] buffer) {
+        return write(SharedFrame.wrap(buffer));
+    }
+
+    /**
+     * Queues a frame to be written to the connected OutStream by the writer thread, in the lane of its {@link Priority}.
+     * Returns immediately unless the lane is full and the policy is {@link OverflowPolicy#BLOCK}.
+     *
+     * @param frame the frame to write. One reference is handed over to the connection, which releases it once the
+     *              frame has been written or dropped; {@link SharedFrame#retain()} it first to keep using it.
+     * @return true if the frame was queued, false if it was dropped
+     * @throws QueueOverflowException if the queue is full and the policy is {@link OverflowPolicy#FAIL}
+     */
+    @Override
+    public boolean write(SharedFrame frame) {
+        if (!isActive && !mHeld) {
+            //Nobody is going to write it.
+            frame.release();
+            return false;
+        }
+        try {
+            boolean binary = WireFormat.of(frame.firstByte()) == WireFormat.BINARY;
+            return mOutbound.offer(frame, binary ? FrameCodec.priority(frame.buffer()) : Priority.INTERACTIVE);
+        } catch (InterruptedException e) {
+            frame.release();
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (QueueOverflowException e) {
+            mMetrics.onDropped();
+            onOverflow();
+            frame.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Drains the {@link OutboundQueue} into the OutStream for as long as the connection is active, and into the session
+     * for as long as it's held. Frames counted in a session wait for credit from the other device.
+     */
+    private class Writer extends Thread {
+
+        Writer() {
+            super("ConnectedThread-writer-" + ID);
+        }
+
+        @Override
+        public void run() {
+            try {
+                mHandshake.perform();
+            } catch (InterruptedException e) {
+                //Cancelled while waiting.
+            } catch (IOException e) {
+                if (isActive)
+                    record(FlightRecorder.Event.WRITE_ERROR);
+            }
+
+            while (isActive || mHeld) {
+                SharedFrame frame;
+                try {
+                    frame = mOutbound.take();
+                } catch (InterruptedException e) {
+                    if (mHeld)
+                        continue;
+                    break;
+                }
+                send(frame);
+            }
+            drain(mKeepOnRetire);
+            if (mDeflater != null)
+                mDeflater.end();
+        }
+
+        /**
+         * Writes a frame, in fragments if it's too long. The frames of higher lanes that are queued meanwhile are
+         * written in between the fragments.
+         */
+        private void send(SharedFrame frame) {
+            frame = compress(downgrade(frame));
+            int fragmentLength = mFragmentLength;
+            //Only the application's messages are put back together, the framework's are short enough anyway.
+            if (fragmentLength <= 0 || !readsLanes() || frame.length() <= fragmentLength || !isData(frame, mWriterHeader) || mWriterHeader.isFragment()
+                    || ControlCodes.isReserved(mWriterHeader.getAppCode())) {
+                sendWhole(frame);
+                return;
+            }
+            Priority priority = mWriterHeader.getPriority();
+            int payloadLength = mWriterHeader.getPayloadLength();
+            int step = Math.max(MIN_FRAGMENT_PAYLOAD, fragmentLength - (frame.length() - payloadLength) - FRAGMENT_FIELDS_LENGTH);
+            try {
+                for (int offset = 0; offset < payloadLength && (isActive || mHeld); offset += step) {
+                    //The header is read again, the frames that cut in are read into it too.
+                    FrameCodec.readHeader(frame.buffer(), mWriterHeader);
+                    sendWhole(SharedFrame.wrap(FrameCodec.fragment(mWriterHeader, offset, Math.min(step, payloadLength - offset)).array()));
+                    SharedFrame urgent;
+                    while ((urgent = mOutbound.pollAbove(priority)) != null)
+                        send(urgent);
+                }
+            } finally {
+                frame.release();
+            }
+        }
+
+        /**
+         * Rewrites a frame the other device would refuse, if it only reads the first version of the format. Fragments
+         * never get here, the router gives those devices the whole message instead.
+         *
+         * @return the frame to write. The one given is released if it's replaced.
+         */
+        private SharedFrame downgrade(SharedFrame frame) {
+            if (readsLanes() || WireFormat.of(frame.firstByte()) != WireFormat.BINARY)
+                return frame;
+            FrameCodec.readHeader(frame.buffer(), mWriterHeader);
+            if (mWriterHeader.isVersion1() || mWriterHeader.isFragment())
+                return frame;
+            SharedFrame downgraded = SharedFrame.wrap(FrameCodec.downgrade(mWriterHeader).array());
+            frame.release();
+            return downgraded;
+        }
+
+        /**
+         * Compresses the payload of a message, if the other device reads compressed frames and it's worth it. Frames of
+         * the framework and frames that are compressed already, like the ones the host relays, are left as they are.
+         *
+         * @return the frame to write. The one given is released if it's replaced.
+         */
+        private SharedFrame compress(SharedFrame frame) {
+            PayloadDeflater deflater = mDeflater;
+            if (deflater == null || !readsCompressed() || !deflater.accepts(frame.length()) || !isData(frame, mWriterHeader)
+                    || mWriterHeader.isFragment() || mWriterHeader.isCompressed() || ControlCodes.isReserved(mWriterHeader.getAppCode())
+                    || !deflater.accepts(mWriterHeader.getPayloadLength()))
+                return frame;
+            ByteBuffer payload = deflater.deflate(mWriterHeader.getAppCode(), mWriterHeader.payload());
+            if (payload == null)
+                return frame;
+            SharedFrame compressed = SharedFrame.wrap(FrameCodec.compress(mWriterHeader, payload).array());
+            frame.release();
+            return compressed;
+        }
+
+        private void sendWhole(SharedFrame frame) {
+            //Kept before it's written, a frame that is cut short by a drop is written again on resume.
+            LinkSession session = mHandshake.getSession();
+            boolean kept = session != null && isData(frame, mWriterHeader);
+            if (!isActive) {
+                if (kept)
+                    session.add(frame);
+                else
+                    frame.release();
+                return;
+            }
+            flushControl();
+            if (kept) {
+                try {
+                    awaitCredit(session, session.next());
+                } catch (InterruptedException e) {
+                    //Lost while waiting. Held with the rest, if the connection is held.
+                    if (mHeld)
+                        session.add(frame);
+                    else
+                        frame.release();
+                    return;
+                }
+                session.add(frame.retain());
+            }
+            try {
+                writeFrame(frame);
+                if (frame == mGoodbye)
+                    mGoodbyeWritten.countDown();
+                MessageTracer tracer = mTracer;
+                if (tracer != null && tracer.isEnabled())
+                    traceWrite(tracer, frame);
+            } catch (IOException e) {
+                //The reading thread notices the broken connection and reports the disconnection.
+                //Once cancelled, the streams are closed on purpose.
+                if (isActive)
+                    record(FlightRecorder.Event.WRITE_ERROR);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Waits for credit to write the frame. The control frames that are queued meanwhile are written past it, or both
+     * devices could end up waiting for acknowledgements that are queued behind frames waiting for credit.
+     * Only called on the writer thread.
+     */
+    void awaitCredit(LinkSession session, long frame) throws InterruptedException {
+        while (!session.awaitCredit(frame)) {
+            flushControl();
+            for (SharedFrame control : mOutbound.remove(mIsControl))
+                flushControl(control);
+        }
+    }
+
+    /**
+     * Writes the control frames that didn't fit in the outbound queue. Only called on the writer thread.
+     */
+    private void flushControl() {
+        SharedFrame control;
+        while ((control = mControl.poll()) != null)
+            flushControl(control);
+    }
+
+    private void flushControl(SharedFrame control) {
+        try {
+            if (isActive)
+                writeFrame(control);
+        } catch (IOException e) {
+            //The reading thread notices the broken connection.
+        } finally {
+            control.release();
+        }
+    }
+
+    private final OutboundQueue.Filter<SharedFrame> mIsControl = new OutboundQueue.Filter<SharedFrame>() {
+        @Override
+        public boolean accept(SharedFrame frame) {
+            //Only used on the writer thread.
+            return WireFormat.of(frame.firstByte()) == WireFormat.BINARY && !isData(frame, mWriterHeader);
+        }
+    };
+
+    void writeFrame(SharedFrame frame) throws IOException {
+        if (mWireFormat == WireFormat.LEGACY_TEXT)
+            paceLegacyWrite();
+        long start = System.nanoTime();
+        frame.writeTo(mOutStream);
+        mMetrics.onFrameWritten(frame.length(), System.nanoTime() - start);
+    }
+
+    /**
+     * Empties the outbound queue, into the session if it's kept.
+     */
+    private void drain(boolean keep) {
+        SharedFrame control;
+        while ((control = mControl.poll()) != null)
+            control.release();
+        LinkSession session = mHandshake.getSession();
+        FrameHeader header = new FrameHeader();
+        for (SharedFrame frame : mOutbound.clear()) {
+            if (keep && session != null && isData(frame, header))
+                session.add(frame);
+            else
+                frame.release();
+        }
+    }
+
+    /**
+     * @return true if the frame is counted in a session: binary and not a control frame of the connection
+     */
+    private static boolean isData(SharedFrame frame, FrameHeader header) {
+        if (WireFormat.of(frame.firstByte()) != WireFormat.BINARY)
+            return false;
+        FrameCodec.readHeader(frame.buffer(), header);
+        return !ControlCodes.isLinkControl(header.getAppCode());
+    }
+
+    private void paceLegacyWrite() {
+        long wait = mLastLegacyWrite + LEGACY_WRITE_INTERVAL_MS - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+            }
+        }
+        mLastLegacyWrite = System.currentTimeMillis();
+    }
+
+    //Only used on the writer thread.
+    private final FrameHeader mWriterHeader = new FrameHeader();
+
+    private void traceWrite(MessageTracer tracer, SharedFrame frame) {
+        if (WireFormat.of(frame.firstByte()) != WireFormat.BINARY)
+            return;
+        FrameCodec.readHeader(frame.buffer(), mWriterHeader);
+        if (mWriterHeader.endsMessage())
+            tracer.record(mWriterHeader.getTraceId(), mWriterHeader.getTraceTime(), MessageTracer.Stage.WRITE);
+    }
+
+    public synchronized void cancel() {
+        isActive = false;
+        mMetrics.onDisconnected(mOutbound);
+        mWriter.interrupt();
+
+        try {
+            if (mInStream != null)
+                mInStream.close();
+        } catch (IOException e) {
+        }
+
+        try {
+            if (mOutStream != null)
+                mOutStream.close();
+        } catch (IOException e) {
+        }
+
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+        }
+
+        interrupt();
+    }
+
+
+}
+
@@ -0,0 +1,91 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import grioanpier.auth.users.bluetoothframework.trace.FlightRecorder;
+
+/**
+ * Sends heartbeats through every connection from a single thread and finds the ones that went silent. See
+ * {@link ConnectedThread#heartbeat}. A dead connection is noticed within the timeout plus one interval, instead of
+ * whenever the stream happens to throw, which on RFCOMM can take tens of seconds.
+ */
+class HeartbeatMonitor {
+
+    private final Map<String, ConnectedThread> mConnections;
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mTask;
+
+    /**
+     * @param connections the connections to watch. Read on every beat.
+     */
+    HeartbeatMonitor(Map<String, ConnectedThread> connections) {
+        mConnections = connections;
+    }
+
+    /**
+     * Starts beating, or changes the pace if already started.
+     */
+    synchronized void start(long intervalMillis, long timeoutMillis) {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "HeartbeatMonitor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if (mTask != null)
+            mTask.cancel(false);
+        final long interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        final long timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        mTask = mExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (ConnectedThread connection : mConnections.values()) {
+                    try {
+                        connection.heartbeat(now, interval, timeout);
+                    } catch (RuntimeException e) {
+                        //One connection must not stop the beats of the others.
+                        connection.record(FlightRecorder.Event.UNEXPECTED_EXCEPTION);
+                    }
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if started and not stopped since
+     */
+    synchronized boolean isRunning() {
+        return mExecutor != null;
+    }
+
+    synchronized void stop() {
+        if (mExecutor != null)
+            mExecutor.shutdownNow();
+        mExecutor = null;
+        mTask = null;
+    }
+}
@@ -0,0 +1,200 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+import grioanpier.auth.users.bluetoothframework.io.SharedFrame;
+import grioanpier.auth.users.bluetoothframework.metrics.ConnectionMetrics;
+import grioanpier.auth.users.bluetoothframework.trace.FlightRecorder;
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+import grioanpier.auth.users.bluetoothframework.wire.FrameCodec;
+import grioanpier.auth.users.bluetoothframework.wire.FrameHeader;
+import grioanpier.auth.users.bluetoothframework.wire.PeerIds;
+
+/**
+ * Answers the frames that control a connection, other than the hello: heartbeats, acknowledgements, the session
+ * handshake, goodbyes and the roster. They are handled on the reading thread as they arrive and never routed.
+ * <p/>
+ * It also keeps the roster of the other device in step, see {@link PeerTable}: the host writes each player what changed
+ * since it was last written, a player follows what the host writes and asks for the whole roster when an update was lost.
+ */
+class LinkControl {
+
+    private final ConnectedThread mConnection;
+    private final SessionHandshake mHandshake;
+    private final ConnectionMetrics mMetrics;
+    //Only remote devices that have answered a heartbeat can be found dead by their silence.
+    private volatile boolean mAnswersHeartbeats = false;
+    private PeerTable mPeers = null;
+    //Set on the connection to the host, whose roster this device follows.
+    private boolean mFollowsPeers = false;
+    //The version of the roster the other device was written last, see syncPeers. Guarded by the roster.
+    private int mPeersWritten = PeerTable.NO_VERSION;
+    //Set once the whole roster was asked for, until it comes.
+    private boolean mPeersAsked = false;
+
+    LinkControl(ConnectedThread connection, SessionHandshake handshake, ConnectionMetrics metrics) {
+        mConnection = connection;
+        mHandshake = handshake;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Keeps the roster in step. Must be called before the connection is started.
+     */
+    void setPeerTable(PeerTable peers) {
+        mPeers = peers;
+    }
+
+    /**
+     * Follows the roster the other device writes instead. Must be called before the connection is started.
+     */
+    void followPeers() {
+        mFollowsPeers = true;
+    }
+
+    /**
+     * @return true once the other device has answered a heartbeat
+     */
+    boolean answersHeartbeats() {
+        return mAnswersHeartbeats;
+    }
+
+    /**
+     * Handles a frame that controls the connection. The hello is dealt with by the connection itself.
+     *
+     * @param header the header of the frame, already read
+     * @param frame  the whole frame
+     */
+    void onControl(FrameHeader header, ByteBuffer frame) {
+        int code = header.getAppCode();
+        if (code == ControlCodes.BYE) {
+            mHandshake.end();
+            return;
+        }
+        if (code == ControlCodes.PEERS) {
+            onPeers(header.payload());
+            return;
+        }
+        if (code != ControlCodes.PING && code != ControlCodes.PONG && code != ControlCodes.SESSION && code != ControlCodes.ACK)
+            return;
+        BluetoothMessage message = FrameCodec.decode(frame.duplicate());
+        if (code == ControlCodes.SESSION) {
+            if (!mHandshake.onSession(message.content))
+                malformed();
+            return;
+        }
+        if (code == ControlCodes.ACK) {
+            LinkSession session = mHandshake.getSession();
+            try {
+                String[] fields = message.content.split(":");
+                if (session != null) {
+                    session.acknowledge(Long.parseLong(fields[0]));
+                    if (fields.length > 1)
+                        session.grant(Long.parseLong(fields[1]));
+                }
+            } catch (NumberFormatException e) {
+                malformed();
+            }
+            return;
+        }
+        if (code == ControlCodes.PING) {
+            mConnection.sendControl(ControlCodes.PONG, message.content);
+            return;
+        }
+        mAnswersHeartbeats = true;
+        try {
+            long rtt = System.nanoTime() - Long.parseLong(message.content);
+            if (rtt >= 0)
+                mMetrics.onRtt(rtt);
+        } catch (NumberFormatException e) {
+            //Not one of ours.
+        }
+        PeerTable peers = mPeers;
+        if (peers != null && !mFollowsPeers)
+            peers.setRtt(mConnection.ID, (int) TimeUnit.NANOSECONDS.toMillis(mMetrics.getSmoothedRtt()));
+    }
+
+    /**
+     * Acknowledges what was read in the session, if it's time to.
+     *
+     * @param force true to acknowledge whatever wasn't yet
+     */
+    void acknowledge(LinkSession session, boolean force) {
+        long count = session.ackDue(force);
+        if (count <= 0)
+            return;
+        long limit = session.limit();
+        mConnection.sendControl(ControlCodes.ACK, limit < 0 ? Long.toString(count) : count + ":" + limit);
+    }
+
+    /**
+     * Writes the player what changed in the roster since it was last written, or the whole roster the first time.
+     * Like heartbeats, it never waits for room or credit. If it's lost, the player is written the whole roster the next
+     * time, or asks for it when the next update doesn't follow from the version it has.
+     */
+    void syncPeers() {
+        PeerTable peers = mPeers;
+        if (peers == null || mFollowsPeers)
+            return;
+        String address = mConnection.ID;
+        //Held while encoding too, so the versions are written in order.
+        synchronized (peers) {
+            int id = peers.idOf(address);
+            if (id == PeerIds.NONE)
+                return;
+            ByteBuffer payload = peers.encode(id, mPeersWritten);
+            if (payload == null)
+                return;
+            boolean queued = mConnection.sendControl(SharedFrame.wrap(FrameCodec.encode(false, address, null, ControlCodes.PEERS, Priority.CONTROL, payload).array()));
+            mPeersWritten = queued ? PeerTable.versionOf(payload) : PeerTable.NO_VERSION;
+        }
+    }
+
+    /**
+     * The host wrote an update of the roster, or a player asked for the whole roster with an empty one.
+     */
+    private void onPeers(ByteBuffer payload) {
+        PeerTable peers = mPeers;
+        if (peers == null)
+            return;
+        if (!mFollowsPeers) {
+            if (payload.hasRemaining())
+                return;
+            synchronized (peers) {
+                mPeersWritten = PeerTable.NO_VERSION;
+            }
+            syncPeers();
+            return;
+        }
+        //Only the host hands out ids.
+        if (peers.update(payload)) {
+            mPeersAsked = false;
+        } else if (!mPeersAsked) {
+            //An update was lost on the way.
+            mPeersAsked = true;
+            mConnection.sendControl(SharedFrame.wrap(FrameCodec.encode(false, mConnection.ID, null, ControlCodes.PEERS, Priority.CONTROL, ByteBuffer.allocate(0)).array()));
+        }
+    }
+
+    private void malformed() {
+        mMetrics.onDecodeFailure();
+        mConnection.record(FlightRecorder.Event.DECODE_FAILURE);
+    }
+}
@@ -0,0 +1,257 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import grioanpier.auth.users.bluetoothframework.io.SharedFrame;
+
+/**
+ * What outlives a connection so it can be resumed after a drop: how many frames went each way and the frames the other
+ * device hasn't acknowledged yet.
+ * <p/>
+ * Frames aren't numbered on the wire. The connections are ordered streams, so both ends count the frames that aren't
+ * control frames and the n-th frame written is the n-th frame read. The counts only travel in the
+ * {@link grioanpier.auth.users.bluetoothframework.wire.ControlCodes#ACK} and in the
+ * {@link grioanpier.auth.users.bluetoothframework.wire.ControlCodes#SESSION} that resumes a connection, after which
+ * only the frames past the count of the other device are written again. Nothing arrives twice.
+ * <p/>
+ * The unacknowledged frames are bounded. Once full, the oldest ones are let go and the other device skips over them
+ * if it needs them on resume.
+ * <p/>
+ * The counts double as credit. Every acknowledgement also says up to which frame the other device may write: what
+ * has been read and handed on, plus the window. A device that is out of credit stops writing, its outbound queue
+ * fills up and its {@link grioanpier.auth.users.bluetoothframework.io.OverflowPolicy} decides, so a fast sender is
+ * held back at its own end instead of flooding the host. Frames past the credit that was given are dropped.
+ */
+class LinkSession {
+
+    static final int DEFAULT_CAPACITY = 256;
+    /**
+     * How many frames are read before they are acknowledged, if the heartbeat doesn't do it first.
+     */
+    static final int ACK_EVERY = 16;
+
+    final long id;
+    private final int mCapacity;
+
+    //Sending side. The frames in mUnacked are numbered up to mNext - 1.
+    private final ArrayDeque<SharedFrame> mUnacked = new ArrayDeque<>();
+    private long mNext = 1;
+    private long mEvicted = 0;
+
+    //Receiving side.
+    private long mReceived = 0;
+    private long mAcked = 0;
+
+    //How many connections have used the session.
+    private int mLinks = 0;
+
+    //Credit. The last frame the other device lets this one write, and the last frame this one let it write.
+    private final int mWindow;
+    private long mPeerLimit = Long.MAX_VALUE;
+    private long mGranted = Long.MAX_VALUE;
+    private boolean mSignalled = false;
+
+    /**
+     * @param window how many frames the other device may write ahead of what this one has read, 0 for no limit
+     */
+    LinkSession(long id, int window) {
+        this(id, window, DEFAULT_CAPACITY);
+    }
+
+    LinkSession(long id, int window, int capacity) {
+        this.id = id;
+        mWindow = window;
+        mCapacity = capacity;
+    }
+
+    /**
+     * @return true if another connection has used the session before
+     */
+    synchronized boolean attach() {
+        return mLinks++ > 0;
+    }
+
+    /**
+     * Keeps a frame until the other device acknowledges it. A reference is handed over, the session releases it.
+     */
+    synchronized void add(SharedFrame frame) {
+        mUnacked.addLast(frame);
+        mNext++;
+        if (mUnacked.size() > mCapacity) {
+            mUnacked.pollFirst().release();
+            mEvicted++;
+        }
+    }
+
+    /**
+     * Lets go of every frame up to the count the other device has read.
+     */
+    synchronized void acknowledge(long count) {
+        while (!mUnacked.isEmpty() && firstUnacked() <= count)
+            mUnacked.pollFirst().release();
+    }
+
+    /**
+     * @param peerReceived how many frames the other device has read
+     * @return the frames it's missing, retained for the caller, oldest first
+     */
+    synchronized List<SharedFrame> replay(long peerReceived) {
+        acknowledge(peerReceived);
+        List<SharedFrame> frames = new ArrayList<>(mUnacked.size());
+        for (SharedFrame frame : mUnacked)
+            frames.add(frame.retain());
+        return frames;
+    }
+
+    /**
+     * @return the number of the oldest frame that is kept, or of the next frame if every frame was acknowledged
+     */
+    synchronized long firstUnacked() {
+        return mNext - mUnacked.size();
+    }
+
+    synchronized int getUnackedCount() {
+        return mUnacked.size();
+    }
+
+    /**
+     * @return how many frames were let go unacknowledged because the session was full
+     */
+    synchronized long getEvicted() {
+        return mEvicted;
+    }
+
+    /**
+     * Counts a frame that was read, unless the other device had no credit for it. A refused frame isn't counted, so it's
+     * neither acknowledged nor held against the credit given next.
+     *
+     * @return false if the other device had no credit for it
+     */
+    synchronized boolean onReceived() {
+        if (mReceived >= mGranted)
+            return false;
+        mReceived++;
+        return true;
+    }
+
+    /**
+     * @return the number of the next frame that is written
+     */
+    synchronized long next() {
+        return mNext;
+    }
+
+    /**
+     * Waits until the other device lets this one write the frame, or until {@link #signal()}.
+     *
+     * @return true if the frame may be written
+     */
+    synchronized boolean awaitCredit(long frame) throws InterruptedException {
+        while (frame > mPeerLimit && !mSignalled)
+            wait();
+        mSignalled = false;
+        return frame <= mPeerLimit;
+    }
+
+    /**
+     * Wakes up whoever waits for credit, there is something else to write meanwhile.
+     */
+    synchronized void signal() {
+        mSignalled = true;
+        notifyAll();
+    }
+
+    /**
+     * The other device lets this one write up to the frame.
+     */
+    synchronized void grant(long limit) {
+        if (limit > mPeerLimit || mPeerLimit == Long.MAX_VALUE) {
+            mPeerLimit = limit;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the last frame the other device may write, given along with the count. -1 if there is no limit.
+     */
+    synchronized long limit() {
+        if (mWindow <= 0)
+            return -1;
+        mGranted = mReceived + mWindow;
+        return mGranted;
+    }
+
+    /**
+     * The other device no longer has the frames before this one, they are skipped.
+     *
+     * @param next the number of the next frame the other device writes
+     */
+    synchronized void skipTo(long next) {
+        if (next - 1 > mReceived) {
+            //The credit that was given moves along, it was meant for the frames that follow.
+            if (mGranted != Long.MAX_VALUE)
+                mGranted += next - 1 - mReceived;
+            mReceived = next - 1;
+        }
+    }
+
+    /**
+     * @param force true to acknowledge even a single frame
+     * @return the count to acknowledge, or -1 if it's not time yet. It's considered acknowledged from now on.
+     */
+    synchronized long ackDue(boolean force) {
+        long pending = mReceived - mAcked;
+        //Soon enough that a small window doesn't stall the other device.
+        int every = mWindow > 0 ? Math.max(1, Math.min(ACK_EVERY, mWindow / 2)) : ACK_EVERY;
+        if (pending == 0 || (!force && pending < every))
+            return -1;
+        mAcked = mReceived;
+        return mReceived;
+    }
+
+    /**
+     * @return how many frames were read, considered acknowledged from now on
+     */
+    synchronized long received() {
+        mAcked = mReceived;
+        return mReceived;
+    }
+
+    /**
+     * Starts over, the other device didn't know the session.
+     */
+    synchronized void reset() {
+        close();
+        mNext = 1;
+        mReceived = 0;
+        mAcked = 0;
+        mPeerLimit = Long.MAX_VALUE;
+        mGranted = Long.MAX_VALUE;
+        notifyAll();
+    }
+
+    /**
+     * Releases every frame that is kept.
+     */
+    synchronized void close() {
+        for (SharedFrame frame : mUnacked)
+            frame.release();
+        mUnacked.clear();
+    }
+}
@@ -0,0 +1,673 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+import grioanpier.auth.users.bluetoothframework.wire.FrameCodec;
+import grioanpier.auth.users.bluetoothframework.wire.PeerIds;
+
+/**
+ * The roster of the session: its devices, the ids they are named by, when they joined and how far they are from the
+ * host. The host gives itself {@link #HOST_ID} and every player the next free id when it joins, and keeps the players
+ * up to date, see {@link ControlCodes#PEERS}. Every change makes a new version of the roster. A player gets the whole
+ * roster when it connects and from then on only what changed since the version it has, so it can resolve any device of
+ * the session on its own. Players only take the roster of their host, so every device names the others the same way.
+ * <p/>
+ * Ids are handed out in turn rather than lowest first, so the id of a device that left isn't given to the next one
+ * while frames addressed to it may still be on their way.
+ * <p/>
+ * What changed is reported to the {@link Listener} in batches rather than device by device, see {@link Changes}.
+ */
+public final class PeerTable implements PeerIds {
+
+    public static final int HOST_ID = 0;
+    private static final int MAX_ID = 0xFF;
+    /**
+     * The version of a roster that was never written.
+     */
+    static final int NO_VERSION = -1;
+    //How many changes the host remembers. A player further behind is written the whole roster again.
+    private static final int HISTORY = 64;
+    //A round trip time is written again once it's this far off, or a quarter of itself if that's more.
+    private static final int RTT_STEP_MILLIS = 10;
+
+    //The kinds of update and of change, see ControlCodes#PEERS.
+    private static final int SNAPSHOT = 0;
+    private static final int CHANGES = 1;
+    private static final int JOINED = 0;
+    private static final int LEFT = 1;
+    private static final int RTT = 2;
+
+    /**
+     * A device of the session.
+     */
+    public static final class Peer {
+        public final int id;
+        public final String address;
+        /**
+         * Null if it isn't known.
+         */
+        public final String name;
+        /**
+         * When it joined the session, by the clock of this device. Off by the time the roster took to get here on
+         * players.
+         */
+        public final long joinedAt;
+        /**
+         * Its smoothed round trip time to the host in milliseconds, -1 until it's known. 0 for the host itself.
+         */
+        public final int rtt;
+        final byte[] addressBytes;
+        final byte[] nameBytes;
+
+        Peer(int id, String address, String name, long joinedAt, int rtt) {
+            this.id = id;
+            this.address = address;
+            this.name = name;
+            this.joinedAt = joinedAt;
+            this.rtt = rtt;
+            addressBytes = address.getBytes(FrameCodec.UTF8);
+            nameBytes = name == null ? new byte[0] : name.getBytes(FrameCodec.UTF8);
+        }
+
+        Peer withRtt(int rtt) {
+            return new Peer(id, address, name, joinedAt, rtt);
+        }
+
+        /**
+         * Two peers are equal if they are the same device under the same id, however far from the host.
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Peer))
+                return false;
+            Peer other = (Peer) o;
+            return id == other.id && address.equals(other.address) && (name == null ? other.name == null : name.equals(other.name));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id + address.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return id + ":" + address + (name == null ? "" : "(" + name + ")") + (rtt < 0 ? "" : " " + rtt + "ms");
+        }
+    }
+
+    public interface Listener {
+        /**
+         * The roster changed. On players it's invoked on the reading thread of the connection to the host, once for
+         * every update the host wrote. On the host it's invoked on a thread of the {@link SocketManager}, once for
+         * every batch of changes it wrote to the players.
+         */
+        void onPeersChanged(Changes changes);
+    }
+
+    /**
+     * What changed in the roster at once.
+     */
+    public static final class Changes {
+        public final int version;
+        public final List<Peer> joined;
+        /**
+         * As they were before they left.
+         */
+        public final List<Peer> left;
+        /**
+         * The devices whose round trip time changed.
+         */
+        public final List<Peer> updated;
+        /**
+         * Every device of the session after the changes, by id.
+         */
+        public final List<Peer> peers;
+
+        Changes(int version, List<Peer> joined, List<Peer> left, List<Peer> updated, List<Peer> peers) {
+            this.version = version;
+            this.joined = Collections.unmodifiableList(joined);
+            this.left = Collections.unmodifiableList(left);
+            this.updated = Collections.unmodifiableList(updated);
+            this.peers = Collections.unmodifiableList(peers);
+        }
+
+        public boolean isEmpty() {
+            return joined.isEmpty() && left.isEmpty() && updated.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "version " + version + ", joined " + joined + ", left " + left + ", updated " + updated;
+        }
+    }
+
+    /**
+     * A change the host made, kept for the players that haven't been written it yet.
+     */
+    private static final class Change {
+        final int version;
+        final int id;
+        final int kind;
+
+        Change(int version, int id, int kind) {
+            this.version = version;
+            this.id = id;
+            this.kind = kind;
+        }
+    }
+
+    private final AtomicReferenceArray<Peer> mById = new AtomicReferenceArray<>(MAX_ID + 1);
+    private final ConcurrentHashMap<String, Peer> mByAddress = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Peer> mByName = new ConcurrentHashMap<>();
+    private volatile int mLocalId = NONE;
+    //The host hands out ids from here on.
+    private int mNext = HOST_ID + 1;
+    private int mVersion = 0;
+    private final ArrayDeque<Change> mHistory = new ArrayDeque<>();
+    //The oldest version the history goes back to.
+    private int mOldest = 0;
+    //What the host changed since it last reported, see reportChanges.
+    private final List<Peer> mJoined = new ArrayList<>();
+    private final List<Peer> mLeft = new ArrayList<>();
+    private final List<Peer> mUpdated = new ArrayList<>();
+    private volatile Listener mListener = null;
+    private volatile Runnable mOnChange = null;
+
+    @Override
+    public int idOf(String address) {
+        Peer peer = address == null ? null : mByAddress.get(address);
+        return peer == null ? NONE : peer.id;
+    }
+
+    @Override
+    public byte[] addressOf(int id) {
+        Peer peer = get(id);
+        return peer == null ? null : peer.addressBytes;
+    }
+
+    /**
+     * @return the device with the id, null if there is none
+     */
+    public Peer get(int id) {
+        return id < 0 || id > MAX_ID ? null : mById.get(id);
+    }
+
+    public Peer byAddress(String address) {
+        return address == null ? null : mByAddress.get(address);
+    }
+
+    /**
+     * @return the device with the name, null if there is none. If several devices have the same name, one of them.
+     */
+    public Peer byName(String name) {
+        return name == null ? null : mByName.get(name);
+    }
+
+    /**
+     * @return the id of this device, {@link PeerIds#NONE} until it has one
+     */
+    public int getLocalId() {
+        return mLocalId;
+    }
+
+    /**
+     * @return every device of the session, by id
+     */
+    public List<Peer> getPeers() {
+        List<Peer> peers = new ArrayList<>();
+        for (int id = 0; id <= MAX_ID; id++) {
+            Peer peer = mById.get(id);
+            if (peer != null)
+                peers.add(peer);
+        }
+        return peers;
+    }
+
+    /**
+     * @return the version of the roster, 0 until it has one
+     */
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param onChange run whenever the host changes the roster, outside of any lock
+     */
+    void setOnChange(Runnable onChange) {
+        mOnChange = onChange;
+    }
+
+    /**
+     * Adds the host itself. Only called on the host.
+     */
+    void setHost(String address, String name) {
+        synchronized (this) {
+            mLocalId = HOST_ID;
+            Peer host = mById.get(HOST_ID);
+            if (host != null && host.address.equals(address))
+                return;
+            if (host != null)
+                left(host);
+            joined(new Peer(HOST_ID, address, name, System.currentTimeMillis(), 0));
+        }
+        changed();
+    }
+
+    /**
+     * Gives a player an id, or the one it already has if it's joining again. Only called on the host.
+     *
+     * @return the player, null if every id is taken
+     */
+    Peer assign(String address, String name) {
+        Peer peer;
+        synchronized (this) {
+            peer = mByAddress.get(address);
+            if (peer != null && (name == null || name.equals(peer.name)))
+                return peer;
+            int id = peer != null ? peer.id : nextFreeId();
+            if (id == NONE)
+                return null;
+            if (peer != null)
+                left(peer);
+            peer = new Peer(id, address, name, System.currentTimeMillis(), -1);
+            joined(peer);
+        }
+        changed();
+        return peer;
+    }
+
+    private int nextFreeId() {
+        for (int i = 0; i < MAX_ID; i++) {
+            int id = mNext;
+            mNext = mNext == MAX_ID ? HOST_ID + 1 : mNext + 1;
+            if (mById.get(id) == null)
+                return id;
+        }
+        return NONE;
+    }
+
+    /**
+     * A player left. Only called on the host.
+     *
+     * @return the player, null if it didn't have an id
+     */
+    Peer remove(String address) {
+        Peer peer;
+        synchronized (this) {
+            peer = mByAddress.get(address);
+            if (peer == null)
+                return null;
+            left(peer);
+        }
+        changed();
+        return peer;
+    }
+
+    /**
+     * The round trip time to a player was measured again. It only makes a change if it moved far enough, so the roster
+     * isn't written to everyone on every heartbeat. Ignored unless this device is the host.
+     */
+    void setRtt(String address, int rtt) {
+        synchronized (this) {
+            Peer peer = mByAddress.get(address);
+            if (mLocalId != HOST_ID || peer == null || peer.id == HOST_ID)
+                return;
+            if (peer.rtt >= 0 && Math.abs(rtt - peer.rtt) < Math.max(RTT_STEP_MILLIS, peer.rtt / 4))
+                return;
+            Peer updated = peer.withRtt(rtt);
+            add(updated);
+            record(updated.id, RTT);
+            int joined = mJoined.indexOf(updated);
+            if (joined >= 0) {
+                mJoined.set(joined, updated);
+            } else {
+                mUpdated.remove(updated);
+                mUpdated.add(updated);
+            }
+        }
+        changed();
+    }
+
+    private void joined(Peer peer) {
+        add(peer);
+        record(peer.id, JOINED);
+        //Back before anyone was told it left.
+        if (!mLeft.remove(peer))
+            mJoined.add(peer);
+    }
+
+    private void left(Peer peer) {
+        forget(peer);
+        record(peer.id, LEFT);
+        mUpdated.remove(peer);
+        //Gone before anyone was told it joined.
+        if (!mJoined.remove(peer))
+            mLeft.add(peer);
+    }
+
+    private void record(int id, int kind) {
+        mVersion++;
+        mHistory.addLast(new Change(mVersion, id, kind));
+        if (mHistory.size() > HISTORY)
+            mOldest = mHistory.removeFirst().version;
+    }
+
+    private void changed() {
+        Runnable onChange = mOnChange;
+        if (onChange != null)
+            onChange.run();
+    }
+
+    private void add(Peer peer) {
+        mById.set(peer.id, peer);
+        mByAddress.put(peer.address, peer);
+        if (peer.name != null)
+            mByName.put(peer.name, peer);
+    }
+
+    private void forget(Peer peer) {
+        mById.compareAndSet(peer.id, peer, null);
+        mByAddress.remove(peer.address, peer);
+        if (peer.name != null)
+            mByName.remove(peer.name, peer);
+    }
+
+    /**
+     * Forgets every device.
+     *
+     * @param report whether to report them as left
+     */
+    void clear(boolean report) {
+        List<Peer> peers;
+        synchronized (this) {
+            peers = getPeers();
+            for (int id = 0; id <= MAX_ID; id++)
+                mById.set(id, null);
+            mByAddress.clear();
+            mByName.clear();
+            mLocalId = NONE;
+            mNext = HOST_ID + 1;
+            mVersion = 0;
+            mHistory.clear();
+            mOldest = 0;
+            mJoined.clear();
+            mLeft.clear();
+            mUpdated.clear();
+        }
+        if (report && !peers.isEmpty())
+            report(new Changes(0, Collections.<Peer>emptyList(), peers, Collections.<Peer>emptyList(), Collections.<Peer>emptyList()));
+    }
+
+    /**
+     * Reports what the host changed since the last time, if anything. Only called on the host, once the changes have
+     * been written to the players.
+     */
+    void reportChanges() {
+        Changes changes;
+        synchronized (this) {
+            if (mJoined.isEmpty() && mLeft.isEmpty() && mUpdated.isEmpty())
+                return;
+            changes = new Changes(mVersion, new ArrayList<>(mJoined), new ArrayList<>(mLeft), new ArrayList<>(mUpdated), getPeers());
+            mJoined.clear();
+            mLeft.clear();
+            mUpdated.clear();
+        }
+        report(changes);
+    }
+
+    private void report(Changes changes) {
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onPeersChanged(changes);
+    }
+
+    /**
+     * Only called on the host.
+     *
+     * @param localId the id of the player the update is written to
+     * @param since   the version the player has, {@link #NO_VERSION} if it has none
+     * @return the payload of a {@link ControlCodes#PEERS} frame that brings the player up to date: what changed since
+     * its version, or the whole roster if it's too far behind. Null if it's up to date.
+     */
+    synchronized ByteBuffer encode(int localId, int since) {
+        if (since == mVersion)
+            return null;
+        long now = System.currentTimeMillis();
+        if (since < mOldest || since > mVersion) {
+            List<Peer> peers = getPeers();
+            int length = 2 + FrameCodec.varintLength(mVersion) + FrameCodec.varintLength(peers.size());
+            for (Peer peer : peers)
+                length += 1 + length(peer, now);
+            ByteBuffer out = ByteBuffer.allocate(length);
+            out.put((byte) SNAPSHOT);
+            FrameCodec.writeVarint(out, mVersion);
+            out.put((byte) localId);
+            FrameCodec.writeVarint(out, peers.size());
+            for (Peer peer : peers) {
+                out.put((byte) peer.id);
+                write(out, peer, now);
+            }
+            out.flip();
+            return out;
+        }
+
+        //Only the last state of every device counts. A device that joined since is written whole.
+        Map<Integer, Boolean> changed = new LinkedHashMap<>();
+        for (Change change : mHistory) {
+            if (change.version <= since)
+                continue;
+            Boolean joined = changed.get(change.id);
+            changed.put(change.id, change.kind == JOINED || (joined != null && joined));
+        }
+        int length = 1 + FrameCodec.varintLength(mVersion) + FrameCodec.varintLength(since) + FrameCodec.varintLength(changed.size());
+        for (Map.Entry<Integer, Boolean> entry : changed.entrySet()) {
+            Peer peer = mById.get(entry.getKey());
+            length += 2;
+            if (peer != null)
+                length += entry.getValue() ? length(peer, now) : FrameCodec.varintLength(peer.rtt + 1);
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.put((byte) CHANGES);
+        FrameCodec.writeVarint(out, mVersion);
+        FrameCodec.writeVarint(out, since);
+        FrameCodec.writeVarint(out, changed.size());
+        for (Map.Entry<Integer, Boolean> entry : changed.entrySet()) {
+            Peer peer = mById.get(entry.getKey());
+            out.put(entry.getKey().byteValue());
+            if (peer == null) {
+                out.put((byte) LEFT);
+            } else if (entry.getValue()) {
+                out.put((byte) JOINED);
+                write(out, peer, now);
+            } else {
+                out.put((byte) RTT);
+                FrameCodec.writeVarint(out, peer.rtt + 1);
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    private static int length(Peer peer, long now) {
+        return FrameCodec.varintLength(peer.addressBytes.length) + peer.addressBytes.length
+                + FrameCodec.varintLength(peer.nameBytes.length) + peer.nameBytes.length
+                + FrameCodec.varintLength(age(peer, now)) + FrameCodec.varintLength(peer.rtt + 1);
+    }
+
+    private static void write(ByteBuffer out, Peer peer, long now) {
+        FrameCodec.writeVarint(out, peer.addressBytes.length);
+        out.put(peer.addressBytes);
+        FrameCodec.writeVarint(out, peer.nameBytes.length);
+        out.put(peer.nameBytes);
+        FrameCodec.writeVarint(out, age(peer, now));
+        FrameCodec.writeVarint(out, peer.rtt + 1);
+    }
+
+    //Written instead of the time it joined, so the clocks of the devices don't have to agree.
+    private static int age(Peer peer, long now) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, now - peer.joinedAt));
+    }
+
+    /**
+     * @param payload of a {@link ControlCodes#PEERS} frame
+     * @return the version of the roster it brings its player to
+     */
+    static int versionOf(ByteBuffer payload) {
+        ByteBuffer in = payload.duplicate();
+        in.get();
+        return FrameCodec.readVarint(in);
+    }
+
+    /**
+     * Brings the roster up to date with an update the host wrote, and reports what changed. Only called on players.
+     *
+     * @return false if the update was meant for another version than this one, in which case the player needs the
+     * whole roster again
+     * @throws IllegalArgumentException if the payload is malformed. The roster is left as it was.
+     */
+    boolean update(ByteBuffer payload) {
+        Changes changes;
+        synchronized (this) {
+            try {
+                changes = apply(payload.duplicate(), System.currentTimeMillis());
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated roster", e);
+            }
+        }
+        if (changes == null)
+            return false;
+        if (!changes.isEmpty())
+            report(changes);
+        return true;
+    }
+
+    private Changes apply(ByteBuffer in, long now) {
+        int kind = in.get();
+        int version = FrameCodec.readVarint(in);
+        List<Peer> joined = new ArrayList<>();
+        List<Peer> left = new ArrayList<>();
+        List<Peer> updated = new ArrayList<>();
+        if (kind == SNAPSHOT) {
+            int localId = in.get() & 0xFF;
+            int count = FrameCodec.readVarint(in);
+            List<Peer> peers = new ArrayList<>();
+            for (int i = 0; i < count; i++)
+                peers.add(read(in, in.get() & 0xFF, now));
+            //The devices that didn't change stay resolvable meanwhile.
+            for (Peer peer : getPeers()) {
+                if (!peers.contains(peer)) {
+                    forget(peer);
+                    left.add(peer);
+                }
+            }
+            for (Peer peer : peers)
+                put(peer, joined, left, updated);
+            mLocalId = localId;
+        } else if (kind == CHANGES) {
+            if (FrameCodec.readVarint(in) != mVersion)
+                return null;
+            int count = FrameCodec.readVarint(in);
+            //Read whole before anything is changed.
+            int[] ids = new int[count];
+            int[] kinds = new int[count];
+            Peer[] peers = new Peer[count];
+            int[] rtts = new int[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = in.get() & 0xFF;
+                kinds[i] = in.get();
+                if (kinds[i] == JOINED)
+                    peers[i] = read(in, ids[i], now);
+                else if (kinds[i] == RTT)
+                    rtts[i] = FrameCodec.readVarint(in) - 1;
+                else if (kinds[i] != LEFT)
+                    throw new IllegalArgumentException("Unknown change to the roster " + kinds[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                Peer current = mById.get(ids[i]);
+                if (kinds[i] == JOINED) {
+                    put(peers[i], joined, left, updated);
+                } else if (current != null && kinds[i] == LEFT) {
+                    forget(current);
+                    left.add(current);
+                } else if (current != null && current.rtt != rtts[i]) {
+                    Peer peer = current.withRtt(rtts[i]);
+                    add(peer);
+                    updated.add(peer);
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown kind of roster update " + kind);
+        }
+        mVersion = version;
+        return new Changes(version, joined, left, updated, getPeers());
+    }
+
+    /**
+     * Adds a device the host wrote, in place of whatever had its id or address.
+     */
+    private void put(Peer peer, List<Peer> joined, List<Peer> left, List<Peer> updated) {
+        Peer current = mById.get(peer.id);
+        if (peer.equals(current)) {
+            if (current.rtt != peer.rtt) {
+                //Keeps the time it joined as this device first saw it.
+                Peer changed = current.withRtt(peer.rtt);
+                add(changed);
+                updated.add(changed);
+            }
+            return;
+        }
+        for (Peer replaced : new Peer[]{current, mByAddress.get(peer.address)}) {
+            if (replaced != null && mById.get(replaced.id) == replaced) {
+                forget(replaced);
+                left.add(replaced);
+            }
+        }
+        add(peer);
+        joined.add(peer);
+    }
+
+    private static Peer read(ByteBuffer in, int id, long now) {
+        String address = string(in);
+        String name = string(in);
+        int age = FrameCodec.readVarint(in);
+        int rtt = FrameCodec.readVarint(in) - 1;
+        return new Peer(id, address, name.isEmpty() ? null : name, now - Math.max(0, age), rtt);
+    }
+
+    private static String string(ByteBuffer in) {
+        int length = FrameCodec.readVarint(in);
+        if (length < 0 || length > in.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, FrameCodec.UTF8);
+    }
+}
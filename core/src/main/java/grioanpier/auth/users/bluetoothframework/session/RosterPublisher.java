@@ -0,0 +1,123 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import grioanpier.auth.users.bluetoothframework.routing.FrameRouter;
+
+/**
+ * Keeps the roster of the session, see {@link PeerTable}. The host adds the players that join and removes the ones
+ * that leave, and the changes it makes within {@link #BATCH_MILLIS} of each other are written to every player at once,
+ * then reported. Players follow the roster their host writes, see {@link LinkControl}. What a device that left the
+ * roster had sent of fragmented messages is discarded.
+ */
+class RosterPublisher {
+
+    /**
+     * Runs the publisher later, on a thread of the manager's.
+     */
+    interface Scheduler {
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    //The changes the host makes to the roster within this long of each other are written to the players at once.
+    static final long BATCH_MILLIS = 50;
+
+    private final PeerTable mPeers;
+    private final Map<String, ConnectedThread> mConnections;
+    private final FrameRouter mRouter;
+    private final Scheduler mScheduler;
+    private final AtomicBoolean mPending = new AtomicBoolean();
+    private volatile PeerTable.Listener mListener = null;
+
+    /**
+     * @param connections the connections the roster is written to. Read on every batch.
+     */
+    RosterPublisher(PeerTable peers, Map<String, ConnectedThread> connections, FrameRouter router, Scheduler scheduler) {
+        mPeers = peers;
+        mConnections = connections;
+        mRouter = router;
+        mScheduler = scheduler;
+        peers.setListener(new PeerTable.Listener() {
+            @Override
+            public void onPeersChanged(PeerTable.Changes changes) {
+                //Players only hear of the others leaving through the roster. A device that was renamed is both.
+                for (PeerTable.Peer peer : changes.left)
+                    if (mPeers.idOf(peer.address) == PeerTable.NONE)
+                        mRouter.discardFragments(peer.address);
+                PeerTable.Listener listener = mListener;
+                if (listener != null)
+                    listener.onPeersChanged(changes);
+            }
+        });
+        peers.setOnChange(new Runnable() {
+            @Override
+            public void run() {
+                if (mPending.compareAndSet(false, true))
+                    mScheduler.schedule(mPublish, BATCH_MILLIS);
+            }
+        });
+    }
+
+    /**
+     * Sets who is told of the changes, in batches.
+     */
+    void setListener(PeerTable.Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Adds a player that joins to the roster, with the id it had if it's resuming, and writes it the whole roster. The
+     * player gets it before anything else, so it can read the frames that name devices by id from the start. The other
+     * players are written the change with the next batch.
+     *
+     * @param host the address of this device, the host
+     */
+    void joined(ConnectedThread thread, String host) {
+        mPeers.setHost(host, null);
+        //Out of ids, it's named by its address.
+        if (mPeers.assign(thread.ID, thread.getRemoteName()) != null)
+            thread.syncPeers();
+    }
+
+    /**
+     * Removes a player that left from the roster, or every device if the host left, along with what they left of
+     * fragmented messages.
+     *
+     * @param isHost true if this device is the host
+     */
+    void left(String address, boolean wasHost, boolean isHost) {
+        mRouter.discardFragments(wasHost ? null : address);
+        if (wasHost)
+            mPeers.clear(true);
+        else if (isHost)
+            mPeers.remove(address);
+    }
+
+    /**
+     * Writes every player what changed in the roster since it was last written, then reports the batch.
+     */
+    private final Runnable mPublish = new Runnable() {
+        @Override
+        public void run() {
+            mPending.set(false);
+            for (ConnectedThread thread : mConnections.values())
+                thread.syncPeers();
+            mPeers.reportChanges();
+        }
+    };
+}
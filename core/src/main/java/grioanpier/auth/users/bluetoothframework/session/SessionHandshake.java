@@ -0,0 +1,229 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+import grioanpier.auth.users.bluetoothframework.io.SharedFrame;
+import grioanpier.auth.users.bluetoothframework.trace.FlightRecorder;
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+import grioanpier.auth.users.bluetoothframework.wire.WireFormat;
+
+/**
+ * Opens or resumes the {@link LinkSession} of a connection. The player writes the session it has, the host looks it up
+ * and answers with the one it resumed or started, and both say what they read. The writer of the connection writes
+ * nothing else until it's done, so the frames the other device missed come first.
+ */
+class SessionHandshake {
+
+    interface Resolver {
+        /**
+         * The other device opened or resumed a session. Invoked once, on the reading thread.
+         *
+         * @return the session to resume, or a new one with the id
+         */
+        LinkSession resolve(ConnectedThread thread, long id);
+    }
+
+    /**
+     * How long a new connection waits for the other device to open or resume a session before going on without one.
+     * Devices that run an older version of the framework never do.
+     */
+    static final long TIMEOUT_MS = 1000;
+
+    //What a device reads, said in the handshake.
+    static final int FEATURE_COMPRESSION = 1;
+    static final int FEATURE_PEER_IDS = 2;
+    static final int FEATURE_LANES = 4;
+
+    private final ConnectedThread mConnection;
+    //Null if the connection has none.
+    private volatile LinkSession mSession = null;
+    private Resolver mResolver = null;
+    private final CountDownLatch mOpened = new CountDownLatch(1);
+    private volatile long mPeerReceived;
+    private volatile boolean mResumed;
+    //What this device reads. Every device of this version reads lanes.
+    private int mFeatures = FEATURE_LANES;
+    //What the other device said it reads. Nothing until it says.
+    private volatile int mPeerFeatures = 0;
+
+    SessionHandshake(ConnectedThread connection) {
+        mConnection = connection;
+    }
+
+    /**
+     * The connection opens the session with the host, or resumes it. Must be called before the connection is started.
+     */
+    void open(LinkSession session) {
+        mSession = session;
+    }
+
+    /**
+     * The connection waits for the player to open or resume a session. Must be called before the connection is started.
+     */
+    void accept(Resolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Says in the handshake that this device reads one more feature. Must be called before the connection is started.
+     */
+    void offer(int feature) {
+        mFeatures |= feature;
+    }
+
+    /**
+     * @return true if the other device said it reads the feature
+     */
+    boolean peerReads(int feature) {
+        return (mPeerFeatures & feature) != 0;
+    }
+
+    /**
+     * @return the session of the connection, null if it has none (yet)
+     */
+    LinkSession getSession() {
+        return mSession;
+    }
+
+    /**
+     * The other device ended the session on purpose.
+     */
+    void end() {
+        LinkSession session = mSession;
+        mSession = null;
+        if (session != null)
+            session.close();
+    }
+
+    /**
+     * The other device opened or resumed the session. On the host the session is looked up and only then answered,
+     * by the writer; on a player it's the answer, which says whether the host still had the session.
+     *
+     * @return false if the payload is malformed
+     */
+    boolean onSession(String payload) {
+        if (mOpened.getCount() == 0)
+            return true;
+        long id, received, next, limit;
+        boolean resumed;
+        int features;
+        try {
+            String[] fields = payload.split(":");
+            id = Long.parseLong(fields[0]);
+            received = Long.parseLong(fields[1]);
+            next = Long.parseLong(fields[2]);
+            resumed = "1".equals(fields[3]);
+            limit = fields.length > 4 ? Long.parseLong(fields[4]) : -1;
+            //Older devices don't say, and read none of them.
+            features = fields.length > 5 ? Integer.parseInt(fields[5]) : 0;
+        } catch (RuntimeException e) {
+            return false;
+        }
+        mPeerFeatures = features;
+
+        LinkSession session = mSession;
+        if (session == null) {
+            if (mResolver == null)
+                return true;
+            session = mResolver.resolve(mConnection, id);
+            resumed = session.attach();
+            //A new session starts counting from scratch on both ends, whatever the player counted before.
+            if (resumed)
+                session.skipTo(next);
+            else
+                received = 0;
+            mSession = session;
+        } else {
+            if (id != session.id)
+                return true;
+            if (!resumed)
+                session.reset();
+            session.skipTo(next);
+        }
+        if (limit >= 0)
+            session.grant(limit);
+        mResumed = resumed;
+        mPeerReceived = received;
+        mOpened.countDown();
+        return true;
+    }
+
+    /**
+     * Opens or resumes the session, then writes again what the other device missed. Only called on the writer thread,
+     * before it writes anything else.
+     */
+    void perform() throws IOException, InterruptedException {
+        //The host may have resolved the session already, the role is told by the resolver.
+        LinkSession session = mSession;
+        boolean player = mResolver == null;
+        if (player && session == null)
+            return;
+        if (player)
+            write(frame(session, false));
+        if (!mOpened.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            //An older device, the connection goes on without a session.
+            mSession = null;
+            return;
+        }
+        session = mSession;
+        //Ended already.
+        if (session == null)
+            return;
+        if (!player)
+            write(frame(session, mResumed));
+
+        List<SharedFrame> replay = session.replay(mPeerReceived);
+        long next = session.firstUnacked();
+        Exception failure = null;
+        for (SharedFrame frame : replay) {
+            try {
+                if (failure == null) {
+                    mConnection.awaitCredit(session, next++);
+                    mConnection.writeFrame(frame);
+                }
+            } catch (IOException | InterruptedException e) {
+                failure = e;
+            } finally {
+                frame.release();
+            }
+        }
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure != null)
+            throw (InterruptedException) failure;
+        if (mResumed)
+            mConnection.record(FlightRecorder.Event.SESSION_RESUMED, replay.size());
+    }
+
+    private SharedFrame frame(LinkSession session, boolean resumed) {
+        String payload = session.id + ":" + session.received() + ":" + session.firstUnacked() + ":" + (resumed ? 1 : 0) + ":" + session.limit()
+                + ":" + mFeatures;
+        return SharedFrame.wrap(new BluetoothMessage(false, mConnection.ID, null, ControlCodes.SESSION, payload).toBytes(WireFormat.BINARY));
+    }
+
+    private void write(SharedFrame frame) throws IOException {
+        try {
+            mConnection.writeFrame(frame);
+        } finally {
+            frame.release();
+        }
+    }
+}
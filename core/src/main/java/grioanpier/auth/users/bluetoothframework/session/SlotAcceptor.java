@@ -0,0 +1,378 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import grioanpier.auth.users.bluetoothframework.io.QueueOverflowException;
+import grioanpier.auth.users.bluetoothframework.transport.Transport;
+import grioanpier.auth.users.bluetoothframework.transport.TransportServerSocket;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+
+/**
+ * Listens on every free slot at once, so players joining together are accepted together instead of one after the
+ * other. A slot stops listening as soon as a player connects on it, which also stops it from being advertised, and
+ * listens again once that player is {@link #release released}. The slots come from a {@link SlotAllocator}.
+ * <p/>
+ * With a lobby, players can also join when every slot is taken: the lobby always listens, and those who connect on
+ * it wait in the admission queue of the allocator until a player leaves. Their connection stays open but isn't
+ * read from until they are admitted.
+ */
+public class SlotAcceptor {
+
+    public interface Callback {
+        /**
+         * Invoked as soon as a player connects on a slot, or is admitted from the lobby.
+         *
+         * @return false if the connection couldn't be used. The slot is freed right away.
+         */
+        boolean onAccepted(TransportSocket socket, UUID slot);
+
+        /**
+         * The slot, or the lobby, couldn't listen or stopped listening on its own. A slot is retried once a player
+         * leaves or the acceptor is started again.
+         */
+        void onListenFailed(UUID slot, IOException e);
+    }
+
+    private final Transport mTransport;
+    private final Callback mCallback;
+    //Those waiting in the lobby are represented by their socket.
+    private final SlotAllocator<TransportSocket> mAllocator;
+    private final UUID mLobby;
+
+    //Everything below is guarded by this.
+    private final Map<UUID, Acceptor> mListening = new HashMap<>();
+    //The slot every connected player took, by address.
+    private final Map<String, UUID> mTaken = new HashMap<>();
+    private Lobby mLobbyAcceptor = null;
+    private boolean mRunning = false;
+
+    public SlotAcceptor(Transport transport, Collection<UUID> slots, Callback callback) {
+        this(transport, slots, null, SlotAllocator.DEFAULT_QUEUE_CAPACITY, callback);
+    }
+
+    /**
+     * @param slots             the slots players connect on
+     * @param lobby             where players connect when every slot is taken, null for none
+     * @param admissionCapacity how many players may wait in the lobby. The rest are turned away.
+     */
+    public SlotAcceptor(Transport transport, Collection<UUID> slots, UUID lobby, int admissionCapacity, Callback callback) {
+        mTransport = transport;
+        mCallback = callback;
+        mAllocator = new SlotAllocator<>(slots, admissionCapacity);
+        mLobby = lobby;
+    }
+
+    /**
+     * Starts listening on every free slot, and on the lobby.
+     */
+    public synchronized void start() {
+        mRunning = true;
+        listenOnFreeSlots();
+        if (mLobby != null && mLobbyAcceptor == null) {
+            mLobbyAcceptor = new Lobby();
+            mLobbyAcceptor.start();
+        }
+    }
+
+    /**
+     * Stops listening and turns away whoever waits in the lobby. The players that are connected keep their slots.
+     */
+    public void stop() {
+        List<TransportSocket> turnedAway;
+        synchronized (this) {
+            mRunning = false;
+            turnedAway = mAllocator.clearQueue();
+            if (mLobbyAcceptor != null)
+                mLobbyAcceptor.cancel();
+            mLobbyAcceptor = null;
+            for (Acceptor acceptor : mListening.values()) {
+                acceptor.cancel();
+                mAllocator.release(acceptor.slot);
+            }
+            mListening.clear();
+        }
+        for (TransportSocket socket : turnedAway)
+            close(socket);
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Gives the slot of a player back, once it has disconnected. The first in the lobby gets it, if anyone waits.
+     *
+     * @return false if the player had no slot
+     */
+    public boolean release(String address) {
+        List<Admission> admissions = new ArrayList<>();
+        synchronized (this) {
+            UUID slot = mTaken.remove(address);
+            if (slot == null)
+                return false;
+            giveBack(slot, true, admissions);
+        }
+        admit(admissions);
+        return true;
+    }
+
+    /**
+     * @return the slot the player connected on, null if none
+     */
+    public synchronized UUID getSlot(String address) {
+        return mTaken.get(address);
+    }
+
+    /**
+     * @return the slots that are listening right now
+     */
+    public synchronized Set<UUID> getListeningSlots() {
+        return new LinkedHashSet<>(mListening.keySet());
+    }
+
+    /**
+     * @return how many slots no player has taken
+     */
+    public synchronized int getFreeSlotCount() {
+        return mAllocator.getCapacity() - mTaken.size();
+    }
+
+    /**
+     * @return how many players wait in the lobby
+     */
+    public int getQueueLength() {
+        return mAllocator.getQueueLength();
+    }
+
+    private void listenOnFreeSlots() {
+        UUID slot;
+        while ((slot = mAllocator.acquire()) != null) {
+            Acceptor acceptor = new Acceptor(slot);
+            mListening.put(slot, acceptor);
+            acceptor.start();
+        }
+    }
+
+    /**
+     * Hands a slot to the first in the lobby, or frees it.
+     *
+     * @param relisten if the slot is freed, whether to listen on it again
+     */
+    private void giveBack(UUID slot, boolean relisten, List<Admission> admissions) {
+        TransportSocket waiter = mAllocator.release(slot);
+        if (waiter != null)
+            take(waiter, slot, admissions);
+        else if (relisten && mRunning)
+            listenOnFreeSlots();
+    }
+
+    private void take(TransportSocket socket, UUID slot, List<Admission> admissions) {
+        UUID previous = mTaken.put(socket.getRemoteAddress(), slot);
+        //The same player again, before its previous connection was noticed to be lost.
+        if (previous != null && !previous.equals(slot))
+            giveBack(previous, true, admissions);
+        admissions.add(new Admission(socket, slot));
+    }
+
+    /**
+     * Invoked without holding the lock, since the callback may take a while.
+     */
+    private void admit(List<Admission> admissions) {
+        for (Admission admission : admissions) {
+            if (!mCallback.onAccepted(admission.socket, admission.slot))
+                release(admission.socket.getRemoteAddress());
+        }
+    }
+
+    private void onAccepted(Acceptor acceptor, TransportSocket socket) {
+        List<Admission> admissions = new ArrayList<>();
+        synchronized (this) {
+            //Cancelled in the meantime, the slot has already been dealt with.
+            if (mListening.get(acceptor.slot) != acceptor) {
+                close(socket);
+                return;
+            }
+            mListening.remove(acceptor.slot);
+            take(socket, acceptor.slot, admissions);
+        }
+        admit(admissions);
+    }
+
+    private void onFailed(Acceptor acceptor, IOException e) {
+        List<Admission> admissions = new ArrayList<>();
+        synchronized (this) {
+            if (mListening.get(acceptor.slot) != acceptor)
+                return;
+            mListening.remove(acceptor.slot);
+            //Not listened on again right away, whatever broke it probably still is.
+            giveBack(acceptor.slot, false, admissions);
+        }
+        mCallback.onListenFailed(acceptor.slot, e);
+        admit(admissions);
+    }
+
+    private void onJoinedLobby(TransportSocket socket) {
+        List<Admission> admissions = new ArrayList<>();
+        synchronized (this) {
+            if (!mRunning) {
+                close(socket);
+                return;
+            }
+            Iterator<Acceptor> listening = mListening.values().iterator();
+            if (listening.hasNext()) {
+                //A slot is free after all, it's just listening. The player takes it over.
+                Acceptor acceptor = listening.next();
+                listening.remove();
+                acceptor.cancel();
+                take(socket, acceptor.slot, admissions);
+            } else {
+                try {
+                    UUID slot = mAllocator.acquire(socket);
+                    if (slot != null)
+                        take(socket, slot, admissions);
+                } catch (QueueOverflowException e) {
+                    close(socket);
+                }
+            }
+        }
+        admit(admissions);
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static class Admission {
+        final TransportSocket socket;
+        final UUID slot;
+
+        Admission(TransportSocket socket, UUID slot) {
+            this.socket = socket;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * Listens on a server socket until cancelled.
+     */
+    private abstract class Listening extends Thread {
+        final UUID slot;
+        private TransportServerSocket mServerSocket;
+        private boolean mCancelled = false;
+
+        Listening(UUID slot) {
+            super("SlotAcceptor-" + slot);
+            this.slot = slot;
+            setDaemon(true);
+        }
+
+        /**
+         * @return the server socket, null if cancelled first
+         */
+        TransportServerSocket open() throws IOException {
+            TransportServerSocket serverSocket = mTransport.listen(slot);
+            synchronized (this) {
+                if (mCancelled) {
+                    close(serverSocket);
+                    return null;
+                }
+                mServerSocket = serverSocket;
+            }
+            return serverSocket;
+        }
+
+        synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mServerSocket != null)
+                close(mServerSocket);
+        }
+    }
+
+    /**
+     * Accepts a single player on a slot.
+     */
+    private class Acceptor extends Listening {
+
+        Acceptor(UUID slot) {
+            super(slot);
+        }
+
+        @Override
+        public void run() {
+            TransportServerSocket serverSocket;
+            TransportSocket socket;
+            try {
+                serverSocket = open();
+                if (serverSocket == null)
+                    return;
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                //Closing the server socket is how an acceptor is cancelled, in which case it's no longer listening.
+                onFailed(this, e);
+                return;
+            }
+            close(serverSocket);
+            onAccepted(this, socket);
+        }
+    }
+
+    /**
+     * Accepts players on the lobby until cancelled.
+     */
+    private class Lobby extends Listening {
+
+        Lobby() {
+            super(mLobby);
+        }
+
+        @Override
+        public void run() {
+            try {
+                TransportServerSocket serverSocket = open();
+                if (serverSocket == null)
+                    return;
+                while (!isCancelled())
+                    onJoinedLobby(serverSocket.accept());
+            } catch (IOException e) {
+                if (!isCancelled()) {
+                    synchronized (SlotAcceptor.this) {
+                        if (mLobbyAcceptor == this)
+                            mLobbyAcceptor = null;
+                    }
+                    mCallback.onListenFailed(slot, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import grioanpier.auth.users.bluetoothframework.io.QueueOverflowException;
+
+/**
+ * Hands out the slots of the host and takes them back, both in constant time. When every slot is in use, those who
+ * ask for one can wait in line and are handed the next slot that is released, in the order they asked.
+ * <p/>
+ * Thread safe. Waiters are handed over as the return value of {@link #release(UUID)}, so nothing is invoked while
+ * the allocator is locked.
+ *
+ * @param <W> whatever represents those waiting for a slot
+ */
+public class SlotAllocator<W> {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+    private final UUID[] mSlots;
+    private final Map<UUID, Integer> mIndices;
+    //A stack of the indices of the free slots, so the most recently released slot is handed out first.
+    private final int[] mFree;
+    private int mFreeCount;
+    private final boolean[] mInUse;
+    private final ArrayDeque<W> mWaiters = new ArrayDeque<>();
+    private final int mQueueCapacity;
+
+    public SlotAllocator(Collection<UUID> slots) {
+        this(slots, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param slots         every slot there is. Initially all of them are free and handed out in this order.
+     * @param queueCapacity how many may wait for a slot at once
+     */
+    public SlotAllocator(Collection<UUID> slots, int queueCapacity) {
+        mSlots = slots.toArray(new UUID[slots.size()]);
+        mIndices = new HashMap<>(mSlots.length * 2);
+        mFree = new int[mSlots.length];
+        mInUse = new boolean[mSlots.length];
+        for (int i = 0; i < mSlots.length; i++) {
+            if (mIndices.put(mSlots[i], i) != null)
+                throw new IllegalArgumentException("Duplicate slot " + mSlots[i]);
+            mFree[mSlots.length - 1 - i] = i;
+        }
+        mFreeCount = mSlots.length;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * @return a free slot, null if every slot is in use
+     */
+    public synchronized UUID acquire() {
+        if (mFreeCount == 0)
+            return null;
+        int index = mFree[--mFreeCount];
+        mInUse[index] = true;
+        return mSlots[index];
+    }
+
+    /**
+     * Like {@link #acquire()}, except that if every slot is in use, the waiter is queued for the next slot that is
+     * released.
+     *
+     * @return a free slot, null if the waiter was queued
+     * @throws QueueOverflowException if every slot is in use and the queue is full. The waiter isn't queued.
+     */
+    public synchronized UUID acquire(W waiter) {
+        UUID slot = acquire();
+        if (slot != null)
+            return slot;
+        if (mWaiters.size() >= mQueueCapacity)
+            throw new QueueOverflowException("The admission queue is full");
+        mWaiters.addLast(waiter);
+        return null;
+    }
+
+    /**
+     * Gives a slot back. If anyone is waiting, the slot goes straight to the first in line, and stays in use.
+     *
+     * @return the waiter that now owns the slot, null if the slot is free again
+     * @throws IllegalArgumentException if the slot isn't one of this allocator's or isn't in use
+     */
+    public synchronized W release(UUID slot) {
+        Integer index = mIndices.get(slot);
+        if (index == null)
+            throw new IllegalArgumentException("Unknown slot " + slot);
+        if (!mInUse[index])
+            throw new IllegalArgumentException("Slot " + slot + " isn't in use");
+        W waiter = mWaiters.pollFirst();
+        if (waiter != null)
+            return waiter;
+        mInUse[index] = false;
+        mFree[mFreeCount++] = index;
+        return null;
+    }
+
+    /**
+     * Takes a waiter out of the queue.
+     *
+     * @return false if it wasn't waiting
+     */
+    public synchronized boolean cancel(W waiter) {
+        return mWaiters.remove(waiter);
+    }
+
+    /**
+     * Empties the queue.
+     *
+     * @return those who were waiting, first in line first
+     */
+    public synchronized List<W> clearQueue() {
+        List<W> waiters = new ArrayList<>(mWaiters);
+        mWaiters.clear();
+        return waiters;
+    }
+
+    public synchronized boolean isInUse(UUID slot) {
+        Integer index = mIndices.get(slot);
+        return index != null && mInUse[index];
+    }
+
+    public synchronized int getFreeCount() {
+        return mFreeCount;
+    }
+
+    public synchronized int getQueueLength() {
+        return mWaiters.size();
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+}
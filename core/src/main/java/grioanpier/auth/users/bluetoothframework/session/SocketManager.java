@@ -0,0 +1,1215 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+import grioanpier.auth.users.bluetoothframework.io.BufferPool;
+import grioanpier.auth.users.bluetoothframework.io.OverflowPolicy;
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+import grioanpier.auth.users.bluetoothframework.io.QueueOverflowException;
+import grioanpier.auth.users.bluetoothframework.io.SharedFrame;
+import grioanpier.auth.users.bluetoothframework.metrics.TrafficMetrics;
+import grioanpier.auth.users.bluetoothframework.routing.FrameRouter;
+import grioanpier.auth.users.bluetoothframework.stream.VirtualStream;
+import grioanpier.auth.users.bluetoothframework.stream.VirtualStreams;
+import grioanpier.auth.users.bluetoothframework.trace.FlightRecorder;
+import grioanpier.auth.users.bluetoothframework.trace.MessageTracer;
+import grioanpier.auth.users.bluetoothframework.transfer.BlobTransfers;
+import grioanpier.auth.users.bluetoothframework.transport.Transport;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+import grioanpier.auth.users.bluetoothframework.wire.Compression;
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+import grioanpier.auth.users.bluetoothframework.wire.FrameCodec;
+import grioanpier.auth.users.bluetoothframework.wire.FrameHeader;
+import grioanpier.auth.users.bluetoothframework.wire.WireFormat;
+
+/**
+ * Keeps every connection of this device and sends messages through them. It has no dependency on Android, the
+ * SocketManagerService of the app is a thin wrapper around it that delivers the events to the Handlers.
+ * <p/>
+ * The events of the {@link Listener} are delivered on the reading thread of the connection they concern, except for
+ * connections found dead by their heartbeats, which are reported on the heartbeat thread, and sessions that weren't
+ * resumed in time.
+ * <p/>
+ * Binary connections carry a session (see {@link LinkSession}). When one drops, it's held for the
+ * {@link #setResumeWindow resume window} instead of being reported: the player reconnects through its
+ * {@link Reconnector}, the frames sent meanwhile are kept and only the ones the other end missed are written again.
+ * A drop that is resumed in time is never reported.
+ * <p/>
+ * Every message goes in a lane, by its {@link Priority}: the one it was sent with, or the one of its app code. Each
+ * connection writes the lanes by priority and cuts long messages in fragments, so a large transfer doesn't hold back
+ * the rest.
+ * <p/>
+ * Files are sent with {@link #sendBlob}, in chunks that go in the {@link Priority#BULK} lane, see {@link BlobTransfers}.
+ * Directly connected devices can also open any number of {@link #openStream streams} over their connection.
+ */
+public class SocketManager {
+
+    /**
+     * What the manager needs to know about the device it runs on.
+     */
+    public interface LocalDevice {
+        boolean isHost();
+
+        /**
+         * @return the address other devices know this device by
+         */
+        String getAddress();
+    }
+
+    public interface Listener {
+        /**
+         * A message meant for this device arrived, or this device sent a global message while being the host.
+         */
+        void onMessage(BluetoothMessage message);
+
+        /**
+         * A player connected through {@link #startAccepting}. It's already been added.
+         *
+         * @param name the name of the player, null if it isn't known
+         */
+        void onPlayerConnected(String address, String name);
+
+        /**
+         * A connection was lost. It has already been removed.
+         *
+         * @param address the address of the device that left
+         * @param name    the name of the device that left, null if it wasn't known
+         * @param wasHost true if the device was the host
+         */
+        void onDisconnected(String address, String name, boolean wasHost);
+    }
+
+    /**
+     * Connects a player to its host again after their connection dropped, so the session can be resumed.
+     */
+    public interface Reconnector {
+        /**
+         * Invoked on a thread of its own, again and again until it succeeds or the resume window is over.
+         *
+         * @param hostAddress the address of the host that was lost
+         * @return a socket connected to the host
+         * @throws IOException if the host couldn't be reached this time
+         */
+        TransportSocket reconnect(String hostAddress) throws IOException;
+    }
+
+    private final LocalDevice mLocalDevice;
+    private final Listener mListener;
+
+    private volatile TransportSocket hostSocket = null;
+    private final ConcurrentSkipListMap<String, TransportSocket> playerSockets = new ConcurrentSkipListMap<>();
+    //Read by the reading thread of every connection while routing, so it has to be safe for concurrent use.
+    private final ConcurrentSkipListMap<String, ConnectedThread> connectedThreads = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, String> connectedDevicesNames = new ConcurrentHashMap<>();
+
+    private final FrameRouter router;
+    private final BlobTransfers transfers;
+    private final VirtualStreams streams;
+
+    private volatile SlotAcceptor acceptor = null;
+
+    public static final long DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 1000;
+    public static final long DEFAULT_HEARTBEAT_TIMEOUT_MILLIS = 5000;
+    private final HeartbeatMonitor heartbeatMonitor = new HeartbeatMonitor(connectedThreads);
+    private long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL_MILLIS;
+    private long heartbeatTimeout = DEFAULT_HEARTBEAT_TIMEOUT_MILLIS;
+    private volatile int admissionQueueCapacity = SlotAllocator.DEFAULT_QUEUE_CAPACITY;
+
+    public static final long DEFAULT_RESUME_WINDOW_MILLIS = 10000;
+    //Between the attempts to reconnect to the host, doubled every time up to the maximum.
+    private static final long RECONNECT_BACKOFF_MILLIS = 50;
+    private static final long RECONNECT_BACKOFF_MAX_MILLIS = 1000;
+    private volatile long resumeWindow = DEFAULT_RESUME_WINDOW_MILLIS;
+    private volatile Reconnector reconnector = null;
+    //The connections that dropped but may be resumed. They stay in connectedThreads meanwhile, so what is sent to them is kept.
+    private final ConcurrentHashMap<String, ConnectedThread> suspended = new ConcurrentHashMap<>();
+    //Expires held sessions and writes the roster, on a single daemon thread.
+    private ScheduledExecutorService timer = null;
+    private static final Random sessionIds = new Random();
+
+    public static final int DEFAULT_CREDIT_WINDOW = 64;
+    private volatile int creditWindow = DEFAULT_CREDIT_WINDOW;
+
+    /**
+     * Synchronization locks to be used by the write methods in order to avoid possible messages that are sent the same time
+     * and things mess up. One per lane, so a message that waits for room in its lane doesn't hold back the other lanes.
+     */
+    private final Object[] Write_Locks = new Object[Priority.values().length];
+
+    //The lanes of the app codes that don't go in the INTERACTIVE one.
+    private final ConcurrentHashMap<Integer, Priority> priorities = new ConcurrentHashMap<>();
+    private volatile int fragmentLength = ConnectedThread.DEFAULT_FRAGMENT_LENGTH;
+    //Shared by every connection.
+    private final Compression compression = new Compression();
+    //Kept by the host, followed by the players.
+    private final PeerTable peers = new PeerTable();
+    private final RosterPublisher roster;
+
+    /**
+     * If true, new connections start in {@link WireFormat#LEGACY_TEXT} and are only upgraded to {@link WireFormat#BINARY}
+     * once the other device answers the hello. Needed for devices that still run the text-only framework.
+     */
+    private volatile boolean legacyCompatible = false;
+
+    /**
+     * If true, new connections stay in {@link WireFormat#LEGACY_TEXT} for good, with its pacing. Only useful to
+     * measure against what the text-only framework did.
+     */
+    private volatile boolean legacyOnly = false;
+
+    /**
+     * Size of every lane and overflow behaviour of the outbound queue every new {@link ConnectedThread} gets.
+     */
+    private volatile int outboundQueueCapacity = ConnectedThread.DEFAULT_QUEUE_CAPACITY;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+    /**
+     * Buffers for the frames every connection reads. They are given back once a frame has been routed and written
+     * to every device it was relayed to, so the pool only needs to cover the frames in flight.
+     */
+    private static final int READ_BUFFER_POOL_CAPACITY = 64;
+    private final BufferPool readBufferPool = new BufferPool(ConnectedThread.MESSAGE_SIZE, READ_BUFFER_POOL_CAPACITY);
+
+    //Kept across connections, so what a device did before reconnecting still counts.
+    private final TrafficMetrics trafficMetrics = new TrafficMetrics();
+
+    private final MessageTracer tracer = new MessageTracer();
+
+    //Always on, it's cheap.
+    private final FlightRecorder flightRecorder = new FlightRecorder();
+
+    private final ConnectedThread.Listener connectionListener = new ConnectedThread.Listener() {
+        /*
+         * Runs on the reading thread of the connection or on the heartbeat thread, see the listener. Everything it
+         * touches is safe for concurrent use, and whatever is removed is only removed if it still belongs to this
+         * connection, so a connection that replaced or resumed it meanwhile is left alone whichever thread runs it.
+         */
+        @Override
+        public void onDisconnected(ConnectedThread thread) {
+            if (suspend(thread))
+                return;
+            String address = thread.ID;
+            //Replaced by a newer connection of the same device, which took over.
+            if (!connectedThreads.remove(address, thread))
+                return;
+            String name = thread.getRemoteName();
+            if (name != null)
+                connectedDevicesNames.remove(name);
+            LinkSession session = thread.getSession();
+            if (session != null)
+                session.close();
+
+            boolean wasHost = !removePlayerSocket(address);
+            if (wasHost)
+                removeHostSocket();
+            else
+                releaseSlot(address);
+            roster.left(address, wasHost, mLocalDevice.isHost());
+
+            streams.onDisconnected(address);
+            mListener.onDisconnected(address, name, wasHost);
+        }
+
+        @Override
+        public void onStreamError(ConnectedThread thread) {
+            //Never registered, just let go of the socket.
+            thread.cancel();
+        }
+    };
+
+    private final SessionHandshake.Resolver sessionResolver = new SessionHandshake.Resolver() {
+        @Override
+        public LinkSession resolve(ConnectedThread thread, long id) {
+            ConnectedThread lost = suspended.get(thread.ID);
+            if (lost != null && lost.getSession().id == id && suspended.remove(thread.ID, lost)) {
+                lost.retire(true);
+                return lost.getSession();
+            }
+            if (lost != null) {
+                //The player started over, its old session is gone for good.
+                expire(lost, false);
+                mListener.onPlayerConnected(thread.ID, thread.getRemoteName());
+            }
+            return new LinkSession(id, creditWindow);
+        }
+    };
+
+    public SocketManager(LocalDevice localDevice, Listener listener) {
+        mLocalDevice = localDevice;
+        mListener = listener;
+        for (int i = 0; i < Write_Locks.length; i++)
+            Write_Locks[i] = new Object();
+        router = new FrameRouter(connectedThreads, new FrameRouter.Callback() {
+            @Override
+            public boolean isHost() {
+                return mLocalDevice.isHost();
+            }
+
+            @Override
+            public String getLocalAddress() {
+                return mLocalDevice.getAddress();
+            }
+
+            @Override
+            public String resolveAddress(String target) {
+                //Players usually know the target by its name, but an address works too.
+                if (connectedThreads.containsKey(target))
+                    return target;
+                return getMAC(target);
+            }
+
+            @Override
+            public void onConsume(BluetoothMessage message) {
+                consume(message);
+            }
+
+            @Override
+            public void onConsumeFrame(FrameHeader header) {
+                try {
+                    switch (header.getAppCode()) {
+                        case ControlCodes.STREAM_OPEN:
+                        case ControlCodes.STREAM_DATA:
+                        case ControlCodes.STREAM_CREDIT:
+                        case ControlCodes.STREAM_CLOSE:
+                            streams.onFrame(header);
+                            break;
+                        default:
+                            transfers.onFrame(header);
+                    }
+                } catch (BufferUnderflowException e) {
+                    //A malformed frame of a stream or a transfer. It's still relayed, whoever it's for can tell.
+                    flightRecorder.record(FlightRecorder.Event.DECODE_FAILURE, header.getSource());
+                }
+            }
+        }, tracer, flightRecorder);
+        router.setPeerIds(peers);
+        roster = new RosterPublisher(peers, connectedThreads, router, new RosterPublisher.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                SocketManager.this.schedule(task, delayMillis);
+            }
+        });
+        transfers = new BlobTransfers(new BlobTransfers.Sender() {
+            @Override
+            public boolean send(String target, int appCode, Priority priority, ByteBuffer payload) {
+                return sendFrame(target, appCode, priority, payload);
+            }
+
+            @Override
+            public boolean isReachable(String target) {
+                return hasRoute(target);
+            }
+
+            @Override
+            public String getLocalAddress() {
+                return mLocalDevice.getAddress();
+            }
+        });
+        streams = new VirtualStreams(new VirtualStreams.Sender() {
+            @Override
+            public boolean send(String peer, int appCode, Priority priority, ByteBuffer payload) {
+                return sendFrame(peer, appCode, priority, payload);
+            }
+
+            @Override
+            public boolean isConnected(String peer) {
+                return connectedThreads.containsKey(peer);
+            }
+
+            @Override
+            public boolean isHost() {
+                return mLocalDevice.isHost();
+            }
+        });
+        heartbeatMonitor.start(heartbeatInterval, heartbeatTimeout);
+    }
+
+    /**
+     * Sets how often heartbeats are sent through every connection and how long a device that answers them may stay
+     * silent before its connection is dropped. It's marked suspect in the {@link #getTrafficMetrics() metrics} well
+     * before that. Their round trip times are in the metrics too.
+     *
+     * @param intervalMillis 0 to stop sending heartbeats
+     * @param timeoutMillis  should be a few intervals, so a lost heartbeat or two don't count
+     */
+    public synchronized void setHeartbeat(long intervalMillis, long timeoutMillis) {
+        if (intervalMillis > 0 && timeoutMillis <= intervalMillis)
+            throw new IllegalArgumentException("The timeout must be longer than the interval");
+        heartbeatInterval = intervalMillis;
+        heartbeatTimeout = timeoutMillis;
+        if (intervalMillis > 0)
+            heartbeatMonitor.start(intervalMillis, timeoutMillis);
+        else
+            heartbeatMonitor.stop();
+    }
+
+    public synchronized long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public synchronized long getHeartbeatTimeout() {
+        return heartbeatTimeout;
+    }
+
+    /**
+     * Sets how long a dropped connection is held for its session to be resumed. Only affects connections that are
+     * established afterwards.
+     *
+     * @param millis 0 to report every drop right away, like before sessions
+     */
+    public void setResumeWindow(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("The resume window can't be negative");
+        resumeWindow = millis;
+    }
+
+    public long getResumeWindow() {
+        return resumeWindow;
+    }
+
+    /**
+     * Sets how this device connects to its host again after their connection drops. Without one, the drop is
+     * reported right away on this device, though the host still holds the session until it expires.
+     */
+    public void setReconnector(Reconnector reconnector) {
+        this.reconnector = reconnector;
+    }
+
+    /**
+     * Sets how many frames a device may write to this one ahead of what this one has handed on, per connection. A
+     * device that runs out waits for more, so its own outbound queue fills up instead of the ones of this device.
+     * Only affects sessions that start afterwards.
+     *
+     * @param frames 0 for no limit
+     */
+    public void setCreditWindow(int frames) {
+        if (frames < 0)
+            throw new IllegalArgumentException("The credit window can't be negative");
+        creditWindow = frames;
+    }
+
+    public int getCreditWindow() {
+        return creditWindow;
+    }
+
+    /**
+     * @return true if the connection with the device dropped and is held for its session to be resumed
+     */
+    public boolean isSuspended(String address) {
+        return suspended.containsKey(address);
+    }
+
+    /**
+     * Starts communicating with a player that connected to this device.
+     *
+     * @return false if the streams of the socket couldn't be obtained. The socket is closed in that case.
+     */
+    public boolean addPlayerSocket(TransportSocket socket) {
+        ConnectedThread thread = newThread(socket);
+        if (thread == null)
+            return false;
+        if (sessionsEnabled())
+            thread.acceptSession(sessionResolver);
+        playerSockets.put(thread.ID, socket);
+        roster.joined(thread, mLocalDevice.getAddress());
+        start(thread, socket);
+        return true;
+    }
+
+    /**
+     * Starts communicating with the host this device connected to.
+     *
+     * @return false if the streams of the socket couldn't be obtained. The socket is closed in that case.
+     */
+    public boolean setHostSocket(TransportSocket socket) {
+        ConnectedThread thread = newThread(socket);
+        if (thread == null)
+            return false;
+        if (sessionsEnabled())
+            thread.openSession(new LinkSession(sessionIds.nextLong(), creditWindow));
+        thread.followPeers();
+        hostSocket = socket;
+        start(thread, socket);
+        return true;
+    }
+
+    /**
+     * Accepts players on every free slot at once, until {@link #stopAccepting()}. Every player is added as soon as
+     * it connects and its slot is listened on again once it leaves.
+     *
+     * @param transport what to listen with
+     * @param slots     the slots to listen on
+     */
+    public void startAccepting(Transport transport, Collection<UUID> slots) {
+        startAccepting(transport, slots, null);
+    }
+
+    /**
+     * Like {@link #startAccepting(Transport, Collection)}, with a lobby where players wait for a slot when every
+     * slot is taken. See {@link SlotAcceptor}.
+     * <p/>
+     * The transport and the slots are only taken into account the first time, until {@link #clear()}.
+     *
+     * @param lobby where players connect when every slot is taken, null for none
+     */
+    public synchronized void startAccepting(Transport transport, Collection<UUID> slots, UUID lobby) {
+        if (acceptor == null) {
+            acceptor = new SlotAcceptor(transport, slots, lobby, admissionQueueCapacity, new SlotAcceptor.Callback() {
+                @Override
+                public boolean onAccepted(TransportSocket socket, UUID slot) {
+                    //A player that comes back for its session never left, as far as the application knows.
+                    boolean resuming = suspended.containsKey(socket.getRemoteAddress());
+                    if (!addPlayerSocket(socket))
+                        return false;
+                    if (!resuming)
+                        mListener.onPlayerConnected(socket.getRemoteAddress(), socket.getRemoteName());
+                    return true;
+                }
+
+                @Override
+                public void onListenFailed(UUID slot, IOException e) {
+                    flightRecorder.record(FlightRecorder.Event.LISTEN_FAILED, null, slot);
+                }
+            });
+        }
+        acceptor.start();
+    }
+
+    /**
+     * Stops accepting players. The ones that are connected stay.
+     */
+    public synchronized void stopAccepting() {
+        if (acceptor != null)
+            acceptor.stop();
+    }
+
+    public boolean isAccepting() {
+        SlotAcceptor slotAcceptor = acceptor;
+        return slotAcceptor != null && slotAcceptor.isRunning();
+    }
+
+    /**
+     * @return how many more players can be accepted
+     */
+    public int getFreeSlotCount() {
+        SlotAcceptor slotAcceptor = acceptor;
+        return slotAcceptor == null ? 0 : slotAcceptor.getFreeSlotCount();
+    }
+
+    /**
+     * @return how many players wait in the lobby for a slot
+     */
+    public int getAdmissionQueueLength() {
+        SlotAcceptor slotAcceptor = acceptor;
+        return slotAcceptor == null ? 0 : slotAcceptor.getQueueLength();
+    }
+
+    /**
+     * How many players may wait in the lobby. Takes effect the next time accepting starts after a {@link #clear()}.
+     */
+    public void setAdmissionQueueCapacity(int capacity) {
+        admissionQueueCapacity = capacity;
+    }
+
+    public int getAdmissionQueueCapacity() {
+        return admissionQueueCapacity;
+    }
+
+    private void releaseSlot(String address) {
+        SlotAcceptor slotAcceptor = acceptor;
+        if (slotAcceptor != null)
+            slotAcceptor.release(address);
+    }
+
+    private ConnectedThread newThread(TransportSocket socket) {
+        ConnectedThread thread = new ConnectedThread(socket, connectionListener, router, initialWireFormat(), outboundQueueCapacity, overflowPolicy, readBufferPool, trafficMetrics.forPeer(socket.getRemoteAddress()));
+        if (legacyOnly)
+            thread.pinWireFormat();
+        thread.setTracer(tracer);
+        thread.setFlightRecorder(flightRecorder);
+        thread.setFragmentLength(fragmentLength);
+        thread.setCompression(compression);
+        thread.setPeerTable(peers);
+        if (!thread.isConnected()) {
+            flightRecorder.record(FlightRecorder.Event.STREAM_ERROR, socket.getRemoteAddress());
+            return null;
+        }
+        return thread;
+    }
+
+    private void start(ConnectedThread thread, TransportSocket socket) {
+        ConnectedThread previous = connectedThreads.put(thread.ID, thread);
+        if (previous != null && previous != thread && suspended.get(thread.ID) != previous)
+            replaced(previous);
+        String name = socket.getRemoteName();
+        if (name != null)
+            connectedDevicesNames.put(name, thread.ID);
+        resumeHeartbeats();
+        thread.start();
+    }
+
+    /**
+     * Starts the heartbeats again if {@link #clear()} stopped them.
+     */
+    private synchronized void resumeHeartbeats() {
+        if (heartbeatInterval > 0 && !heartbeatMonitor.isRunning())
+            heartbeatMonitor.start(heartbeatInterval, heartbeatTimeout);
+    }
+
+    private boolean sessionsEnabled() {
+        return resumeWindow > 0 && initialWireFormat() == WireFormat.BINARY;
+    }
+
+    /**
+     * Holds a connection that dropped, if its session may be resumed: the host waits for the player to come back,
+     * the player reconnects.
+     *
+     * @return false if the drop should be reported right away
+     */
+    private boolean suspend(ConnectedThread thread) {
+        long window = resumeWindow;
+        if (thread.getSession() == null || window <= 0 || connectedThreads.get(thread.ID) != thread)
+            return false;
+        boolean player = playerSockets.containsKey(thread.ID);
+        if (!player && reconnector == null)
+            return false;
+
+        thread.hold();
+        suspended.put(thread.ID, thread);
+        flightRecorder.record(FlightRecorder.Event.SESSION_SUSPENDED, thread.ID);
+        if (player) {
+            removePlayerSocket(thread.ID);
+            releaseSlot(thread.ID);
+            expireLater(thread, window);
+        } else {
+            new Reconnect(thread, window).start();
+        }
+        return true;
+    }
+
+    /**
+     * The player connected again before its previous connection was found lost. The previous one is held, so its
+     * session can still be resumed, or simply closed.
+     */
+    private void replaced(ConnectedThread previous) {
+        if (previous.getSession() != null && resumeWindow > 0) {
+            previous.hold();
+            suspended.put(previous.ID, previous);
+            flightRecorder.record(FlightRecorder.Event.SESSION_SUSPENDED, previous.ID);
+            expireLater(previous, resumeWindow);
+        }
+        previous.cancel();
+    }
+
+    /**
+     * Runs the task later on the timer, started on first use. Synchronized with {@link #clear()}, which shuts the timer
+     * down, so a task is never handed to a timer that was shut down.
+     */
+    private synchronized void schedule(Runnable task, long millis) {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread daemon = new Thread(runnable, "SocketManager-timer");
+                    daemon.setDaemon(true);
+                    return daemon;
+                }
+            });
+        }
+        timer.schedule(task, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private void expireLater(final ConnectedThread thread, long millis) {
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(thread, false);
+            }
+        }, millis);
+    }
+
+    /**
+     * Gives up on a held session and reports the drop, unless it was resumed meanwhile.
+     */
+    private void expire(ConnectedThread thread, boolean wasHost) {
+        String address = thread.ID;
+        if (!suspended.remove(address, thread))
+            return;
+        flightRecorder.record(FlightRecorder.Event.SESSION_EXPIRED, address);
+        thread.retire(false);
+        String name = thread.getRemoteName();
+        if (connectedThreads.remove(address, thread)) {
+            if (name != null)
+                connectedDevicesNames.remove(name);
+            if (wasHost)
+                removeHostSocket();
+            roster.left(address, wasHost, mLocalDevice.isHost());
+        }
+        streams.onDisconnected(address);
+        mListener.onDisconnected(address, name, wasHost);
+    }
+
+    /**
+     * Reconnects to the host until the session is resumed or the resume window is over.
+     */
+    private class Reconnect extends Thread {
+        private final ConnectedThread lost;
+        private final long deadline;
+
+        Reconnect(ConnectedThread lost, long window) {
+            super("SocketManager-reconnect-" + lost.ID);
+            setDaemon(true);
+            this.lost = lost;
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(window);
+        }
+
+        @Override
+        public void run() {
+            String address = lost.ID;
+            long backoff = RECONNECT_BACKOFF_MILLIS;
+            while (suspended.get(address) == lost && System.nanoTime() < deadline) {
+                Reconnector current = reconnector;
+                TransportSocket socket = null;
+                try {
+                    if (current != null)
+                        socket = current.reconnect(address);
+                } catch (IOException e) {
+                    //Still out of reach.
+                }
+                if (socket != null && resume(socket))
+                    return;
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                backoff = Math.min(backoff * 2, RECONNECT_BACKOFF_MAX_MILLIS);
+            }
+            expire(lost, true);
+        }
+
+        private boolean resume(TransportSocket socket) {
+            ConnectedThread thread = newThread(socket);
+            if (thread == null)
+                return false;
+            if (suspended.get(lost.ID) != lost) {
+                //Cleared meanwhile.
+                thread.cancel();
+                return true;
+            }
+            thread.openSession(lost.getSession());
+            thread.followPeers();
+            hostSocket = socket;
+            SocketManager.this.start(thread, socket);
+            if (suspended.remove(lost.ID, lost))
+                lost.retire(true);
+            return true;
+        }
+    }
+
+    private boolean removePlayerSocket(String key) {
+        TransportSocket socket = playerSockets.remove(key);
+        if (socket == null)
+            return false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            flightRecorder.record(FlightRecorder.Event.CLOSE_FAILED, key);
+        }
+        return true;
+    }
+
+    private void removeHostSocket() {
+        TransportSocket socket = hostSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                flightRecorder.record(FlightRecorder.Event.CLOSE_FAILED, socket.getRemoteAddress());
+            }
+            hostSocket = null;
+        }
+    }
+
+    public String getHostAddress() {
+        TransportSocket socket = hostSocket;
+        return socket == null ? null : socket.getRemoteAddress();
+    }
+
+    public String getHostName() {
+        TransportSocket socket = hostSocket;
+        return socket == null ? null : socket.getRemoteName();
+    }
+
+    /**
+     * @return the addresses of every connected device
+     */
+    public Set<String> getConnectedAddresses() {
+        return Collections.unmodifiableSet(connectedThreads.keySet());
+    }
+
+    /**
+     * Enables or disables the legacy compatibility mode. Only affects connections that are established afterwards.
+     * @param compatible true to start every new connection in {@link WireFormat#LEGACY_TEXT} until the other device
+     *                   proves it understands {@link WireFormat#BINARY}
+     */
+    public void setLegacyCompatible(boolean compatible) {
+        legacyCompatible = compatible;
+    }
+
+    public boolean isLegacyCompatible() {
+        return legacyCompatible;
+    }
+
+    /**
+     * Makes every connection established afterwards behave like the text-only framework: {@link WireFormat#LEGACY_TEXT}
+     * only, never upgraded. Meant as a baseline for measurements, devices that mix it with regular ones still understand each other.
+     */
+    public void setLegacyOnly(boolean legacyOnly) {
+        this.legacyOnly = legacyOnly;
+    }
+
+    public boolean isLegacyOnly() {
+        return legacyOnly;
+    }
+
+    /**
+     * Sets the capacity of the outbound queue of every connection that is established afterwards. Every
+     * {@link Priority} has a lane of its own in the queue, so up to three times as many frames may wait for a single
+     * device in all.
+     * @param capacity how many frames may wait in each lane of the queue of a single device
+     */
+    public void setOutboundQueueCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity must be at least 1");
+        outboundQueueCapacity = capacity;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    /**
+     * Sets what happens to a message when the outbound queue of a device is full. Only affects connections that are established afterwards.
+     * With {@link OverflowPolicy#FAIL}, {@link #sendGlobalMessage} and {@link #sendPrivateMessage} throw a {@link QueueOverflowException}.
+     */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        overflowPolicy = policy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets the lane the messages with the app code go in, when they're sent without a {@link Priority}.
+     *
+     * @param priority null for the default, {@link Priority#INTERACTIVE}
+     */
+    public void setPriority(int appCode, Priority priority) {
+        if (priority == null)
+            priorities.remove(appCode);
+        else
+            priorities.put(appCode, priority);
+    }
+
+    public Priority getPriority(int appCode) {
+        Priority priority = priorities.get(appCode);
+        return priority == null ? Priority.INTERACTIVE : priority;
+    }
+
+    /**
+     * Sets how long a message may get before it's written in fragments, which the frames of higher lanes can cut in
+     * between. Only affects connections that are established afterwards.
+     *
+     * @param length the longest frame, in bytes. 0 to write every message whole.
+     */
+    public void setFragmentLength(int length) {
+        if (length < 0)
+            throw new IllegalArgumentException("The fragment length can't be negative");
+        fragmentLength = length;
+    }
+
+    public int getFragmentLength() {
+        return fragmentLength;
+    }
+
+    /**
+     * Compresses the messages sent to the devices that read compressed frames, which every device running this version
+     * of the framework does. Takes effect right away, on every connection. Compressed frames are read either way.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compression.setEnabled(enabled);
+    }
+
+    public boolean isCompressionEnabled() {
+        return compression.isEnabled();
+    }
+
+    /**
+     * @param threshold the length a message must have to be compressed, in bytes
+     */
+    public void setCompressionThreshold(int threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("The compression threshold can't be negative");
+        compression.setThreshold(threshold);
+    }
+
+    public int getCompressionThreshold() {
+        return compression.getThreshold();
+    }
+
+    /**
+     * Sets the preset dictionary the messages of an app code are compressed with: bytes they are likely to contain,
+     * the most common last. Helps short messages compress. Every device must be given the same one, the messages of a
+     * device that doesn't have it can't be read.
+     *
+     * @param dictionary null to compress the messages of the app code without one
+     */
+    public void setDictionary(int appCode, byte[] dictionary) {
+        compression.setDictionary(appCode, dictionary);
+    }
+
+    /**
+     * @param address the address of a connected device
+     * @return the number of frames waiting to be written to the device, or -1 if it isn't connected
+     */
+    public int getOutboundQueueDepth(String address) {
+        ConnectedThread thread = connectedThreads.get(address);
+        return thread == null ? -1 : thread.getQueueDepth();
+    }
+
+    /**
+     * @return the number of frames waiting to be written, summed over every connected device
+     */
+    public int getOutboundQueueDepth() {
+        int depth = 0;
+        for (ConnectedThread thread : connectedThreads.values())
+            depth += thread.getQueueDepth();
+        return depth;
+    }
+
+    /**
+     * @return how many read frames were served from the buffer pool
+     */
+    public long getReadBufferPoolHits() {
+        return readBufferPool.getHits();
+    }
+
+    /**
+     * @return how many read frames needed a new buffer, either because the pool was empty or the frame didn't fit in a pooled buffer
+     */
+    public long getReadBufferPoolMisses() {
+        return readBufferPool.getMisses();
+    }
+
+    /**
+     * @return the traffic of every device this device has been connected to, and the total. Cheap enough to poll.
+     */
+    public TrafficMetrics.Snapshot getTrafficMetrics() {
+        return trafficMetrics.snapshot();
+    }
+
+    /**
+     * Turns the tracing of the messages this device sends on or off, along with the recording of the traced
+     * messages it handles. See {@link MessageTracer}.
+     */
+    public void setTracing(boolean tracing) {
+        tracer.setEnabled(tracing);
+    }
+
+    public boolean isTracing() {
+        return tracer.isEnabled();
+    }
+
+    /**
+     * @return where the traced messages are recorded
+     */
+    public MessageTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * @return where the connection events of this device are recorded: the disconnections, write errors, queue
+     * overflows and relay failures. Wrap the {@link grioanpier.auth.users.bluetoothframework.transport.Transport}
+     * in a {@link grioanpier.auth.users.bluetoothframework.transport.RecordingTransport} to add the connection attempts.
+     */
+    public FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    private void consume(BluetoothMessage message) {
+        tracer.record(message.traceId, message.traceTime, MessageTracer.Stage.CONSUME);
+        mListener.onMessage(message);
+    }
+
+    private WireFormat initialWireFormat() {
+        return legacyCompatible || legacyOnly ? WireFormat.LEGACY_TEXT : WireFormat.BINARY;
+    }
+
+    /**
+     * Retrieves the address of a device of the session, from the roster, or of a connected device the roster doesn't
+     * name.
+     * @param deviceName The device whose address we are looking for
+     * @return the address of the device
+     */
+    public String getMAC(String deviceName) {
+        PeerTable.Peer peer = peers.byName(deviceName);
+        return peer != null ? peer.address : connectedDevicesNames.get(deviceName);
+    }
+
+    /**
+     * @return the devices of the session and the ids the host gave them, which frames name them by. Empty on a player
+     * until the host has written it.
+     */
+    public List<PeerTable.Peer> getPeers() {
+        return peers.getPeers();
+    }
+
+    /**
+     * @return the roster of the session, see {@link PeerTable}
+     */
+    public PeerTable getPeerTable() {
+        return peers;
+    }
+
+    /**
+     * Sets who is told when devices join or leave the session or their round trip time to the host changes, in
+     * batches. On players it's the roster the host writes, so it covers every device and not just the host.
+     */
+    public void setPeerListener(PeerTable.Listener listener) {
+        roster.setListener(listener);
+    }
+
+    /**
+     * Sends the content to every connected device (including to yours).
+     *
+     * @param message the content to send.
+     * @param appCode the appCode of the content. It states what part of the app the content comes from.
+     */
+    public void sendGlobalMessage(String message, int appCode) {
+        sendMessage(message, "null", appCode, true, getPriority(appCode));
+    }
+
+    /**
+     * Sends the content to every connected device (including to yours), in the lane of the given priority.
+     *
+     * @param priority null for the lane of the app code
+     */
+    public void sendGlobalMessage(String message, int appCode, Priority priority) {
+        sendMessage(message, "null", appCode, true, priority);
+    }
+
+    /**
+     * Sends the content to a specific device that is connected to the host (including the host). Only the host knows the addresses
+     * of all the connected devices. The rest devices can just use the target's name and the host will handle the lookup.
+     * @param message the content to send
+     * @param target the target device's address or public name.
+     * @param appCode the appCode of the content. It states what part of the app the content comes from.
+     */
+    public void sendPrivateMessage(String message, String target, int appCode) {
+        sendMessage(message, target, appCode, false, getPriority(appCode));
+    }
+
+    /**
+     * Sends the content to a specific device, in the lane of the given priority. See {@link #sendPrivateMessage(String, String, int)}.
+     *
+     * @param priority null for the lane of the app code
+     */
+    public void sendPrivateMessage(String message, String target, int appCode, Priority priority) {
+        sendMessage(message, target, appCode, false, priority);
+    }
+
+    private void sendMessage(String message, String target, int appCode, boolean global, Priority priority) {
+        if (!global && peers.byAddress(target) == null) {
+            //Named devices are looked up here rather than by the host, so the target can be written as an id.
+            PeerTable.Peer peer = peers.byName(target);
+            if (peer != null)
+                target = peer.address;
+        }
+        //Pack everything in a BluetoothMessage
+        BluetoothMessage btMsg = new BluetoothMessage();
+        btMsg.isGlobal = global;
+        btMsg.targetMAC = target;
+        btMsg.sourceMAC = mLocalDevice.getAddress();
+        btMsg.content = message;
+        btMsg.appCode = appCode;
+        btMsg.priority = priority == null ? getPriority(appCode) : priority;
+        if (tracer.isEnabled()) {
+            btMsg.traceId = tracer.newTraceId();
+            btMsg.traceTime = tracer.now();
+        }
+
+        synchronized (Write_Locks[btMsg.priority.ordinal()]) {
+            tracer.record(btMsg.traceId, btMsg.traceTime, MessageTracer.Stage.ENQUEUE);
+            if (global) {
+                //Send the message. If the device isn't the host, then the content is sent to the host who relays it appropriately.
+                router.sendToAll(btMsg);
+
+                if (mLocalDevice.isHost()) {
+                    //If the device is the host, also consume it
+                    consume(btMsg);
+                }
+            } else {
+                if (mLocalDevice.isHost()) {
+                    router.sendTo(btMsg, target);
+                } else {
+                    //The message will be sent to the host who will forward it.
+                    router.sendToAll(btMsg);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a file, in the background. Only devices connected through binary connections get it, see
+     * {@link BlobTransfers.Listener} for how they accept it and how its delivery is reported.
+     *
+     * @param channel where the file is read from, from its position to its end. It's closed once the transfer is over.
+     * @param name    the name the receivers are given
+     * @param target  the address or name of the device to send it to, null for every device
+     * @param appCode what part of the app it's for
+     * @return the id of the transfer
+     * @throws IOException if the size of the file can't be read
+     */
+    public long sendBlob(FileChannel channel, String name, String target, int appCode) throws IOException {
+        return transfers.send(channel, name, target, appCode);
+    }
+
+    /**
+     * Sets who decides where the files other devices send go, and hears about the ones this device sends. Files are
+     * refused while there is none.
+     */
+    public void setBlobListener(BlobTransfers.Listener listener) {
+        transfers.setListener(listener);
+    }
+
+    /**
+     * Opens a stream to a directly connected device: the host, or a player if this device is the host. It shares the
+     * connection with everything else, see {@link VirtualStreams}.
+     *
+     * @param target   the address or name of the device
+     * @param name     tells the other device what the stream is for
+     * @param priority the lane of its frames, null for {@link Priority#INTERACTIVE}
+     * @throws IOException if the device isn't directly connected through a binary connection
+     */
+    public VirtualStream openStream(String target, String name, Priority priority) throws IOException {
+        String address = connectedThreads.containsKey(target) ? target : getMAC(target);
+        ConnectedThread thread = address == null ? null : connectedThreads.get(address);
+        if (thread == null || thread.getWireFormat() != WireFormat.BINARY)
+            throw new IOException("Not directly connected to " + target);
+        return streams.open(address, name, priority == null ? Priority.INTERACTIVE : priority);
+    }
+
+    /**
+     * Sets who gets the streams other devices open. They are refused while there is none.
+     */
+    public void setStreamListener(VirtualStreams.Listener listener) {
+        streams.setListener(listener);
+    }
+
+    /**
+     * Sends a frame of the framework, that no application sees.
+     *
+     * @param target null for every device
+     * @return false if no connection took it: they had no room for it, or there is none it could go through. See
+     * {@link #hasRoute}.
+     */
+    private boolean sendFrame(String target, int appCode, Priority priority, ByteBuffer payload) {
+        boolean global = target == null;
+        //Players send everything to the host, which relays it.
+        String to = global || !mLocalDevice.isHost() ? null : target;
+        ByteBuffer encoded = FrameCodec.encode(global, global ? null : target, mLocalDevice.getAddress(), appCode, priority, payload, router.peerIdsFor(to));
+        SharedFrame frame = SharedFrame.wrap(encoded.array(), 0, encoded.limit());
+        try {
+            return router.sendFrame(frame, to) > 0;
+        } catch (QueueOverflowException e) {
+            return false;
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * @param target null for every device
+     * @return true if a frame for the device has a connection to go through, whether or not it has room now. Players
+     * send everything through the host. A connection held for a resume counts, what is sent to it is kept.
+     */
+    private boolean hasRoute(String target) {
+        if (target == null || !mLocalDevice.isHost())
+            return !connectedThreads.isEmpty();
+        String address = connectedThreads.containsKey(target) ? target : getMAC(target);
+        return address != null && connectedThreads.containsKey(address);
+    }
+
+    /**
+     * Stops accepting players and closes every connection, ending their sessions. No {@link Listener#onDisconnected}
+     * is delivered for them. The heartbeats and the timer stop too, so nothing is left running and no expiry or roster
+     * update fires afterwards. Both start again with the next connection.
+     */
+    public void clear() {
+        synchronized (this) {
+            if (acceptor != null)
+                acceptor.stop();
+            acceptor = null;
+            heartbeatMonitor.stop();
+        }
+        transfers.clear();
+        streams.clear();
+        for (ConnectedThread thread : suspended.values())
+            thread.retire(false);
+        suspended.clear();
+        for (ConnectedThread thread : connectedThreads.values())
+            thread.leave();
+        connectedThreads.clear();
+        connectedDevicesNames.clear();
+        peers.clear(false);
+
+        for (TransportSocket socket : playerSockets.values()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                flightRecorder.record(FlightRecorder.Event.CLOSE_FAILED, socket.getRemoteAddress());
+            }
+        }
+        playerSockets.clear();
+        removeHostSocket();
+
+        //Last, what clearing the roster scheduled goes too.
+        synchronized (this) {
+            if (timer != null)
+                timer.shutdownNow();
+            timer = null;
+        }
+    }
+}
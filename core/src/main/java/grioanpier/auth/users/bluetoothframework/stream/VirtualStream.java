@@ -0,0 +1,296 @@
+package grioanpier.auth.users.bluetoothframework.stream;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+
+/**
+ * An ordered pipe of bytes both ways between this device and one it's directly connected to, see {@link VirtualStreams}.
+ * <p/>
+ * Every write is sent right away, in frames of up to {@link VirtualStreams#MAX_DATA} bytes, so wrap the output in a
+ * {@link java.io.BufferedOutputStream} for small writes. Writing blocks while the other device has
+ * {@link VirtualStreams#WINDOW} bytes it hasn't read yet. Closing the output ends the input of the other device once it
+ * has read everything, closing the input makes its writes fail.
+ */
+public class VirtualStream implements Closeable {
+
+    public final String peer;
+    public final int id;
+    public final String name;
+    public final Priority priority;
+
+    private final VirtualStreams mStreams;
+    private final Input mInput = new Input();
+    private final Output mOutput = new Output();
+
+    //What was received and not read yet, the first array from mHead on.
+    private final ArrayDeque<byte[]> mReceived = new ArrayDeque<>();
+    private int mHead = 0;
+    private int mBuffered = 0;
+    private long mRead = 0;
+    //The limit the other device was last given.
+    private long mGranted = VirtualStreams.WINDOW;
+    //The other device won't write anymore.
+    private boolean isFinished = false;
+    private boolean isInputClosed = false;
+
+    private long mWritten = 0;
+    private long mLimit = VirtualStreams.WINDOW;
+    private boolean isOutputClosed = false;
+    //The other device won't read anymore.
+    private boolean isStopped = false;
+
+    //Why the stream ended both ways at once, null while it didn't.
+    private String mReset = null;
+
+    VirtualStream(VirtualStreams streams, String peer, int id, String name, Priority priority) {
+        mStreams = streams;
+        this.peer = peer;
+        this.id = id;
+        this.name = name;
+        this.priority = priority;
+    }
+
+    public InputStream getInputStream() {
+        return mInput;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutput;
+    }
+
+    /**
+     * Closes both directions.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mOutput.close();
+        } finally {
+            mInput.close();
+        }
+    }
+
+    private class Input extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            if (len == 0)
+                return 0;
+            int read = 0;
+            long grant = -1;
+            synchronized (VirtualStream.this) {
+                while (mBuffered == 0) {
+                    if (isInputClosed)
+                        throw new IOException("The stream is closed");
+                    checkReset();
+                    if (isFinished)
+                        return -1;
+                    await();
+                }
+                while (read < len && mBuffered > 0) {
+                    byte[] first = mReceived.peekFirst();
+                    int n = Math.min(len - read, first.length - mHead);
+                    System.arraycopy(first, mHead, b, off + read, n);
+                    read += n;
+                    mHead += n;
+                    mBuffered -= n;
+                    if (mHead == first.length) {
+                        mReceived.removeFirst();
+                        mHead = 0;
+                    }
+                }
+                mRead += read;
+                //Credit is given back in halves of the window, not for every read.
+                if (!isFinished && mRead + VirtualStreams.WINDOW - mGranted >= VirtualStreams.WINDOW / 2) {
+                    mGranted = mRead + VirtualStreams.WINDOW;
+                    grant = mGranted;
+                }
+            }
+            if (grant >= 0) {
+                //The limit is cumulative, so a later grant makes up for one that was lost.
+                ByteBuffer payload = ByteBuffer.allocate(4 + 8);
+                payload.putInt(id).putLong(grant).flip();
+                mStreams.send(VirtualStream.this, ControlCodes.STREAM_CREDIT, payload);
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (VirtualStream.this) {
+                return mBuffered;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean stop;
+            synchronized (VirtualStream.this) {
+                if (isInputClosed)
+                    return;
+                isInputClosed = true;
+                stop = !isFinished && mReset == null;
+                mReceived.clear();
+                mBuffered = 0;
+                VirtualStream.this.notifyAll();
+                removeIfDone();
+            }
+            if (stop)
+                mStreams.sendClose(peer, id, priority, VirtualStreams.CLOSE_READING);
+        }
+    }
+
+    private class Output extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off)
+                throw new IndexOutOfBoundsException();
+            //One writer at a time, so the frames of a write aren't mixed with those of another.
+            synchronized (this) {
+                while (len > 0) {
+                    int n;
+                    synchronized (VirtualStream.this) {
+                        while (true) {
+                            if (isOutputClosed)
+                                throw new IOException("The stream is closed");
+                            checkReset();
+                            if (isStopped)
+                                throw new IOException("The stream was closed by " + peer);
+                            if (mWritten < mLimit)
+                                break;
+                            await();
+                        }
+                        n = (int) Math.min(Math.min(len, VirtualStreams.MAX_DATA), mLimit - mWritten);
+                        mWritten += n;
+                    }
+                    ByteBuffer payload = ByteBuffer.allocate(4 + n);
+                    payload.putInt(id).put(b, off, n).flip();
+                    mStreams.send(VirtualStream.this, ControlCodes.STREAM_DATA, payload);
+                    off += n;
+                    len -= n;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                synchronized (VirtualStream.this) {
+                    if (isOutputClosed)
+                        return;
+                    isOutputClosed = true;
+                    VirtualStream.this.notifyAll();
+                    if (isStopped || mReset != null) {
+                        removeIfDone();
+                        return;
+                    }
+                }
+                ByteBuffer payload = ByteBuffer.allocate(4 + 1);
+                payload.putInt(id).put(VirtualStreams.CLOSE_WRITING).flip();
+                try {
+                    mStreams.send(VirtualStream.this, ControlCodes.STREAM_CLOSE, payload);
+                } finally {
+                    synchronized (VirtualStream.this) {
+                        removeIfDone();
+                    }
+                }
+            }
+        }
+    }
+
+    synchronized void onData(ByteBuffer payload) {
+        if (isInputClosed || isFinished || mReset != null)
+            return;
+        if (mRead + mBuffered + payload.remaining() > mGranted) {
+            //Wrote past its credit, nothing it writes can be trusted anymore.
+            onReset("Protocol error: " + peer + " wrote past the window of the stream");
+            mStreams.sendClose(peer, id, priority, VirtualStreams.CLOSE_READING);
+            return;
+        }
+        //The payload is in a buffer of the connection, which is reused once the frame is handled.
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        mReceived.addLast(bytes);
+        mBuffered += bytes.length;
+        notifyAll();
+    }
+
+    synchronized void onCredit(long limit) {
+        if (limit > mLimit) {
+            mLimit = limit;
+            notifyAll();
+        }
+    }
+
+    synchronized void onClose(byte how) {
+        if (how == VirtualStreams.CLOSE_READING)
+            isStopped = true;
+        else
+            isFinished = true;
+        notifyAll();
+        removeIfDone();
+    }
+
+    synchronized void onReset(String reason) {
+        if (mReset == null)
+            mReset = reason;
+        notifyAll();
+        mStreams.remove(this);
+    }
+
+    synchronized void checkReset() throws IOException {
+        if (mReset != null)
+            throw new IOException(mReset);
+    }
+
+    //Forgets the stream once neither end will write to it anymore.
+    private void removeIfDone() {
+        if ((isOutputClosed || isStopped) && (isInputClosed || isFinished))
+            mStreams.remove(this);
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
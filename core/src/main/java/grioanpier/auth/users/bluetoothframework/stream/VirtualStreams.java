@@ -0,0 +1,224 @@
+package grioanpier.auth.users.bluetoothframework.stream;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+import grioanpier.auth.users.bluetoothframework.wire.FrameCodec;
+import grioanpier.auth.users.bluetoothframework.wire.FrameHeader;
+
+/**
+ * Keeps the streams this device has open with the devices it's directly connected to. Any number of them share the
+ * connection to a device, so a part of the app gets an ordered pipe of its own without connecting again.
+ * <p/>
+ * The bytes go in frames with reserved app codes, in the lane the stream was opened with, and the session of the
+ * connection keeps them in order and replays them if it drops and is resumed. Every stream has a window of its own: a
+ * device writes no more than {@link #WINDOW} bytes that the other one hasn't read yet, so a stream nobody reads
+ * doesn't hold back the rest of the connection. Streams end when the connection is lost for good.
+ */
+public class VirtualStreams {
+
+    public interface Sender {
+        /**
+         * Sends a frame of the framework to a device this one is connected to.
+         *
+         * @return false if the connection had no room for it, or if there is no connection to the device
+         */
+        boolean send(String peer, int appCode, Priority priority, ByteBuffer payload);
+
+        boolean isConnected(String peer);
+
+        boolean isHost();
+    }
+
+    public interface Listener {
+        /**
+         * A device opened a stream to this one. Invoked on the reading thread of the connection, so reading it has to
+         * happen somewhere else. Close it to refuse it.
+         */
+        void onStreamOpened(VirtualStream stream);
+    }
+
+    /**
+     * How many bytes of a stream may be written that the other end hasn't read yet.
+     */
+    public static final int WINDOW = 16 * 1024;
+    //The most bytes of a stream a frame carries, so it fits in a pooled buffer.
+    static final int MAX_DATA = 896;
+    //How long to wait before trying again when the connection has no room for a frame.
+    private static final long BACKOFF_MS = 10;
+
+    static final byte CLOSE_WRITING = 0;
+    static final byte CLOSE_READING = 1;
+
+    private final Sender mSender;
+    private volatile Listener mListener = null;
+    private final AtomicInteger mIds = new AtomicInteger();
+    private final ConcurrentHashMap<String, VirtualStream> mStreams = new ConcurrentHashMap<>();
+
+    public VirtualStreams(Sender sender) {
+        mSender = sender;
+    }
+
+    /**
+     * Sets who gets the streams other devices open. They are refused while there is none.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Opens a stream. It can be written to right away, the other device gets it in order.
+     *
+     * @param peer     the address of a device this one is directly connected to
+     * @param name     tells the other device what the stream is for
+     * @param priority the lane of its frames
+     * @throws IOException if it couldn't be opened
+     */
+    public VirtualStream open(String peer, String name, Priority priority) throws IOException {
+        //The host numbers its streams odd and the players even, so the two ends never pick the same id.
+        int id = mIds.incrementAndGet() << 1 | (mSender.isHost() ? 1 : 0);
+        VirtualStream stream = new VirtualStream(this, peer, id, name, priority);
+        mStreams.put(key(peer, id), stream);
+        byte[] nameBytes = name == null ? new byte[0] : name.getBytes(FrameCodec.UTF8);
+        ByteBuffer payload = ByteBuffer.allocate(4 + 1 + nameBytes.length);
+        payload.putInt(id).put((byte) priority.ordinal()).put(nameBytes).flip();
+        try {
+            send(stream, ControlCodes.STREAM_OPEN, payload);
+        } catch (IOException e) {
+            remove(stream);
+            throw e;
+        }
+        return stream;
+    }
+
+    /**
+     * @return how many streams are open
+     */
+    public int getOpenCount() {
+        return mStreams.size();
+    }
+
+    /**
+     * Handles a frame of a stream, see {@link ControlCodes#STREAM_OPEN}. Invoked on the reading thread of the
+     * connection it came from.
+     *
+     * @throws BufferUnderflowException if the frame is too short for what it says it is
+     */
+    public void onFrame(FrameHeader header) {
+        String source = header.getSource();
+        if (source == null)
+            return;
+        ByteBuffer payload = header.payload();
+        int id = payload.getInt();
+        if (header.getAppCode() == ControlCodes.STREAM_OPEN) {
+            onOpen(source, id, payload);
+            return;
+        }
+        VirtualStream stream = mStreams.get(key(source, id));
+        if (stream == null) {
+            //Closed on this end already, or never opened.
+            if (header.getAppCode() == ControlCodes.STREAM_DATA)
+                sendClose(source, id, header.getPriority(), CLOSE_READING);
+            return;
+        }
+        switch (header.getAppCode()) {
+            case ControlCodes.STREAM_DATA:
+                stream.onData(payload);
+                break;
+            case ControlCodes.STREAM_CREDIT:
+                stream.onCredit(payload.getLong());
+                break;
+            case ControlCodes.STREAM_CLOSE:
+                stream.onClose(payload.get());
+                break;
+        }
+    }
+
+    private void onOpen(String source, int id, ByteBuffer payload) {
+        int ordinal = payload.get();
+        byte[] name = new byte[payload.remaining()];
+        payload.get(name);
+        Priority priority = ordinal >= 0 && ordinal < Priority.values().length ? Priority.values()[ordinal] : Priority.INTERACTIVE;
+        Listener listener = mListener;
+        if (listener == null || mStreams.containsKey(key(source, id))) {
+            sendClose(source, id, priority, CLOSE_READING);
+            return;
+        }
+        VirtualStream stream = new VirtualStream(this, source, id, new String(name, FrameCodec.UTF8), priority);
+        mStreams.put(key(source, id), stream);
+        listener.onStreamOpened(stream);
+    }
+
+    /**
+     * Ends every stream with a device whose connection was lost for good.
+     */
+    public void onDisconnected(String peer) {
+        for (VirtualStream stream : mStreams.values())
+            if (stream.peer.equals(peer))
+                stream.onReset("The connection to " + peer + " was lost");
+    }
+
+    /**
+     * Ends every stream.
+     */
+    public void clear() {
+        for (VirtualStream stream : mStreams.values())
+            stream.onReset("The streams were closed");
+    }
+
+    void remove(VirtualStream stream) {
+        mStreams.remove(key(stream.peer, stream.id), stream);
+    }
+
+    /**
+     * Sends a frame of a stream, waiting for room while the connection has none.
+     *
+     * @throws IOException if the stream ended meanwhile, or the connection is gone
+     */
+    void send(VirtualStream stream, int appCode, ByteBuffer payload) throws IOException {
+        while (!mSender.send(stream.peer, appCode, stream.priority, payload.duplicate())) {
+            stream.checkReset();
+            if (!mSender.isConnected(stream.peer))
+                throw new IOException("Not connected to " + stream.peer);
+            try {
+                Thread.sleep(BACKOFF_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Tells a device to stop writing to a stream, without waiting for room. Whatever else it writes to it is answered the same way.
+     */
+    void sendClose(String peer, int id, Priority priority, byte how) {
+        ByteBuffer payload = ByteBuffer.allocate(4 + 1);
+        payload.putInt(id).put(how).flip();
+        mSender.send(peer, ControlCodes.STREAM_CLOSE, priority, payload);
+    }
+
+    private static String key(String peer, int id) {
+        return peer + "/" + id;
+    }
+}
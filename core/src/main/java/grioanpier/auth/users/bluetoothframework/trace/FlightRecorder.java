@@ -0,0 +1,339 @@
+package grioanpier.auth.users.bluetoothframework.trace;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the last connection events in a ring that is allocated once, so what led to a connection problem can be
+ * reconstructed afterwards instead of being lost in a stack trace. Recording an event is a handful of array writes and
+ * never takes a lock or allocates, which makes it cheap enough to leave on.
+ * <p/>
+ * Every event has a monotonic timestamp ({@link System#nanoTime()}), the address of the device it concerns and, for
+ * connection attempts, the slot. The ring can be dumped as text or in a compact binary form that
+ * {@link #read(InputStream)} reads back.
+ */
+public class FlightRecorder {
+
+    public enum Event {
+        /**
+         * About to connect to a device on a slot.
+         */
+        CONNECT_ATTEMPT,
+        CONNECTED,
+        CONNECT_FAILED,
+        /**
+         * Started listening on a slot.
+         */
+        LISTEN,
+        ACCEPTED,
+        ACCEPT_FAILED,
+        /**
+         * A connection was lost.
+         */
+        DISCONNECTED,
+        /**
+         * The streams of a new connection couldn't be obtained.
+         */
+        STREAM_ERROR,
+        WRITE_ERROR,
+        /**
+         * A frame was dropped or refused because the outbound queue of a device was full. The value is its capacity.
+         */
+        QUEUE_OVERFLOW,
+        /**
+         * The host couldn't relay a frame to a device.
+         */
+        RELAY_FAILURE,
+        /**
+         * A frame, or the stream, couldn't be decoded.
+         */
+        DECODE_FAILURE,
+        /**
+         * A device that answers heartbeats has been silent for longer than expected.
+         */
+        PEER_SUSPECT,
+        /**
+         * A device that answers heartbeats has been silent for longer than the timeout and was disconnected.
+         */
+        PEER_DEAD,
+        /**
+         * A connection with a session was lost and is held, waiting to be resumed.
+         */
+        SESSION_SUSPENDED,
+        /**
+         * A held session was resumed. The value is how many frames were replayed to the other device.
+         */
+        SESSION_RESUMED,
+        /**
+         * A held session wasn't resumed in time and the device was disconnected.
+         */
+        SESSION_EXPIRED,
+        /**
+         * A device wrote past the credit it was given. The frame was dropped.
+         */
+        CREDIT_EXCEEDED,
+        /**
+         * A fragmented message arrived with a fragment missing, most likely dropped by a full queue on the way, and
+         * was discarded.
+         */
+        FRAGMENT_LOST,
+        /**
+         * Stopped listening on a slot because the server socket failed.
+         */
+        LISTEN_FAILED,
+        /**
+         * A socket threw while being closed. It's dropped all the same.
+         */
+        CLOSE_FAILED,
+        /**
+         * An exception nothing was prepared for was caught so the rest of the work could go on. Most likely a bug.
+         */
+        UNEXPECTED_EXCEPTION
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    //Written at the beginning of a binary dump, followed by the version.
+    private static final int MAGIC = 0x42465231; //"BFR1"
+    private static final int VERSION = 1;
+
+    private static final Event[] EVENTS = Event.values();
+
+    private final int mMask;
+    //The sequence number + 1 of the event in each slot, 0 while empty and -1 while it's being written.
+    private final AtomicLongArray mSequences;
+    private final long[] mTimes;
+    private final byte[] mEvents;
+    private final String[] mPeers;
+    private final long[] mMostSigBits;
+    private final long[] mLeastSigBits;
+    private final AtomicLong mNext = new AtomicLong();
+
+    private volatile boolean mEnabled = true;
+
+    public FlightRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity how many events the ring keeps. Rounded up to a power of two.
+     */
+    public FlightRecorder(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity must be at least 1");
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        mTimes = new long[size];
+        mEvents = new byte[size];
+        mPeers = new String[size];
+        mMostSigBits = new long[size];
+        mLeastSigBits = new long[size];
+    }
+
+    /**
+     * On by default.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void record(Event event, String peer) {
+        record(event, peer, 0, 0);
+    }
+
+    /**
+     * @param slot the slot of a connection attempt, or of a server socket
+     */
+    public void record(Event event, String peer, UUID slot) {
+        if (slot == null)
+            record(event, peer, 0, 0);
+        else
+            record(event, peer, slot.getMostSignificantBits(), slot.getLeastSignificantBits());
+    }
+
+    /**
+     * @param value a number that goes with the event, like the capacity of the queue that overflowed
+     */
+    public void record(Event event, String peer, long value) {
+        record(event, peer, 0, value);
+    }
+
+    private void record(Event event, String peer, long high, long low) {
+        if (!mEnabled)
+            return;
+        long sequence = mNext.getAndIncrement();
+        int index = (int) (sequence & mMask);
+        mSequences.set(index, -1);
+        mTimes[index] = System.nanoTime();
+        mEvents[index] = (byte) event.ordinal();
+        mPeers[index] = peer;
+        mMostSigBits[index] = high;
+        mLeastSigBits[index] = low;
+        mSequences.set(index, sequence + 1);
+    }
+
+    /**
+     * @return the events the ring holds, oldest first. Events that are being written while the snapshot is taken are left out.
+     */
+    public List<Record> snapshot() {
+        List<Record> records = new ArrayList<>(mMask + 1);
+        for (int i = 0; i <= mMask; i++) {
+            long sequence = mSequences.get(i);
+            if (sequence <= 0)
+                continue;
+            Record record = new Record(sequence - 1, mTimes[i], EVENTS[mEvents[i]], mPeers[i], mMostSigBits[i], mLeastSigBits[i]);
+            if (mSequences.get(i) == sequence)
+                records.add(record);
+        }
+        Collections.sort(records, BY_SEQUENCE);
+        return records;
+    }
+
+    /**
+     * Writes the events as text, one per line: the milliseconds before the dump the event happened, the event,
+     * the device and the slot or value, if any.
+     */
+    public void dump(Appendable out) throws IOException {
+        long now = System.nanoTime();
+        for (Record record : snapshot()) {
+            long ago = TimeUnit.NANOSECONDS.toMicros(now - record.time);
+            out.append('-').append(String.valueOf(ago / 1000)).append('.').append(String.valueOf(ago % 1000 / 100)).append("ms ")
+                    .append(record.event.name()).append(' ').append(String.valueOf(record.peer));
+            if (record.getSlot() != null)
+                out.append(' ').append(record.getSlot().toString());
+            else if (record.getValue() != 0)
+                out.append(' ').append(String.valueOf(record.getValue()));
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Writes the events in binary: a header with the magic number, the version, the wall clock and the monotonic
+     * clock at the time of the dump, so the timestamps can be placed in time, and the number of events. Then every
+     * event as its timestamp, its ordinal, the device (modified UTF-8, empty if none) and its two longs.
+     */
+    public void dump(OutputStream out) throws IOException {
+        List<Record> records = snapshot();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeLong(System.currentTimeMillis());
+        data.writeLong(System.nanoTime());
+        data.writeInt(records.size());
+        for (Record record : records) {
+            data.writeLong(record.time);
+            data.writeByte(record.event.ordinal());
+            data.writeUTF(record.peer == null ? "" : record.peer);
+            data.writeLong(record.high);
+            data.writeLong(record.low);
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a binary dump back.
+     *
+     * @throws IOException if the stream doesn't hold a dump this version understands
+     */
+    public static List<Record> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC)
+            throw new IOException("Not a flight recorder dump");
+        int version = data.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unknown flight recorder dump version " + version);
+        data.readLong();
+        data.readLong();
+        int count = data.readInt();
+        List<Record> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long time = data.readLong();
+            int event = data.readUnsignedByte();
+            if (event >= EVENTS.length)
+                throw new IOException("Unknown event " + event);
+            String peer = data.readUTF();
+            records.add(new Record(i, time, EVENTS[event], peer.isEmpty() ? null : peer, data.readLong(), data.readLong()));
+        }
+        return records;
+    }
+
+    private static final Comparator<Record> BY_SEQUENCE = new Comparator<Record>() {
+        @Override
+        public int compare(Record a, Record b) {
+            return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+        }
+    };
+
+    public static final class Record {
+        public final long sequence;
+        /**
+         * When it happened, in {@link System#nanoTime()} terms.
+         */
+        public final long time;
+        public final Event event;
+        /**
+         * The address of the device, null if none.
+         */
+        public final String peer;
+        private final long high;
+        private final long low;
+
+        Record(long sequence, long time, Event event, String peer, long high, long low) {
+            this.sequence = sequence;
+            this.time = time;
+            this.event = event;
+            this.peer = peer;
+            this.high = high;
+            this.low = low;
+        }
+
+        /**
+         * @return the slot of the event, null if it has none
+         */
+        public UUID getSlot() {
+            return high == 0 ? null : new UUID(high, low);
+        }
+
+        /**
+         * @return the value recorded with the event, 0 if none
+         */
+        public long getValue() {
+            return high == 0 ? low : 0;
+        }
+
+        @Override
+        public String toString() {
+            return event + " " + peer + (getSlot() != null ? " " + getSlot() : getValue() != 0 ? " " + getValue() : "");
+        }
+    }
+}
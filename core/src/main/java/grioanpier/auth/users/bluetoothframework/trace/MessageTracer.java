@@ -0,0 +1,208 @@
+package grioanpier.auth.users.bluetoothframework.trace;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Follows traced messages through the stages they go through on this device and keeps the times in a fixed-size ring,
+ * overwriting the oldest entries. Traced messages carry their trace id and the time they were sent, so the dumps of
+ * the sender, the host and the receivers can be lined up by trace id to tell which hop added the delay.
+ * <p/>
+ * Tracing is off by default. While it's off, messages aren't traced and nothing is recorded; the only cost left on
+ * the hot path is reading a volatile boolean. Recording never takes a lock.
+ */
+public class MessageTracer {
+
+    public enum Stage {
+        /**
+         * The sender queued the message to its connections.
+         */
+        ENQUEUE,
+        /**
+         * The message was written to the stream of a connection.
+         */
+        WRITE,
+        /**
+         * The message was read from a connection and routed. On the host, before relaying it.
+         */
+        RECEIVE,
+        /**
+         * The host queued the message to the devices it's relayed to.
+         */
+        RELAY,
+        /**
+         * The message was handed to the listener of the SocketManager.
+         */
+        CONSUME,
+        /**
+         * The message was handed to the application.
+         */
+        DISPATCH
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final int mMask;
+    //An entry is published by writing its trace id last, the rest of it is written before.
+    private final AtomicLongArray mIds;
+    private final long[] mTimes;
+    private final long[] mSentTimes;
+    private final byte[] mStages;
+    private final AtomicLong mNext = new AtomicLong();
+
+    private final AtomicLong mTraceIds;
+    private final long mEpochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private final long mEpochNanos = System.nanoTime();
+
+    private volatile boolean mEnabled = false;
+
+    public MessageTracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity how many entries the ring keeps. Rounded up to a power of two.
+     */
+    public MessageTracer(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity must be at least 1");
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mMask = size - 1;
+        mIds = new AtomicLongArray(size);
+        mTimes = new long[size];
+        mSentTimes = new long[size];
+        mStages = new byte[size];
+        //The top bits tell the devices apart, so the ids of different senders don't collide.
+        mTraceIds = new AtomicLong((new Random().nextLong() & 0xFFFFFF0000000000L) | 1);
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return a new trace id, never 0
+     */
+    public long newTraceId() {
+        long id;
+        do {
+            id = mTraceIds.getAndIncrement();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * @return the current time in microseconds. It's monotonic and starts from the wall clock of the device, so it
+     * can be compared to the times of other devices as far as their clocks agree.
+     */
+    public long now() {
+        return mEpochMicros + (System.nanoTime() - mEpochNanos) / 1000;
+    }
+
+    /**
+     * Records that a traced message reached a stage. Does nothing while tracing is off or if the message isn't traced.
+     *
+     * @param traceId  the trace id of the message, 0 if it isn't traced
+     * @param sentTime when the message was sent, as carried by the message
+     */
+    public void record(long traceId, long sentTime, Stage stage) {
+        if (traceId == 0 || !mEnabled)
+            return;
+        int index = (int) (mNext.getAndIncrement() & mMask);
+        mTimes[index] = now();
+        mSentTimes[index] = sentTime;
+        mStages[index] = (byte) stage.ordinal();
+        mIds.set(index, traceId);
+    }
+
+    /**
+     * Forgets every entry.
+     */
+    public void clear() {
+        for (int i = 0; i <= mMask; i++)
+            mIds.set(i, 0);
+    }
+
+    /**
+     * @return what the ring holds, oldest first. An entry that is being overwritten while the dump is taken may
+     * come out mixed with the one it replaces.
+     */
+    public List<Entry> dump() {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i <= mMask; i++) {
+            long id = mIds.get(i);
+            if (id != 0)
+                entries.add(new Entry(id, STAGES[mStages[i]], mTimes[i], mSentTimes[i]));
+        }
+        Collections.sort(entries, BY_TIME);
+        return entries;
+    }
+
+    /**
+     * Writes the entries as text, one per line: the trace id in hex, the stage, the time and the time the message was
+     * sent, both in microseconds.
+     */
+    public void dump(Appendable out) throws IOException {
+        for (Entry entry : dump())
+            out.append(entry.toString()).append('\n');
+    }
+
+    private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.time < b.time ? -1 : a.time == b.time ? 0 : 1;
+        }
+    };
+
+    public static final class Entry {
+        public final long traceId;
+        public final Stage stage;
+        /**
+         * When the stage was reached, see {@link #now()}.
+         */
+        public final long time;
+        /**
+         * When the message was sent, by the clock of the sender.
+         */
+        public final long sentTime;
+
+        Entry(long traceId, Stage stage, long time, long sentTime) {
+            this.traceId = traceId;
+            this.stage = stage;
+            this.time = time;
+            this.sentTime = sentTime;
+        }
+
+        @Override
+        public String toString() {
+            return Long.toHexString(traceId) + ' ' + stage + ' ' + time + ' ' + sentTime;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package grioanpier.auth.users.bluetoothframework.transfer;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+import grioanpier.auth.users.bluetoothframework.wire.FrameCodec;
+import grioanpier.auth.users.bluetoothframework.wire.FrameHeader;
+
+/**
+ * Sends files to other devices in chunks, over the connections the messages go through, and receives the ones they send.
+ * <p/>
+ * The sender reads a chunk at a time and keeps a window of chunks in flight for every device that accepted the file.
+ * Receivers write every chunk straight to the channel they were given, at its place in the file, and acknowledge
+ * cumulatively how far they got, so neither end ever holds more than a chunk in memory. A receiver that falls behind,
+ * because a chunk was dropped by a full queue on the way or the connection was lost for longer than its session could
+ * hide, is sent again what it missed, privately, starting from the last chunk it acknowledged. The frame that follows the
+ * last chunk carries the SHA-256 of the whole file, which every receiver checks.
+ * <p/>
+ * The frames have reserved app codes, so they never reach the application, and the chunks go in the
+ * {@link Priority#BULK} lane so they don't hold back the messages.
+ */
+public class BlobTransfers {
+
+    public interface Sender {
+        /**
+         * Sends a frame of the framework from this device.
+         *
+         * @param target the address or name of the device to send it to, null for every device
+         * @return false if no connection took it, because they had no room for it or because there is none to the
+         * device
+         */
+        boolean send(String target, int appCode, Priority priority, ByteBuffer payload);
+
+        /**
+         * @param target the address or name of a device, null for every device
+         * @return false if there is no connection a frame for the device could go through
+         */
+        boolean isReachable(String target);
+
+        /**
+         * @return the address of this device
+         */
+        String getLocalAddress();
+    }
+
+    public interface Listener {
+        /**
+         * A device offers a file. Invoked on the reading thread of the connection it came from.
+         *
+         * @param source  the address of the device
+         * @param id      the id of the transfer
+         * @param name    the name the sender gave the file
+         * @param length  its length, in bytes
+         * @param appCode what part of the app it's for
+         * @return where to write it, or null to refuse it. It's closed once the transfer is over.
+         */
+        FileChannel onOffered(String source, long id, String name, long length, int appCode) throws IOException;
+
+        /**
+         * A file was received and its channel closed.
+         *
+         * @param verified false if it didn't arrive intact, or didn't arrive at all
+         */
+        void onReceived(String source, long id, boolean verified);
+
+        /**
+         * A device is done with a file this one sent.
+         *
+         * @param verified false if it refused the file, didn't get it intact or stopped answering
+         */
+        void onDelivered(long id, String peer, boolean verified);
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 896;
+    //How many chunks a receiver may be behind before the sender waits for it, at most.
+    static final int WINDOW = 32;
+    //Receivers acknowledge every so many chunks, and whenever something is out of order.
+    static final int ACK_EVERY = 4;
+    private static final long NACK_INTERVAL_MS = OutgoingBlob.NACK_INTERVAL_MS;
+    //How long an incoming file may go without a chunk before it's given up.
+    private static final long INCOMING_TIMEOUT_MS = 60000;
+    //How many finished transfers are remembered, so their last frames can be answered again.
+    private static final int FINISHED_CAPACITY = 64;
+
+    static final int STATUS_RECEIVING = 0;
+    static final int STATUS_VERIFIED = 1;
+    static final int STATUS_FAILED = 2;
+    static final int STATUS_REFUSED = 3;
+
+    static final int DIGEST_LENGTH = 32;
+
+    private final Sender mSender;
+    private volatile Listener mListener = null;
+    private final Random mIds = new Random();
+
+    private final ConcurrentHashMap<Long, OutgoingBlob> mOutgoing = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Incoming> mIncoming = new ConcurrentHashMap<>();
+    //The status every finished incoming transfer ended with, oldest first.
+    private final Map<String, Integer> mFinished = new LinkedHashMap<String, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > FINISHED_CAPACITY;
+        }
+    };
+    private ScheduledExecutorService mExpiry = null;
+
+    private static final class Incoming {
+        final String source;
+        final long id;
+        final FileChannel channel;
+        final int chunkSize;
+        final long length;
+        final int chunks;
+        final MessageDigest digest;
+        int next = 0;
+        int acked = 0;
+        long heard = System.nanoTime();
+        //When a gap was last reported, so a burst of chunks after it is answered once.
+        long nacked = heard - TimeUnit.MILLISECONDS.toNanos(NACK_INTERVAL_MS);
+
+        Incoming(String source, long id, FileChannel channel, int chunkSize, long length) {
+            this.source = source;
+            this.id = id;
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+            this.length = length;
+            this.chunks = chunks(length, chunkSize);
+            this.digest = newDigest();
+        }
+    }
+
+    public BlobTransfers(Sender sender) {
+        mSender = sender;
+    }
+
+    /**
+     * Sets who decides where the files that are offered to this device go, and hears about the ones it sends.
+     * Files are refused while there is none.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts sending a file. It's sent from its current beginning to its end, on a thread of its own.
+     *
+     * @param channel where the file is read from. It isn't modified, and it's closed once every receiver is done with it.
+     * @param name    the name the receivers are given
+     * @param target  the address or name of the device to send it to, null for every device
+     * @param appCode what part of the app it's for
+     * @return the id of the transfer
+     * @throws IOException if the size of the file can't be read
+     */
+    public long send(FileChannel channel, String name, String target, int appCode) throws IOException {
+        long id;
+        synchronized (mIds) {
+            id = mIds.nextLong();
+        }
+        OutgoingBlob blob = new OutgoingBlob(this, id, channel, name, target, appCode, DEFAULT_CHUNK_SIZE);
+        mOutgoing.put(id, blob);
+        blob.start();
+        return id;
+    }
+
+    /**
+     * @return how many transfers this device is sending
+     */
+    public int getOutgoingCount() {
+        return mOutgoing.size();
+    }
+
+    /**
+     * @return how many transfers this device is receiving
+     */
+    public int getIncomingCount() {
+        return mIncoming.size();
+    }
+
+    /**
+     * Handles a frame of a transfer, see {@link ControlCodes#BLOB_OFFER}. Invoked on the reading thread of the
+     * connection it came from.
+     *
+     * @throws BufferUnderflowException if the frame is too short for what it says it is
+     */
+    public void onFrame(FrameHeader header) {
+        String source = header.getSource();
+        if (source == null || source.equals(mSender.getLocalAddress()))
+            return;
+        ByteBuffer payload = header.payload();
+        long id = payload.getLong();
+        switch (header.getAppCode()) {
+            case ControlCodes.BLOB_OFFER:
+                onOffer(source, id, payload);
+                break;
+            case ControlCodes.BLOB_CHUNK:
+                onChunk(source, id, payload);
+                break;
+            case ControlCodes.BLOB_END:
+                onEnd(source, id, payload);
+                break;
+            case ControlCodes.BLOB_ACK:
+                OutgoingBlob blob = mOutgoing.get(id);
+                if (blob != null)
+                    blob.onAck(source, payload.getInt(), payload.get());
+                break;
+        }
+    }
+
+    private void onOffer(String source, long id, ByteBuffer payload) {
+        long length = payload.getLong();
+        int chunkSize = payload.getInt();
+        int appCode = payload.getInt();
+        byte[] name = new byte[payload.remaining()];
+        payload.get(name);
+
+        String key = key(source, id);
+        Incoming incoming = mIncoming.get(key);
+        if (incoming != null) {
+            //Offered again, the acknowledgement was lost.
+            synchronized (incoming) {
+                acknowledge(incoming, STATUS_RECEIVING);
+            }
+            return;
+        }
+        Integer finished = finished(key);
+        if (finished != null) {
+            acknowledge(source, id, 0, finished);
+            return;
+        }
+        FileChannel channel = null;
+        Listener listener = mListener;
+        try {
+            if (chunkSize > 0 && length >= 0 && chunks(length, chunkSize) >= 0 && listener != null)
+                channel = listener.onOffered(source, id, new String(name, FrameCodec.UTF8), length, appCode);
+        } catch (IOException e) {
+            //The app couldn't make room for it, so it's refused.
+        }
+        if (channel == null) {
+            finish(key, STATUS_REFUSED);
+            acknowledge(source, id, 0, STATUS_REFUSED);
+            return;
+        }
+        incoming = new Incoming(source, id, channel, chunkSize, length);
+        mIncoming.put(key, incoming);
+        expireLater();
+        synchronized (incoming) {
+            acknowledge(incoming, STATUS_RECEIVING);
+        }
+    }
+
+    private void onChunk(String source, long id, ByteBuffer payload) {
+        String key = key(source, id);
+        Incoming incoming = mIncoming.get(key);
+        if (incoming == null) {
+            Integer finished = finished(key);
+            if (finished != null)
+                acknowledge(source, id, 0, finished);
+            return;
+        }
+        int index = payload.getInt();
+        synchronized (incoming) {
+            long now = System.nanoTime();
+            incoming.heard = now;
+            if (index != incoming.next) {
+                //A duplicate, or something went missing. Either way the sender is told where this end is at.
+                if (now - incoming.nacked > TimeUnit.MILLISECONDS.toNanos(NACK_INTERVAL_MS)) {
+                    incoming.nacked = now;
+                    acknowledge(incoming, STATUS_RECEIVING);
+                }
+                return;
+            }
+            if (payload.remaining() != Math.min(incoming.chunkSize, incoming.length - (long) index * incoming.chunkSize))
+                return;
+            try {
+                incoming.digest.update(payload.duplicate());
+                long position = (long) index * incoming.chunkSize;
+                while (payload.hasRemaining())
+                    position += incoming.channel.write(payload, position);
+            } catch (IOException e) {
+                end(incoming, STATUS_FAILED);
+                return;
+            }
+            incoming.next++;
+            if (incoming.next - incoming.acked >= ACK_EVERY)
+                acknowledge(incoming, STATUS_RECEIVING);
+        }
+    }
+
+    private void onEnd(String source, long id, ByteBuffer payload) {
+        String key = key(source, id);
+        Incoming incoming = mIncoming.get(key);
+        if (incoming == null) {
+            Integer finished = finished(key);
+            if (finished != null)
+                acknowledge(source, id, 0, finished);
+            return;
+        }
+        byte[] expected = new byte[DIGEST_LENGTH];
+        payload.get(expected);
+        synchronized (incoming) {
+            incoming.heard = System.nanoTime();
+            if (incoming.next < incoming.chunks) {
+                //Chunks are missing, they'll be sent again.
+                acknowledge(incoming, STATUS_RECEIVING);
+                return;
+            }
+            end(incoming, Arrays.equals(expected, incoming.digest.digest()) ? STATUS_VERIFIED : STATUS_FAILED);
+        }
+    }
+
+    /**
+     * Closes an incoming transfer and tells the sender how it went. Must hold the lock of the transfer.
+     */
+    private void end(Incoming incoming, int status) {
+        String key = key(incoming.source, incoming.id);
+        if (!mIncoming.remove(key, incoming))
+            return;
+        try {
+            incoming.channel.close();
+        } catch (IOException e) {
+            //What was written may not all be in the file.
+            status = STATUS_FAILED;
+        }
+        finish(key, status);
+        acknowledge(incoming, status);
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onReceived(incoming.source, incoming.id, status == STATUS_VERIFIED);
+    }
+
+    private void acknowledge(Incoming incoming, int status) {
+        incoming.acked = incoming.next;
+        acknowledge(incoming.source, incoming.id, incoming.next, status);
+    }
+
+    private void acknowledge(String source, long id, int next, int status) {
+        ByteBuffer payload = ByteBuffer.allocate(8 + 4 + 1);
+        payload.putLong(id).putInt(next).put((byte) status).flip();
+        mSender.send(source, ControlCodes.BLOB_ACK, Priority.INTERACTIVE, payload);
+    }
+
+    private Integer finished(String key) {
+        synchronized (mFinished) {
+            return mFinished.get(key);
+        }
+    }
+
+    private void finish(String key, int status) {
+        synchronized (mFinished) {
+            mFinished.put(key, status);
+        }
+    }
+
+    /**
+     * Gives up on the incoming transfers whose sender went silent. Runs every so often while there are any.
+     */
+    private synchronized void expireLater() {
+        if (mExpiry != null)
+            return;
+        mExpiry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BlobTransfers-expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExpiry.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (Iterator<Incoming> iterator = mIncoming.values().iterator(); iterator.hasNext(); ) {
+                    Incoming incoming = iterator.next();
+                    synchronized (incoming) {
+                        if (now - incoming.heard > TimeUnit.MILLISECONDS.toNanos(INCOMING_TIMEOUT_MS))
+                            end(incoming, STATUS_FAILED);
+                    }
+                }
+            }
+        }, INCOMING_TIMEOUT_MS / 4, INCOMING_TIMEOUT_MS / 4, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops every transfer, both ways. What was received so far stays where it was written.
+     */
+    public void clear() {
+        for (OutgoingBlob blob : mOutgoing.values())
+            blob.cancel();
+        for (Incoming incoming : mIncoming.values()) {
+            synchronized (incoming) {
+                end(incoming, STATUS_FAILED);
+            }
+        }
+        synchronized (this) {
+            if (mExpiry != null)
+                mExpiry.shutdownNow();
+            mExpiry = null;
+        }
+    }
+
+    boolean send(String target, int appCode, Priority priority, ByteBuffer payload) {
+        return mSender.send(target, appCode, priority, payload);
+    }
+
+    boolean isReachable(String target) {
+        return mSender.isReachable(target);
+    }
+
+    void onDelivered(long id, String peer, boolean verified) {
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onDelivered(id, peer, verified);
+    }
+
+    void finished(OutgoingBlob blob) {
+        mOutgoing.remove(blob.id, blob);
+    }
+
+    private static String key(String source, long id) {
+        return source + "/" + id;
+    }
+
+    /**
+     * @return how many chunks the file is cut in, -1 if that doesn't fit in an int
+     */
+    static int chunks(long length, int chunkSize) {
+        long chunks = (length + chunkSize - 1) / chunkSize;
+        return chunks > Integer.MAX_VALUE ? -1 : (int) chunks;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform has it.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package grioanpier.auth.users.bluetoothframework.transfer;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+import grioanpier.auth.users.bluetoothframework.wire.FrameCodec;
+
+/**
+ * Sends a file to the devices that accept it, see {@link BlobTransfers}. Every chunk is read from the channel when it's
+ * sent, and again when it has to be sent again.
+ */
+class OutgoingBlob extends Thread {
+
+    //How long a receiver may go without acknowledging anything before what it's missing is sent again.
+    static final long RESEND_MS = 1000;
+    //How long a file sent to every device is offered before the chunks start going out.
+    static final long OFFER_WAIT_MS = 1000;
+    //How long a receiver may stay silent while it's owed chunks before it's given up.
+    static final long PEER_TIMEOUT_MS = 30000;
+    //A receiver that reports the same chunk missing more often than this is sent it again only once.
+    static final long NACK_INTERVAL_MS = 200;
+    private static final long TICK_MS = RESEND_MS / 4;
+    //The window is halved whenever a receiver reports chunks missing, but never below this.
+    static final int MIN_WINDOW = 2 * BlobTransfers.ACK_EVERY;
+    //How long to wait before trying again when a connection has no room for a frame.
+    private static final long BACKOFF_MS = 10;
+
+    private static final class Peer {
+        final String address;
+        //The first chunk it doesn't have.
+        int next = 0;
+        long heard = System.nanoTime();
+        long resent = heard - ms(RESEND_MS);
+        //It reported that something is missing.
+        boolean resend = false;
+        boolean done = false;
+
+        Peer(String address) {
+            this.address = address;
+        }
+    }
+
+    //What a receiver is sent again.
+    private static final class Resend {
+        final String address;
+        final int from;
+        final int to;
+        final boolean end;
+
+        Resend(String address, int from, int to, boolean end) {
+            this.address = address;
+            this.from = from;
+            this.to = to;
+            this.end = end;
+        }
+    }
+
+    final long id;
+    private final BlobTransfers mTransfers;
+    private final FileChannel mChannel;
+    private final byte[] mName;
+    private final String mTarget;
+    private final int mAppCode;
+    private final int mChunkSize;
+    private final long mStart;
+    private final long mLength;
+    private final int mChunks;
+
+    private final LinkedHashMap<String, Peer> mPeers = new LinkedHashMap<>();
+    //How many chunks were sent to every receiver so far.
+    private int mSent = 0;
+    //How many chunks the slowest receiver may be behind. Shrinks when chunks get dropped on the way, grows back as they don't.
+    private int mWindow = BlobTransfers.WINDOW;
+    //The SHA-256 of the file, once every chunk was read.
+    private byte[] mDigest = null;
+    private volatile boolean isCancelled = false;
+
+    OutgoingBlob(BlobTransfers transfers, long id, FileChannel channel, String name, String target, int appCode, int chunkSize) throws IOException {
+        super("OutgoingBlob-" + Long.toHexString(id));
+        setDaemon(true);
+        this.id = id;
+        mTransfers = transfers;
+        mChannel = channel;
+        mName = name == null ? new byte[0] : name.getBytes(FrameCodec.UTF8);
+        mTarget = target;
+        mAppCode = appCode;
+        mChunkSize = chunkSize;
+        mStart = channel.position();
+        mLength = Math.max(0, channel.size() - mStart);
+        mChunks = BlobTransfers.chunks(mLength, chunkSize);
+        if (mChunks < 0)
+            throw new IOException("The file is too large: " + mLength + " bytes");
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (offer())
+                broadcast();
+            while (await())
+                maintain();
+        } catch (IOException e) {
+            //Whoever didn't get it yet is told it failed, below.
+        } catch (InterruptedException e) {
+            //Cancelled.
+        } finally {
+            giveUp();
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                //Only read from, nothing is lost.
+            }
+            mTransfers.finished(this);
+        }
+    }
+
+    void cancel() {
+        isCancelled = true;
+        interrupt();
+    }
+
+    /**
+     * Offers the file until the receiver accepts it, or for a while if it's sent to every device.
+     *
+     * @return true if anyone is receiving it
+     */
+    private boolean offer() throws InterruptedException {
+        long deadline = System.nanoTime() + ms(mTarget == null ? OFFER_WAIT_MS : PEER_TIMEOUT_MS);
+        ByteBuffer payload = ByteBuffer.allocate(8 + 8 + 4 + 4 + mName.length);
+        payload.putLong(id).putLong(mLength).putInt(mChunkSize).putInt(mAppCode).put(mName).flip();
+        long offered = 0;
+        boolean first = true;
+        while (true) {
+            long now = System.nanoTime();
+            synchronized (this) {
+                if (isCancelled)
+                    throw new InterruptedException();
+                if (mTarget != null && !mPeers.isEmpty())
+                    break;
+                if (now - deadline >= 0)
+                    break;
+            }
+            //Nobody to offer it to, not even through the host.
+            if (!mTransfers.isReachable(mTarget))
+                break;
+            if (first || now - offered >= ms(RESEND_MS)) {
+                mTransfers.send(mTarget, ControlCodes.BLOB_OFFER, Priority.INTERACTIVE, payload.duplicate());
+                offered = now;
+                first = false;
+            }
+            synchronized (this) {
+                wait(Math.max(1, Math.min(TICK_MS, TimeUnit.NANOSECONDS.toMillis(deadline - now))));
+            }
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (Peer peer : mPeers.values()) {
+                //Nothing was sent yet, nothing is missing.
+                peer.resend = false;
+                peer.heard = now;
+            }
+            return pending() > 0;
+        }
+    }
+
+    /**
+     * Sends every chunk, and the end, to every receiver, as fast as the slowest one acknowledges them.
+     */
+    private void broadcast() throws IOException, InterruptedException {
+        MessageDigest digest = BlobTransfers.newDigest();
+        ByteBuffer chunk = ByteBuffer.allocate(mChunkSize);
+        for (int index = 0; index < mChunks; index++) {
+            while (true) {
+                synchronized (this) {
+                    if (isCancelled)
+                        throw new InterruptedException();
+                    if (pending() == 0)
+                        return;
+                    if (index - lowest() < mWindow)
+                        break;
+                    wait(TICK_MS);
+                }
+                maintain();
+            }
+            read(index, chunk);
+            digest.update(chunk.duplicate());
+            if (!sendChunk(mTarget, index, chunk))
+                throw new IOException("No connection left to send " + id + " through");
+            synchronized (this) {
+                mSent = index + 1;
+            }
+            maintain();
+        }
+        byte[] sha = digest.digest();
+        synchronized (this) {
+            mDigest = sha;
+        }
+        if (!sendEnd(mTarget))
+            throw new IOException("No connection left to send " + id + " through");
+    }
+
+    /**
+     * @return false once every receiver is done
+     */
+    private boolean await() throws InterruptedException {
+        synchronized (this) {
+            if (isCancelled)
+                throw new InterruptedException();
+            if (pending() == 0)
+                return false;
+            wait(TICK_MS);
+            return true;
+        }
+    }
+
+    /**
+     * Gives up on the receivers that went silent, and sends again what the others are missing.
+     */
+    private void maintain() throws IOException, InterruptedException {
+        List<Peer> lost = new ArrayList<>();
+        List<Resend> resends = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (Peer peer : mPeers.values()) {
+                if (peer.done)
+                    continue;
+                boolean owed = peer.next < mSent || mDigest != null;
+                if (!owed) {
+                    //It has everything there is so far, it has nothing to say.
+                    peer.heard = now;
+                    continue;
+                }
+                if (now - peer.heard > ms(PEER_TIMEOUT_MS)) {
+                    peer.done = true;
+                    lost.add(peer);
+                } else if (peer.resend ? now - peer.resent > ms(NACK_INTERVAL_MS)
+                        : now - Math.max(peer.heard, peer.resent) > ms(RESEND_MS)) {
+                    if (peer.resend)
+                        mWindow = Math.max(MIN_WINDOW, mWindow / 2);
+                    peer.resend = false;
+                    peer.resent = now;
+                    int to = Math.min(mSent, peer.next + mWindow);
+                    resends.add(new Resend(peer.address, peer.next, to, mDigest != null && to == mChunks));
+                }
+            }
+        }
+        for (Peer peer : lost)
+            mTransfers.onDelivered(id, peer.address, false);
+        if (resends.isEmpty())
+            return;
+        ByteBuffer chunk = ByteBuffer.allocate(mChunkSize);
+        for (Resend resend : resends) {
+            boolean sent = true;
+            for (int index = resend.from; index < resend.to && sent; index++) {
+                read(index, chunk);
+                sent = sendChunk(resend.address, index, chunk);
+            }
+            if (sent && resend.end)
+                sent = sendEnd(resend.address);
+            if (!sent)
+                unreachable(resend.address);
+        }
+    }
+
+    /**
+     * Gives up on a receiver there is no connection to anymore.
+     */
+    private void unreachable(String address) {
+        synchronized (this) {
+            Peer peer = mPeers.get(address);
+            if (peer == null || peer.done)
+                return;
+            peer.done = true;
+            notifyAll();
+        }
+        mTransfers.onDelivered(id, address, false);
+    }
+
+    /**
+     * A receiver acknowledged the chunks before {@code next}, see {@link ControlCodes#BLOB_ACK}.
+     */
+    void onAck(String source, int next, int status) {
+        boolean verified;
+        synchronized (this) {
+            Peer peer = mPeers.get(source);
+            if (peer == null) {
+                //Only the target of a private file is heard.
+                if (mTarget != null && !mPeers.isEmpty())
+                    return;
+                peer = new Peer(source);
+                mPeers.put(source, peer);
+            }
+            if (peer.done)
+                return;
+            peer.heard = System.nanoTime();
+            if (status == BlobTransfers.STATUS_RECEIVING) {
+                if (next > peer.next) {
+                    peer.next = Math.min(next, mChunks);
+                    mWindow = Math.min(BlobTransfers.WINDOW, mWindow + 1);
+                } else
+                    peer.resend = true;
+                notifyAll();
+                return;
+            }
+            peer.done = true;
+            verified = status == BlobTransfers.STATUS_VERIFIED;
+            notifyAll();
+        }
+        mTransfers.onDelivered(id, source, verified);
+    }
+
+    /**
+     * Reports every receiver that isn't done as failed.
+     */
+    private void giveUp() {
+        List<Peer> lost = new ArrayList<>();
+        synchronized (this) {
+            if (mTarget != null && mPeers.isEmpty())
+                mPeers.put(mTarget, new Peer(mTarget));
+            for (Peer peer : mPeers.values())
+                if (!peer.done) {
+                    peer.done = true;
+                    lost.add(peer);
+                }
+        }
+        for (Peer peer : lost)
+            mTransfers.onDelivered(id, peer.address, false);
+    }
+
+    private int pending() {
+        int pending = 0;
+        for (Peer peer : mPeers.values())
+            if (!peer.done)
+                pending++;
+        return pending;
+    }
+
+    //The first chunk some receiver doesn't have.
+    private int lowest() {
+        int lowest = Integer.MAX_VALUE;
+        for (Peer peer : mPeers.values())
+            if (!peer.done)
+                lowest = Math.min(lowest, peer.next);
+        return lowest;
+    }
+
+    private void read(int index, ByteBuffer chunk) throws IOException {
+        long offset = (long) index * mChunkSize;
+        chunk.clear();
+        chunk.limit((int) Math.min(mChunkSize, mLength - offset));
+        while (chunk.hasRemaining())
+            if (mChannel.read(chunk, mStart + offset + chunk.position()) < 0)
+                throw new EOFException("The file got shorter while it was sent");
+        chunk.flip();
+    }
+
+    /**
+     * @return false if there is no connection to the receiver
+     */
+    private boolean sendChunk(String target, int index, ByteBuffer chunk) throws InterruptedException {
+        ByteBuffer payload = ByteBuffer.allocate(8 + 4 + chunk.remaining());
+        payload.putLong(id).putInt(index).put(chunk.duplicate()).flip();
+        return sendBulk(target, ControlCodes.BLOB_CHUNK, payload);
+    }
+
+    /**
+     * @return false if there is no connection to the receiver
+     */
+    private boolean sendEnd(String target) throws InterruptedException {
+        ByteBuffer payload = ByteBuffer.allocate(8 + BlobTransfers.DIGEST_LENGTH);
+        synchronized (this) {
+            payload.putLong(id).put(mDigest).flip();
+        }
+        //In the same lane as the chunks, so it doesn't overtake them.
+        return sendBulk(target, ControlCodes.BLOB_END, payload);
+    }
+
+    /**
+     * Sends a frame, waiting for room while a connection of this device has none. What gets dropped further on is
+     * sent again once the receiver reports it missing.
+     *
+     * @return false if there is no connection to the receiver, so waiting for room is pointless
+     */
+    private boolean sendBulk(String target, int appCode, ByteBuffer payload) throws InterruptedException {
+        long deadline = System.nanoTime() + ms(PEER_TIMEOUT_MS);
+        while (!mTransfers.send(target, appCode, Priority.BULK, payload.duplicate()) && System.nanoTime() - deadline < 0) {
+            if (!mTransfers.isReachable(target))
+                return false;
+            if (isCancelled)
+                throw new InterruptedException();
+            Thread.sleep(BACKOFF_MS);
+        }
+        return true;
+    }
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,77 @@
+package grioanpier.auth.users.bluetoothframework.transport;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.util.UUID;
+
+import grioanpier.auth.users.bluetoothframework.trace.FlightRecorder;
+
+/**
+ * Records every connection attempt and every accepted connection of another {@link Transport} in a {@link FlightRecorder}.
+ */
+public class RecordingTransport implements Transport {
+
+    private final Transport mTransport;
+    private final FlightRecorder mRecorder;
+
+    public RecordingTransport(Transport transport, FlightRecorder recorder) {
+        mTransport = transport;
+        mRecorder = recorder;
+    }
+
+    @Override
+    public TransportSocket connect(String address, UUID slot) throws IOException {
+        mRecorder.record(FlightRecorder.Event.CONNECT_ATTEMPT, address, slot);
+        try {
+            TransportSocket socket = mTransport.connect(address, slot);
+            mRecorder.record(FlightRecorder.Event.CONNECTED, address, slot);
+            return socket;
+        } catch (IOException e) {
+            mRecorder.record(FlightRecorder.Event.CONNECT_FAILED, address, slot);
+            throw e;
+        }
+    }
+
+    @Override
+    public TransportServerSocket listen(final UUID slot) throws IOException {
+        final TransportServerSocket serverSocket;
+        try {
+            serverSocket = mTransport.listen(slot);
+        } catch (IOException e) {
+            mRecorder.record(FlightRecorder.Event.ACCEPT_FAILED, null, slot);
+            throw e;
+        }
+        mRecorder.record(FlightRecorder.Event.LISTEN, null, slot);
+        return new TransportServerSocket() {
+            @Override
+            public TransportSocket accept() throws IOException {
+                try {
+                    TransportSocket socket = serverSocket.accept();
+                    mRecorder.record(FlightRecorder.Event.ACCEPTED, socket.getRemoteAddress(), slot);
+                    return socket;
+                } catch (IOException e) {
+                    mRecorder.record(FlightRecorder.Event.ACCEPT_FAILED, null, slot);
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+}
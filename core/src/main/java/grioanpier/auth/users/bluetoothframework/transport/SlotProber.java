@@ -0,0 +1,303 @@
+package grioanpier.auth.users.bluetoothframework.transport;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the slot a host has free and connects to it. Instead of walking every slot in order, it tries the slot
+ * that worked the last time for the same host first, skips the slots the host doesn't advertise, and gives up once
+ * the timeout expires. Every attempt is timed, so the latency of joining can be tracked.
+ * <p/>
+ * One prober should be kept for the lifetime of the app, since that's where the last slot of every host is kept.
+ */
+public class SlotProber {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 15000;
+
+    private final ConcurrentHashMap<String, UUID> mLastSlots = new ConcurrentHashMap<>();
+    private volatile int mParallelism = 1;
+    private volatile long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    /**
+     * How many slots may be tried at once. The first connection wins and the rest are closed as they complete.
+     * Defaults to 1, since most Bluetooth stacks serialize the connections to the same device anyway.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("The parallelism must be at least 1");
+        mParallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * How long {@link #connect} may take overall. An attempt that is still in progress when it expires is abandoned
+     * and its socket closed if it ever connects.
+     */
+    public void setTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    public long getTimeout() {
+        return mTimeoutMillis;
+    }
+
+    /**
+     * @return the slot this device last connected to the host on, null if none
+     */
+    public UUID getLastSlot(String address) {
+        return mLastSlots.get(address);
+    }
+
+    public void forget(String address) {
+        mLastSlots.remove(address);
+    }
+
+    /**
+     * @param slots      the slots to choose from, in order of preference
+     * @param advertised the slots the host advertises, null if they aren't known
+     * @return the slots to try, in the order they are tried
+     */
+    public List<UUID> order(String address, UUID[] slots, Collection<UUID> advertised) {
+        Set<UUID> order = new LinkedHashSet<>();
+        UUID last = mLastSlots.get(address);
+        if (last != null && contains(slots, last) && (advertised == null || advertised.contains(last)))
+            order.add(last);
+        for (UUID slot : slots) {
+            if (advertised == null || advertised.contains(slot))
+                order.add(slot);
+        }
+        return new ArrayList<>(order);
+    }
+
+    private static boolean contains(UUID[] slots, UUID slot) {
+        for (UUID candidate : slots)
+            if (candidate.equals(slot))
+                return true;
+        return false;
+    }
+
+    /**
+     * Connects to the host on one of the slots. Blocks until a connection is established, every slot has failed or
+     * the timeout expires.
+     *
+     * @param transport  what to connect with
+     * @param slots      the slots to choose from, in order of preference
+     * @param advertised the slots the host advertises, null if they aren't known. If known and none of them is
+     *                   among the slots, the host is full and nothing is tried.
+     * @return the outcome, with the socket if a connection was established
+     */
+    public Result connect(Transport transport, String address, UUID[] slots, Collection<UUID> advertised) {
+        return connect(transport, address, slots, advertised, null);
+    }
+
+    /**
+     * Carries on from a previous {@link #connect} to the same host that didn't connect, for example after trying the
+     * last slot while the advertised slots were still being looked up. The slots already tried are skipped, and the
+     * timeout and the timings count from the start of the previous one.
+     */
+    public Result connect(Transport transport, String address, UUID[] slots, Collection<UUID> advertised, Result previous) {
+        long start = previous == null ? System.nanoTime() : previous.mStart;
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(mTimeoutMillis);
+        int parallelism = mParallelism;
+        Round round = new Round(transport, address);
+        List<Attempt> attempts = new ArrayList<>();
+        Attempt winner = null;
+        boolean timedOut = false;
+
+        List<UUID> order = order(address, slots, advertised);
+        if (previous != null) {
+            attempts.addAll(previous.mAttempts);
+            for (Attempt attempt : previous.mAttempts)
+                order.remove(attempt.slot);
+        }
+        Iterator<UUID> next = order.iterator();
+        int inFlight = 0;
+        try {
+            while (true) {
+                while (inFlight < parallelism && next.hasNext()) {
+                    round.start(next.next());
+                    inFlight++;
+                }
+                if (inFlight == 0)
+                    break;
+                long remaining = deadline - System.nanoTime();
+                Attempt attempt = remaining > 0 ? round.outcomes.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (attempt == null) {
+                    timedOut = true;
+                    break;
+                }
+                inFlight--;
+                attempts.add(attempt);
+                if (attempt.socket != null) {
+                    winner = attempt;
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            round.finish(winner);
+        }
+
+        if (winner != null)
+            mLastSlots.put(address, winner.slot);
+        return new Result(winner == null ? null : winner.socket, Collections.unmodifiableList(attempts), start, System.nanoTime() - start, timedOut);
+    }
+
+    /**
+     * The attempts of a single {@link #connect}. Every attempt runs on its own thread, since a connection can't be
+     * interrupted once started.
+     */
+    private static class Round {
+        final Transport transport;
+        final String address;
+        final BlockingQueue<Attempt> outcomes = new LinkedBlockingQueue<>();
+        //Once finished, whatever connects is closed instead of reported.
+        private boolean finished = false;
+
+        Round(Transport transport, String address) {
+            this.transport = transport;
+            this.address = address;
+        }
+
+        void start(final UUID slot) {
+            Thread thread = new Thread("SlotProber-" + address + "-" + slot) {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    TransportSocket socket = null;
+                    try {
+                        socket = transport.connect(address, slot);
+                    } catch (IOException e) {
+                        //The slot is taken or the host is gone, that's what the attempt is for.
+                    }
+                    report(new Attempt(slot, socket, System.nanoTime() - start));
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private synchronized void report(Attempt attempt) {
+            if (finished)
+                close(attempt.socket);
+            else
+                outcomes.add(attempt);
+        }
+
+        synchronized void finish(Attempt winner) {
+            finished = true;
+            for (Attempt attempt : outcomes)
+                if (attempt != winner)
+                    close(attempt.socket);
+        }
+
+        private static void close(TransportSocket socket) {
+            if (socket == null)
+                return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    public static final class Attempt {
+        public final UUID slot;
+        //Only the winning attempt keeps its socket around.
+        final TransportSocket socket;
+        /**
+         * How long the attempt took.
+         */
+        public final long nanos;
+
+        Attempt(UUID slot, TransportSocket socket, long nanos) {
+            this.slot = slot;
+            this.socket = socket;
+            this.nanos = nanos;
+        }
+
+        public boolean isConnected() {
+            return socket != null;
+        }
+
+        @Override
+        public String toString() {
+            return slot + (socket != null ? " connected in " : " failed in ") + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+        }
+    }
+
+    public static final class Result {
+        private final TransportSocket mSocket;
+        private final List<Attempt> mAttempts;
+        private final long mStart;
+        private final long mElapsedNanos;
+        private final boolean mTimedOut;
+
+        Result(TransportSocket socket, List<Attempt> attempts, long start, long elapsedNanos, boolean timedOut) {
+            mSocket = socket;
+            mAttempts = attempts;
+            mStart = start;
+            mElapsedNanos = elapsedNanos;
+            mTimedOut = timedOut;
+        }
+
+        /**
+         * @return the connected socket, null if no slot could be connected to
+         */
+        public TransportSocket getSocket() {
+            return mSocket;
+        }
+
+        /**
+         * @return the attempts that completed, in the order they did. Abandoned attempts aren't included.
+         */
+        public List<Attempt> getAttempts() {
+            return mAttempts;
+        }
+
+        /**
+         * @return how long joining took, from the first attempt until the outcome was known
+         */
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        public boolean isTimedOut() {
+            return mTimedOut;
+        }
+
+        @Override
+        public String toString() {
+            return (mSocket != null ? "Connected" : mTimedOut ? "Timed out" : "Failed") + " in " + TimeUnit.NANOSECONDS.toMillis(mElapsedNanos) + "ms " + mAttempts;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package grioanpier.auth.users.bluetoothframework.transport;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * The way devices reach each other. The framework only ever talks to a {@link Transport}, so the same routing and
+ * framing code runs over RFCOMM on the phones and over in-memory pipes or localhost TCP on a development machine.
+ * <p/>
+ * Devices are identified by an address (the MAC for RFCOMM) and every connection is made on a slot, a {@link UUID}
+ * the host listens on. A host listens on one slot per player it can accept.
+ */
+public interface Transport {
+
+    /**
+     * Connects to a device that listens on the given slot. Blocks until the connection is established or fails.
+     *
+     * @param address the address of the remote device
+     * @param slot    the slot the remote device listens on
+     * @return the connected socket
+     * @throws IOException if the connection can't be established
+     */
+    TransportSocket connect(String address, UUID slot) throws IOException;
+
+    /**
+     * Starts listening for incoming connections on a slot.
+     *
+     * @param slot the slot to listen on
+     * @return a server socket to accept connections from
+     * @throws IOException if the slot can't be listened on, for example because it's already in use
+     */
+    TransportServerSocket listen(UUID slot) throws IOException;
+}
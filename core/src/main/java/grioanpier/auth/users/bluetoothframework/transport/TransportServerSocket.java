@@ -0,0 +1,38 @@
+package grioanpier.auth.users.bluetoothframework.transport;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Listens for incoming connections on a single slot.
+ */
+public interface TransportServerSocket extends Closeable {
+
+    /**
+     * Blocks until a device connects.
+     *
+     * @return the connected socket
+     * @throws IOException if the server socket is closed while waiting or fails
+     */
+    TransportSocket accept() throws IOException;
+
+    /**
+     * Stops listening. A thread blocked in {@link #accept()} fails with an {@link IOException}.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,46 @@
+package grioanpier.auth.users.bluetoothframework.transport;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connected, bidirectional byte stream between this device and a remote one.
+ */
+public interface TransportSocket extends Closeable {
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * @return the address of the remote device. It identifies the connection.
+     */
+    String getRemoteAddress();
+
+    /**
+     * @return the human readable name of the remote device, or null if it isn't known
+     */
+    String getRemoteName();
+
+    /**
+     * Closes the connection. Blocked reads and writes on its streams fail with an {@link IOException}.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,174 @@
+package grioanpier.auth.users.bluetoothframework.transport.memory;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, blocking byte pipe with one writing end and one reading end, used for one direction of an
+ * {@link InMemorySocket}. Unlike {@link java.io.PipedInputStream} it doesn't care which threads use it.
+ * <p/>
+ * Closing the writing end lets the reader drain what's left and then read end-of-stream.
+ * Closing the reading end makes every further read and write fail, like a closed socket.
+ */
+class BytePipe {
+
+    private final byte[] mBuffer;
+    private int mHead = 0;
+    private int mSize = 0;
+    private boolean mWriterClosed = false;
+    private boolean mReaderClosed = false;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = read(one, 0, 1);
+            return read == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return BytePipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            mLock.lock();
+            try {
+                return mSize;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            BytePipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    };
+
+    BytePipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        mLock.lock();
+        try {
+            while (mSize == 0) {
+                if (mReaderClosed)
+                    throw new IOException("Pipe closed");
+                if (mWriterClosed)
+                    return -1;
+                mNotEmpty.await();
+            }
+            if (mReaderClosed)
+                throw new IOException("Pipe closed");
+            int read = Math.min(len, mSize);
+            int first = Math.min(read, mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, read - first);
+            mHead = (mHead + read) % mBuffer.length;
+            mSize -= read;
+            mNotFull.signalAll();
+            return read;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        mLock.lock();
+        try {
+            while (len > 0) {
+                while (mSize == mBuffer.length && !mReaderClosed && !mWriterClosed)
+                    mNotFull.await();
+                if (mReaderClosed || mWriterClosed)
+                    throw new IOException("Pipe closed");
+                int tail = (mHead + mSize) % mBuffer.length;
+                int written = Math.min(len, Math.min(mBuffer.length - mSize, mBuffer.length - tail));
+                System.arraycopy(b, off, mBuffer, tail, written);
+                mSize += written;
+                off += written;
+                len -= written;
+                mNotEmpty.signalAll();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void closeWriter() {
+        mLock.lock();
+        try {
+            mWriterClosed = true;
+            mNotEmpty.signalAll();
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void closeReader() {
+        mLock.lock();
+        try {
+            mReaderClosed = true;
+            mNotEmpty.signalAll();
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package grioanpier.auth.users.bluetoothframework.transport.memory;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import grioanpier.auth.users.bluetoothframework.transport.Transport;
+import grioanpier.auth.users.bluetoothframework.transport.TransportServerSocket;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+
+/**
+ * A set of simulated devices living in the same JVM. Every device gets its own {@link Transport} from
+ * {@link #attach(String, String)} and the devices connect to each other through in-memory pipes.
+ * Meant for tests, benchmarks and load tests that need many devices and no radio.
+ */
+public class InMemoryNetwork {
+
+    /**
+     * How many bytes a pipe holds before its writer blocks. Comparable to the buffers of a real socket.
+     */
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    private final ConcurrentHashMap<String, InMemoryServerSocket> mListening = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> mNames = new ConcurrentHashMap<>();
+    private final int mPipeCapacity;
+
+    public InMemoryNetwork() {
+        this(DEFAULT_PIPE_CAPACITY);
+    }
+
+    public InMemoryNetwork(int pipeCapacity) {
+        mPipeCapacity = pipeCapacity;
+    }
+
+    /**
+     * Adds a device to the network.
+     *
+     * @param address the address of the device. Other devices connect to it and see it by this address.
+     * @param name    the name of the device
+     * @return the transport the device uses
+     */
+    public Transport attach(final String address, final String name) {
+        if (name != null)
+            mNames.put(address, name);
+        return new Transport() {
+            @Override
+            public TransportSocket connect(String remoteAddress, UUID slot) throws IOException {
+                return InMemoryNetwork.this.connect(address, name, remoteAddress, slot);
+            }
+
+            @Override
+            public TransportServerSocket listen(UUID slot) throws IOException {
+                return InMemoryNetwork.this.listen(address, slot);
+            }
+        };
+    }
+
+    private TransportServerSocket listen(String address, UUID slot) throws IOException {
+        InMemoryServerSocket serverSocket = new InMemoryServerSocket(this, address, slot);
+        if (mListening.putIfAbsent(key(address, slot), serverSocket) != null)
+            throw new IOException(address + " already listens on " + slot);
+        return serverSocket;
+    }
+
+    private TransportSocket connect(String localAddress, String localName, String remoteAddress, UUID slot) throws IOException {
+        InMemoryServerSocket serverSocket = mListening.get(key(remoteAddress, slot));
+        if (serverSocket == null)
+            throw new IOException(remoteAddress + " doesn't listen on " + slot);
+
+        BytePipe toRemote = new BytePipe(mPipeCapacity);
+        BytePipe fromRemote = new BytePipe(mPipeCapacity);
+        InMemorySocket local = new InMemorySocket(fromRemote, toRemote, remoteAddress, mNames.get(remoteAddress));
+        InMemorySocket remote = new InMemorySocket(toRemote, fromRemote, localAddress, localName);
+        if (!serverSocket.offer(remote))
+            throw new IOException(remoteAddress + " stopped listening on " + slot);
+        return local;
+    }
+
+    void unregister(String address, UUID slot, InMemoryServerSocket serverSocket) {
+        mListening.remove(key(address, slot), serverSocket);
+    }
+
+    private static String key(String address, UUID slot) {
+        return address + '/' + slot;
+    }
+}
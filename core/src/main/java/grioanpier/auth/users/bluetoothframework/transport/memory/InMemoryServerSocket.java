@@ -0,0 +1,83 @@
+package grioanpier.auth.users.bluetoothframework.transport.memory;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import grioanpier.auth.users.bluetoothframework.transport.TransportServerSocket;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+
+/**
+ * Accepts the in-memory connections made to one slot of one device.
+ */
+class InMemoryServerSocket implements TransportServerSocket {
+
+    //Wakes up accept() when the server socket is closed.
+    private static final InMemorySocket CLOSED = new InMemorySocket(null, null, null, null);
+
+    private final InMemoryNetwork mNetwork;
+    private final String mAddress;
+    private final UUID mSlot;
+    private final LinkedBlockingQueue<InMemorySocket> mPending = new LinkedBlockingQueue<>();
+    private volatile boolean mClosed = false;
+
+    InMemoryServerSocket(InMemoryNetwork network, String address, UUID slot) {
+        mNetwork = network;
+        mAddress = address;
+        mSlot = slot;
+    }
+
+    /**
+     * Hands a newly connected socket to {@link #accept()}.
+     *
+     * @return false if the server socket has been closed
+     */
+    boolean offer(InMemorySocket socket) {
+        if (mClosed)
+            return false;
+        mPending.add(socket);
+        return true;
+    }
+
+    @Override
+    public TransportSocket accept() throws IOException {
+        InMemorySocket socket;
+        try {
+            socket = mPending.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while accepting", e);
+        }
+        if (socket == CLOSED) {
+            mPending.add(CLOSED);
+            throw new IOException("Server socket closed");
+        }
+        return socket;
+    }
+
+    @Override
+    public void close() {
+        if (mClosed)
+            return;
+        mClosed = true;
+        mNetwork.unregister(mAddress, mSlot, this);
+        mPending.add(CLOSED);
+        //Connections that were never accepted are refused.
+        for (InMemorySocket socket : mPending)
+            if (socket != CLOSED)
+                socket.close();
+    }
+}
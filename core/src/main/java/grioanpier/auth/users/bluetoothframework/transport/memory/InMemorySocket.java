@@ -0,0 +1,67 @@
+package grioanpier.auth.users.bluetoothframework.transport.memory;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+
+/**
+ * One end of an in-memory connection: reads from one {@link BytePipe} and writes to the other.
+ */
+class InMemorySocket implements TransportSocket {
+
+    private final BytePipe mIn;
+    private final BytePipe mOut;
+    private final String mRemoteAddress;
+    private final String mRemoteName;
+
+    InMemorySocket(BytePipe in, BytePipe out, String remoteAddress, String remoteName) {
+        mIn = in;
+        mOut = out;
+        mRemoteAddress = remoteAddress;
+        mRemoteName = remoteName;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mIn.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOut.getOutputStream();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    @Override
+    public String getRemoteName() {
+        return mRemoteName;
+    }
+
+    /**
+     * Closes both directions: the remote device reads end-of-stream and its writes fail.
+     */
+    @Override
+    public void close() {
+        mIn.closeReader();
+        mOut.closeWriter();
+    }
+}
@@ -0,0 +1,158 @@
+package grioanpier.auth.users.bluetoothframework.transport.tcp;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import grioanpier.auth.users.bluetoothframework.transport.Transport;
+import grioanpier.auth.users.bluetoothframework.transport.TransportServerSocket;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+
+/**
+ * A {@link Transport} over TCP, meant for running several simulated devices on one machine (or a LAN).
+ * Every slot is mapped to a port: the n-th slot of the list is {@code basePort + n}.
+ * <p/>
+ * TCP has no notion of a device address or name, so right after a connection is established both ends introduce
+ * themselves with their address and name. The address a device introduces itself with is the one the other end
+ * sees as {@link TransportSocket#getRemoteAddress()}, exactly like a MAC address over RFCOMM.
+ */
+public class TcpTransport implements Transport {
+
+    private final String mLocalAddress;
+    private final String mLocalName;
+    private final String mBindHost;
+    private final int mBasePort;
+    private final List<UUID> mSlots;
+
+    /**
+     * @param localAddress the address this device introduces itself with
+     * @param localName    the name this device introduces itself with
+     * @param bindHost     the interface to listen on, for example "127.0.0.1"
+     * @param basePort     the port of the first slot
+     * @param slots        the slots, in the order they are mapped to ports
+     */
+    public TcpTransport(String localAddress, String localName, String bindHost, int basePort, UUID... slots) {
+        mLocalAddress = localAddress;
+        mLocalName = localName;
+        mBindHost = bindHost;
+        mBasePort = basePort;
+        mSlots = Arrays.asList(slots);
+    }
+
+    /**
+     * @param address "host:basePort" of the remote device, or just "host" if it uses the same base port as this one
+     */
+    @Override
+    public TransportSocket connect(String address, UUID slot) throws IOException {
+        String host = address;
+        int basePort = mBasePort;
+        int colon = address.lastIndexOf(':');
+        if (colon != -1) {
+            host = address.substring(0, colon);
+            basePort = Integer.parseInt(address.substring(colon + 1));
+        }
+        Socket socket = new Socket(host, basePort + portOffset(slot));
+        return introduce(socket);
+    }
+
+    @Override
+    public TransportServerSocket listen(UUID slot) throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(mBindHost, mBasePort + portOffset(slot)));
+        return new TransportServerSocket() {
+            @Override
+            public TransportSocket accept() throws IOException {
+                return introduce(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    private int portOffset(UUID slot) throws IOException {
+        int index = mSlots.indexOf(slot);
+        if (index == -1)
+            throw new IOException("Unknown slot " + slot);
+        return index;
+    }
+
+    private TransportSocket introduce(Socket socket) throws IOException {
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(mLocalAddress);
+            out.writeUTF(mLocalName == null ? "" : mLocalName);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String remoteAddress = in.readUTF();
+            String remoteName = in.readUTF();
+            return new TcpSocket(socket, remoteAddress, remoteName.isEmpty() ? null : remoteName);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static class TcpSocket implements TransportSocket {
+        private final Socket mSocket;
+        private final String mRemoteAddress;
+        private final String mRemoteName;
+
+        TcpSocket(Socket socket, String remoteAddress, String remoteName) {
+            mSocket = socket;
+            mRemoteAddress = remoteAddress;
+            mRemoteName = remoteName;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteName;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+
+/**
+ * The settings of payload compression, shared by every connection of a device. Connections whose other end reads
+ * compressed frames deflate the payloads of the application's messages that are long enough, each payload on its own:
+ * <pre>
+ * [length][zlib stream]
+ *  varint
+ * </pre>
+ * where the length is that of the payload once inflated. Since no state carries over from one payload to the next, the
+ * host relays compressed frames as they are and only the devices that consume them inflate them.
+ * <p/>
+ * Short messages barely compress on their own, which is what dictionaries are for: the bytes the messages of an app code
+ * usually contain, the most common last. Every device must be given the same dictionaries. The zlib stream names the one it
+ * was compressed with, so a device that doesn't have it fails to read the message instead of reading garbage.
+ */
+public final class Compression {
+
+    /**
+     * Payloads shorter than this are sent as they are.
+     */
+    public static final int DEFAULT_THRESHOLD = 128;
+
+    /**
+     * Told how long deflating and inflating took and what it saved. Called on the thread that did it.
+     */
+    public interface Listener {
+        /**
+         * A payload was deflated, or would have been if it had gotten shorter.
+         *
+         * @param length           the length of the payload
+         * @param compressedLength the length it was sent with, {@code length} if it was sent as it was
+         * @param nanos            how long it took
+         */
+        void onDeflated(int length, int compressedLength, long nanos);
+
+        /**
+         * A compressed payload was inflated.
+         */
+        void onInflated(int compressedLength, int length, long nanos);
+    }
+
+    static final class Dictionary {
+        final byte[] bytes;
+        final int adler;
+
+        Dictionary(byte[] bytes) {
+            this.bytes = bytes;
+            Adler32 checksum = new Adler32();
+            checksum.update(bytes, 0, bytes.length);
+            adler = (int) checksum.getValue();
+        }
+    }
+
+    private volatile boolean isEnabled = true;
+    private volatile int mThreshold = DEFAULT_THRESHOLD;
+    private final int mMaxLength;
+    private final ConcurrentHashMap<Integer, Dictionary> mDictionaries = new ConcurrentHashMap<>();
+
+    public Compression() {
+        this(FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @param maxLength compressed payloads that claim to inflate to more are refused, so a corrupted length can't make
+     *                  a device allocate an arbitrary amount of memory
+     */
+    public Compression(int maxLength) {
+        mMaxLength = maxLength;
+    }
+
+    /**
+     * @param enabled false to send every payload as it is. Compressed frames are still read.
+     */
+    public void setEnabled(boolean enabled) {
+        isEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * @param threshold the length payloads must have to be compressed, in bytes
+     */
+    public void setThreshold(int threshold) {
+        mThreshold = threshold;
+    }
+
+    public int getThreshold() {
+        return mThreshold;
+    }
+
+    int getMaxLength() {
+        return mMaxLength;
+    }
+
+    /**
+     * Sets the preset dictionary of an app code. Messages that are already on their way keep the one they were compressed with.
+     *
+     * @param dictionary the dictionary, not copied. Null to compress the messages of the app code without one.
+     */
+    public void setDictionary(int appCode, byte[] dictionary) {
+        if (dictionary == null || dictionary.length == 0)
+            mDictionaries.remove(appCode);
+        else
+            mDictionaries.put(appCode, new Dictionary(dictionary));
+    }
+
+    Dictionary dictionary(int appCode) {
+        return mDictionaries.get(appCode);
+    }
+}
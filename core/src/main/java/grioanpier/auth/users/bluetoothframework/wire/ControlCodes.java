@@ -0,0 +1,151 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+/**
+ * Application codes that are used by the framework itself. Every app code below zero is reserved, so frames carrying
+ * one of them are handled internally and are never forwarded to the Handlers of the application.
+ * <p/>
+ * Codes down to {@link #LINK_CONTROL_MIN} control the connection they are written to and are never relayed. The ones
+ * below it are messages between the frameworks of two devices, which the host relays like any other message.
+ */
+public final class ControlCodes {
+
+    /**
+     * Sent by a device that runs in legacy compatibility mode right after a connection is established, written in
+     * {@link WireFormat#LEGACY_TEXT} so that legacy devices can parse (and ignore) it. A device that understands
+     * {@link WireFormat#BINARY} answers with a binary hello and both ends switch to the binary framing.
+     */
+    public static final int HELLO = -1;
+
+    /**
+     * A heartbeat, sent to a directly connected device every so often and never relayed. The payload is the time it
+     * was sent, in the sender's {@link System#nanoTime()}, which the other device echoes back in a {@link #PONG}.
+     * Devices that don't know it ignore it, like any reserved code.
+     */
+    public static final int PING = -2;
+
+    /**
+     * The answer to a {@link #PING}, with the same payload.
+     */
+    public static final int PONG = -3;
+
+    /**
+     * Opens or resumes a session on a connection that was just established, never relayed. The payload is
+     * {@code id:received:next:resumed:limit:features}: the session id, how many frames the sender has read in the session,
+     * the number of the next frame it will write, in the answer of the host 1 if the session was resumed, the last frame
+     * the other device may write, -1 for no limit, and what the sender reads: 1 if it reads compressed frames, plus 2 if it
+     * reads frames that name devices by their id, plus 4 if it reads frames that carry a lane, a trace or a fragment.
+     * Older devices leave the last fields out.
+     */
+    public static final int SESSION = -4;
+
+    /**
+     * Acknowledges, cumulatively, the frames read in a session and gives credit for more. The payload is
+     * {@code received:limit}: how many have been read so far and the last frame the other device may write, which is
+     * left out if there is no limit.
+     */
+    public static final int ACK = -5;
+
+    /**
+     * Ends a session on purpose, right before the connection is closed, so the other device doesn't hold it waiting
+     * for a resume.
+     */
+    public static final int BYE = -6;
+
+    /**
+     * The roster of the session, written by the host to every player and never relayed. Either the whole roster,
+     * {@code [0][version][id of the player 1B][count]} followed by {@code [id 1B][device]} for every device, or what
+     * changed since the version the player has, {@code [1][version][since][count]} followed by {@code [id 1B][kind 1B]}
+     * and then {@code [device]} for one that joined, nothing for one that left, {@code [round trip time + 1]} for one
+     * whose round trip time changed. A device is {@code [address length][address][name length][name][age][round trip
+     * time + 1]}, the name empty if it isn't known, the age in milliseconds since it joined and the round trip time to
+     * the host in milliseconds, 0 if it isn't known. Every number but the ids and kinds is a varint.
+     * <p/>
+     * A player whose version an update doesn't follow from writes an empty one back, and is written the whole roster.
+     * See {@link grioanpier.auth.users.bluetoothframework.session.PeerTable}.
+     */
+    public static final int PEERS = -7;
+
+    /**
+     * The lowest code that controls a connection.
+     */
+    public static final int LINK_CONTROL_MIN = -15;
+
+    /**
+     * Offers a file. The payload is {@code [id 8B][length 8B][chunk size 4B][appCode 4B][name]}, the name in UTF-8.
+     * See {@link grioanpier.auth.users.bluetoothframework.transfer.BlobTransfers}.
+     */
+    public static final int BLOB_OFFER = -16;
+
+    /**
+     * A chunk of a file: {@code [id 8B][index 4B][bytes]}.
+     */
+    public static final int BLOB_CHUNK = -17;
+
+    /**
+     * Sent back to the sender of a file: {@code [id 8B][next 4B][status 1B]}, how many chunks were received in order
+     * and whether the transfer is still going, done, failed or refused.
+     */
+    public static final int BLOB_ACK = -18;
+
+    /**
+     * Follows the last chunk of a file: {@code [id 8B][SHA-256 32B]}, the digest of the whole file.
+     */
+    public static final int BLOB_END = -19;
+
+    /**
+     * Opens a stream to a directly connected device. The payload is {@code [id 4B][priority 1B][name]}, the ordinal of
+     * the lane both ends write it in and the name in UTF-8. The id is odd if the host opened it. See
+     * {@link grioanpier.auth.users.bluetoothframework.stream.VirtualStreams}.
+     */
+    public static final int STREAM_OPEN = -20;
+
+    /**
+     * Bytes of a stream: {@code [id 4B][bytes]}.
+     */
+    public static final int STREAM_DATA = -21;
+
+    /**
+     * Gives credit for more bytes of a stream: {@code [id 4B][limit 8B]}, how many bytes the other device may have
+     * written to it since it was opened.
+     */
+    public static final int STREAM_CREDIT = -22;
+
+    /**
+     * Closes one direction of a stream: {@code [id 4B][how 1B]}, 0 if the sender won't write to it anymore, 1 if it
+     * won't read from it anymore, so the other device has to stop writing.
+     */
+    public static final int STREAM_CLOSE = -23;
+
+    private ControlCodes() {}
+
+    /**
+     * @param appCode the app code of a frame
+     * @return true if the app code belongs to the framework and not to the application
+     */
+    public static boolean isReserved(int appCode) {
+        return appCode < 0;
+    }
+
+    /**
+     * @param appCode the app code of a frame
+     * @return true if the frame controls the connection it was read from and is handled there
+     */
+    public static boolean isLinkControl(int appCode) {
+        return appCode < 0 && appCode >= LINK_CONTROL_MIN;
+    }
+}
@@ -0,0 +1,229 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+
+/**
+ * Puts fragmented messages back together, see {@link FrameCodec#fragment}. A device writes the fragments of a message
+ * one after the other in the lane of the message, and the host relays them the same way, so fragments that come from
+ * the same source in the same lane always belong to the same message until it's complete.
+ * <p/>
+ * Safe for concurrent use, as long as the fragments of each source and lane are added by a single thread at a time,
+ * which is the reading thread of the connection they come from.
+ * <p/>
+ * What a source left unfinished is {@link #discard discarded} when it leaves, so a device that is given its id later
+ * doesn't add to it. Messages that go unfinished for too long, or that would hold more memory than allowed altogether,
+ * are discarded too, oldest first.
+ */
+public final class FragmentAssembler {
+
+    private static final class Partial {
+        //The address of the source, null if it was named by an id that wasn't known.
+        volatile String source;
+        final boolean relayWhole;
+        final long started = System.nanoTime();
+        final byte[] payload;
+        int length = 0;
+
+        Partial(String source, int length, boolean relayWhole) {
+            this.source = source;
+            this.relayWhole = relayWhole;
+            payload = new byte[length];
+        }
+    }
+
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60000;
+
+    private final int mMaxMessageLength;
+    private final long mMaxPendingBytes;
+    private final long mMaxAge;
+    private final ConcurrentHashMap<String, Partial> mPartials = new ConcurrentHashMap<>();
+    private final AtomicLong mPendingBytes = new AtomicLong();
+
+    public FragmentAssembler() {
+        this(FrameDecoder.DEFAULT_MAX_FRAME_LENGTH, 4L * FrameDecoder.DEFAULT_MAX_FRAME_LENGTH, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param maxMessageLength longer messages are refused, so a corrupted length can't make the assembler allocate an
+     *                         arbitrary amount of memory
+     * @param maxPendingBytes  how much the messages that are partly put back together may hold altogether
+     * @param maxAgeMillis     how long a message may stay partly put back together
+     */
+    public FragmentAssembler(int maxMessageLength, long maxPendingBytes, long maxAgeMillis) {
+        mMaxMessageLength = maxMessageLength;
+        mMaxPendingBytes = maxPendingBytes;
+        mMaxAge = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /**
+     * Adds the payload of a fragment.
+     *
+     * @param header the header of the fragment, read with {@link FrameCodec#readHeader}
+     * @return the whole message once its last fragment is added, null until then
+     * @throws IllegalArgumentException if the fragment doesn't follow the last one that was added for its source and
+     *                                  lane, the message is too long or its compressed payload can't be inflated.
+     *                                  What was added so far is discarded.
+     */
+    public BluetoothMessage add(FrameHeader header) {
+        return add(header, false);
+    }
+
+    /**
+     * Same, marking the message as one the host relays whole, see {@link #isRelayedWhole}.
+     *
+     * @param relayWhole only taken into account for the first fragment of a message
+     */
+    public BluetoothMessage add(FrameHeader header, boolean relayWhole) {
+        String source = header.getSource();
+        String key = keyOf(header, source);
+        String idKey = idKeyOf(header, source);
+        int length = header.getMessageLength();
+        Partial partial;
+        if (header.getFragmentOffset() == 0) {
+            remove(key);
+            if (idKey != null)
+                remove(idKey);
+            if (length > mMaxMessageLength)
+                throw new IllegalArgumentException("Message of " + length + " bytes exceeds the limit of " + mMaxMessageLength);
+            makeRoom(length);
+            partial = new Partial(source, length, relayWhole);
+            mPartials.put(key, partial);
+            mPendingBytes.addAndGet(length);
+        } else {
+            partial = find(key, idKey, source);
+            if (partial == null || partial.length != header.getFragmentOffset() || partial.payload.length != length) {
+                remove(key);
+                throw new IllegalArgumentException("Fragment at " + header.getFragmentOffset() + " of a message of " + length
+                        + " bytes doesn't follow " + (partial == null ? "anything" : partial.length + " bytes of a message of " + partial.payload.length));
+            }
+        }
+        header.copyPayload(partial.payload, partial.length);
+        partial.length += header.getPayloadLength();
+        if (partial.length < length)
+            return null;
+        remove(key);
+
+        BluetoothMessage message = new BluetoothMessage();
+        message.isGlobal = header.isGlobal();
+        message.targetMAC = header.getTarget();
+        message.sourceMAC = header.getSource();
+        message.appCode = header.getAppCode();
+        message.traceId = header.getTraceId();
+        message.traceTime = header.getTraceTime();
+        message.priority = header.getPriority();
+        byte[] payload = header.isCompressed() ? FrameCodec.inflate(header, ByteBuffer.wrap(partial.payload)) : partial.payload;
+        message.content = new String(payload, FrameCodec.UTF8);
+        return message;
+    }
+
+    /**
+     * @return true if the message of the fragment was marked as one the host puts back together before relaying it,
+     * because a device it goes to couldn't take its first fragment as it is
+     */
+    public boolean isRelayedWhole(FrameHeader header) {
+        String source = header.getSource();
+        Partial partial = find(keyOf(header, source), idKeyOf(header, source), source);
+        return partial != null && partial.relayWhole;
+    }
+
+    //By address where it's known, since the fragments of a message may name the source either way.
+    private static String keyOf(FrameHeader header, String source) {
+        return (source != null ? source : "#" + header.getSourceId()) + "/" + header.getPriority().ordinal();
+    }
+
+    //Or by an id that only became known halfway through the message. Null if that can't be.
+    private static String idKeyOf(FrameHeader header, String source) {
+        return source != null && header.getSourceId() != PeerIds.NONE ? "#" + header.getSourceId() + "/" + header.getPriority().ordinal() : null;
+    }
+
+    private Partial find(String key, String idKey, String source) {
+        Partial partial = mPartials.get(key);
+        if (partial == null && idKey != null && (partial = mPartials.remove(idKey)) != null) {
+            partial.source = source;
+            mPartials.put(key, partial);
+        }
+        return partial;
+    }
+
+    private void remove(String key) {
+        Partial partial = mPartials.remove(key);
+        if (partial != null)
+            mPendingBytes.addAndGet(-partial.payload.length);
+    }
+
+    /**
+     * Discards the messages that went unfinished for too long, then the oldest ones until a message of the length fits.
+     */
+    private void makeRoom(int length) {
+        long now = System.nanoTime();
+        while (!mPartials.isEmpty()) {
+            String oldest = null;
+            long started = 0;
+            for (Map.Entry<String, Partial> entry : mPartials.entrySet()) {
+                Partial partial = entry.getValue();
+                if (now - partial.started > mMaxAge) {
+                    remove(entry.getKey());
+                } else if (oldest == null || partial.started - started < 0) {
+                    oldest = entry.getKey();
+                    started = partial.started;
+                }
+            }
+            if (oldest == null || mPendingBytes.get() + length <= mMaxPendingBytes)
+                return;
+            remove(oldest);
+        }
+    }
+
+    /**
+     * Discards what a device left unfinished. Invoked when it leaves.
+     *
+     * @param source the address of the device
+     */
+    public void discard(String source) {
+        for (Map.Entry<String, Partial> entry : mPartials.entrySet())
+            if (source.equals(entry.getValue().source))
+                remove(entry.getKey());
+    }
+
+    /**
+     * @return how many messages are partly put back together
+     */
+    public int getPendingCount() {
+        return mPartials.size();
+    }
+
+    /**
+     * @return how many bytes the messages that are partly put back together hold
+     */
+    public long getPendingBytes() {
+        return mPendingBytes.get();
+    }
+
+    /**
+     * Discards every message that is partly put back together.
+     */
+    public void clear() {
+        for (String key : mPartials.keySet())
+            remove(key);
+    }
+}
@@ -0,0 +1,617 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+
+/**
+ * Versioned binary framing for a {@link BluetoothMessage}. Every frame has the following layout:
+ * <pre>
+ * [magic][body length][flags][trace][target length][target][source length][source][appCode][offset][length][payload]
+ *   1B      varint       1B     16B      varint       UTF-8      varint       UTF-8    4B     varint  varint  rest of the body
+ * </pre>
+ * The target and the source are only present when their flag is set, so a missing address costs nothing instead of
+ * the 7 bytes of "004null". The same goes for the trace, which only traced messages carry, and for the offset and
+ * length, which only fragments carry: where their payload starts in the payload of the message and how long that is.
+ * A fragment has the header of its message, so it's relayed like the message would be. Lengths are unsigned LEB128 varints, so there is no ceiling on the size of any field
+ * other than what fits in an int. The appCode is a big-endian int and the payload is written as raw bytes.
+ * <p/>
+ * Frames that have both priority flags set carry an extended flags byte right after the flags, which holds their lane,
+ * whether their payload is compressed, see {@link Compression}, and whether their target and source are written as the
+ * one byte id of the device instead of its address, see {@link PeerIds}. Only frames that need it have it.
+ * <p/>
+ * The first version of the format only had the global, target and source flags, and devices of that version refuse
+ * frames that have any other. Everything since is only written to devices that said they read it, the rest are written
+ * frames {@link #downgrade downgraded} to the first version.
+ * <p/>
+ * The magic byte doubles as the version of the format. It can never be an ASCII digit, which is how frames of the
+ * {@link WireFormat#LEGACY_TEXT} format start, so the two formats can be told apart from the first byte.
+ */
+public final class FrameCodec {
+
+    /**
+     * The first byte of every binary frame (version 1 of the format).
+     */
+    public static final byte MAGIC = (byte) 0xB1;
+
+    /**
+     * isGlobal is true. Ignored if {@link #FLAG_GLOBAL_UNSET} is set.
+     */
+    public static final int FLAG_GLOBAL = 0x01;
+    /**
+     * isGlobal is null.
+     */
+    public static final int FLAG_GLOBAL_UNSET = 0x02;
+    /**
+     * The frame carries a target address.
+     */
+    public static final int FLAG_TARGET = 0x04;
+    /**
+     * The frame carries a source address.
+     */
+    public static final int FLAG_SOURCE = 0x08;
+    /**
+     * The frame carries a trace: the trace id and the time it was sent at, both as big-endian longs.
+     */
+    public static final int FLAG_TRACE = 0x10;
+    /**
+     * The frame goes in the {@link Priority#CONTROL} lane. Frames that have neither priority flag are {@link Priority#INTERACTIVE}.
+     */
+    public static final int FLAG_PRIORITY_CONTROL = 0x20;
+    /**
+     * The frame goes in the {@link Priority#BULK} lane.
+     */
+    public static final int FLAG_PRIORITY_BULK = 0x40;
+    /**
+     * The frame carries one fragment of the payload of a larger message. See {@link #fragment}.
+     */
+    public static final int FLAG_FRAGMENT = 0x80;
+
+    /**
+     * Both priority flags: the flags are followed by the extended flags.
+     */
+    public static final int FLAG_EXTENDED = FLAG_PRIORITY_CONTROL | FLAG_PRIORITY_BULK;
+    /**
+     * The lowest two bits of the extended flags are the ordinal of the {@link Priority} of the frame.
+     */
+    public static final int EXTENDED_PRIORITY_MASK = 0x03;
+    /**
+     * The payload is compressed, see {@link Compression}.
+     */
+    public static final int EXTENDED_COMPRESSED = 0x04;
+    /**
+     * The target is written as the id of the device, in a single byte.
+     */
+    public static final int EXTENDED_TARGET_ID = 0x08;
+    /**
+     * The source is written as the id of the device, in a single byte.
+     */
+    public static final int EXTENDED_SOURCE_ID = 0x10;
+
+    //The flags of the first version of the format. Devices of that version refuse frames that have any other.
+    static final int VERSION_1_FLAGS = FLAG_GLOBAL | FLAG_GLOBAL_UNSET | FLAG_TARGET | FLAG_SOURCE;
+
+    //Flags this version of the codec knows how to parse. Anything else means the frame can't be read safely.
+    private static final int KNOWN_FLAGS = FLAG_GLOBAL | FLAG_GLOBAL_UNSET | FLAG_TARGET | FLAG_SOURCE | FLAG_TRACE
+            | FLAG_PRIORITY_CONTROL | FLAG_PRIORITY_BULK | FLAG_FRAGMENT;
+
+    private static final int KNOWN_EXTENDED_FLAGS = EXTENDED_PRIORITY_MASK | EXTENDED_COMPRESSED | EXTENDED_TARGET_ID | EXTENDED_SOURCE_ID;
+
+    private static final int TRACE_LENGTH = 16;
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    //Inflates compressed payloads whose header wasn't given an inflater. No dictionaries.
+    private static final Compression NO_DICTIONARIES = new Compression();
+
+    private FrameCodec() {}
+
+    /**
+     * Encodes the message in a newly allocated buffer that has exactly the size of the frame.
+     *
+     * @param message the message to encode
+     * @return the frame, ready to be read (position 0, limit at the end of the frame)
+     */
+    public static ByteBuffer encode(BluetoothMessage message) {
+        return encode(message, null);
+    }
+
+    /**
+     * Same, with the target and the source written as their id if they have one.
+     *
+     * @param peers the ids, null to write the addresses
+     */
+    public static ByteBuffer encode(BluetoothMessage message, PeerIds peers) {
+        ByteBuffer payload = message.content == null ? EMPTY : ByteBuffer.wrap(message.content.getBytes(UTF8));
+        return encode(message.isGlobal, message.targetMAC, message.sourceMAC, message.traceId, message.traceTime,
+                message.appCode, message.priority, payload, peers);
+    }
+
+    /**
+     * Encodes a frame in a newly allocated buffer that has exactly the size of the frame.
+     *
+     * @param isGlobal true for a global message, false for a private one, null if undefined
+     * @param target   the target address, null (or "null") if there is none
+     * @param source   the source address, null (or "null") if there is none
+     * @param appCode  the application code
+     * @param payload  the payload. Its remaining bytes are written, its position is left untouched.
+     * @return the frame, ready to be read
+     */
+    public static ByteBuffer encode(Boolean isGlobal, String target, String source, int appCode, ByteBuffer payload) {
+        return encode(isGlobal, target, source, appCode, (Priority) null, payload);
+    }
+
+    /**
+     * Same, for a frame that goes in the lane of {@code priority}. Null for {@link Priority#INTERACTIVE}.
+     */
+    public static ByteBuffer encode(Boolean isGlobal, String target, String source, int appCode, Priority priority, ByteBuffer payload) {
+        return encode(isGlobal, target, source, appCode, priority, payload, null);
+    }
+
+    /**
+     * Same, with the target and the source written as their id if they have one.
+     *
+     * @param peers the ids, null to write the addresses
+     */
+    public static ByteBuffer encode(Boolean isGlobal, String target, String source, int appCode, Priority priority, ByteBuffer payload, PeerIds peers) {
+        return encode(isGlobal, target, source, 0, 0, appCode, priority, payload, peers);
+    }
+
+    private static ByteBuffer encode(Boolean isGlobal, String target, String source, long traceId, long traceTime, int appCode, Priority priority, ByteBuffer payload, PeerIds peers) {
+        byte[] targetBytes = addressBytes(target);
+        byte[] sourceBytes = addressBytes(source);
+        int targetId = idOf(peers, target, targetBytes);
+        int sourceId = idOf(peers, source, sourceBytes);
+        int bodyLength = bodyLength(targetBytes, targetId, sourceBytes, sourceId, traceId, payload.remaining());
+        ByteBuffer out = ByteBuffer.allocate(1 + varintLength(bodyLength) + bodyLength);
+        write(isGlobal, priority, targetBytes, targetId, sourceBytes, sourceId, traceId, traceTime, appCode, payload, bodyLength, out);
+        out.flip();
+        return out;
+    }
+
+    private static int idOf(PeerIds peers, String address, byte[] addressBytes) {
+        if (peers == null || addressBytes == null)
+            return PeerIds.NONE;
+        return peers.idOf(address);
+    }
+
+    /**
+     * Encodes a frame at the current position of {@code out}, advancing it past the end of the frame.
+     *
+     * @throws java.nio.BufferOverflowException if {@code out} doesn't have enough room for the frame.
+     *                                          {@link #encodedLength} tells how much is needed.
+     */
+    public static void encode(Boolean isGlobal, String target, String source, int appCode, ByteBuffer payload, ByteBuffer out) {
+        byte[] targetBytes = addressBytes(target);
+        byte[] sourceBytes = addressBytes(source);
+        write(isGlobal, null, targetBytes, PeerIds.NONE, sourceBytes, PeerIds.NONE, 0, 0, appCode, payload,
+                bodyLength(targetBytes, PeerIds.NONE, sourceBytes, PeerIds.NONE, 0, payload.remaining()), out);
+    }
+
+    /**
+     * @return the number of bytes {@link #encode(Boolean, String, String, int, ByteBuffer, ByteBuffer)} will write
+     */
+    public static int encodedLength(String target, String source, int payloadLength) {
+        int bodyLength = bodyLength(addressBytes(target), PeerIds.NONE, addressBytes(source), PeerIds.NONE, 0, payloadLength);
+        return 1 + varintLength(bodyLength) + bodyLength;
+    }
+
+    private static void write(Boolean isGlobal, Priority priority, byte[] target, int targetId, byte[] source, int sourceId, long traceId, long traceTime, int appCode, ByteBuffer payload, int bodyLength, ByteBuffer out) {
+        int extendedFlags = 0;
+        if (targetId != PeerIds.NONE)
+            extendedFlags |= EXTENDED_TARGET_ID;
+        if (sourceId != PeerIds.NONE)
+            extendedFlags |= EXTENDED_SOURCE_ID;
+        int flags = extendedFlags != 0 ? FLAG_EXTENDED : priorityFlag(priority);
+        if (isGlobal == null)
+            flags |= FLAG_GLOBAL_UNSET;
+        else if (isGlobal)
+            flags |= FLAG_GLOBAL;
+        if (target != null)
+            flags |= FLAG_TARGET;
+        if (source != null)
+            flags |= FLAG_SOURCE;
+        if (traceId != 0)
+            flags |= FLAG_TRACE;
+
+        out.put(MAGIC);
+        writeVarint(out, bodyLength);
+        out.put((byte) flags);
+        if (extendedFlags != 0)
+            out.put((byte) (extendedFlags | (priority == null ? Priority.INTERACTIVE : priority).ordinal()));
+        if (traceId != 0) {
+            out.putLong(traceId);
+            out.putLong(traceTime);
+        }
+        writeAddress(target, targetId, out);
+        writeAddress(source, sourceId, out);
+        out.putInt(appCode);
+        out.put(payload.duplicate());
+    }
+
+    private static void writeAddress(byte[] address, int id, ByteBuffer out) {
+        if (id != PeerIds.NONE) {
+            out.put((byte) id);
+        } else if (address != null) {
+            writeVarint(out, address.length);
+            out.put(address);
+        }
+    }
+
+    private static int bodyLength(byte[] target, int targetId, byte[] source, int sourceId, long traceId, int payloadLength) {
+        int length = 1 + 4 + payloadLength; //flags, appCode, payload
+        if (targetId != PeerIds.NONE || sourceId != PeerIds.NONE)
+            length++;
+        if (traceId != 0)
+            length += TRACE_LENGTH;
+        length += addressLength(target, targetId) + addressLength(source, sourceId);
+        return length;
+    }
+
+    private static int addressLength(byte[] address, int id) {
+        if (id != PeerIds.NONE)
+            return 1;
+        return address == null ? 0 : varintLength(address.length) + address.length;
+    }
+
+    //The legacy format writes a missing address as the String "null" and reads it back as null. Both mean "absent" here.
+    private static byte[] addressBytes(String address) {
+        if (address == null || address.equals("null"))
+            return null;
+        return address.getBytes(UTF8);
+    }
+
+    private static int priorityFlag(Priority priority) {
+        if (priority == Priority.CONTROL)
+            return FLAG_PRIORITY_CONTROL;
+        if (priority == Priority.BULK)
+            return FLAG_PRIORITY_BULK;
+        return 0;
+    }
+
+    /**
+     * Peeks at the priority of the binary frame that starts at the position of {@code in}, without moving the position.
+     *
+     * @throws IllegalArgumentException if the buffer doesn't start with a binary frame
+     */
+    public static Priority priority(ByteBuffer in) {
+        int index = in.position();
+        if (in.get(index) != MAGIC)
+            throw new IllegalArgumentException("Not a binary frame (expected magic byte " + (MAGIC & 0xFF) + ")");
+        //Skip the body length.
+        do {
+            index++;
+        } while ((in.get(index) & 0x80) != 0);
+        return priority(in.get(index + 1) & 0xFF, in.get(index + 2) & 0xFF);
+    }
+
+    /**
+     * @param extendedFlags only read if the flags say there are any
+     */
+    static Priority priority(int flags, int extendedFlags) {
+        if ((flags & FLAG_EXTENDED) == FLAG_EXTENDED)
+            return Priority.values()[extendedFlags & EXTENDED_PRIORITY_MASK];
+        if ((flags & FLAG_PRIORITY_CONTROL) != 0)
+            return Priority.CONTROL;
+        if ((flags & FLAG_PRIORITY_BULK) != 0)
+            return Priority.BULK;
+        return Priority.INTERACTIVE;
+    }
+
+    /**
+     * Cuts a fragment out of the payload of a frame. The fragment has the header of the frame, so it's relayed the same
+     * way, and the receiver puts the payload back together from the fragments, which must arrive in order.
+     *
+     * @param header the header of the frame, read with {@link #readHeader}. Its frame can't be a fragment itself.
+     * @param offset where the fragment starts in the payload
+     * @param length how many bytes of the payload the fragment carries
+     * @return the fragment, in a newly allocated buffer that has exactly its size
+     */
+    public static ByteBuffer fragment(FrameHeader header, int offset, int length) {
+        if (header.isFragment())
+            throw new IllegalArgumentException("Fragments can't be cut into smaller ones");
+        if (offset < 0 || length < 0 || offset + length > header.payloadLength)
+            throw new IllegalArgumentException("Fragment " + offset + "+" + length + " is out of a payload of " + header.payloadLength + " bytes");
+        ByteBuffer frame = header.frame.duplicate();
+        //Everything between the flags and the payload is copied as it is.
+        int fieldsStart = header.start + header.flagsOffset + 1;
+        int fieldsLength = header.start + header.payloadOffset - fieldsStart;
+        int bodyLength = 1 + fieldsLength + varintLength(offset) + varintLength(header.payloadLength) + length;
+        ByteBuffer out = ByteBuffer.allocate(1 + varintLength(bodyLength) + bodyLength);
+        out.put(MAGIC);
+        writeVarint(out, bodyLength);
+        out.put((byte) (header.flags | FLAG_FRAGMENT));
+        frame.limit(fieldsStart + fieldsLength).position(fieldsStart);
+        out.put(frame);
+        writeVarint(out, offset);
+        writeVarint(out, header.payloadLength);
+        int payloadStart = header.start + header.payloadOffset + offset;
+        frame.limit(payloadStart + length).position(payloadStart);
+        out.put(frame);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Builds the compressed version of a frame: the same header, marked as compressed, with another payload.
+     *
+     * @param header  the header of the frame, read with {@link #readHeader}. Its frame can't be a fragment, nor compressed already.
+     * @param payload the compressed payload, see {@link PayloadDeflater#deflate}
+     * @return the frame, in a newly allocated buffer that has exactly its size
+     */
+    public static ByteBuffer compress(FrameHeader header, ByteBuffer payload) {
+        if (header.isFragment() || header.isCompressed())
+            throw new IllegalArgumentException("Only whole frames that aren't compressed can be compressed");
+        ByteBuffer frame = header.frame.duplicate();
+        //Everything between the flags and the payload is copied as it is, the extended flags are written anew.
+        int fieldsStart = header.start + header.flagsOffset + ((header.flags & FLAG_EXTENDED) == FLAG_EXTENDED ? 2 : 1);
+        int fieldsLength = header.start + header.payloadOffset - fieldsStart;
+        int bodyLength = 2 + fieldsLength + payload.remaining();
+        ByteBuffer out = ByteBuffer.allocate(1 + varintLength(bodyLength) + bodyLength);
+        out.put(MAGIC);
+        writeVarint(out, bodyLength);
+        out.put((byte) (header.flags | FLAG_EXTENDED));
+        out.put((byte) ((header.extendedFlags & ~EXTENDED_PRIORITY_MASK) | header.getPriority().ordinal() | EXTENDED_COMPRESSED));
+        frame.limit(fieldsStart + fieldsLength).position(fieldsStart);
+        out.put(frame);
+        out.put(payload.duplicate());
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Rewrites a frame with only the flags of the first version of the format, for devices that read no others: in the
+     * interactive lane, without its trace, with the addresses of the devices instead of their ids and with its payload
+     * inflated.
+     *
+     * @param header the header of the frame, read with {@link #readHeader}. Its frame can't be a fragment.
+     * @return the frame, in a newly allocated buffer that has exactly its size
+     */
+    public static ByteBuffer downgrade(FrameHeader header) {
+        if (header.isFragment())
+            throw new IllegalArgumentException("Fragments can't be downgraded, only the whole message can");
+        ByteBuffer payload = header.isCompressed() ? ByteBuffer.wrap(inflate(header, header.payload())) : header.payload();
+        return encode(header.isGlobal(), header.getTarget(), header.getSource(), header.appCode, payload);
+    }
+
+    /**
+     * Decodes the frame that starts at the current position of {@code in} and advances the position past its end.
+     * Anything after the frame is left untouched.
+     *
+     * @param in a buffer that holds at least one complete frame
+     * @return the decoded message
+     * @throws IllegalArgumentException if the bytes aren't a valid binary frame
+     */
+    public static BluetoothMessage decode(ByteBuffer in) {
+        FrameHeader header = new FrameHeader();
+        readHeader(in, header);
+        BluetoothMessage message = decode(header);
+        in.position(in.position() + header.frameLength);
+        return message;
+    }
+
+    /**
+     * Decodes the frame a header was read from. A compressed payload is inflated with the inflater of the header, if it
+     * has one, or else only if it was compressed without a dictionary.
+     *
+     * @param header the header of a frame that isn't a fragment, read with {@link #readHeader}
+     * @return the decoded message
+     * @throws IllegalArgumentException if the payload can't be inflated
+     */
+    public static BluetoothMessage decode(FrameHeader header) {
+        if (header.isFragment())
+            throw new IllegalArgumentException("Fragments are put back together by a FragmentAssembler");
+        BluetoothMessage message = new BluetoothMessage();
+        message.isGlobal = header.isGlobal();
+        message.targetMAC = header.getTarget();
+        message.sourceMAC = header.getSource();
+        message.appCode = header.appCode;
+        message.traceId = header.traceId;
+        message.traceTime = header.traceTime;
+        message.priority = header.getPriority();
+        if (header.isCompressed())
+            message.content = new String(inflate(header, header.payload()), UTF8);
+        else
+            message.content = header.string(header.payloadOffset, header.payloadLength);
+        return message;
+    }
+
+    /**
+     * Inflates the compressed payload of a message, see {@link #decode(FrameHeader)}.
+     */
+    static byte[] inflate(FrameHeader header, ByteBuffer compressed) {
+        PayloadInflater inflater = header.inflater;
+        if (inflater != null)
+            return inflater.inflate(header.appCode, compressed);
+        inflater = new PayloadInflater(NO_DICTIONARIES, null);
+        try {
+            return inflater.inflate(header.appCode, compressed);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Parses the header of the frame that starts at the current position of {@code in}, without copying anything
+     * and without moving the position. The header keeps a reference to {@code in}, so its contents must not change
+     * while the header is in use.
+     *
+     * @param in     a buffer that holds at least one complete frame
+     * @param header the header to fill in
+     * @throws IllegalArgumentException if the bytes aren't a valid binary frame
+     */
+    public static void readHeader(ByteBuffer in, FrameHeader header) {
+        ByteBuffer frame = in.duplicate();
+        int start = frame.position();
+        try {
+            if (frame.get() != MAGIC)
+                throw new IllegalArgumentException("Not a binary frame (expected magic byte " + (MAGIC & 0xFF) + ")");
+            int bodyLength = readVarint(frame);
+            if (bodyLength > frame.remaining())
+                throw new IllegalArgumentException("Truncated frame: body is " + bodyLength + " bytes but only " + frame.remaining() + " are available");
+            int end = frame.position() + bodyLength;
+
+            header.flagsOffset = frame.position() - start;
+            int flags = frame.get() & 0xFF;
+            if ((flags & ~KNOWN_FLAGS) != 0)
+                throw new IllegalArgumentException("Unknown frame flags " + Integer.toHexString(flags));
+            int extendedFlags = 0;
+            if ((flags & FLAG_EXTENDED) == FLAG_EXTENDED) {
+                extendedFlags = frame.get() & 0xFF;
+                if ((extendedFlags & ~KNOWN_EXTENDED_FLAGS) != 0 || (extendedFlags & EXTENDED_PRIORITY_MASK) >= Priority.values().length)
+                    throw new IllegalArgumentException("Unknown extended frame flags " + Integer.toHexString(extendedFlags));
+            }
+            header.flags = flags;
+            header.extendedFlags = extendedFlags;
+            if ((flags & FLAG_TRACE) != 0) {
+                header.traceId = frame.getLong();
+                header.traceTime = frame.getLong();
+            } else {
+                header.traceId = 0;
+                header.traceTime = 0;
+            }
+            header.targetId = PeerIds.NONE;
+            header.sourceId = PeerIds.NONE;
+            if ((flags & FLAG_TARGET) != 0) {
+                if ((extendedFlags & EXTENDED_TARGET_ID) != 0) {
+                    header.targetId = frame.get() & 0xFF;
+                } else {
+                    header.targetLength = readVarint(frame);
+                    header.targetOffset = frame.position() - start;
+                    skip(frame, header.targetLength);
+                }
+            }
+            if ((flags & FLAG_SOURCE) != 0) {
+                if ((extendedFlags & EXTENDED_SOURCE_ID) != 0) {
+                    header.sourceId = frame.get() & 0xFF;
+                } else {
+                    header.sourceLength = readVarint(frame);
+                    header.sourceOffset = frame.position() - start;
+                    skip(frame, header.sourceLength);
+                }
+            }
+            header.appCode = frame.getInt();
+            if ((flags & FLAG_FRAGMENT) != 0) {
+                header.fragmentOffset = readVarint(frame);
+                header.messageLength = readVarint(frame);
+            } else {
+                header.fragmentOffset = 0;
+                header.messageLength = -1;
+            }
+            if (frame.position() > end)
+                throw new IllegalArgumentException("Frame header is longer than its body length (" + bodyLength + ")");
+            header.payloadOffset = frame.position() - start;
+            header.payloadLength = end - frame.position();
+            if (header.messageLength == -1)
+                header.messageLength = header.payloadLength;
+            else if (header.fragmentOffset + header.payloadLength > header.messageLength || header.fragmentOffset + header.payloadLength < 0)
+                throw new IllegalArgumentException("Fragment " + header.fragmentOffset + "+" + header.payloadLength + " is out of a message of " + header.messageLength + " bytes");
+            header.frameLength = end - start;
+            header.frame = in;
+            header.start = start;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+    }
+
+    private static void skip(ByteBuffer in, int length) {
+        if (length > in.remaining())
+            throw new BufferUnderflowException();
+        in.position(in.position() + length);
+    }
+
+    /**
+     * Peeks at the header of the binary frame that starts at the position of {@code in}, without moving the position.
+     *
+     * @return the total length of the frame (magic and length prefix included),
+     * or -1 if not enough bytes are available yet to know it
+     * @throws IllegalArgumentException if the buffer doesn't start with a binary frame or the length prefix is malformed
+     */
+    public static int frameLength(ByteBuffer in) {
+        int position = in.position();
+        if (!in.hasRemaining())
+            return -1;
+        if (in.get(position) != MAGIC)
+            throw new IllegalArgumentException("Not a binary frame (expected magic byte " + (MAGIC & 0xFF) + ")");
+        int value = 0;
+        for (int i = 0; i < 5; i++) {
+            if (position + 1 + i >= in.limit())
+                return -1;
+            int b = in.get(position + 1 + i) & 0xFF;
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                long total = 1L + (i + 1) + (value & 0xFFFFFFFFL);
+                if (value < 0 || total > Integer.MAX_VALUE)
+                    throw new IllegalArgumentException("Frame length overflows an int");
+                return (int) total;
+            }
+        }
+        throw new IllegalArgumentException("Varint is longer than 5 bytes");
+    }
+
+    /**
+     * Writes {@code value} as an unsigned LEB128 varint: 7 bits per byte, least significant group first,
+     * with the high bit set on every byte but the last.
+     *
+     * @param value a non-negative int
+     */
+    public static void writeVarint(ByteBuffer out, int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Varints can't be negative: " + value);
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint written by {@link #writeVarint}.
+     *
+     * @throws BufferUnderflowException if the buffer ends in the middle of the varint
+     * @throws IllegalArgumentException if the varint doesn't fit in a non-negative int
+     */
+    public static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0)
+                    throw new IllegalArgumentException("Varint overflows an int");
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint is longer than 5 bytes");
+    }
+
+    /**
+     * @return how many bytes {@link #writeVarint} needs for {@code value}
+     */
+    public static int varintLength(int value) {
+        if ((value & ~0x7F) == 0) return 1;
+        if ((value & ~0x3FFF) == 0) return 2;
+        if ((value & ~0x1FFFFF) == 0) return 3;
+        if ((value & ~0xFFFFFFF) == 0) return 4;
+        return 5;
+    }
+}
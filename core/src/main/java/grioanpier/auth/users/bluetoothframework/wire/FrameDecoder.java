@@ -0,0 +1,136 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder that turns the raw bytes read from a stream back into frames.
+ * A single read may carry part of a frame, exactly one frame or several frames back to back; the decoder keeps
+ * whatever is incomplete until the next read and hands every complete frame to a {@link FrameListener}.
+ * <p/>
+ * {@link WireFormat#LEGACY_TEXT} frames carry no total length, so they can't be delimited. Everything that is
+ * available when a legacy frame starts is handed over as one frame, which is what the legacy framework did too.
+ * <p/>
+ * Not thread safe. Every connection owns its own decoder and feeds it from its reading thread.
+ */
+public final class FrameDecoder {
+
+    /**
+     * Frames longer than this are rejected unless another limit is given. It only exists so that a corrupted length
+     * can't make the decoder allocate an arbitrary amount of memory.
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 4 * 1024 * 1024;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    public interface FrameListener {
+        /**
+         * Invoked for every complete frame, in the order they were received.
+         *
+         * @param frame the frame, from its position up to its limit. The buffer is only valid for the duration of
+         *              the call; copy the bytes if they are needed afterwards.
+         */
+        void onFrame(ByteBuffer frame);
+    }
+
+    private final int mMaxFrameLength;
+    //Holds the bytes of an incomplete frame between reads. Always in "write" mode outside of decode().
+    private ByteBuffer mPending = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+    public FrameDecoder() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameDecoder(int maxFrameLength) {
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Feeds the decoder with the bytes of a single read.
+     *
+     * @param data     the buffer the bytes were read into
+     * @param offset   where the read bytes start
+     * @param length   how many bytes were read
+     * @param listener receives every frame that became complete
+     * @throws IllegalArgumentException if the stream contains a malformed or oversized frame.
+     *                                  The decoder should be {@link #reset()} before it is used again.
+     */
+    public void decode(byte[] data, int offset, int length, FrameListener listener) {
+        ByteBuffer in;
+        if (mPending.position() == 0) {
+            //Nothing is pending, so complete frames can be handed over straight from the read buffer.
+            in = ByteBuffer.wrap(data, offset, length);
+        } else {
+            ensureCapacity(mPending.position() + length);
+            mPending.put(data, offset, length);
+            mPending.flip();
+            in = mPending;
+        }
+
+        while (in.hasRemaining()) {
+            if (WireFormat.of(in.get(in.position())) == WireFormat.LEGACY_TEXT) {
+                listener.onFrame(in.slice());
+                in.position(in.limit());
+                break;
+            }
+
+            int frameLength = FrameCodec.frameLength(in);
+            if (frameLength > mMaxFrameLength)
+                throw new IllegalArgumentException("Frame of " + frameLength + " bytes exceeds the limit of " + mMaxFrameLength);
+            if (frameLength == -1 || frameLength > in.remaining())
+                break;
+
+            ByteBuffer frame = in.slice();
+            frame.limit(frameLength);
+            in.position(in.position() + frameLength);
+            listener.onFrame(frame);
+        }
+
+        //Keep what's left for the next read.
+        if (in == mPending) {
+            mPending.compact();
+        } else if (in.hasRemaining()) {
+            ensureCapacity(in.remaining());
+            mPending.put(in);
+        }
+    }
+
+    /**
+     * @return how many bytes of an incomplete frame are being held
+     */
+    public int pendingBytes() {
+        return mPending.position();
+    }
+
+    /**
+     * Discards any incomplete frame.
+     */
+    public void reset() {
+        mPending.clear();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mPending.capacity())
+            return;
+        int newCapacity = mPending.capacity();
+        while (newCapacity < capacity)
+            newCapacity = newCapacity << 1 > 0 ? newCapacity << 1 : Integer.MAX_VALUE;
+        ByteBuffer grown = ByteBuffer.allocate(newCapacity);
+        mPending.flip();
+        grown.put(mPending);
+        mPending = grown;
+    }
+}
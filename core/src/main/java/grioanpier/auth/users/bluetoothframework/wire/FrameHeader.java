@@ -0,0 +1,284 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+
+/**
+ * The routing part of a binary frame, parsed in place by {@link FrameCodec#readHeader}. The addresses and the payload
+ * are not copied out of the frame: they are kept as offsets, so that a relay can decide where a frame goes without
+ * building a single String. Instances are mutable and meant to be reused, one per reading thread.
+ */
+public final class FrameHeader {
+
+    int flags;
+    int extendedFlags;
+    int flagsOffset;
+    int appCode;
+    int frameLength;
+    int targetOffset;
+    int targetLength;
+    int targetId;
+    int sourceOffset;
+    int sourceLength;
+    int sourceId;
+    int payloadOffset;
+    int payloadLength;
+    int fragmentOffset;
+    int messageLength;
+    long traceId;
+    long traceTime;
+    //Inflates compressed payloads, see setInflater.
+    PayloadInflater inflater;
+    //Resolves the ids of the target and the source, see setPeerIds.
+    PeerIds peers;
+    //The buffer the offsets point into and the index the frame starts at. Not owned by the header.
+    ByteBuffer frame;
+    int start;
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return the extended flags, 0 if the frame has none
+     */
+    public int getExtendedFlags() {
+        return extendedFlags;
+    }
+
+    /**
+     * @return true if the payload of the message is compressed. For a fragment, the payload of the whole message is.
+     */
+    public boolean isCompressed() {
+        return (extendedFlags & FrameCodec.EXTENDED_COMPRESSED) != 0;
+    }
+
+    /**
+     * Sets what compressed payloads are inflated with when the frame is decoded or put back together. Each reading thread
+     * gives its header its own, without one only payloads compressed without a dictionary can be read.
+     */
+    public void setInflater(PayloadInflater inflater) {
+        this.inflater = inflater;
+    }
+
+    /**
+     * @return isGlobal as it was sent, null if it wasn't set
+     */
+    public Boolean isGlobal() {
+        if ((flags & FrameCodec.FLAG_GLOBAL_UNSET) != 0)
+            return null;
+        return (flags & FrameCodec.FLAG_GLOBAL) != 0;
+    }
+
+    /**
+     * Sets what the ids of the target and the source are resolved with. Without it, a frame that names them by id has
+     * neither as far as the getters are concerned.
+     */
+    public void setPeerIds(PeerIds peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * @return the lane the frame goes in
+     */
+    public Priority getPriority() {
+        return FrameCodec.priority(flags, extendedFlags);
+    }
+
+    /**
+     * @return true if the frame carries one fragment of the payload of a larger message
+     */
+    public boolean isFragment() {
+        return (flags & FrameCodec.FLAG_FRAGMENT) != 0;
+    }
+
+    /**
+     * @return where the payload of the fragment starts in the payload of its message, 0 if the frame isn't a fragment
+     */
+    public int getFragmentOffset() {
+        return fragmentOffset;
+    }
+
+    /**
+     * @return the length of the payload of the whole message, the payload length if the frame isn't a fragment
+     */
+    public int getMessageLength() {
+        return messageLength;
+    }
+
+    /**
+     * @return false if the frame is a fragment and more of its message follow
+     */
+    public boolean endsMessage() {
+        return fragmentOffset + payloadLength == messageLength;
+    }
+
+    public int getAppCode() {
+        return appCode;
+    }
+
+    /**
+     * @return the length of the whole frame, magic and length prefix included
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    public boolean hasTarget() {
+        return (flags & FrameCodec.FLAG_TARGET) != 0;
+    }
+
+    public boolean hasSource() {
+        return (flags & FrameCodec.FLAG_SOURCE) != 0;
+    }
+
+    /**
+     * @return true if the frame has only the flags of the first version of the format, so every binary device reads it
+     */
+    public boolean isVersion1() {
+        return (flags & ~FrameCodec.VERSION_1_FLAGS) == 0;
+    }
+
+    /**
+     * @return true if the target or the source is named by its id, so the frame can only be read by devices that know the ids
+     */
+    public boolean usesPeerIds() {
+        return targetId != PeerIds.NONE || sourceId != PeerIds.NONE;
+    }
+
+    /**
+     * @return the id the target is named by, {@link PeerIds#NONE} if it's named by its address or there is none
+     */
+    public int getTargetId() {
+        return targetId;
+    }
+
+    /**
+     * @return the id the source is named by, {@link PeerIds#NONE} if it's named by its address or there is none
+     */
+    public int getSourceId() {
+        return sourceId;
+    }
+
+    /**
+     * Compares the target address with the given UTF-8 bytes without decoding it.
+     */
+    public boolean targetEquals(byte[] address) {
+        if (targetId != PeerIds.NONE)
+            return address != null && Arrays.equals(resolve(targetId), address);
+        return hasTarget() && regionEquals(targetOffset, targetLength, address);
+    }
+
+    /**
+     * Compares the source address with the given UTF-8 bytes without decoding it.
+     */
+    public boolean sourceEquals(byte[] address) {
+        if (sourceId != PeerIds.NONE)
+            return address != null && Arrays.equals(resolve(sourceId), address);
+        return hasSource() && regionEquals(sourceOffset, sourceLength, address);
+    }
+
+    /**
+     * @return the target address, or null if there is none or its id is unknown. Allocates a new String.
+     */
+    public String getTarget() {
+        if (targetId != PeerIds.NONE)
+            return address(targetId);
+        return hasTarget() ? string(targetOffset, targetLength) : null;
+    }
+
+    /**
+     * @return the source address, or null if there is none or its id is unknown. Allocates a new String.
+     */
+    public String getSource() {
+        if (sourceId != PeerIds.NONE)
+            return address(sourceId);
+        return hasSource() ? string(sourceOffset, sourceLength) : null;
+    }
+
+    private byte[] resolve(int id) {
+        PeerIds ids = peers;
+        return ids == null ? null : ids.addressOf(id);
+    }
+
+    private String address(int id) {
+        byte[] address = resolve(id);
+        return address == null ? null : new String(address, FrameCodec.UTF8);
+    }
+
+    /**
+     * @return the trace id of the frame, 0 if it isn't traced
+     */
+    public long getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return when the sender sent the traced frame, in the microseconds of its clock. 0 if the frame isn't traced.
+     */
+    public long getTraceTime() {
+        return traceTime;
+    }
+
+    /**
+     * @return the offset of the payload relative to the start of the frame
+     */
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return a read-only view of the payload. Doesn't copy it, so it's only valid while the header is.
+     */
+    public ByteBuffer payload() {
+        ByteBuffer payload = frame.asReadOnlyBuffer();
+        payload.limit(start + payloadOffset + payloadLength).position(start + payloadOffset);
+        return payload.slice();
+    }
+
+    void copyPayload(byte[] destination, int offset) {
+        ByteBuffer payload = frame.duplicate();
+        payload.position(start + payloadOffset);
+        payload.get(destination, offset, payloadLength);
+    }
+
+    private boolean regionEquals(int offset, int length, byte[] other) {
+        if (other == null || other.length != length)
+            return false;
+        int index = start + offset;
+        for (int i = 0; i < length; i++)
+            if (frame.get(index + i) != other[i])
+                return false;
+        return true;
+    }
+
+    String string(int offset, int length) {
+        int index = start + offset;
+        if (frame.hasArray())
+            return new String(frame.array(), frame.arrayOffset() + index, length, FrameCodec.UTF8);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = frame.get(index + i);
+        return new String(bytes, FrameCodec.UTF8);
+    }
+}
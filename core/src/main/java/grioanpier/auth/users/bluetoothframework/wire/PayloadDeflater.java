@@ -0,0 +1,95 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates payloads the way {@link Compression} describes. The {@link Deflater} is reused from one payload to the next,
+ * so an instance must only be used by one thread, the writer of a connection, and {@link #end() ended} with it.
+ */
+public final class PayloadDeflater {
+
+    private final Compression mCompression;
+    private final Compression.Listener mListener;
+    //Created on first use, most connections never send anything long enough.
+    private Deflater mDeflater;
+    private byte[] mInput = new byte[0];
+
+    /**
+     * @param listener told about every payload that is deflated, may be null
+     */
+    public PayloadDeflater(Compression compression, Compression.Listener listener) {
+        mCompression = compression;
+        mListener = listener;
+    }
+
+    /**
+     * @return true if payloads of that length are compressed at all
+     */
+    public boolean accepts(int length) {
+        return mCompression.isEnabled() && length > 0 && length >= mCompression.getThreshold();
+    }
+
+    /**
+     * @param appCode the app code of the message, whose dictionary is used
+     * @param payload the payload. Its remaining bytes are compressed, its position is left untouched.
+     * @return the compressed payload, or null if it didn't get any shorter
+     */
+    public ByteBuffer deflate(int appCode, ByteBuffer payload) {
+        int length = payload.remaining();
+        if (length == 0)
+            return null;
+        long start = System.nanoTime();
+        if (mDeflater == null)
+            mDeflater = new Deflater();
+        else
+            mDeflater.reset();
+        Compression.Dictionary dictionary = mCompression.dictionary(appCode);
+        if (dictionary != null)
+            mDeflater.setDictionary(dictionary.bytes);
+        if (mInput.length < length)
+            mInput = new byte[length];
+        payload.duplicate().get(mInput, 0, length);
+        mDeflater.setInput(mInput, 0, length);
+        mDeflater.finish();
+
+        //Anything that isn't shorter than the payload is given up on as soon as it's known.
+        int prefix = FrameCodec.varintLength(length);
+        ByteBuffer out = ByteBuffer.allocate(prefix + length - 1);
+        FrameCodec.writeVarint(out, length);
+        byte[] bytes = out.array();
+        int written = prefix;
+        while (!mDeflater.finished() && written < bytes.length)
+            written += mDeflater.deflate(bytes, written, bytes.length - written);
+        boolean shorter = mDeflater.finished();
+        if (mListener != null)
+            mListener.onDeflated(length, shorter ? written : length, System.nanoTime() - start);
+        if (!shorter)
+            return null;
+        out.limit(written).position(0);
+        return out;
+    }
+
+    /**
+     * Frees the memory of the {@link Deflater}. The instance can't be used afterwards.
+     */
+    public void end() {
+        if (mDeflater != null)
+            mDeflater.end();
+        mInput = null;
+    }
+}
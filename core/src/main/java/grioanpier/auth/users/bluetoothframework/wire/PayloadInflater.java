@@ -0,0 +1,107 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates payloads compressed by a {@link PayloadDeflater}. The {@link Inflater} is reused from one payload to the next,
+ * so an instance must only be used by one thread, the reading thread of a connection, and {@link #end() ended} with it.
+ * A {@link FrameHeader} that is given one inflates the compressed payloads it points to with it.
+ */
+public final class PayloadInflater {
+
+    private final Compression mCompression;
+    private final Compression.Listener mListener;
+    //Created on first use.
+    private Inflater mInflater;
+    private byte[] mInput = new byte[0];
+
+    /**
+     * @param compression where the dictionaries come from
+     * @param listener    told about every payload that is inflated, may be null
+     */
+    public PayloadInflater(Compression compression, Compression.Listener listener) {
+        mCompression = compression;
+        mListener = listener;
+    }
+
+    /**
+     * @param appCode    the app code of the message, whose dictionary the payload may have been compressed with
+     * @param compressed the compressed payload. Its remaining bytes are read, its position is left untouched.
+     * @return the payload
+     * @throws IllegalArgumentException if the payload is corrupted, too long, or was compressed with a dictionary
+     *                                  this device doesn't have
+     */
+    public byte[] inflate(int appCode, ByteBuffer compressed) {
+        long start = System.nanoTime();
+        ByteBuffer in = compressed.duplicate();
+        int length;
+        try {
+            length = FrameCodec.readVarint(in);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated compressed payload", e);
+        }
+        if (length < 0 || length > mCompression.getMaxLength())
+            throw new IllegalArgumentException("Compressed payload of " + length + " bytes exceeds the limit of " + mCompression.getMaxLength());
+        int inputLength = in.remaining();
+        if (mInput.length < inputLength)
+            mInput = new byte[inputLength];
+        in.get(mInput, 0, inputLength);
+        if (mInflater == null)
+            mInflater = new Inflater();
+        else
+            mInflater.reset();
+        mInflater.setInput(mInput, 0, inputLength);
+
+        byte[] payload = new byte[length];
+        int read = 0;
+        try {
+            while (!mInflater.finished()) {
+                int count = mInflater.inflate(payload, read, length - read);
+                read += count;
+                if (count > 0)
+                    continue;
+                if (mInflater.needsDictionary()) {
+                    Compression.Dictionary dictionary = mCompression.dictionary(appCode);
+                    if (dictionary == null || dictionary.adler != mInflater.getAdler())
+                        throw new IllegalArgumentException("Payload of app code " + appCode + " was compressed with a dictionary this device doesn't have");
+                    mInflater.setDictionary(dictionary.bytes);
+                } else if (mInflater.needsInput() || read == length) {
+                    throw new IllegalArgumentException("Compressed payload doesn't inflate to the " + length + " bytes it claims");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupted compressed payload", e);
+        }
+        if (read != length)
+            throw new IllegalArgumentException("Compressed payload inflates to " + read + " bytes instead of " + length);
+        if (mListener != null)
+            mListener.onInflated(compressed.remaining(), length, System.nanoTime() - start);
+        return payload;
+    }
+
+    /**
+     * Frees the memory of the {@link Inflater}. The instance can't be used afterwards.
+     */
+    public void end() {
+        if (mInflater != null)
+            mInflater.end();
+        mInput = null;
+    }
+}
@@ -0,0 +1,39 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+/**
+ * The one byte ids the host gives every device of the session, so frames can name their target and source with an id
+ * instead of a whole address. See {@link FrameCodec#EXTENDED_TARGET_ID}.
+ * <p/>
+ * Read on every routed frame, so implementations must be safe for concurrent use and cheap.
+ */
+public interface PeerIds {
+
+    /**
+     * Not an id, for the devices that don't have one.
+     */
+    int NONE = -1;
+
+    /**
+     * @return the id of the device with the address, {@link #NONE} if it has none
+     */
+    int idOf(String address);
+
+    /**
+     * @return the address of the device with the id in UTF-8, null if no device has it. Must not be modified.
+     */
+    byte[] addressOf(int id);
+}
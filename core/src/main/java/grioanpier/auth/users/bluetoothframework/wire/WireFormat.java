@@ -0,0 +1,41 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+/**
+ * The encodings a {@link grioanpier.auth.users.bluetoothframework.BluetoothMessage} can travel in.
+ * The two can be told apart from the first byte of a frame: legacy frames always start with an ASCII digit
+ * (the first digit of the "%03d" length of isGlobal), binary frames always start with {@link FrameCodec#MAGIC}.
+ */
+public enum WireFormat {
+    /**
+     * The original text framing: every header field is written as [3 decimal digits length][value]
+     * and the content follows as-is. Limited to 999 characters per field.
+     */
+    LEGACY_TEXT,
+    /**
+     * The length-prefixed binary framing of {@link FrameCodec}.
+     */
+    BINARY;
+
+    /**
+     * @param firstByte the first byte of a frame
+     * @return the format the frame was written in
+     */
+    public static WireFormat of(byte firstByte) {
+        return firstByte == FrameCodec.MAGIC ? BINARY : LEGACY_TEXT;
+    }
+}
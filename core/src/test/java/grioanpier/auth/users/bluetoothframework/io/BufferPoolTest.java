@@ -0,0 +1,78 @@
+package grioanpier.auth.users.bluetoothframework.io;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    private final BufferPool pool = new BufferPool(16, 2);
+
+    @Test
+    public void aBufferGivenBackIsHandedOutAgain() {
+        byte[] buffer = pool.acquire(10);
+        assertEquals(16, buffer.length);
+        assertEquals(0, pool.getHits());
+        assertEquals(1, pool.getMisses());
+
+        pool.release(buffer);
+        assertEquals(1, pool.available());
+        assertSame(buffer, pool.acquire(16));
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(0, pool.available());
+    }
+
+    @Test
+    public void whatDoesntFitThePoolIsAMissAndIsntKept() {
+        byte[] large = pool.acquire(17);
+        assertEquals(17, large.length);
+        assertEquals(1, pool.getMisses());
+        pool.release(large);
+        assertEquals(0, pool.available());
+
+        //Only as many idle buffers as the capacity are kept.
+        for (int i = 0; i < 3; i++)
+            pool.release(new byte[16]);
+        assertEquals(2, pool.available());
+        pool.acquire(1);
+        pool.acquire(1);
+        pool.acquire(1);
+        assertEquals(2, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void aPooledFrameGivesItsBufferBackOnItsLastRelease() {
+        byte[] buffer = pool.acquire(4);
+        SharedFrame frame = SharedFrame.pooled(buffer, 4, pool).retain();
+        assertFalse(frame.release());
+        assertEquals(0, pool.available());
+        assertTrue(frame.release());
+        assertEquals(1, pool.available());
+
+        //Released once too often, it isn't given back twice.
+        try {
+            frame.release();
+            fail("Released a frame nobody holds");
+        } catch (IllegalStateException e) {
+            //Expected.
+        }
+        assertEquals(1, pool.available());
+        assertSame(buffer, pool.acquire(4));
+    }
+}
@@ -0,0 +1,52 @@
+package grioanpier.auth.users.bluetoothframework.io;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    private final OutboundQueue<String> queue = new OutboundQueue<>(8, OverflowPolicy.DROP_NEWEST, null);
+
+    @Test
+    public void controlGoesFirstAndBulkGetsItsShare() throws InterruptedException {
+        for (int i = 1; i <= 3; i++)
+            queue.offer("b" + i, Priority.BULK);
+        for (int i = 1; i <= 6; i++)
+            queue.offer("i" + i, Priority.INTERACTIVE);
+        queue.offer("c1", Priority.CONTROL);
+
+        List<String> taken = new ArrayList<>();
+        while (queue.size() > 0)
+            taken.add(queue.take());
+        assertEquals(Arrays.asList("c1", "i1", "i2", "i3", "i4", "b1", "i5", "i6", "b2", "b3"), taken);
+    }
+
+    @Test
+    public void aFullLaneDoesntTakeTheRoomOfTheOthers() throws InterruptedException {
+        for (int i = 0; i < 8; i++)
+            assertTrue(queue.offer("bulk", Priority.BULK));
+        assertFalse(queue.offer("bulk", Priority.BULK));
+        assertTrue(queue.offer("move"));
+        assertEquals("move", queue.pollAbove(Priority.BULK));
+        assertNull(queue.pollAbove(Priority.BULK));
+    }
+}
@@ -0,0 +1,72 @@
+package grioanpier.auth.users.bluetoothframework.io;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SharedFrameTest {
+
+    @Test
+    public void onlyTheLastReleaseFreesTheFrame() {
+        SharedFrame frame = SharedFrame.wrap(new byte[]{1, 2, 3});
+        assertEquals(1, frame.references());
+        assertSame(frame, frame.retain());
+        frame.retain();
+        assertEquals(3, frame.references());
+
+        assertFalse(frame.release());
+        assertFalse(frame.release());
+        assertTrue(frame.release());
+        assertEquals(0, frame.references());
+    }
+
+    @Test
+    public void aFrameReleasedOnceTooOftenIsRefused() {
+        SharedFrame frame = SharedFrame.wrap(new byte[]{1});
+        assertTrue(frame.release());
+        try {
+            frame.release();
+            fail("Released a frame nobody holds");
+        } catch (IllegalStateException e) {
+            //Expected.
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void aReleasedFrameCantBeTakenAgain() {
+        SharedFrame frame = SharedFrame.wrap(new byte[]{1});
+        frame.release();
+        frame.retain();
+    }
+
+    @Test
+    public void partOfAnArrayIsAFrameOfItsOwn() throws Exception {
+        SharedFrame frame = SharedFrame.wrap(new byte[]{9, 1, 2, 3, 9}, 1, 3);
+        assertEquals(3, frame.length());
+        assertEquals(1, frame.firstByte());
+        ByteBuffer buffer = frame.buffer();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(0, buffer.position());
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), buffer);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.writeTo(out);
+        assertArrayEquals(new byte[]{1, 2, 3}, out.toByteArray());
+    }
+}
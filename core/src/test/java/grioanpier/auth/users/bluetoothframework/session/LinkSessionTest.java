@@ -0,0 +1,100 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.junit.Test;
+
+import java.util.List;
+
+import grioanpier.auth.users.bluetoothframework.io.SharedFrame;
+
+import static org.junit.Assert.*;
+
+public class LinkSessionTest {
+
+    private final LinkSession session = new LinkSession(1, 4, 3);
+
+    private SharedFrame frame() {
+        SharedFrame frame = SharedFrame.wrap(new byte[]{1});
+        session.add(frame.retain());
+        return frame;
+    }
+
+    @Test
+    public void onlyWhatWasntAcknowledgedIsReplayed() {
+        SharedFrame first = frame();
+        frame();
+        frame();
+        session.acknowledge(1);
+        assertEquals(1, first.references());
+
+        List<SharedFrame> replay = session.replay(2);
+        assertEquals(1, replay.size());
+        assertEquals(3, session.firstUnacked());
+    }
+
+    @Test
+    public void theOldestFramesGoOnceFull() {
+        for (int i = 0; i < 4; i++)
+            frame();
+        assertEquals(3, session.getUnackedCount());
+        assertEquals(1, session.getEvicted());
+        assertEquals(2, session.firstUnacked());
+    }
+
+    @Test
+    public void framesPastTheCreditGivenAreRefused() {
+        assertEquals(4, session.limit());
+        for (int i = 0; i < 4; i++)
+            assertTrue(session.onReceived());
+        assertFalse(session.onReceived());
+    }
+
+    @Test
+    public void aRefusedFrameIsNeitherAcknowledgedNorCharged() {
+        assertEquals(4, session.limit());
+        for (int i = 0; i < 4; i++)
+            session.onReceived();
+        assertFalse(session.onReceived());
+        assertEquals(4, session.received());
+        //The whole window is given again for the frames that follow.
+        assertEquals(8, session.limit());
+        for (int i = 0; i < 4; i++)
+            assertTrue(session.onReceived());
+        assertFalse(session.onReceived());
+    }
+
+    @Test
+    public void writingWaitsForCredit() throws Exception {
+        session.grant(1);
+        frame();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!session.awaitCredit(session.next())) ;
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        writer.start();
+        writer.join(100);
+        assertTrue(writer.isAlive());
+
+        session.grant(2);
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+    }
+}
@@ -0,0 +1,111 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeerTableTest {
+
+    private final PeerTable host = new PeerTable();
+    private final PeerTable player = new PeerTable();
+    private final List<PeerTable.Changes> changes = new ArrayList<>();
+
+    public PeerTableTest() {
+        host.setHost("host", "Host");
+        player.setListener(new PeerTable.Listener() {
+            @Override
+            public void onPeersChanged(PeerTable.Changes batch) {
+                changes.add(batch);
+            }
+        });
+    }
+
+    @Test
+    public void onlyWhatChangedIsWrittenAfterTheWholeRoster() {
+        PeerTable.Peer alice = host.assign("alice", "Alice");
+        ByteBuffer whole = host.encode(alice.id, PeerTable.NO_VERSION);
+        assertTrue(player.update(whole));
+        int version = PeerTable.versionOf(whole);
+        assertEquals(host.getPeers(), player.getPeers());
+        assertEquals(alice.id, player.getLocalId());
+
+        host.assign("bob", "Bob");
+        host.setRtt("alice", 40);
+        ByteBuffer changed = host.encode(alice.id, version);
+        assertTrue(changed.remaining() < host.encode(alice.id, PeerTable.NO_VERSION).remaining());
+        assertTrue(player.update(changed));
+        assertEquals(host.getPeers(), player.getPeers());
+        assertEquals("bob", player.byName("Bob").address);
+        assertEquals(40, player.byName("Alice").rtt);
+        assertNull(host.encode(alice.id, PeerTable.versionOf(changed)));
+
+        PeerTable.Changes last = changes.get(changes.size() - 1);
+        assertEquals("Bob", last.joined.get(0).name);
+        assertEquals("Alice", last.updated.get(0).name);
+        assertEquals(3, last.peers.size());
+    }
+
+    @Test
+    public void aPlayerThatMissedAnUpdateAsksForTheWholeRoster() {
+        PeerTable.Peer alice = host.assign("alice", "Alice");
+        ByteBuffer whole = host.encode(alice.id, PeerTable.NO_VERSION);
+        player.update(whole);
+        host.assign("bob", "Bob");
+        int lost = host.getVersion();
+        host.remove("bob");
+
+        assertFalse(player.update(host.encode(alice.id, lost)));
+        assertNull(player.byName("Bob"));
+        assertTrue(player.update(host.encode(alice.id, PeerTable.NO_VERSION)));
+        assertEquals(host.getPeers(), player.getPeers());
+    }
+
+    @Test
+    public void smallChangesInTheRoundTripTimeAreNotWritten() {
+        host.assign("alice", "Alice");
+        host.setRtt("alice", 100);
+        int version = host.getVersion();
+        host.setRtt("alice", 110);
+        assertEquals(version, host.getVersion());
+        host.setRtt("alice", 200);
+        assertEquals(version + 1, host.getVersion());
+    }
+
+    @Test
+    public void aDeviceThatJoinsAndLeavesInOneBatchIsntReported() {
+        final List<PeerTable.Changes> reported = new ArrayList<>();
+        host.setListener(new PeerTable.Listener() {
+            @Override
+            public void onPeersChanged(PeerTable.Changes batch) {
+                reported.add(batch);
+            }
+        });
+        host.reportChanges();
+        reported.clear();
+        host.assign("alice", "Alice");
+        host.assign("bob", "Bob");
+        host.remove("bob");
+        host.reportChanges();
+        assertEquals(1, reported.size());
+        assertEquals(1, reported.get(0).joined.size());
+        assertTrue(reported.get(0).left.isEmpty());
+    }
+}
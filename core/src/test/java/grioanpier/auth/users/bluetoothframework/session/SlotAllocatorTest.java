@@ -0,0 +1,68 @@
+package grioanpier.auth.users.bluetoothframework.session;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import grioanpier.auth.users.bluetoothframework.io.QueueOverflowException;
+
+import static org.junit.Assert.*;
+
+public class SlotAllocatorTest {
+
+    private static final UUID A = UUID.fromString("e3d0b0a2-0000-4000-8000-00000000000a");
+    private static final UUID B = UUID.fromString("e3d0b0a2-0000-4000-8000-00000000000b");
+
+    private final SlotAllocator<String> allocator = new SlotAllocator<>(Arrays.asList(A, B), 1);
+
+    @Test
+    public void slotsAreHandedOutInOrderAndReused() {
+        assertEquals(A, allocator.acquire());
+        assertEquals(B, allocator.acquire());
+        assertNull(allocator.acquire());
+
+        assertNull(allocator.release(A));
+        assertEquals(1, allocator.getFreeCount());
+        assertEquals(A, allocator.acquire());
+    }
+
+    @Test
+    public void releasedSlotsGoToWhoWaitsFirst() {
+        allocator.acquire();
+        allocator.acquire();
+        assertNull(allocator.acquire("carol"));
+        assertEquals(1, allocator.getQueueLength());
+
+        assertEquals("carol", allocator.release(B));
+        assertTrue(allocator.isInUse(B));
+        assertEquals(0, allocator.getFreeCount());
+    }
+
+    @Test(expected = QueueOverflowException.class)
+    public void theQueueIsBounded() {
+        allocator.acquire();
+        allocator.acquire();
+        allocator.acquire("carol");
+        allocator.acquire("dave");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aFreeSlotCantBeReleased() {
+        allocator.release(A);
+    }
+}
@@ -0,0 +1,706 @@
+package grioanpier.auth.users.bluetoothframework.session;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+import grioanpier.auth.users.bluetoothframework.metrics.ConnectionMetrics;
+import grioanpier.auth.users.bluetoothframework.stream.VirtualStream;
+import grioanpier.auth.users.bluetoothframework.stream.VirtualStreams;
+import grioanpier.auth.users.bluetoothframework.trace.FlightRecorder;
+import grioanpier.auth.users.bluetoothframework.trace.MessageTracer;
+import grioanpier.auth.users.bluetoothframework.transfer.BlobTransfers;
+import grioanpier.auth.users.bluetoothframework.transport.Transport;
+import grioanpier.auth.users.bluetoothframework.transport.TransportServerSocket;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+import grioanpier.auth.users.bluetoothframework.transport.memory.InMemoryNetwork;
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+import grioanpier.auth.users.bluetoothframework.wire.FrameDecoder;
+import grioanpier.auth.users.bluetoothframework.wire.WireFormat;
+
+import static org.junit.Assert.*;
+
+/**
+ * A host and two players over the in-memory transport, the messages between the players are relayed by the host.
+ */
+public class SocketManagerTest {
+
+    private static final UUID SLOT_1 = UUID.fromString("e3d0b0a2-0000-4000-8000-000000000001");
+    private static final UUID SLOT_2 = UUID.fromString("e3d0b0a2-0000-4000-8000-000000000002");
+
+    private final InMemoryNetwork network = new InMemoryNetwork();
+    private final Device host = new Device("host", true);
+    private final Device alice = new Device("alice", false);
+    private final Device bob = new Device("bob", false);
+
+    @After
+    public void tearDown() {
+        host.manager.clear();
+        alice.manager.clear();
+        bob.manager.clear();
+    }
+
+    @Test
+    public void globalMessageReachesEveryone() throws Exception {
+        connect();
+        alice.manager.sendGlobalMessage("hello", 7);
+
+        assertEquals("hello", host.next().content);
+        BluetoothMessage received = bob.next();
+        assertEquals("hello", received.content);
+        assertEquals(7, (int) received.appCode);
+        assertEquals("alice", received.sourceMAC);
+    }
+
+    @Test
+    public void privateMessageIsRelayedByName() throws Exception {
+        connect();
+        alice.manager.sendPrivateMessage("psst", "bob", 3);
+
+        assertEquals("psst", bob.next().content);
+        assertNull(host.messages.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void playersFollowTheIdsTheHostGivesOut() throws Exception {
+        connect();
+        awaitPeers(bob, 3);
+        awaitPeers(alice, 3);
+        assertEquals(host.manager.getPeers(), alice.manager.getPeers());
+        assertEquals(host.manager.getPeers(), bob.manager.getPeers());
+        assertEquals("host", host.manager.getPeers().get(PeerTable.HOST_ID).address);
+
+        alice.manager.sendPrivateMessage("psst", "bob", 3);
+        BluetoothMessage received = bob.next();
+        assertEquals("psst", received.content);
+        assertEquals("alice", received.sourceMAC);
+        assertEquals("bob", received.targetMAC);
+
+        bob.manager.clear();
+        awaitPeers(alice, 2);
+        assertEquals(alice.manager.getPeers(), host.manager.getPeers());
+    }
+
+    @Test
+    public void playersKeepTheRosterAndAreToldWhatChangedInBatches() throws Exception {
+        host.manager.setHeartbeat(20, 5000);
+        connect();
+        awaitPeers(alice, 3);
+        //Resolved by the player on its own, it isn't connected to bob.
+        assertEquals("bob", alice.manager.getMAC("bob"));
+        List<String> joined = new ArrayList<>();
+        for (PeerTable.Changes changes; (changes = alice.rosters.poll()) != null; ) {
+            for (PeerTable.Peer peer : changes.joined)
+                joined.add(peer.address);
+            assertTrue(changes.left.isEmpty());
+        }
+        Collections.sort(joined);
+        assertEquals(Arrays.asList("alice", "bob", "host"), joined);
+
+        //The heartbeats of the host measure the round trip times, which the players are written.
+        for (int i = 0; i < 250 && alice.manager.getPeerTable().byAddress("bob").rtt < 0; i++)
+            Thread.sleep(20);
+        assertTrue(alice.manager.getPeerTable().byAddress("bob").rtt >= 0);
+        assertTrue(alice.manager.getPeerTable().byAddress("bob").joinedAt > 0);
+
+        bob.manager.clear();
+        PeerTable.Changes changes;
+        do {
+            changes = alice.rosters.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Bob leaving wasn't reported", changes);
+        } while (changes.left.isEmpty());
+        assertEquals("bob", changes.left.get(0).address);
+        assertEquals(2, changes.peers.size());
+    }
+
+    @Test
+    public void rosterChangesAndAppMessagesOfTheSameCodeStayApart() throws Exception {
+        connect();
+        awaitPeers(alice, 3);
+        alice.rosters.clear();
+        //5 is the code of the private messages of the chat app.
+        host.manager.sendGlobalMessage("whisper", 5);
+        bob.manager.clear();
+
+        BluetoothMessage message = alice.next();
+        assertEquals(Integer.valueOf(5), message.appCode);
+        assertEquals("whisper", message.content);
+        PeerTable.Changes changes = alice.rosters.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Bob leaving wasn't reported", changes);
+        assertEquals("bob", changes.left.get(0).address);
+        assertNull(alice.messages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void aLargeBulkMessageIsRelayedInFragmentsAndPutBackTogether() throws Exception {
+        connect();
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            large.append((char) ('a' + i % 26));
+        //It would compress to a single fragment.
+        alice.manager.setCompressionEnabled(false);
+        alice.manager.sendGlobalMessage(large.toString(), 5, Priority.BULK);
+        alice.manager.sendGlobalMessage("move", 6);
+
+        for (Device device : Arrays.asList(host, bob)) {
+            //The move may cut in between the fragments.
+            Map<Integer, BluetoothMessage> received = new HashMap<>();
+            for (int i = 0; i < 2; i++) {
+                BluetoothMessage message = device.next();
+                received.put(message.appCode, message);
+            }
+            assertEquals(large.toString(), received.get(5).content);
+            assertEquals(Priority.BULK, received.get(5).priority);
+            assertEquals("move", received.get(6).content);
+        }
+        assertTrue(host.manager.getTrafficMetrics().getPeer("alice").getFramesIn() > 10000 / ConnectedThread.DEFAULT_FRAGMENT_LENGTH);
+    }
+
+    @Test
+    public void withoutASessionFramesAreWrittenAsTheFirstVersionOfTheFormatReadsThem() throws Exception {
+        //Nothing is said about what the other device reads, so it may be a device of the first version.
+        for (Device device : Arrays.asList(host, alice, bob))
+            device.manager.setResumeWindow(0);
+        connect();
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            large.append((char) ('a' + i % 26));
+        alice.manager.setCompressionEnabled(false);
+        alice.manager.sendGlobalMessage(large.toString(), 5, Priority.BULK);
+
+        for (Device device : Arrays.asList(host, bob)) {
+            BluetoothMessage message = device.next();
+            assertEquals(large.toString(), message.content);
+            assertEquals(Priority.INTERACTIVE, message.priority);
+        }
+        //Not in fragments either.
+        assertTrue(host.manager.getTrafficMetrics().getPeer("alice").getFramesIn() < 10000 / ConnectedThread.DEFAULT_FRAGMENT_LENGTH);
+    }
+
+    @Test
+    public void compressedMessagesAreRelayedWithoutBeingInflated() throws Exception {
+        byte[] dictionary = "{\"player\":\"\",\"x\":,\"y\":}".getBytes("UTF-8");
+        for (Device device : Arrays.asList(host, alice, bob))
+            device.manager.setDictionary(8, dictionary);
+        connect();
+        //Bob is written the roster once his session is open, and only then does the host relay fragments to him as they are.
+        awaitPeers(bob, 3);
+        StringBuilder moves = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+            moves.append("{\"player\":\"alice\",\"x\":").append(i).append(",\"y\":").append(i * 7 % 100).append("}");
+        String move = "{\"player\":\"alice\",\"x\":12,\"y\":34}{\"player\":\"alice\",\"x\":13,\"y\":35}{\"player\":\"alice\",\"x\":14,\"y\":36}{\"player\":\"alice\",\"x\":15,\"y\":37}";
+        alice.manager.sendPrivateMessage(moves.toString(), "bob", 8);
+        alice.manager.sendPrivateMessage(move, "bob", 8);
+
+        assertEquals(moves.toString(), bob.next().content);
+        assertEquals(move, bob.next().content);
+        ConnectionMetrics.Snapshot sent = alice.manager.getTrafficMetrics().getPeer("host");
+        assertTrue(sent.toString(), sent.getCompressionRatio() < 0.5);
+        //The host relayed the bytes it got: it neither inflated them nor compressed them again.
+        assertEquals(0, host.manager.getTrafficMetrics().getPeer("alice").getInflatedBytes());
+        assertEquals(0, host.manager.getTrafficMetrics().getPeer("bob").getDeflatedBytes());
+        ConnectionMetrics.Snapshot received = bob.manager.getTrafficMetrics().getPeer("host");
+        assertEquals(sent.getDeflatedToBytes(), received.getInflatedBytes());
+        assertEquals(moves.length() + move.length(), received.getInflatedToBytes());
+    }
+
+    @Test
+    public void aFileSentToEveryDeviceArrivesIntact() throws Exception {
+        connect();
+        byte[] content = new byte[50000];
+        new Random(7).nextBytes(content);
+        File sent = File.createTempFile("blob", ".bin");
+        sent.deleteOnExit();
+        try (RandomAccessFile file = new RandomAccessFile(sent, "rw")) {
+            file.write(content);
+        }
+
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        final Map<String, File> received = Collections.synchronizedMap(new HashMap<String, File>());
+        for (final Device device : Arrays.asList(host, alice, bob)) {
+            device.manager.setBlobListener(new BlobTransfers.Listener() {
+                @Override
+                public FileChannel onOffered(String source, long id, String name, long length, int appCode) throws IOException {
+                    File file = File.createTempFile(name, ".part");
+                    file.deleteOnExit();
+                    received.put(device.address, file);
+                    return new RandomAccessFile(file, "rw").getChannel();
+                }
+
+                @Override
+                public void onReceived(String source, long id, boolean verified) {
+                    events.add(device.address + " received " + verified);
+                }
+
+                @Override
+                public void onDelivered(long id, String peer, boolean verified) {
+                    events.add(peer + " delivered " + verified);
+                }
+            });
+        }
+        alice.manager.sendBlob(new RandomAccessFile(sent, "r").getChannel(), "level", null, 9);
+
+        List<String> expected = Arrays.asList("host received true", "bob received true", "host delivered true", "bob delivered true");
+        List<String> got = new ArrayList<>();
+        for (int i = 0; i < expected.size(); i++) {
+            String event = events.poll(10, TimeUnit.SECONDS);
+            assertNotNull("Only got " + got, event);
+            got.add(event);
+        }
+        assertTrue(got.containsAll(expected));
+        for (String name : Arrays.asList("host", "bob")) {
+            try (RandomAccessFile file = new RandomAccessFile(received.get(name), "r")) {
+                byte[] bytes = new byte[(int) file.length()];
+                file.readFully(bytes);
+                assertArrayEquals(content, bytes);
+            }
+        }
+    }
+
+    @Test
+    public void aFileForADeviceThatIsntThereFailsAtOnce() throws Exception {
+        connect();
+        File sent = File.createTempFile("blob", ".bin");
+        sent.deleteOnExit();
+        try (RandomAccessFile file = new RandomAccessFile(sent, "rw")) {
+            file.write(new byte[1000]);
+        }
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        host.manager.setBlobListener(new BlobTransfers.Listener() {
+            @Override
+            public FileChannel onOffered(String source, long id, String name, long length, int appCode) {
+                return null;
+            }
+
+            @Override
+            public void onReceived(String source, long id, boolean verified) {
+            }
+
+            @Override
+            public void onDelivered(long id, String peer, boolean verified) {
+                events.add(peer + " delivered " + verified);
+            }
+        });
+        host.manager.sendBlob(new RandomAccessFile(sent, "r").getChannel(), "level", "carol", 9);
+        //Long before the receiver would be given up for its silence.
+        assertEquals("carol delivered false", events.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void streamsShareTheConnectionAndKeepTheirOrder() throws Exception {
+        connect();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final BlockingQueue<Thread> echoes = new LinkedBlockingQueue<>();
+        host.manager.setStreamListener(new VirtualStreams.Listener() {
+            @Override
+            public void onStreamOpened(final VirtualStream stream) {
+                //Echoes everything back, on a thread of its own.
+                Thread echo = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            byte[] buffer = new byte[1000];
+                            int read;
+                            while ((read = stream.getInputStream().read(buffer)) >= 0)
+                                stream.getOutputStream().write(buffer, 0, read);
+                            stream.close();
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+                echoes.add(echo);
+                echo.start();
+            }
+        });
+
+        final byte[] content = new byte[100000];
+        new Random(3).nextBytes(content);
+        final VirtualStream large = alice.manager.openStream("host", "large", Priority.BULK);
+        VirtualStream small = alice.manager.openStream("host", "small", null);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    //More than the window, so it only gets through as the echo is read.
+                    large.getOutputStream().write(content);
+                    large.getOutputStream().close();
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        };
+        writer.start();
+        small.getOutputStream().write("hello".getBytes("UTF-8"));
+        small.getOutputStream().close();
+
+        assertArrayEquals("hello".getBytes("UTF-8"), readAll(small.getInputStream()));
+        assertArrayEquals(content, readAll(large.getInputStream()));
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+        for (int i = 0; i < 2; i++) {
+            Thread echo = echoes.poll(1, TimeUnit.SECONDS);
+            assertNotNull(echo);
+            echo.join(1000);
+            assertFalse(echo.isAlive());
+        }
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void aWriterWaitsWhileTheWindowIsFullAndGoesOnOnceItIsRead() throws Exception {
+        connect();
+        final BlockingQueue<VirtualStream> opened = new LinkedBlockingQueue<>();
+        host.manager.setStreamListener(new VirtualStreams.Listener() {
+            @Override
+            public void onStreamOpened(VirtualStream stream) {
+                //Not read until the test says so.
+                opened.add(stream);
+            }
+        });
+
+        final int chunk = 1024;
+        final byte[] content = new byte[2 * VirtualStreams.WINDOW + chunk];
+        new Random(5).nextBytes(content);
+        final VirtualStream stream = alice.manager.openStream("host", "paced", null);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicInteger written = new AtomicInteger();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int off = 0; off < content.length; off += chunk) {
+                        stream.getOutputStream().write(content, off, chunk);
+                        written.addAndGet(chunk);
+                    }
+                    stream.getOutputStream().close();
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        };
+        writer.start();
+
+        VirtualStream received = opened.poll(5, TimeUnit.SECONDS);
+        assertNotNull(received);
+        for (int i = 0; i < 250 && received.getInputStream().available() < VirtualStreams.WINDOW; i++)
+            Thread.sleep(20);
+        //Given the time to write past the window, it didn't.
+        Thread.sleep(200);
+        assertEquals(VirtualStreams.WINDOW, received.getInputStream().available());
+        assertEquals(VirtualStreams.WINDOW, written.get());
+        assertTrue(writer.isAlive());
+
+        assertArrayEquals(content, readAll(received.getInputStream()));
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+        assertNull(failure.get());
+        assertEquals(content.length, written.get());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void relayedTrafficIsCounted() throws Exception {
+        connect();
+        alice.manager.sendGlobalMessage("hello", 7);
+        bob.next();
+
+        //The host counts the relay once routing returns, which may be after bob already got the message.
+        ConnectionMetrics.Snapshot fromAlice = host.manager.getTrafficMetrics().getPeer("alice");
+        for (int i = 0; i < 100 && fromAlice.getRelayed() < 2; i++) {
+            Thread.sleep(10);
+            fromAlice = host.manager.getTrafficMetrics().getPeer("alice");
+        }
+        //The message and the session it opened.
+        assertEquals(2, fromAlice.getFramesIn());
+        //Relayed to both players, alice included.
+        assertEquals(2, fromAlice.getRelayed());
+        assertEquals(1, fromAlice.getConnected());
+        assertEquals(2, host.manager.getTrafficMetrics().getTotal().getConnected());
+    }
+
+    @Test
+    public void tracedMessagesAreRecordedAtEveryHop() throws Exception {
+        connect();
+        alice.manager.setTracing(true);
+        host.manager.setTracing(true);
+        bob.manager.setTracing(true);
+        alice.manager.sendGlobalMessage("hello", 7);
+
+        BluetoothMessage received = bob.next();
+        assertNotEquals(0, received.traceId);
+        assertTrue(stages(alice, received.traceId).contains(MessageTracer.Stage.ENQUEUE));
+        assertTrue(stages(bob, received.traceId).contains(MessageTracer.Stage.CONSUME));
+        //The host records the relay and the writes once they are done, bob may have the message by then.
+        List<MessageTracer.Stage> hops = Arrays.asList(MessageTracer.Stage.RECEIVE, MessageTracer.Stage.RELAY, MessageTracer.Stage.WRITE);
+        for (int i = 0; i < 100 && !stages(host, received.traceId).containsAll(hops); i++)
+            Thread.sleep(10);
+        assertTrue(stages(host, received.traceId).containsAll(hops));
+    }
+
+    @Test
+    public void messagesAreNotTracedByDefault() throws Exception {
+        connect();
+        alice.manager.sendGlobalMessage("hello", 7);
+
+        assertEquals(0, bob.next().traceId);
+        assertTrue(host.manager.getTracer().dump().isEmpty());
+    }
+
+    private static List<MessageTracer.Stage> stages(Device device, long traceId) {
+        List<MessageTracer.Stage> stages = new ArrayList<>();
+        for (MessageTracer.Entry entry : device.manager.getTracer().dump())
+            if (entry.traceId == traceId)
+                stages.add(entry.stage);
+        return stages;
+    }
+
+    @Test
+    public void hostIsToldWhenAPlayerLeaves() throws Exception {
+        connect();
+        alice.manager.clear();
+
+        assertEquals("alice", host.disconnected.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, host.manager.getConnectedAddresses().size());
+    }
+
+    @Test
+    public void leavingIsInTheFlightRecorder() throws Exception {
+        connect();
+        alice.manager.clear();
+        host.disconnected.poll(5, TimeUnit.SECONDS);
+
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        host.manager.getFlightRecorder().dump(dump);
+        List<FlightRecorder.Record> records = FlightRecorder.read(new ByteArrayInputStream(dump.toByteArray()));
+        FlightRecorder.Record last = records.get(records.size() - 1);
+        assertEquals(FlightRecorder.Event.DISCONNECTED, last.event);
+        assertEquals("alice", last.peer);
+    }
+
+    @Test
+    public void acceptsOnEverySlotAndFreesTheSlotOfWhoLeaves() throws Exception {
+        host.manager.startAccepting(host.transport, Arrays.asList(SLOT_1, SLOT_2));
+        alice.manager.setHostSocket(connectWhenListening(alice, SLOT_1));
+        bob.manager.setHostSocket(connectWhenListening(bob, SLOT_2));
+        assertNotNull(host.joined.poll(5, TimeUnit.SECONDS));
+        assertNotNull(host.joined.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, host.manager.getFreeSlotCount());
+
+        alice.manager.clear();
+        assertEquals("alice", host.disconnected.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, host.manager.getFreeSlotCount());
+        Device carol = new Device("carol", false);
+        carol.manager.setHostSocket(connectWhenListening(carol, SLOT_1));
+        assertEquals("carol", host.joined.poll(5, TimeUnit.SECONDS));
+        carol.manager.clear();
+    }
+
+    @Test
+    public void aPlayerWaitsInTheLobbyUntilASlotIsFreed() throws Exception {
+        host.manager.startAccepting(host.transport, Collections.singletonList(SLOT_1), SLOT_2);
+        alice.manager.setHostSocket(connectWhenListening(alice, SLOT_1));
+        assertEquals("alice", host.joined.poll(5, TimeUnit.SECONDS));
+
+        bob.manager.setHostSocket(connectWhenListening(bob, SLOT_2));
+        for (int i = 0; i < 100 && host.manager.getAdmissionQueueLength() == 0; i++)
+            Thread.sleep(10);
+        assertEquals(1, host.manager.getAdmissionQueueLength());
+        assertNull(host.joined.poll(100, TimeUnit.MILLISECONDS));
+
+        alice.manager.clear();
+        assertEquals("bob", host.joined.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, host.manager.getAdmissionQueueLength());
+        bob.manager.sendGlobalMessage("in", 1);
+        assertEquals("in", host.next().content);
+    }
+
+    @Test
+    public void aPlayerThatGoesSilentIsFoundDead() throws Exception {
+        host.manager.setHeartbeat(20, 200);
+        TransportServerSocket server = host.transport.listen(SLOT_1);
+        TransportSocket player = alice.transport.connect("host", SLOT_1);
+        host.manager.addPlayerSocket(server.accept());
+        server.close();
+
+        //Answers a single heartbeat, then stops reading without disconnecting.
+        final BluetoothMessage[] ping = new BluetoothMessage[1];
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] buffer = new byte[1024];
+        while (ping[0] == null) {
+            int read = player.getInputStream().read(buffer);
+            decoder.decode(buffer, 0, read, new FrameDecoder.FrameListener() {
+                @Override
+                public void onFrame(ByteBuffer frame) {
+                    BluetoothMessage message = BluetoothMessage.decode(frame);
+                    if (message.appCode == ControlCodes.PING)
+                        ping[0] = message;
+                }
+            });
+        }
+        player.getOutputStream().write(new BluetoothMessage(false, "host", null, ControlCodes.PONG, ping[0].content).toBytes(WireFormat.BINARY));
+
+        long start = System.nanoTime();
+        assertEquals("alice", host.disconnected.poll(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        assertTrue(host.manager.getTrafficMetrics().getPeer("alice").getSmoothedRtt() > 0);
+        player.close();
+    }
+
+    @Test
+    public void aDroppedPlayerResumesWithoutLosingOrRepeatingMessages() throws Exception {
+        host.manager.startAccepting(host.transport, Arrays.asList(SLOT_1, SLOT_2));
+        alice.manager.setReconnector(new SocketManager.Reconnector() {
+            @Override
+            public TransportSocket reconnect(String hostAddress) throws IOException {
+                return alice.transport.connect(hostAddress, SLOT_1);
+            }
+        });
+        TransportSocket link = connectWhenListening(alice, SLOT_1);
+        alice.manager.setHostSocket(link);
+        bob.manager.setHostSocket(connectWhenListening(bob, SLOT_2));
+        assertNotNull(host.joined.poll(5, TimeUnit.SECONDS));
+        assertNotNull(host.joined.poll(5, TimeUnit.SECONDS));
+        bob.manager.sendGlobalMessage("before", 1);
+        assertEquals("before", alice.next().content);
+        assertEquals("before", bob.next().content);
+
+        //Sent while the link is down, both ways.
+        link.close();
+        bob.manager.sendGlobalMessage("during", 2);
+        alice.manager.sendPrivateMessage("psst", "bob", 3);
+
+        assertEquals("during", alice.next().content);
+        assertEquals("during", bob.next().content);
+        assertEquals("psst", bob.next().content);
+        assertNull(alice.messages.poll(200, TimeUnit.MILLISECONDS));
+        assertNull(bob.messages.poll(0, TimeUnit.MILLISECONDS));
+        assertTrue(host.disconnected.isEmpty());
+        assertTrue(alice.disconnected.isEmpty());
+        assertTrue(host.joined.isEmpty());
+        assertTrue(recorded(host, FlightRecorder.Event.SESSION_RESUMED));
+    }
+
+    private static boolean recorded(Device device, FlightRecorder.Event event) {
+        for (FlightRecorder.Record record : device.manager.getFlightRecorder().snapshot())
+            if (record.event == event)
+                return true;
+        return false;
+    }
+
+    //The slots start listening on their own threads.
+    private static TransportSocket connectWhenListening(Device device, UUID slot) throws Exception {
+        for (int i = 0; ; i++) {
+            try {
+                return device.transport.connect("host", slot);
+            } catch (IOException e) {
+                if (i == 100)
+                    throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static void awaitPeers(Device device, int count) throws InterruptedException {
+        for (int i = 0; i < 250 && device.manager.getPeers().size() != count; i++)
+            Thread.sleep(20);
+        assertEquals(count, device.manager.getPeers().size());
+    }
+
+    private void connect() throws Exception {
+        TransportServerSocket server1 = host.transport.listen(SLOT_1);
+        TransportServerSocket server2 = host.transport.listen(SLOT_2);
+        alice.manager.setHostSocket(alice.transport.connect("host", SLOT_1));
+        host.manager.addPlayerSocket(server1.accept());
+        bob.manager.setHostSocket(bob.transport.connect("host", SLOT_2));
+        host.manager.addPlayerSocket(server2.accept());
+        server1.close();
+        server2.close();
+    }
+
+    private class Device implements SocketManager.LocalDevice, SocketManager.Listener, PeerTable.Listener {
+        final String address;
+        final boolean isHost;
+        final Transport transport;
+        final SocketManager manager;
+        final BlockingQueue<BluetoothMessage> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> disconnected = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> joined = new LinkedBlockingQueue<>();
+        final BlockingQueue<PeerTable.Changes> rosters = new LinkedBlockingQueue<>();
+
+        Device(String address, boolean isHost) {
+            this.address = address;
+            this.isHost = isHost;
+            transport = network.attach(address, address);
+            manager = new SocketManager(this, this);
+            manager.setPeerListener(this);
+        }
+
+        BluetoothMessage next() throws InterruptedException {
+            BluetoothMessage message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Nothing was received", message);
+            return message;
+        }
+
+        @Override
+        public boolean isHost() {
+            return isHost;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public void onMessage(BluetoothMessage message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onPlayerConnected(String address, String name) {
+            joined.add(name);
+        }
+
+        @Override
+        public void onDisconnected(String address, String name, boolean wasHost) {
+            disconnected.add(name);
+        }
+
+        @Override
+        public void onPeersChanged(PeerTable.Changes changes) {
+            rosters.add(changes);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package grioanpier.auth.users.bluetoothframework.transfer;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+import grioanpier.auth.users.bluetoothframework.wire.ControlCodes;
+import grioanpier.auth.users.bluetoothframework.wire.FrameCodec;
+import grioanpier.auth.users.bluetoothframework.wire.FrameHeader;
+
+import static org.junit.Assert.*;
+
+public class BlobTransfersTest {
+
+    //The connection drops once the sender has read this much acknowledged, well before the end.
+    private static final int DROP_AFTER = 2 * BlobTransfers.ACK_EVERY;
+    private static final int CHUNKS = 100;
+
+    /**
+     * One way of a connection. Frames are read in order on a thread of their own. While the connection is down, what
+     * is written is lost, like on a connection that dropped for longer than its session could hide.
+     */
+    private final class Link implements BlobTransfers.Sender {
+        private final String mFrom;
+        private final ExecutorService mReader = Executors.newSingleThreadExecutor();
+        private BlobTransfers mTo;
+        //The chunk the receiver said it's missing first, in the last acknowledgement read.
+        private volatile int mAcked = 0;
+
+        Link(String from) {
+            mFrom = from;
+        }
+
+        @Override
+        public boolean send(String target, int appCode, Priority priority, ByteBuffer payload) {
+            if (appCode == ControlCodes.BLOB_CHUNK)
+                onChunkWritten(payload.getInt(payload.position() + 8));
+            if (down)
+                return true;
+            final boolean ack = appCode == ControlCodes.BLOB_ACK;
+            final ByteBuffer frame = FrameCodec.encode(false, target, mFrom, appCode, priority, payload);
+            mReader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    FrameHeader header = new FrameHeader();
+                    FrameCodec.readHeader(frame, header);
+                    if (ack)
+                        mAcked = header.payload().getInt(8);
+                    mTo.onFrame(header);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean isReachable(String target) {
+            return true;
+        }
+
+        @Override
+        public String getLocalAddress() {
+            return mFrom;
+        }
+    }
+
+    private final Link toHost = new Link("alice");
+    private final Link toAlice = new Link("host");
+    private final BlobTransfers alice = new BlobTransfers(toHost);
+    private final BlobTransfers host = new BlobTransfers(toAlice);
+
+    private volatile boolean down = false;
+    private volatile boolean dropped = false;
+    //The first chunk written once the connection was back, and the acknowledgement the sender had read by then.
+    private volatile int resumedAt = -1;
+    private volatile int ackedThen = -1;
+
+    {
+        toHost.mTo = host;
+        toAlice.mTo = alice;
+    }
+
+    @After
+    public void tearDown() {
+        alice.clear();
+        host.clear();
+        toHost.mReader.shutdownNow();
+        toAlice.mReader.shutdownNow();
+    }
+
+    private void onChunkWritten(int index) {
+        if (!dropped && toAlice.mAcked >= DROP_AFTER) {
+            dropped = true;
+            down = true;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        //Shorter than the sender waits before it sends again what wasn't acknowledged.
+                        Thread.sleep(OutgoingBlob.RESEND_MS / 4);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    down = false;
+                }
+            }.start();
+        } else if (dropped && !down && resumedAt < 0) {
+            ackedThen = toAlice.mAcked;
+            resumedAt = index;
+        }
+    }
+
+    @Test
+    public void aTransferCutOffMidwayGoesOnFromWhatWasAcknowledged() throws Exception {
+        byte[] content = new byte[CHUNKS * BlobTransfers.DEFAULT_CHUNK_SIZE + 100];
+        new Random(7).nextBytes(content);
+        File sent = File.createTempFile("blob", ".bin");
+        sent.deleteOnExit();
+        try (RandomAccessFile file = new RandomAccessFile(sent, "rw")) {
+            file.write(content);
+        }
+        final File received = File.createTempFile("blob", ".part");
+        received.deleteOnExit();
+
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        BlobTransfers.Listener listener = new BlobTransfers.Listener() {
+            @Override
+            public FileChannel onOffered(String source, long id, String name, long length, int appCode) throws IOException {
+                return new RandomAccessFile(received, "rw").getChannel();
+            }
+
+            @Override
+            public void onReceived(String source, long id, boolean verified) {
+                events.add("received " + verified);
+            }
+
+            @Override
+            public void onDelivered(long id, String peer, boolean verified) {
+                events.add("delivered " + verified);
+            }
+        };
+        alice.setListener(listener);
+        host.setListener(listener);
+        alice.send(new RandomAccessFile(sent, "r").getChannel(), "level", "host", 9);
+
+        //In either order, the host acknowledges the file before it's told.
+        List<String> got = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            String event = events.poll(10, TimeUnit.SECONDS);
+            assertNotNull("Only got " + got, event);
+            got.add(event);
+        }
+        assertTrue(got.toString(), got.containsAll(Arrays.asList("received true", "delivered true")));
+        assertTrue(dropped);
+        //Neither from the start, nor from where the sender had got to.
+        assertTrue("Acknowledged " + ackedThen, ackedThen >= DROP_AFTER);
+        assertEquals(ackedThen, resumedAt);
+        try (RandomAccessFile file = new RandomAccessFile(received, "r")) {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            assertArrayEquals(content, bytes);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package grioanpier.auth.users.bluetoothframework.transport;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import grioanpier.auth.users.bluetoothframework.transport.memory.InMemoryNetwork;
+
+import static org.junit.Assert.*;
+
+public class SlotProberTest {
+
+    private static final UUID[] SLOTS = {
+            UUID.fromString("e3d0b0a2-0000-4000-8000-000000000001"),
+            UUID.fromString("e3d0b0a2-0000-4000-8000-000000000002"),
+            UUID.fromString("e3d0b0a2-0000-4000-8000-000000000003")
+    };
+
+    private final InMemoryNetwork network = new InMemoryNetwork();
+    private final Transport host = network.attach("host", "host");
+    private final Transport player = network.attach("player", "player");
+    private final SlotProber prober = new SlotProber();
+
+    @Test
+    public void findsTheFreeSlotAndTriesItFirstNextTime() throws Exception {
+        TransportServerSocket server = host.listen(SLOTS[2]);
+        SlotProber.Result result = prober.connect(player, "host", SLOTS, null);
+
+        assertNotNull(result.getSocket());
+        assertEquals(3, result.getAttempts().size());
+        assertEquals(SLOTS[2], prober.getLastSlot("host"));
+        assertEquals(SLOTS[2], prober.order("host", SLOTS, null).get(0));
+        result.getSocket().close();
+        server.close();
+    }
+
+    @Test
+    public void onlyTriesTheAdvertisedSlots() throws Exception {
+        TransportServerSocket server = host.listen(SLOTS[1]);
+        SlotProber.Result result = prober.connect(player, "host", SLOTS, Collections.singleton(SLOTS[1]));
+
+        assertNotNull(result.getSocket());
+        assertEquals(1, result.getAttempts().size());
+        result.getSocket().close();
+        server.close();
+    }
+
+    @Test
+    public void aFullHostIsNotTried() {
+        SlotProber.Result result = prober.connect(player, "host", SLOTS, Collections.<UUID>emptySet());
+
+        assertNull(result.getSocket());
+        assertTrue(result.getAttempts().isEmpty());
+        assertFalse(result.isTimedOut());
+    }
+
+    @Test
+    public void parallelAttemptsConnectOnce() throws Exception {
+        TransportServerSocket server = host.listen(SLOTS[0]);
+        prober.setParallelism(3);
+        SlotProber.Result result = prober.connect(player, "host", SLOTS, Arrays.asList(SLOTS));
+
+        assertNotNull(result.getSocket());
+        assertEquals(SLOTS[0], prober.getLastSlot("host"));
+        result.getSocket().close();
+        server.close();
+    }
+}
@@ -0,0 +1,126 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+
+import static org.junit.Assert.*;
+
+public class FragmentAssemblerTest {
+
+    //Ids the test hands out, like the roster of a host would.
+    private final Map<Integer, String> ids = new HashMap<>();
+    private final PeerIds peers = new PeerIds() {
+        @Override
+        public int idOf(String address) {
+            for (Map.Entry<Integer, String> entry : ids.entrySet())
+                if (entry.getValue().equals(address))
+                    return entry.getKey();
+            return NONE;
+        }
+
+        @Override
+        public byte[] addressOf(int id) {
+            String address = ids.get(id);
+            return address == null ? null : address.getBytes(FrameCodec.UTF8);
+        }
+    };
+
+    /**
+     * @return the header of a fragment of a 100 byte message from the source
+     */
+    private FrameHeader fragment(String source, int offset, int length) {
+        ByteBuffer whole = FrameCodec.encode(true, null, source, 7, Priority.BULK, ByteBuffer.wrap(new byte[100]), peers);
+        FrameHeader header = new FrameHeader();
+        header.setPeerIds(peers);
+        FrameCodec.readHeader(whole, header);
+        ByteBuffer fragment = FrameCodec.fragment(header, offset, length);
+        FrameHeader read = new FrameHeader();
+        read.setPeerIds(peers);
+        FrameCodec.readHeader(fragment, read);
+        return read;
+    }
+
+    @Test
+    public void whatADeviceLeftIsntAddedToByTheNextOneWithItsId() {
+        FragmentAssembler assembler = new FragmentAssembler();
+        ids.put(3, "alice");
+        assertNull(assembler.add(fragment("alice", 0, 50)));
+        assembler.discard("alice");
+        assertEquals(0, assembler.getPendingCount());
+        assertEquals(0, assembler.getPendingBytes());
+
+        ids.put(3, "carol");
+        try {
+            assembler.add(fragment("carol", 50, 50));
+            fail("The fragment was added to what alice left");
+        } catch (IllegalArgumentException e) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void aMessageIsPutBackTogetherWhenTheRosterNamesItsSourceHalfwayThrough() {
+        FragmentAssembler assembler = new FragmentAssembler();
+        ids.put(3, "alice");
+        FrameHeader first = fragment("alice", 0, 50);
+        FrameHeader last = fragment("alice", 50, 50);
+        ids.clear();
+        assertNull(assembler.add(first));
+
+        ids.put(3, "alice");
+        BluetoothMessage message = assembler.add(last);
+        assertNotNull(message);
+        assertEquals("alice", message.sourceMAC);
+        assertEquals(0, assembler.getPendingBytes());
+    }
+
+    @Test
+    public void aMessageIsRelayedWholeIfItsFirstFragmentSaidSo() {
+        FragmentAssembler assembler = new FragmentAssembler();
+        assembler.add(fragment("alice", 0, 50), true);
+        assembler.add(fragment("bob", 0, 50), false);
+        assertTrue(assembler.isRelayedWhole(fragment("alice", 50, 50)));
+        assertFalse(assembler.isRelayedWhole(fragment("bob", 50, 50)));
+        assertFalse(assembler.isRelayedWhole(fragment("carol", 50, 50)));
+    }
+
+    @Test
+    public void theOldestMessageGoesWhenTheyWouldHoldTooMuch() {
+        FragmentAssembler assembler = new FragmentAssembler(100, 150, FragmentAssembler.DEFAULT_MAX_AGE_MILLIS);
+        assembler.add(fragment("alice", 0, 50));
+        assembler.add(fragment("bob", 0, 50));
+        assertEquals(1, assembler.getPendingCount());
+        assertEquals(100, assembler.getPendingBytes());
+        assertNotNull(assembler.add(fragment("bob", 50, 50)));
+        assertEquals(0, assembler.getPendingBytes());
+    }
+
+    @Test
+    public void messagesLeftUnfinishedForTooLongAreDiscarded() throws Exception {
+        FragmentAssembler assembler = new FragmentAssembler(100, 1000, 10);
+        assembler.add(fragment("alice", 0, 50));
+        Thread.sleep(20);
+        assembler.add(fragment("bob", 0, 50));
+        assertEquals(1, assembler.getPendingCount());
+    }
+}
@@ -0,0 +1,267 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+import grioanpier.auth.users.bluetoothframework.io.Priority;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    /**
+     * Reads a frame the way devices of the first version of the format do.
+     */
+    private static BluetoothMessage decodeVersion1(ByteBuffer in) {
+        if (in.get() != FrameCodec.MAGIC)
+            throw new IllegalArgumentException("Not a binary frame");
+        int end = FrameCodec.readVarint(in);
+        end += in.position();
+        int flags = in.get() & 0xFF;
+        if ((flags & ~0x0F) != 0)
+            throw new IllegalArgumentException("Unknown frame flags " + Integer.toHexString(flags));
+        BluetoothMessage message = new BluetoothMessage();
+        if ((flags & 0x02) == 0)
+            message.isGlobal = (flags & 0x01) != 0;
+        message.targetMAC = (flags & 0x04) != 0 ? string(in, FrameCodec.readVarint(in)) : null;
+        message.sourceMAC = (flags & 0x08) != 0 ? string(in, FrameCodec.readVarint(in)) : null;
+        message.appCode = in.getInt();
+        message.content = string(in, end - in.position());
+        return message;
+    }
+
+    private static String string(ByteBuffer in, int length) {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, FrameCodec.UTF8);
+    }
+
+    private static FrameHeader header(ByteBuffer frame, PeerIds peers) {
+        FrameHeader header = new FrameHeader();
+        header.setPeerIds(peers);
+        FrameCodec.readHeader(frame, header);
+        return header;
+    }
+
+    @Test
+    public void anOldDeviceReadsWhatIsDowngradedOfAFrameItWouldRefuse() {
+        BluetoothMessage message = new BluetoothMessage(true, null, "alice", 4, "move");
+        message.priority = Priority.BULK;
+        message.traceId = 42;
+        message.traceTime = 7;
+        ByteBuffer frame = FrameCodec.encode(message);
+        try {
+            decodeVersion1(frame.duplicate());
+            fail("The lane and the trace were read by a device that doesn't know them");
+        } catch (IllegalArgumentException e) {
+            //Expected.
+        }
+
+        FrameHeader header = header(frame, null);
+        assertFalse(header.isVersion1());
+        ByteBuffer downgraded = FrameCodec.downgrade(header);
+        assertTrue(header(downgraded, null).isVersion1());
+        BluetoothMessage read = decodeVersion1(downgraded);
+        assertEquals(Boolean.TRUE, read.isGlobal);
+        assertNull(read.targetMAC);
+        assertEquals("alice", read.sourceMAC);
+        assertEquals(Integer.valueOf(4), read.appCode);
+        assertEquals("move", read.content);
+    }
+
+    @Test
+    public void devicesNamedByTheirIdAreNamedByTheirAddressOnceDowngraded() {
+        PeerIds peers = new PeerIds() {
+            @Override
+            public int idOf(String address) {
+                return address.equals("bob") ? 2 : NONE;
+            }
+
+            @Override
+            public byte[] addressOf(int id) {
+                return id == 2 ? "bob".getBytes(FrameCodec.UTF8) : null;
+            }
+        };
+        ByteBuffer frame = FrameCodec.encode(false, "bob", "alice", 4, null, ByteBuffer.wrap(new byte[]{1, 2, 3}), peers);
+        FrameHeader header = header(frame, peers);
+        assertTrue(header.usesPeerIds());
+
+        BluetoothMessage read = decodeVersion1(FrameCodec.downgrade(header));
+        assertEquals(Boolean.FALSE, read.isGlobal);
+        assertEquals("bob", read.targetMAC);
+        assertEquals("alice", read.sourceMAC);
+    }
+
+    @Test
+    public void aFrameOfTheFirstVersionIsLeftAsItIs() {
+        ByteBuffer frame = FrameCodec.encode(null, "bob", null, 4, ByteBuffer.wrap(new byte[]{1}));
+        FrameHeader header = header(frame, null);
+        assertTrue(header.isVersion1());
+        assertEquals(frame, FrameCodec.downgrade(header));
+        assertEquals(1, decodeVersion1(frame).content.length());
+    }
+
+    @Test
+    public void varintsRoundTripAtTheBoundariesOfTheirLength() {
+        int[] values = {0, 127, 128, 16383, 16384, 2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE};
+        int[] lengths = {1, 1, 2, 2, 3, 3, 4, 4, 5, 5};
+        for (int i = 0; i < values.length; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(5);
+            FrameCodec.writeVarint(buffer, values[i]);
+            assertEquals("Length of " + values[i], lengths[i], buffer.position());
+            assertEquals(lengths[i], FrameCodec.varintLength(values[i]));
+            buffer.flip();
+            assertEquals(values[i], FrameCodec.readVarint(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeVarintsAreRefused() {
+        FrameCodec.writeVarint(ByteBuffer.allocate(5), -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aVarintThatOverflowsAnIntIsRefused() {
+        FrameCodec.readVarint(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aVarintLongerThanFiveBytesIsRefused() {
+        FrameCodec.readVarint(ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0}));
+    }
+
+    @Test
+    public void aMessageRoundTripsWithOrWithoutItsFields() {
+        BluetoothMessage[] messages = {
+                new BluetoothMessage(true, null, "alice", 4, "hello"),
+                new BluetoothMessage(false, "bob", "alice", -7, ""),
+                new BluetoothMessage(null, null, null, Integer.MAX_VALUE, "\u03b3\u03b5\u03b9\u03ac")};
+        for (BluetoothMessage message : messages) {
+            ByteBuffer frame = FrameCodec.encode(message);
+            BluetoothMessage read = FrameCodec.decode(frame);
+            assertFalse(frame.hasRemaining());
+            assertEquals(message.isGlobal, read.isGlobal);
+            //The constructor writes a missing address as "null", the codec leaves it out and reads it back as null.
+            assertEquals("null".equals(message.targetMAC) ? null : message.targetMAC, read.targetMAC);
+            assertEquals("null".equals(message.sourceMAC) ? null : message.sourceMAC, read.sourceMAC);
+            assertEquals(message.appCode, read.appCode);
+            assertEquals(message.content, read.content);
+        }
+    }
+
+    @Test
+    public void aFrameWithoutTheMagicByteIsRefused() {
+        ByteBuffer frame = FrameCodec.encode(true, null, "alice", 4, ByteBuffer.wrap(new byte[]{1}));
+        frame.put(0, (byte) 0xB2);
+        try {
+            FrameCodec.decode(frame);
+            fail("Read a frame of another version");
+        } catch (IllegalArgumentException e) {
+            //Expected.
+        }
+    }
+
+    /**
+     * @return the frame with extended flags, which must have no address and no extended flags of its own
+     */
+    private static ByteBuffer withExtendedFlags(ByteBuffer frame, int extendedFlags) {
+        //Without addresses the body is [flags][appCode][payload], short enough for a single byte length.
+        ByteBuffer extended = ByteBuffer.allocate(frame.remaining() + 1);
+        extended.put(FrameCodec.MAGIC).put((byte) (frame.get(1) + 1)).put((byte) (frame.get(2) | FrameCodec.FLAG_EXTENDED));
+        extended.put((byte) extendedFlags);
+        ByteBuffer rest = frame.duplicate();
+        rest.position(3);
+        extended.put(rest).flip();
+        return extended;
+    }
+
+    @Test
+    public void unknownFlagsAreRefused() {
+        ByteBuffer frame = FrameCodec.encode(true, null, null, 4, ByteBuffer.wrap(new byte[]{1}));
+        assertEquals(Priority.BULK, FrameCodec.decode(withExtendedFlags(frame, Priority.BULK.ordinal())).priority);
+        //A lane that doesn't exist, and a flag that doesn't.
+        for (int extendedFlags : new int[]{0x03, 0x80}) {
+            try {
+                FrameCodec.decode(withExtendedFlags(frame, extendedFlags));
+                fail("Read the extended flags " + extendedFlags);
+            } catch (IllegalArgumentException e) {
+                //Expected.
+            }
+        }
+    }
+
+    @Test
+    public void theExtendedFlagsCarryTheLaneAndTheIds() {
+        PeerIds peers = new PeerIds() {
+            @Override
+            public int idOf(String address) {
+                return address.equals("alice") ? 1 : NONE;
+            }
+
+            @Override
+            public byte[] addressOf(int id) {
+                return id == 1 ? "alice".getBytes(FrameCodec.UTF8) : null;
+            }
+        };
+        ByteBuffer frame = FrameCodec.encode(false, "bob", "alice", 4, Priority.BULK, ByteBuffer.wrap(new byte[]{1, 2}), peers);
+        FrameHeader header = header(frame, peers);
+        assertEquals(FrameCodec.FLAG_EXTENDED, header.getFlags() & FrameCodec.FLAG_EXTENDED);
+        assertEquals(FrameCodec.EXTENDED_SOURCE_ID | Priority.BULK.ordinal(), header.getExtendedFlags());
+        assertEquals(Priority.BULK, header.getPriority());
+        assertEquals(Priority.BULK, FrameCodec.priority(frame));
+        assertEquals(1, header.getSourceId());
+        assertEquals("alice", header.getSource());
+        assertEquals(PeerIds.NONE, header.getTargetId());
+        assertEquals("bob", header.getTarget());
+        assertEquals(2, header.getPayloadLength());
+
+        //Without ids, the lane needs no extended flags.
+        frame = FrameCodec.encode(false, "bob", "alice", 4, Priority.BULK, ByteBuffer.wrap(new byte[]{1, 2}));
+        header = header(frame, null);
+        assertEquals(FrameCodec.FLAG_PRIORITY_BULK, header.getFlags() & FrameCodec.FLAG_EXTENDED);
+        assertEquals(0, header.getExtendedFlags());
+        assertEquals(Priority.BULK, header.getPriority());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aTruncatedFrameIsRefused() {
+        ByteBuffer frame = FrameCodec.encode(true, null, "alice", 4, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        frame.limit(frame.limit() - 1);
+        FrameCodec.decode(frame);
+    }
+
+    @Test
+    public void legacyTextFramesAreStillRead() {
+        BluetoothMessage message = new BluetoothMessage(true, null, "alice", 4, "hello");
+        byte[] legacy = message.toBytes(WireFormat.LEGACY_TEXT);
+        assertEquals("004true004null005alice0014hello", new String(legacy, FrameCodec.UTF8));
+        assertEquals(WireFormat.LEGACY_TEXT, WireFormat.of(legacy[0]));
+        BluetoothMessage read = BluetoothMessage.decode(ByteBuffer.wrap(legacy));
+        assertEquals(Boolean.TRUE, read.isGlobal);
+        assertNull(read.targetMAC);
+        assertEquals("alice", read.sourceMAC);
+        assertEquals(Integer.valueOf(4), read.appCode);
+        assertEquals("hello", read.content);
+
+        byte[] binary = message.toBytes(WireFormat.BINARY);
+        assertEquals(WireFormat.BINARY, WireFormat.of(binary[0]));
+        assertEquals("hello", BluetoothMessage.decode(ByteBuffer.wrap(binary)).content);
+    }
+}
@@ -0,0 +1,159 @@
+package grioanpier.auth.users.bluetoothframework.wire;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private final FrameDecoder decoder = new FrameDecoder();
+    //Copies of the frames the decoder handed over, which it only lends.
+    private final List<byte[]> frames = new ArrayList<>();
+    private final FrameDecoder.FrameListener listener = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            frames.add(bytes);
+        }
+    };
+
+    private static byte[] frame(String content) {
+        return new BluetoothMessage(true, null, "alice", 4, content).toBytes(WireFormat.BINARY);
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        int length = 0;
+        for (byte[] array : arrays)
+            length += array.length;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] array : arrays)
+            buffer.put(array);
+        return buffer.array();
+    }
+
+    private void feed(byte[] data, int from, int to) {
+        decoder.decode(data, from, to - from, listener);
+    }
+
+    @Test
+    public void aFrameSplitAnywhereIsPutBackTogether() {
+        //Long enough for a two byte length, so it's split in the middle of the varint too.
+        char[] content = new char[200];
+        Arrays.fill(content, 'x');
+        byte[] frame = frame(new String(content));
+        assertTrue((frame[1] & 0x80) != 0);
+        for (int split = 1; split < frame.length; split++) {
+            feed(frame, 0, split);
+            assertTrue("Split at " + split, frames.isEmpty());
+            assertEquals(split, decoder.pendingBytes());
+            feed(frame, split, frame.length);
+            assertEquals("Split at " + split, 1, frames.size());
+            assertArrayEquals(frame, frames.remove(0));
+            assertEquals(0, decoder.pendingBytes());
+        }
+    }
+
+    @Test
+    public void aFrameReadAByteAtATimeIsPutBackTogether() {
+        byte[] frame = frame("hello");
+        for (int i = 0; i < frame.length; i++)
+            feed(frame, i, i + 1);
+        assertEquals(1, frames.size());
+        assertArrayEquals(frame, frames.get(0));
+    }
+
+    @Test
+    public void severalFramesInOneReadAreHandedOverInOrder() {
+        byte[] first = frame("one");
+        byte[] second = frame("two");
+        byte[] third = frame("three");
+        byte[] data = concat(first, second, third);
+        feed(data, 0, data.length);
+        assertEquals(3, frames.size());
+        assertArrayEquals(first, frames.get(0));
+        assertArrayEquals(second, frames.get(1));
+        assertArrayEquals(third, frames.get(2));
+        assertEquals(0, decoder.pendingBytes());
+    }
+
+    @Test
+    public void whatFollowsTheLastCompleteFrameWaitsForTheNextRead() {
+        byte[] first = frame("one");
+        byte[] second = frame("two");
+        byte[] data = concat(first, second);
+        feed(data, 0, first.length + 3);
+        assertEquals(1, frames.size());
+        assertEquals(3, decoder.pendingBytes());
+        feed(data, first.length + 3, data.length);
+        assertEquals(2, frames.size());
+        assertArrayEquals(second, frames.get(1));
+    }
+
+    @Test
+    public void anOversizedFrameIsRefusedAsSoonAsItsLengthIsRead() {
+        FrameDecoder decoder = new FrameDecoder(100);
+        byte[] prefix = new byte[1 + 2];
+        ByteBuffer buffer = ByteBuffer.wrap(prefix);
+        buffer.put(FrameCodec.MAGIC);
+        FrameCodec.writeVarint(buffer, 1000);
+        try {
+            decoder.decode(prefix, 0, prefix.length, listener);
+            fail("Waited for the body of a frame that is too long");
+        } catch (IllegalArgumentException e) {
+            //Expected.
+        }
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    public void framesAreReadAgainOnceGarbageIsDiscarded() {
+        byte[] garbage = {FrameCodec.MAGIC, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1, 2};
+        try {
+            feed(garbage, 0, garbage.length);
+            fail("Read a length longer than 5 bytes");
+        } catch (IllegalArgumentException e) {
+            //What the connection does.
+            decoder.reset();
+        }
+        assertEquals(0, decoder.pendingBytes());
+        byte[] frame = frame("hello");
+        feed(frame, 0, frame.length);
+        assertEquals(1, frames.size());
+        assertEquals("hello", FrameCodec.decode(ByteBuffer.wrap(frames.get(0))).content);
+    }
+
+    @Test
+    public void aLegacyFrameIsEverythingThatWasRead() {
+        byte[] legacy = new BluetoothMessage(true, null, "alice", 4, "hello").toBytes(WireFormat.LEGACY_TEXT);
+        feed(legacy, 0, legacy.length);
+        assertEquals(1, frames.size());
+        assertArrayEquals(legacy, frames.get(0));
+        assertEquals(0, decoder.pendingBytes());
+        //The next read starts a frame of its own.
+        byte[] frame = frame("hello");
+        feed(frame, 0, frame.length);
+        assertArrayEquals(frame, frames.get(1));
+    }
+}
@@ -0,0 +1,82 @@
+package grioanpier.auth.users.bluetoothframework;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import grioanpier.auth.users.bluetoothframework.benchmark.ChatPayloads;
+import grioanpier.auth.users.bluetoothframework.wire.WireFormat;
+
+/**
+ * The text helpers of {@link WireFormat#LEGACY_TEXT}: parsing, {@link BluetoothMessage#getMessage()} and the
+ * length prefixes. It lives in the package of {@link BluetoothMessage} because format and deformat aren't public.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LegacyTextBenchmark {
+
+    @Param({"short", "long"})
+    public String content;
+
+    @Param({"true", "false"})
+    public boolean global;
+
+    private BluetoothMessage message;
+    private String legacyText;
+    private String formatted;
+
+    @Setup
+    public void setUp() {
+        message = ChatPayloads.fromPlayer(content, global);
+        legacyText = message.getMessage();
+        formatted = BluetoothMessage.format(message.content);
+    }
+
+    @Benchmark
+    public BluetoothMessage parseLegacyText() {
+        return new BluetoothMessage(legacyText);
+    }
+
+    @Benchmark
+    public String getMessage() {
+        return message.getMessage();
+    }
+
+    @Benchmark
+    public String format() {
+        return BluetoothMessage.format(message.content);
+    }
+
+    @Benchmark
+    public int deformat() {
+        return BluetoothMessage.deformat(formatted);
+    }
+}
@@ -0,0 +1,73 @@
+package grioanpier.auth.users.bluetoothframework;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import grioanpier.auth.users.bluetoothframework.benchmark.ChatPayloads;
+import grioanpier.auth.users.bluetoothframework.wire.WireFormat;
+
+/**
+ * What encoding and decoding a {@link BluetoothMessage} costs, in either {@link WireFormat}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageCodecBenchmark {
+
+    @Param({"short", "long"})
+    public String content;
+
+    @Param({"true", "false"})
+    public boolean global;
+
+    @Param({"LEGACY_TEXT", "BINARY"})
+    public WireFormat wireFormat;
+
+    private BluetoothMessage message;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        message = ChatPayloads.fromPlayer(content, global);
+        encoded = message.toBytes(wireFormat);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return message.toBytes(wireFormat);
+    }
+
+    @Benchmark
+    public BluetoothMessage decode() {
+        return BluetoothMessage.decode(ByteBuffer.wrap(encoded));
+    }
+}
@@ -0,0 +1,71 @@
+package grioanpier.auth.users.bluetoothframework.benchmark;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+
+/**
+ * The messages the benchmarks work with, shaped after what the chat sends.
+ */
+public final class ChatPayloads {
+
+    public static final String HOST = "A4:50:46:1C:22:01";
+    public static final String[] PLAYERS = {
+            "A4:50:46:1C:22:02",
+            "A4:50:46:1C:22:03",
+            "A4:50:46:1C:22:04",
+            "A4:50:46:1C:22:05",
+            "A4:50:46:1C:22:06",
+            "A4:50:46:1C:22:07",
+            "A4:50:46:1C:22:08",
+    };
+
+    public static final int CHAT = 10;
+
+    /**
+     * A typical chat line.
+     */
+    public static final String SHORT = "ok, see you at the library in 5";
+
+    /**
+     * Close to the 999 characters a legacy field may have.
+     */
+    public static final String LONG;
+
+    static {
+        StringBuilder builder = new StringBuilder();
+        String sentence = "Whoever gets there first keeps a table by the window, the ones at the back have no sockets. ";
+        while (builder.length() + sentence.length() < 990)
+            builder.append(sentence);
+        LONG = builder.toString();
+    }
+
+    private ChatPayloads() {
+    }
+
+    /**
+     * @param length "short" or "long"
+     */
+    public static String content(String length) {
+        return "long".equals(length) ? LONG : SHORT;
+    }
+
+    /**
+     * A message sent by the first player, either to everyone or to the second player.
+     */
+    public static BluetoothMessage fromPlayer(String length, boolean global) {
+        return new BluetoothMessage(global, global ? null : PLAYERS[1], PLAYERS[0], CHAT, content(length));
+    }
+}
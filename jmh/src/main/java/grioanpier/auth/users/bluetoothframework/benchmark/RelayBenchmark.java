@@ -0,0 +1,156 @@
+package grioanpier.auth.users.bluetoothframework.benchmark;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+import grioanpier.auth.users.bluetoothframework.io.SharedFrame;
+import grioanpier.auth.users.bluetoothframework.routing.FrameRouter;
+import grioanpier.auth.users.bluetoothframework.wire.FrameHeader;
+import grioanpier.auth.users.bluetoothframework.wire.WireFormat;
+
+/**
+ * The relay decision for a frame received from the first player: whether this device consumes it and which
+ * connections it is queued to. The connections release what they are given right away, so only the routing is measured.
+ * <p/>
+ * On the host the frame is relayed to the 7 players, or to the second one if it's private. On a player the only
+ * connection is the host, and the frame is consumed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RelayBenchmark {
+
+    @Param({"short", "long"})
+    public String content;
+
+    @Param({"true", "false"})
+    public boolean global;
+
+    @Param({"true", "false"})
+    public boolean host;
+
+    /**
+     * The format of the received frame. Every connection uses the same one.
+     */
+    @Param({"LEGACY_TEXT", "BINARY"})
+    public WireFormat wireFormat;
+
+    private FrameRouter router;
+    private final FrameHeader header = new FrameHeader();
+    private byte[] received;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        ConcurrentSkipListMap<String, FrameRouter.Link> links = new ConcurrentSkipListMap<>();
+        if (host) {
+            for (String player : ChatPayloads.PLAYERS)
+                links.put(player, new DiscardingLink(wireFormat, blackhole));
+        } else {
+            links.put(ChatPayloads.HOST, new DiscardingLink(wireFormat, blackhole));
+        }
+
+        final String local = host ? ChatPayloads.HOST : ChatPayloads.PLAYERS[1];
+        router = new FrameRouter(links, new FrameRouter.Callback() {
+            @Override
+            public boolean isHost() {
+                return host;
+            }
+
+            @Override
+            public String getLocalAddress() {
+                return local;
+            }
+
+            @Override
+            public String resolveAddress(String target) {
+                return target;
+            }
+
+            @Override
+            public void onConsume(BluetoothMessage message) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void onConsumeFrame(FrameHeader header) {
+                blackhole.consume(header);
+            }
+        });
+
+        received = ChatPayloads.fromPlayer(content, global).toBytes(wireFormat);
+    }
+
+    @Benchmark
+    public int route() {
+        //The reading thread copies every frame into a buffer of its own, the wrap stands for that.
+        return router.route(SharedFrame.wrap(received), header);
+    }
+
+    private static class DiscardingLink implements FrameRouter.Link {
+        private final WireFormat mWireFormat;
+        private final Blackhole mBlackhole;
+
+        DiscardingLink(WireFormat wireFormat, Blackhole blackhole) {
+            mWireFormat = wireFormat;
+            mBlackhole = blackhole;
+        }
+
+        @Override
+        public WireFormat getWireFormat() {
+            return mWireFormat;
+        }
+
+        @Override
+        public boolean readsCompressed() {
+            return false;
+        }
+
+        @Override
+        public boolean readsPeerIds() {
+            return false;
+        }
+
+        @Override
+        public boolean readsLanes() {
+            return true;
+        }
+
+        @Override
+        public boolean write(SharedFrame frame) {
+            mBlackhole.consume(frame.length());
+            frame.release();
+            return true;
+        }
+    }
+}
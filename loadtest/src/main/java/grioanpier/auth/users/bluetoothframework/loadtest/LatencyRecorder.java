@@ -0,0 +1,58 @@
+package grioanpier.auth.users.bluetoothframework.loadtest;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.util.Arrays;
+
+/**
+ * Keeps every latency it is given and reports percentiles over them. Runs are short enough for that to be cheaper
+ * than any approximation. Safe for concurrent use.
+ */
+public class LatencyRecorder {
+
+    private long[] mValues = new long[1024];
+    private int mCount = 0;
+
+    public synchronized void record(long nanos) {
+        if (mCount == mValues.length)
+            mValues = Arrays.copyOf(mValues, mCount * 2);
+        mValues[mCount++] = nanos;
+    }
+
+    public synchronized int count() {
+        return mCount;
+    }
+
+    /**
+     * @return a sorted copy of what has been recorded so far
+     */
+    public synchronized long[] snapshot() {
+        long[] values = Arrays.copyOf(mValues, mCount);
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * @param sorted   the values, as returned by {@link #snapshot()}
+     * @param quantile between 0 and 1
+     * @return the value at the given quantile (nearest rank), or 0 if there are no values
+     */
+    public static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
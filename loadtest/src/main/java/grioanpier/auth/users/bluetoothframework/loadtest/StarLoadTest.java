@@ -0,0 +1,433 @@
+package grioanpier.auth.users.bluetoothframework.loadtest;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import grioanpier.auth.users.bluetoothframework.BluetoothMessage;
+import grioanpier.auth.users.bluetoothframework.io.OverflowPolicy;
+import grioanpier.auth.users.bluetoothframework.loadtest.sim.LinkProfile;
+import grioanpier.auth.users.bluetoothframework.loadtest.sim.SharedMedium;
+import grioanpier.auth.users.bluetoothframework.loadtest.sim.SimulatedTransport;
+import grioanpier.auth.users.bluetoothframework.session.SocketManager;
+import grioanpier.auth.users.bluetoothframework.transport.Transport;
+import grioanpier.auth.users.bluetoothframework.transport.TransportServerSocket;
+import grioanpier.auth.users.bluetoothframework.transport.memory.InMemoryNetwork;
+
+/**
+ * Drives a star, one host and up to 7 players, in a single JVM over the in-memory transport. Every player sends
+ * messages at a fixed rate through {@link SocketManager#sendGlobalMessage} or {@link SocketManager#sendPrivateMessage}
+ * and every device records how long each message took to reach it. The results are printed as JSON.
+ * <p/>
+ * Options:
+ * <ul>
+ * <li>--players N: how many players connect to the host (1-7, default 7)</li>
+ * <li>--rate R: messages per second sent by each player (default 10)</li>
+ * <li>--size S: characters of content per message (default 100)</li>
+ * <li>--mode global|private|mixed: what the players send. Private messages go to the next player (default global)</li>
+ * <li>--duration D: seconds measured (default 10)</li>
+ * <li>--warmup W: seconds sent before measuring (default 2)</li>
+ * <li>--drain T: seconds at most to wait for the messages still in flight (default 5)</li>
+ * <li>--queue Q: outbound queue capacity of every lane of every connection (default 64)</li>
+ * <li>--policy P: overflow policy of the outbound queues (default DROP_NEWEST)</li>
+ * <li>--legacy: every connection stays in the text format with its 250 ms pacing, as the framework used to</li>
+ * </ul>
+ * The connections are as fast as the CPU allows, unless they are simulated as radio links (see {@link SimulatedTransport}):
+ * <ul>
+ * <li>--link-kbps K: bandwidth of every link. Enables the simulation, with the latency and jitter of {@link LinkProfile#RFCOMM} by default</li>
+ * <li>--link-latency L, --link-jitter J: milliseconds added to every write</li>
+ * <li>--stall-every I, --stall-ms S: a link stalls for S milliseconds every I milliseconds on average</li>
+ * <li>--medium-kbps M: bandwidth of the airtime all the links share. Unlimited by default</li>
+ * <li>--seed S: seeds the jitter and the stalls (default 1)</li>
+ * </ul>
+ */
+public class StarLoadTest {
+
+    private static final int LOAD = 42;
+    private static final String HOST = "host";
+
+    static class Options {
+        int players = 7;
+        double rate = 10;
+        int size = 100;
+        String mode = "global";
+        int duration = 10;
+        int warmup = 2;
+        int drain = 5;
+        int queue = 64;
+        OverflowPolicy policy = OverflowPolicy.DROP_NEWEST;
+        boolean legacy = false;
+        long linkKbps = 0;
+        long linkLatency = LinkProfile.RFCOMM.latency;
+        long linkJitter = LinkProfile.RFCOMM.jitter;
+        long stallEvery = 0;
+        long stallMillis = 0;
+        long mediumKbps = 0;
+        long seed = 1;
+
+        /**
+         * @return the profile of the simulated links, null if the links aren't simulated
+         */
+        LinkProfile linkProfile() {
+            if (linkKbps == 0)
+                return null;
+            return new LinkProfile(linkKbps * 1000, linkLatency, linkJitter, stallEvery, stallMillis);
+        }
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--legacy":
+                        options.legacy = true;
+                        continue;
+                    case "--players":
+                    case "--rate":
+                    case "--size":
+                    case "--mode":
+                    case "--duration":
+                    case "--warmup":
+                    case "--drain":
+                    case "--queue":
+                    case "--policy":
+                    case "--link-kbps":
+                    case "--link-latency":
+                    case "--link-jitter":
+                    case "--stall-every":
+                    case "--stall-ms":
+                    case "--medium-kbps":
+                    case "--seed":
+                        if (i + 1 == args.length)
+                            throw new IllegalArgumentException(arg + " needs a value");
+                        options.set(arg, args[++i]);
+                        continue;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (options.players < 1 || options.players > 7)
+                throw new IllegalArgumentException("A host accepts 1 to 7 players");
+            if (!options.mode.equals("global") && !options.mode.equals("private") && !options.mode.equals("mixed"))
+                throw new IllegalArgumentException("Unknown mode " + options.mode);
+            return options;
+        }
+
+        private void set(String option, String value) {
+            switch (option) {
+                case "--players":
+                    players = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "--size":
+                    size = Integer.parseInt(value);
+                    break;
+                case "--mode":
+                    mode = value;
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                    break;
+                case "--drain":
+                    drain = Integer.parseInt(value);
+                    break;
+                case "--queue":
+                    queue = Integer.parseInt(value);
+                    break;
+                case "--policy":
+                    policy = OverflowPolicy.valueOf(value);
+                    break;
+                case "--link-kbps":
+                    linkKbps = Long.parseLong(value);
+                    break;
+                case "--link-latency":
+                    linkLatency = Long.parseLong(value);
+                    break;
+                case "--link-jitter":
+                    linkJitter = Long.parseLong(value);
+                    break;
+                case "--stall-every":
+                    stallEvery = Long.parseLong(value);
+                    break;
+                case "--stall-ms":
+                    stallMillis = Long.parseLong(value);
+                    break;
+                case "--medium-kbps":
+                    mediumKbps = Long.parseLong(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * A simulated device. It records the latency of every message that was sent during the measurement.
+     */
+    private class Node implements SocketManager.LocalDevice, SocketManager.Listener {
+        final String address;
+        final boolean isHost;
+        final Transport transport;
+        final SocketManager manager;
+        final LatencyRecorder latencies = new LatencyRecorder();
+        final AtomicLong seq = new AtomicLong();
+        //Only what is sent during the measurement.
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong sentGlobal = new AtomicLong();
+
+        Node(String address, boolean isHost) {
+            this.address = address;
+            this.isHost = isHost;
+            Transport transport = network.attach(address, address);
+            if (linkProfile != null)
+                transport = new SimulatedTransport(transport, linkProfile, medium, options.seed * 31 + nodes.size());
+            this.transport = transport;
+            manager = new SocketManager(this, this);
+            manager.setOutboundQueueCapacity(options.queue);
+            manager.setOverflowPolicy(options.policy);
+            manager.setLegacyOnly(options.legacy);
+        }
+
+        @Override
+        public boolean isHost() {
+            return isHost;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public void onMessage(BluetoothMessage message) {
+            long now = System.nanoTime();
+            if (message.appCode != LOAD)
+                return;
+            long sentAt = sentAt(message.content);
+            if (sentAt >= measureStart && sentAt < measureEnd)
+                latencies.record(now - sentAt);
+        }
+
+        @Override
+        public void onPlayerConnected(String address, String name) {
+        }
+
+        @Override
+        public void onDisconnected(String address, String name, boolean wasHost) {
+            if (!closing)
+                System.err.println(this.address + ": " + name + " disconnected");
+        }
+    }
+
+    private final Options options;
+    private final InMemoryNetwork network = new InMemoryNetwork();
+    private final LinkProfile linkProfile;
+    //The host and its players form a single piconet.
+    private final SharedMedium medium;
+    private final List<Node> nodes = new ArrayList<>();
+    private final String padding;
+
+    //Only the messages sent in between are measured.
+    private volatile long measureStart = Long.MAX_VALUE;
+    private volatile long measureEnd = Long.MAX_VALUE;
+    private volatile boolean closing = false;
+
+    StarLoadTest(Options options) {
+        this.options = options;
+        linkProfile = options.linkProfile();
+        medium = linkProfile != null && options.mediumKbps > 0 ? new SharedMedium(options.mediumKbps * 1000) : null;
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < options.size; i++)
+            builder.append((char) ('a' + i % 26));
+        padding = builder.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        StarLoadTest test = new StarLoadTest(options);
+        try {
+            test.connect();
+            System.out.println(test.run());
+        } finally {
+            test.close();
+        }
+    }
+
+    private void connect() throws IOException, InterruptedException {
+        Node host = new Node(HOST, true);
+        nodes.add(host);
+        for (int i = 1; i <= options.players; i++) {
+            UUID slot = new UUID(0, i);
+            TransportServerSocket server = host.transport.listen(slot);
+            Node player = new Node("player-" + i, false);
+            nodes.add(player);
+            player.manager.setHostSocket(player.transport.connect(HOST, slot));
+            host.manager.addPlayerSocket(server.accept());
+            server.close();
+        }
+    }
+
+    private String run() throws InterruptedException {
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(options.players);
+        long period = (long) (TimeUnit.SECONDS.toNanos(1) / options.rate);
+        for (int i = 1; i < nodes.size(); i++) {
+            final Node player = nodes.get(i);
+            final String next = nodes.get(i % options.players + 1).address;
+            senders.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    send(player, next);
+                }
+            }, 0, period, TimeUnit.NANOSECONDS);
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.warmup));
+        measureStart = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.duration));
+        measureEnd = System.nanoTime();
+        senders.shutdown();
+        senders.awaitTermination(5, TimeUnit.SECONDS);
+        //Messages that were being sent as the measurement ended count as long as they were stamped before it.
+        long sent = totalSent(false);
+        long global = totalSent(true);
+        long expected = (sent - global) + global * nodes.size();
+
+        //Wait for what is still queued, as long as it keeps arriving.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.drain);
+        long delivered = totalDelivered();
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(200);
+            long now = totalDelivered();
+            if (now == delivered && now >= expected)
+                break;
+            delivered = now;
+        }
+
+        return report(sent, expected, (measureEnd - measureStart) / 1e9);
+    }
+
+    private void send(Node player, String next) {
+        boolean global = options.mode.equals("global") || (options.mode.equals("mixed") && player.seq.incrementAndGet() % 2 == 0);
+        long sentAt = System.nanoTime();
+        String content = sentAt + "|" + padding;
+        if (sentAt >= measureStart && sentAt < measureEnd) {
+            player.sent.incrementAndGet();
+            if (global)
+                player.sentGlobal.incrementAndGet();
+        }
+        try {
+            if (global)
+                player.manager.sendGlobalMessage(content, LOAD);
+            else
+                player.manager.sendPrivateMessage(content, next, LOAD);
+        } catch (RuntimeException e) {
+            //A full queue with the FAIL policy, the message is lost and shows up as such.
+            e.printStackTrace();
+        }
+    }
+
+    private static long sentAt(String content) {
+        int end = content.indexOf('|');
+        return end < 0 ? Long.MIN_VALUE : Long.parseLong(content.substring(0, end));
+    }
+
+    private long totalSent(boolean global) {
+        long sent = 0;
+        for (Node node : nodes)
+            sent += global ? node.sentGlobal.get() : node.sent.get();
+        return sent;
+    }
+
+    private long totalDelivered() {
+        long delivered = 0;
+        for (Node node : nodes)
+            delivered += node.latencies.count();
+        return delivered;
+    }
+
+    /**
+     * @param expected how many deliveries there should have been. A global message reaches the host and every player,
+     *                 its sender included, a private one only its target.
+     */
+    private String report(long sent, long expected, double seconds) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"config\":{")
+                .append("\"players\":").append(options.players)
+                .append(",\"rate\":").append(number(options.rate))
+                .append(",\"size\":").append(options.size)
+                .append(",\"mode\":\"").append(options.mode).append('"')
+                .append(",\"queue\":").append(options.queue)
+                .append(",\"policy\":\"").append(options.policy).append('"')
+                .append(",\"legacy\":").append(options.legacy)
+                .append(",\"link\":").append(linkProfile == null ? "null" : "\"" + linkProfile + "\"")
+                .append(",\"mediumKbps\":").append(medium == null ? "null" : String.valueOf(options.mediumKbps))
+                .append("},\"seconds\":").append(number(seconds))
+                .append(",\"sent\":").append(sent)
+                .append(",\"expected\":").append(expected)
+                .append(",\"delivered\":").append(totalDelivered())
+                .append(",\"receivers\":[");
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            long[] sorted = node.latencies.snapshot();
+            if (i > 0)
+                json.append(',');
+            json.append("{\"receiver\":\"").append(node.address).append('"')
+                    .append(",\"delivered\":").append(sorted.length)
+                    .append(",\"perSecond\":").append(number(sorted.length / seconds))
+                    .append(",\"latencyMillis\":{")
+                    .append("\"p50\":").append(millis(LatencyRecorder.percentile(sorted, 0.5)))
+                    .append(",\"p99\":").append(millis(LatencyRecorder.percentile(sorted, 0.99)))
+                    .append(",\"p999\":").append(millis(LatencyRecorder.percentile(sorted, 0.999)))
+                    .append(",\"max\":").append(millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]))
+                    .append("}}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String millis(long nanos) {
+        return number(nanos / 1e6);
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.US, "%.3f", value);
+    }
+
+    private void close() {
+        closing = true;
+        for (Node node : nodes)
+            node.manager.clear();
+    }
+}
@@ -0,0 +1,72 @@
+package grioanpier.auth.users.bluetoothframework.loadtest.sim;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+/**
+ * What a simulated link looks like. Times are in milliseconds, bandwidths in bits per second.
+ */
+public class LinkProfile {
+
+    /**
+     * Roughly what RFCOMM gives in practice between two phones: a few hundred kbps and a few milliseconds per write.
+     */
+    public static final LinkProfile RFCOMM = new LinkProfile(400000, 8, 4, 0, 0);
+
+    /**
+     * How many bits per second the link can carry on its own, ignoring the rest of the piconet.
+     */
+    public final long bandwidth;
+
+    /**
+     * Added to every write, between the moment it has been transmitted and the moment it's delivered.
+     */
+    public final long latency;
+
+    /**
+     * The latency of every write varies uniformly by up to this much, in either direction. Writes are still
+     * delivered in order.
+     */
+    public final long jitter;
+
+    /**
+     * On average, how long the link runs between two stalls. 0 for no stalls.
+     */
+    public final long stallInterval;
+
+    /**
+     * How long the link stops transmitting during a stall, like it does while the device runs an inquiry.
+     */
+    public final long stallDuration;
+
+    public LinkProfile(long bandwidth, long latency, long jitter, long stallInterval, long stallDuration) {
+        if (bandwidth <= 0)
+            throw new IllegalArgumentException("The bandwidth must be positive");
+        if (latency < 0 || jitter < 0 || jitter > latency)
+            throw new IllegalArgumentException("The jitter can't be bigger than the latency");
+        if (stallInterval < 0 || stallDuration < 0)
+            throw new IllegalArgumentException("Stalls can't be negative");
+        this.bandwidth = bandwidth;
+        this.latency = latency;
+        this.jitter = jitter;
+        this.stallInterval = stallInterval;
+        this.stallDuration = stallDuration;
+    }
+
+    @Override
+    public String toString() {
+        return bandwidth / 1000 + " kbps, " + latency + "+-" + jitter + " ms"
+                + (stallInterval > 0 ? ", stalls of " + stallDuration + " ms every ~" + stallInterval + " ms" : "");
+    }
+}
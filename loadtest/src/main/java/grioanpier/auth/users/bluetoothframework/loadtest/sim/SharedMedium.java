@@ -0,0 +1,58 @@
+package grioanpier.auth.users.bluetoothframework.loadtest.sim;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+/**
+ * The airtime every link of a piconet shares. While one link transmits, the others wait for the medium, so the
+ * combined bandwidth of all the links can't exceed the bandwidth of the medium.
+ */
+public class SharedMedium {
+
+    private final long mBandwidth;
+    private long mFreeAt = 0;
+
+    /**
+     * @param bandwidth bits per second, shared by every link that uses the medium
+     */
+    public SharedMedium(long bandwidth) {
+        if (bandwidth <= 0)
+            throw new IllegalArgumentException("The bandwidth must be positive");
+        mBandwidth = bandwidth;
+    }
+
+    /**
+     * Books the medium for a transmission.
+     *
+     * @param earliest the earliest the transmission may start, in {@link System#nanoTime()} terms
+     * @param bytes    how much is transmitted
+     * @return when the transmission ends
+     */
+    synchronized long reserve(long earliest, int bytes) {
+        long start = Math.max(earliest, mFreeAt);
+        mFreeAt = start + transmissionTime(mBandwidth, bytes);
+        return mFreeAt;
+    }
+
+    public long getBandwidth() {
+        return mBandwidth;
+    }
+
+    /**
+     * @return nanoseconds needed to transmit the bytes at the given bits per second
+     */
+    static long transmissionTime(long bandwidth, int bytes) {
+        return bytes * 8L * 1000000000L / bandwidth;
+    }
+}
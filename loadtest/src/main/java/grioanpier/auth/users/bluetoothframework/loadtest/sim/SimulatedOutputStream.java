@@ -0,0 +1,162 @@
+package grioanpier.auth.users.bluetoothframework.loadtest.sim;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sending half of a simulated link. A write blocks for as long as the radio would need to transmit it, which
+ * includes waiting for the {@link SharedMedium} and any stall, and is handed to the real stream once its latency has
+ * passed. Delivery happens on a thread of its own so the latency doesn't hold up the writes that follow.
+ */
+class SimulatedOutputStream extends OutputStream {
+
+    private static final class Delivery {
+        final byte[] bytes;
+        final long at;
+
+        Delivery(byte[] bytes, long at) {
+            this.bytes = bytes;
+            this.at = at;
+        }
+    }
+
+    private static final Delivery CLOSED = new Delivery(new byte[0], 0);
+
+    private final OutputStream mOut;
+    private final LinkProfile mProfile;
+    private final SharedMedium mMedium;
+    private final Random mRandom;
+    private final LinkedBlockingQueue<Delivery> mDeliveries = new LinkedBlockingQueue<>();
+    private final Thread mDeliverer;
+
+    //All in System.nanoTime() terms, guarded by this.
+    private long mFreeAt = 0;
+    private long mLastDelivery = 0;
+    private long mNextStall;
+
+    private volatile boolean mClosed = false;
+    private volatile IOException mFailure = null;
+
+    /**
+     * @param medium the medium the link shares with the rest of the piconet, null if it has the air to itself
+     */
+    SimulatedOutputStream(OutputStream out, LinkProfile profile, SharedMedium medium, Random random, String name) {
+        mOut = out;
+        mProfile = profile;
+        mMedium = medium;
+        mRandom = random;
+        mNextStall = System.nanoTime() + nextStallIn();
+        mDeliverer = new Thread("SimulatedLink-" + name) {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+        mDeliverer.setDaemon(true);
+        mDeliverer.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (mClosed)
+            throw new IOException("Stream closed");
+        if (mFailure != null)
+            throw mFailure;
+        if (len == 0)
+            return;
+
+        long now = System.nanoTime();
+        long start = Math.max(now, mFreeAt);
+        if (mProfile.stallInterval > 0 && start >= mNextStall) {
+            start += TimeUnit.MILLISECONDS.toNanos(mProfile.stallDuration);
+            mNextStall = start + nextStallIn();
+        }
+        long end = start + SharedMedium.transmissionTime(mProfile.bandwidth, len);
+        if (mMedium != null)
+            end = Math.max(end, mMedium.reserve(start, len));
+        mFreeAt = end;
+
+        //The writer waits for the radio, that's where the back pressure comes from.
+        try {
+            sleepUntil(end);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transmitting");
+        }
+
+        long deliverAt = Math.max(mLastDelivery, end + latency());
+        mLastDelivery = deliverAt;
+        mDeliveries.add(new Delivery(Arrays.copyOfRange(b, off, off + len), deliverAt));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed)
+            return;
+        mClosed = true;
+        mDeliveries.add(CLOSED);
+        mOut.close();
+    }
+
+    private void deliver() {
+        try {
+            while (true) {
+                Delivery delivery = mDeliveries.take();
+                if (delivery == CLOSED)
+                    return;
+                sleepUntil(delivery.at);
+                mOut.write(delivery.bytes);
+                mOut.flush();
+            }
+        } catch (InterruptedException e) {
+        } catch (IOException e) {
+            if (!mClosed)
+                mFailure = e;
+        }
+    }
+
+    private long latency() {
+        long latency = TimeUnit.MILLISECONDS.toNanos(mProfile.latency);
+        if (mProfile.jitter > 0)
+            latency += (long) ((mRandom.nextDouble() * 2 - 1) * TimeUnit.MILLISECONDS.toNanos(mProfile.jitter));
+        return latency;
+    }
+
+    /**
+     * @return how long until the next stall, exponentially distributed around the configured interval
+     */
+    private long nextStallIn() {
+        if (mProfile.stallInterval == 0)
+            return Long.MAX_VALUE / 2;
+        return (long) (-Math.log(1 - mRandom.nextDouble()) * TimeUnit.MILLISECONDS.toNanos(mProfile.stallInterval));
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+}
@@ -0,0 +1,114 @@
+package grioanpier.auth.users.bluetoothframework.loadtest.sim;
+/*
+Copyright {2016} {Ioannis Pierros (ioanpier@gmail.com)}
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import grioanpier.auth.users.bluetoothframework.transport.Transport;
+import grioanpier.auth.users.bluetoothframework.transport.TransportServerSocket;
+import grioanpier.auth.users.bluetoothframework.transport.TransportSocket;
+
+/**
+ * Wraps another {@link Transport} so that its connections behave like radio links: limited bandwidth, latency, jitter
+ * and stalls, as described by a {@link LinkProfile}. Only what a device writes is slowed down, so every device of a
+ * simulation should use one. Devices of the same piconet should also share a {@link SharedMedium}.
+ */
+public class SimulatedTransport implements Transport {
+
+    private final Transport mTransport;
+    private final LinkProfile mProfile;
+    private final SharedMedium mMedium;
+    private final long mSeed;
+    private final AtomicLong mLinks = new AtomicLong();
+
+    /**
+     * @param transport the transport that actually carries the bytes, usually an in-memory one
+     * @param medium    the airtime shared with the rest of the piconet, null for none
+     * @param seed      seeds the jitter and the stalls, so runs can be repeated
+     */
+    public SimulatedTransport(Transport transport, LinkProfile profile, SharedMedium medium, long seed) {
+        mTransport = transport;
+        mProfile = profile;
+        mMedium = medium;
+        mSeed = seed;
+    }
+
+    @Override
+    public TransportSocket connect(String address, UUID slot) throws IOException {
+        return wrap(mTransport.connect(address, slot));
+    }
+
+    @Override
+    public TransportServerSocket listen(UUID slot) throws IOException {
+        final TransportServerSocket serverSocket = mTransport.listen(slot);
+        return new TransportServerSocket() {
+            @Override
+            public TransportSocket accept() throws IOException {
+                return wrap(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    private TransportSocket wrap(TransportSocket socket) throws IOException {
+        Random random = new Random(mSeed + mLinks.incrementAndGet());
+        return new SimulatedSocket(socket, new SimulatedOutputStream(socket.getOutputStream(), mProfile, mMedium, random, socket.getRemoteAddress()));
+    }
+
+    private static class SimulatedSocket implements TransportSocket {
+        private final TransportSocket mSocket;
+        private final SimulatedOutputStream mOutStream;
+
+        SimulatedSocket(TransportSocket socket, SimulatedOutputStream outStream) {
+            mSocket = socket;
+            mOutStream = outStream;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutStream;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mSocket.getRemoteName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOutStream.close();
+            mSocket.close();
+        }
+    }
+}